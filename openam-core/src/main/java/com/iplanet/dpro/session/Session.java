@@ -24,7 +24,7 @@
  *
  * $Id: Session.java,v 1.25 2009/08/14 17:53:35 weisun2 Exp $
  *
- * Portions Copyrighted 2010-2014 ForgeRock AS.
+ * Portions Copyrighted 2010-2015 ForgeRock AS.
  */
 
 package com.iplanet.dpro.session;
@@ -69,6 +69,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * The <code>Session</code> class represents a session. It contains session
@@ -275,9 +277,10 @@ public class Session extends GeneralTaskRunnable {
                 .booleanValue();
 
     /**
-     * The session table indexed by Session ID objects.
+     * The session table indexed by Session ID objects. Lookups do not lock the table.
      */
-    private static Hashtable<SessionID, Session> sessionTable = new Hashtable<SessionID, Session>();
+    private static final ConcurrentMap<SessionID, Session> sessionTable =
+            new ConcurrentHashMap<SessionID, Session>();
 
     /**
      * The session service URL table indexed by server address contained in the
@@ -1118,7 +1121,11 @@ public class Session extends GeneralTaskRunnable {
         }
         session.context = RestrictedTokenContext.getCurrent();
 
-        sessionTable.put(sessionID, session);
+        Session existing = sessionTable.putIfAbsent(sessionID, session);
+        if (existing != null) {
+            // Another thread created the session first, so share its instance
+            return existing;
+        }
         if (!isPollingEnabled()) {
             session.addInternalSessionListener();
         }
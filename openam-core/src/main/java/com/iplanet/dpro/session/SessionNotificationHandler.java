@@ -27,7 +27,7 @@
  */
 
 /**
- * Portions Copyrighted [2011] [ForgeRock AS]
+ * Portions Copyrighted [2011-2015] [ForgeRock AS]
  */
 package com.iplanet.dpro.session;
 
@@ -36,7 +36,7 @@ import com.iplanet.dpro.session.share.SessionNotification;
 import com.iplanet.services.comm.client.NotificationHandler;
 import com.iplanet.services.comm.share.Notification;
 import com.sun.identity.shared.debug.Debug;
-import java.util.Hashtable;
+import java.util.Map;
 import java.util.Vector;
 
 /**
@@ -47,7 +47,7 @@ import java.util.Vector;
  */
 public class SessionNotificationHandler implements NotificationHandler {
 
-    private Hashtable sessionTable;
+    private Map sessionTable;
 
     public static SessionNotificationHandler handler = null;
 
@@ -61,7 +61,7 @@ public class SessionNotificationHandler implements NotificationHandler {
      * Constructs <code>SessionNotificationHandler</code>
      * @param table Session table
      */
-    public SessionNotificationHandler(Hashtable table) {
+    public SessionNotificationHandler(Map table) {
         sessionTable = table;
 
     }
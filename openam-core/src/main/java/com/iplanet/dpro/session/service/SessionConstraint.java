@@ -27,7 +27,7 @@
  */
 
 /*
- * Portions Copyrighted 2011-2012 ForgeRock AS
+ * Portions Copyrighted 2011-2015 ForgeRock AS
  */
 package com.iplanet.dpro.session.service;
 
@@ -181,6 +181,8 @@ public class SessionConstraint {
 	    // If the session quota is exhausted, invoke the
 	    // pluggin to determine the desired behavior.
 	    reject = getQuotaExhaustionAction().action(is, sessions);
+	    // The action may have destroyed sessions held by other servers
+	    SessionCount.clearSessionsFromOtherServers(is.getUUID());
 	    if (debug.messageEnabled()) {
 			debug.message("SessionConstraint." +
                         "checkQuotaAndPerformAction: " +
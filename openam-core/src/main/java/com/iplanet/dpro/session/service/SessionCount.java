@@ -27,7 +27,7 @@
  */
 
 /**
- * Portions Copyrighted 2011-2013 ForgeRock Inc
+ * Portions Copyrighted 2011-2015 ForgeRock Inc
  */
 
 package com.iplanet.dpro.session.service;
@@ -46,14 +46,20 @@ import com.sun.identity.session.util.RestrictedTokenContext;
 import com.sun.identity.shared.Constants;
 import com.sun.identity.shared.debug.Debug;
 import org.forgerock.openam.cts.CTSPersistentStore;
+import org.forgerock.openam.shared.cache.ConcurrentLRUCache;
+import org.forgerock.openam.shared.concurrency.ScatterGather;
 
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
  
  /**
@@ -68,16 +74,18 @@ import java.util.Set;
   * Query other AM servers for the sessions for the  given user Add the numbers 
   * up (including the local one) and return the value. If any of the AM servers 
   * is down, simply ignores it since all the sessions maintained by that instance
-  * are not available.                        
+  * are not available. The other servers are queried concurrently, waiting no
+  * longer than a deadline for their answers, and the combined answer of the
+  * other servers is remembered briefly for each user.
   * <li> SFO_MODE : Fetch the sessions for the given user directly from the 
   * session repository.
   * </ul>
   */
 public class SessionCount {
 
-    // SessionInfoMap: uuid -> Set (list of sids)
-    private static Map uuidSessionMap = Collections
-            .synchronizedMap(new HashMap());
+    // SessionInfoMap: uuid -> Set (list of sids), read and updated without locking
+    private static final ConcurrentMap<String, Set<SessionID>> uuidSessionMap =
+            new ConcurrentHashMap<String, Set<SessionID>>();
 
     /* Single server mode*/
     static final int SINGLE_SERVER_MODE = 1;
@@ -99,6 +107,23 @@ public class SessionCount {
     private static boolean caseSensitiveUUID =
         SystemProperties.getAsBoolean(Constants.CASE_SENSITIVE_UUID);
 
+    // Queries the other servers of the site concurrently
+    private static final ScatterGather peerQueries = new ScatterGather(
+            "SessionCountPeerQuery",
+            SystemProperties.getAsInt(Constants.SESSION_PEER_QUERY_THREADS, 16),
+            debug);
+
+    private static final long peerQueryTimeout =
+            SystemProperties.getAsInt(Constants.SESSION_PEER_QUERY_TIMEOUT, 5000);
+
+    private static final long peerSessionsTTL =
+            SystemProperties.getAsInt(Constants.SESSION_COUNT_PEER_CACHE_TTL, 1000);
+
+    // uuid -> sessions of the uuid on the other servers, with their expiry
+    private static final ConcurrentLRUCache<String, PeerSessions> peerSessionsCache =
+            new ConcurrentLRUCache<String, PeerSessions>("SessionCountPeerCache",
+                    SystemProperties.getAsInt(Constants.SESSION_COUNT_PEER_CACHE_SIZE, 10000));
+
     static {
         try {
             SSOTokenManager.getInstance();
@@ -204,17 +229,15 @@ public class SessionCount {
      * Get user sessions from local server
      */
     static Map<String, Long> getSessionsFromLocalServer(String uuid) {
-        Set<SessionID> sessions = (Set<SessionID>) uuidSessionMap.get(uuid);
+        Set<SessionID> sessions = uuidSessionMap.get(uuid);
         Map<String, Long> retSessions = new HashMap<String, Long>();
 
         if (sessions != null) {
-            synchronized (sessions) {
-                for (SessionID sid : sessions) {
-                    InternalSession is = getSS().getInternalSession(sid);
-                    
-                    if (is != null) {
-                        retSessions.put(sid.toString(), new Long(is.getExpirationTime()));
-                    }
+            for (SessionID sid : sessions) {
+                InternalSession is = getSS().getInternalSession(sid);
+
+                if (is != null) {
+                    retSessions.put(sid.toString(), new Long(is.getExpirationTime()));
                 }
             }
         }
@@ -223,11 +246,30 @@ public class SessionCount {
     }
 
     /*
-     * Get user sessions from session repository
+     * Get user sessions from the local server and all other servers of the site
      */
     private static Map getSessionsFromPeerServers(String uuid) {
 
         Map sessions = getSessionsFromLocalServer(uuid);
+        sessions.putAll(getSessionsFromOtherServers(uuid));
+        return sessions;
+    }
+
+    /*
+     * Get user sessions from the other servers of the site, querying them
+     * concurrently. Servers which are down or do not answer in time are
+     * ignored.
+     */
+    private static Map<String, Long> getSessionsFromOtherServers(final String uuid) {
+
+        long now = System.currentTimeMillis();
+        if (peerSessionsTTL > 0) {
+            PeerSessions cached = peerSessionsCache.get(uuid);
+            if (cached != null && cached.expiry > now) {
+                return cached.sessions;
+            }
+        }
+
         String localServerID = getSS().getLocalServerID();
 
         Set serverIDs = null;
@@ -236,32 +278,64 @@ public class SessionCount {
         } catch (Exception e) {
             debug.error("Failed to get the serverIDs from " + "WebtopNaming.",
                     e);
-            return sessions;
+            return Collections.emptyMap();
         }
 
+        List<String> peers = new ArrayList<String>(serverIDs.size());
         for (Iterator m = serverIDs.iterator(); m.hasNext();) {
             String serverID = (String) m.next();
-            if (serverID.equals(localServerID)) {
-                continue;
-            }
-            try {
-                URL svcurl = Session.getSessionServiceURL(serverID);
-                SessionRequest sreq = new SessionRequest(
-                        SessionRequest.GetSessionCount, getAdminToken()
-                                .getTokenID().toString(), false);
-                sreq.setUUID(uuid);
-                SessionResponse sres = getSessionResponse(svcurl, sreq);
-                sessions.putAll(sres.getSessionsForGivenUUID());
-            } catch (SessionException se) {
-                if (debug.messageEnabled()) {
-                    debug.message("SessionConstraint: "
-                            + "peer AM server is down...");
-                }
+            if (!serverID.equals(localServerID)) {
+                peers.add(serverID);
             }
         }
+        if (peers.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        // The restricted token context is held by the calling thread
+        final Object context = RestrictedTokenContext.getCurrent();
+        final String adminTokenID = getAdminToken().getTokenID().toString();
+
+        Map<String, Map> answers = peerQueries.gather(peers,
+                new ScatterGather.Query<String, Map>() {
+                    public Map query(String serverID) throws Exception {
+                        URL svcurl = Session.getSessionServiceURL(serverID);
+                        SessionRequest sreq = new SessionRequest(
+                                SessionRequest.GetSessionCount, adminTokenID, false);
+                        sreq.setUUID(uuid);
+                        SessionResponse sres = getSessionResponse(svcurl, sreq, context);
+                        return sres.getSessionsForGivenUUID();
+                    }
+                }, peerQueryTimeout, TimeUnit.MILLISECONDS);
+
+        Map<String, Long> sessions = new HashMap<String, Long>();
+        for (Map answer : answers.values()) {
+            sessions.putAll(answer);
+        }
+        if (debug.messageEnabled() && answers.size() < peers.size()) {
+            debug.message("SessionConstraint: " + (peers.size() - answers.size())
+                    + " peer AM servers did not answer...");
+        }
+
+        if (peerSessionsTTL > 0) {
+            peerSessionsCache.put(uuid, new PeerSessions(
+                    Collections.unmodifiableMap(sessions), now + peerSessionsTTL));
+        }
         return sessions;
     }
 
+    /**
+     * Forgets the remembered sessions of a user on the other servers, so that
+     * the next count queries them again.
+     *
+     * @param uuid The user.
+     */
+    static void clearSessionsFromOtherServers(String uuid) {
+        if (uuid != null) {
+            peerSessionsCache.remove(caseSensitiveUUID ? uuid : uuid.toLowerCase());
+        }
+    }
+
     private static Map<String, Long> getSessionsFromRepository(String uuid) throws Exception {
 
         CTSPersistentStore repo = SessionService.getSessionService()
@@ -286,13 +360,27 @@ public class SessionCount {
 
         if ((deploymentMode == SINGLE_SERVER_MODE) || 
                 (deploymentMode == MULTI_SERVER_MODE && useLocalSessionsInMultiServerMode())) {
-            Set sessions = (Set) uuidSessionMap.get((caseSensitiveUUID) ? is.getUUID() : is.getUUID().toLowerCase());
-            if (sessions != null) {
-                sessions.add(is.getID());
-            } else {
-                sessions = Collections.synchronizedSet(new HashSet());
-                sessions.add(is.getID());
-                uuidSessionMap.put((caseSensitiveUUID) ? is.getUUID() : is.getUUID().toLowerCase(), sessions);
+            addSession((caseSensitiveUUID) ? is.getUUID() : is.getUUID().toLowerCase(), is.getID());
+        }
+    }
+
+    /*
+     * Adds the session to the set for the user, retrying if the set was removed as empty
+     * by a concurrent decrement after it was looked up.
+     */
+    private static void addSession(String uuid, SessionID sid) {
+        while (true) {
+            Set<SessionID> sessions = uuidSessionMap.get(uuid);
+            if (sessions == null) {
+                sessions = Collections.newSetFromMap(new ConcurrentHashMap<SessionID, Boolean>());
+                Set<SessionID> previous = uuidSessionMap.putIfAbsent(uuid, sessions);
+                if (previous != null) {
+                    sessions = previous;
+                }
+            }
+            sessions.add(sid);
+            if (uuidSessionMap.get(uuid) == sessions) {
+                return;
             }
         }
     }
@@ -309,13 +397,16 @@ public class SessionCount {
         }
         SessionID sid = is.getID();
 
-        if ((deploymentMode == SINGLE_SERVER_MODE) || 
-                (deploymentMode == MULTI_SERVER_MODE && useLocalSessionsInMultiServerMode())) {
-            Set sessions = (Set) uuidSessionMap.get(uuid);
+        if (uuid != null && ((deploymentMode == SINGLE_SERVER_MODE) ||
+                (deploymentMode == MULTI_SERVER_MODE && useLocalSessionsInMultiServerMode()))) {
+            Set<SessionID> sessions = uuidSessionMap.get(uuid);
             if (sessions != null) {
                 sessions.remove(sid);
-                if (sessions.isEmpty()) {
-                    uuidSessionMap.remove(uuid);
+                if (sessions.isEmpty() && uuidSessionMap.remove(uuid, sessions)) {
+                    // A session may have been added just before the set was removed
+                    for (SessionID remaining : sessions) {
+                        addSession(uuid, remaining);
+                    }
                 }
             }
 
@@ -323,10 +414,9 @@ public class SessionCount {
     }
 
     private static SessionResponse getSessionResponse(URL svcurl,
-            SessionRequest sreq) throws SessionException {
+            SessionRequest sreq, Object context) throws SessionException {
 
         try {
-            Object context = RestrictedTokenContext.getCurrent();
             if (context != null) {
                 sreq.setRequester(RestrictedTokenContext.marshal(context));
             }
@@ -359,4 +449,17 @@ public class SessionCount {
         }
         return adminToken;
     }
+
+    /**
+     * Sessions of a user on the other servers, and when they stop being used.
+     */
+    private static final class PeerSessions {
+        private final Map<String, Long> sessions;
+        private final long expiry;
+
+        private PeerSessions(Map<String, Long> sessions, long expiry) {
+            this.sessions = sessions;
+            this.expiry = expiry;
+        }
+    }
 }
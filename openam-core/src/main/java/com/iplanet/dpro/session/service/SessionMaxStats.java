@@ -27,11 +27,11 @@
  */
 
 /**
- * Portions Copyrighted [2011] [ForgeRock AS]
+ * Portions Copyrighted [2011-2015] [ForgeRock AS]
  */
 package com.iplanet.dpro.session.service;
 
-import java.util.Hashtable;
+import java.util.Map;
 
 import com.sun.identity.shared.stats.StatsListener;
 
@@ -42,7 +42,7 @@ import com.sun.identity.shared.stats.StatsListener;
  */
 public class SessionMaxStats implements StatsListener {
 
-    private Hashtable sessionTable;
+    private Map sessionTable;
     private int peakSessions = 0;
     private int peakActiveSessions = 0;
     private int peakNotificationQueue = 0;
@@ -52,7 +52,7 @@ public class SessionMaxStats implements StatsListener {
     * Creates a new SessionMaxStats
     * @param table session table
     */
-   public SessionMaxStats(Hashtable table) {
+   public SessionMaxStats(Map table) {
         sessionTable = table;
     }
 
@@ -83,7 +83,14 @@ public class SessionMaxStats implements StatsListener {
                  "Max active sessions Current/Peak:" + 
                      maxActiveSessions + "/" + peakActiveSessions + "\n" +
                  "Session Notifications in Queue Current/Peak:" 
-                     + notificationQueue + "/" + peakNotificationQueue);
+                     + notificationQueue + "/" + peakNotificationQueue + "\n" +
+                 "Session table lookups Total/Misses:" +
+                     SessionService.getSessionLookups() + "/" +
+                     SessionService.getSessionLookupMisses() + "\n" +
+                 "Active session count update retries:" +
+                     SessionService.getActiveSessionsRetries() + "\n" +
+                 "Active session monitor lock waits:" +
+                     SessionService.getActiveSessionsMonitorWaits());
        } 
        else {
          SessionService.stats.record("No sessions found in session table"); 
@@ -24,7 +24,7 @@
  *
  * $Id: SessionService.java,v 1.37 2010/02/03 03:52:54 bina Exp $
  *
- * Portions Copyrighted 2010-2014 ForgeRock AS.
+ * Portions Copyrighted 2010-2015 ForgeRock AS.
  */
 
 package com.iplanet.dpro.session.service;
@@ -45,7 +45,9 @@ import com.iplanet.dpro.session.TokenRestrictionFactory;
 import com.iplanet.dpro.session.share.SessionBundle;
 import com.iplanet.dpro.session.share.SessionInfo;
 import com.iplanet.dpro.session.share.SessionNotification;
+import com.iplanet.services.comm.server.NotificationDispatcher;
 import com.iplanet.services.comm.server.PLLServer;
+import com.iplanet.services.comm.server.SendNotificationException;
 import com.iplanet.services.comm.share.Notification;
 import com.iplanet.services.comm.share.NotificationSet;
 import com.iplanet.services.naming.URLNotFoundException;
@@ -97,11 +99,13 @@ import org.forgerock.openam.cts.CTSPersistentStore;
 import org.forgerock.openam.cts.CoreTokenConfig;
 import org.forgerock.openam.cts.adapters.SessionAdapter;
 import org.forgerock.openam.cts.api.CoreTokenConstants;
+import org.forgerock.openam.cts.api.TokenResultHandler;
 import org.forgerock.openam.cts.api.tokens.Token;
 import org.forgerock.openam.cts.api.tokens.TokenIdFactory;
 import org.forgerock.openam.cts.exceptions.CoreTokenException;
 import org.forgerock.openam.guice.InjectorHolder;
 import org.forgerock.openam.session.service.SessionTimeoutHandler;
+import org.forgerock.openam.shared.concurrency.StripedCounter;
 
 import javax.servlet.http.HttpSession;
 import java.io.ByteArrayInputStream;
@@ -125,7 +129,6 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -139,6 +142,8 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 
 /**
@@ -154,6 +159,12 @@ public class SessionService {
      */
     static private ThreadPool threadPool = null;
 
+    /**
+     * Batches remote session notifications by destination URL, unless
+     * batching is disabled.
+     */
+    static private volatile NotificationDispatcher notificationDispatcher = null;
+
     /**
      * Our Session Service Singleton Service Implementation Instance.
      */
@@ -177,7 +188,24 @@ public class SessionService {
 
     public static Stats stats;
 
-    private static int numberOfActiveSessions = 0;
+    private static final AtomicInteger numberOfActiveSessions = new AtomicInteger();
+
+    /*
+     * Lookup and contention statistics for the session table, reported by SessionMaxStats.
+     */
+    private static final StripedCounter sessionLookups = new StripedCounter();
+
+    private static final StripedCounter sessionLookupMisses = new StripedCounter();
+
+    private static final StripedCounter activeSessionsRetries = new StripedCounter();
+
+    /*
+     * Serialises the updates of the active session count in the monitoring MBean, counting the updates which found
+     * the lock held by another thread.
+     */
+    private static final ReentrantLock activeSessionsMonitorLock = new ReentrantLock();
+
+    private static final StripedCounter activeSessionsMonitorWaits = new StripedCounter();
 
     private static String dsameAdminDN = null;
 
@@ -285,13 +313,16 @@ public class SessionService {
 
     private static SecureRandom secureRandom = null;
 
-    private static Hashtable sessionTable = null;
+    private static final ConcurrentMap<SessionID, InternalSession> sessionTable =
+            new ConcurrentHashMap<SessionID, InternalSession>();
 
     private static Set remoteSessionSet = null;
 
-    private static Hashtable sessionHandleTable = new Hashtable();
+    private static final ConcurrentMap<String, InternalSession> sessionHandleTable =
+            new ConcurrentHashMap<String, InternalSession>();
 
-    private static Map restrictedTokenMap = Collections.synchronizedMap(new HashMap());
+    private static final ConcurrentMap<SessionID, SessionID> restrictedTokenMap =
+            new ConcurrentHashMap<SessionID, SessionID>();
 
     private static String sessionServer;
 
@@ -424,10 +455,22 @@ public class SessionService {
             try {
                 threadPool = new ThreadPool("amSession", poolSize, threshold, true,
                         sessionDebug);
+                if (SystemProperties.getAsBoolean(Constants.SESSION_NOTIFICATION_BATCH_ENABLED, true)) {
+                    notificationDispatcher = new NotificationDispatcher(SESSION_SERVICE, poolSize,
+                            SystemProperties.getAsInt(Constants.SESSION_NOTIFICATION_FLUSH_INTERVAL, 100),
+                            SystemProperties.getAsInt(Constants.SESSION_NOTIFICATION_BATCH_SIZE, 100),
+                            SystemProperties.getAsInt(Constants.SESSION_NOTIFICATION_QUEUE_SIZE, 10000),
+                            SystemProperties.getAsInt(Constants.SESSION_NOTIFICATION_MAX_RETRIES, 3),
+                            SystemProperties.getAsInt(Constants.SESSION_NOTIFICATION_RETRY_INTERVAL, 1000),
+                            "amSessionNotification");
+                }
                 shutdownMan.addShutdownListener(
                         new ShutdownListener() {
                             public void shutdown() {
                                 threadPool.shutdown();
+                                if (notificationDispatcher != null) {
+                                    notificationDispatcher.shutdown();
+                                }
                             }
                         }
                 );
@@ -548,7 +591,7 @@ public class SessionService {
                                   TokenRestriction restriction) throws SessionException {
 
         // locate master session
-        InternalSession session = (InternalSession) sessionTable.get(masterSid);
+        InternalSession session = lookupSession(masterSid);
         if (session == null) {
             session = sessionService.recoverSession(masterSid);
 
@@ -752,7 +795,7 @@ public class SessionService {
         boolean isSessionStored = false;
         if (sid == null)
             return null;
-        InternalSession session = (InternalSession) sessionTable.remove(sid);
+        InternalSession session = sessionTable.remove(sid);
 
         if (session != null) {
             remoteSessionSet.remove(sid);
@@ -771,7 +814,8 @@ public class SessionService {
             if (getUseInternalRequestRouting()) {
                 try {
                     String tokenId = tokenIdFactory.toSessionTokenId(session);
-                    getRepository().delete(tokenId);
+                    getRepository().deleteAsync(tokenId,
+                            new FailoverResultHandler<String>("SessionService : failed deleting session "));
                 } catch (Exception e) {
                     sessionDebug.error(
                             "SessionService : failed deleting session ", e);
@@ -788,7 +832,8 @@ public class SessionService {
         if (isSessionFailoverEnabled) {
             try {
                 String tokenId = tokenIdFactory.toSessionTokenId(sid);
-                getRepository().delete(tokenId);
+                getRepository().deleteAsync(tokenId,
+                        new FailoverResultHandler<String>("SessionService : failed deleting session "));
             } catch (Exception e) {
                 sessionDebug.error("SessionService : failed deleting session ",
                         e);
@@ -971,7 +1016,7 @@ public class SessionService {
             return null;
         }
 
-        InternalSession is = (InternalSession) sessionTable.get(sid);
+        InternalSession is = lookupSession(sid);
         return is;
     }
 
@@ -982,7 +1027,7 @@ public class SessionService {
      * @return Internal Session corresponding to a session handle
      */
     public InternalSession getInternalSessionByHandle(String shandle) {
-        return (InternalSession) sessionHandleTable.get(shandle);
+        return sessionHandleTable.get(shandle);
     }
 
     /**
@@ -994,7 +1039,7 @@ public class SessionService {
      */
     private InternalSession resolveToken(SessionID token)
             throws SessionException {
-        InternalSession sess = (InternalSession) sessionTable.get(token);
+        InternalSession sess = lookupSession(token);
         if (sess == null) {
             sess = resolveRestrictedToken(token, true);
         }
@@ -1009,13 +1054,13 @@ public class SessionService {
 
     private InternalSession resolveRestrictedToken(SessionID token,
                                                    boolean checkRestriction) throws SessionException {
-        SessionID sid = (SessionID) restrictedTokenMap.get(token);
+        SessionID sid = restrictedTokenMap.get(token);
         if (sid == null)
             return null;
-        InternalSession session = (InternalSession) sessionTable.get(sid);
+        InternalSession session = sessionTable.get(sid);
         if (session == null) {
             // orphaned restricted token
-            restrictedTokenMap.remove(token);
+            restrictedTokenMap.remove(token, sid);
             return null;
         }
         if (checkRestriction) {
@@ -1038,15 +1083,11 @@ public class SessionService {
      */
     private List<InternalSession> getValidInternalSessions() {
         List<InternalSession> sessions = new ArrayList<InternalSession>();
-        synchronized (sessionTable) {
-            Enumeration enumerator = sessionTable.elements();
-            while (enumerator.hasMoreElements()) {
-                InternalSession sess = (InternalSession) enumerator
-                        .nextElement();
-                if (sess.getState() == Session.VALID) {
-                    if (!sess.isAppSession() || returnAppSession) {
-                        sessions.add(sess);
-                    }
+        // The weakly consistent iterator does not block sessions being added or removed
+        for (InternalSession sess : sessionTable.values()) {
+            if (sess.getState() == Session.VALID) {
+                if (!sess.isAppSession() || returnAppSession) {
+                    sessions.add(sess);
                 }
             }
         }
@@ -1148,38 +1189,97 @@ public class SessionService {
     /**
      * Decrements number of active sessions
      */
-    public static synchronized void decrementActiveSessions() {
+    public static void decrementActiveSessions() {
         // Fix for OPENAM-486: this is a sanity-check for sessioncount, so it
         // can't go below zero any more in case of erroneous behavior..
-        if (numberOfActiveSessions > 0) {
-            numberOfActiveSessions--;
-            if (SystemProperties.isServerMode() && MonitoringUtil.isRunning()) {
-                SsoServerSessSvcImpl sessImpl =
-                        Agent.getSessSvcMBean();
-                sessImpl.decSessionActiveCount();
+        int current;
+        while ((current = numberOfActiveSessions.get()) > 0) {
+            if (numberOfActiveSessions.compareAndSet(current, current - 1)) {
+                updateActiveSessionsMonitor(false);
+                return;
             }
+            activeSessionsRetries.increment();
         }
     }
 
     /**
      * Increments number of active sessions
      */
-    public static synchronized void incrementActiveSessions() {
-        numberOfActiveSessions++;
-        if (SystemProperties.isServerMode()) {
-            if (MonitoringUtil.isRunning()) {
-                SsoServerSessSvcImpl sessImpl =
-                        Agent.getSessSvcMBean();
+    public static void incrementActiveSessions() {
+        numberOfActiveSessions.incrementAndGet();
+        updateActiveSessionsMonitor(true);
+    }
+
+    /**
+     * Updates the active session count of the monitoring MBean, which does not serialise the updates itself.
+     */
+    private static void updateActiveSessionsMonitor(boolean increment) {
+        if (!SystemProperties.isServerMode() || !MonitoringUtil.isRunning()) {
+            return;
+        }
+        SsoServerSessSvcImpl sessImpl = Agent.getSessSvcMBean();
+        if (!activeSessionsMonitorLock.tryLock()) {
+            activeSessionsMonitorWaits.increment();
+            activeSessionsMonitorLock.lock();
+        }
+        try {
+            if (increment) {
                 sessImpl.incSessionActiveCount();
+            } else {
+                sessImpl.decSessionActiveCount();
             }
+        } finally {
+            activeSessionsMonitorLock.unlock();
         }
     }
 
     /**
      * Returns number of active sessions
      */
-    public static synchronized int getActiveSessions() {
-        return numberOfActiveSessions;
+    public static int getActiveSessions() {
+        return numberOfActiveSessions.get();
+    }
+
+    /**
+     * Returns the number of lookups of the local session table by session ID.
+     */
+    public static long getSessionLookups() {
+        return sessionLookups.sum();
+    }
+
+    /**
+     * Returns the number of lookups of the local session table which found no session.
+     */
+    public static long getSessionLookupMisses() {
+        return sessionLookupMisses.sum();
+    }
+
+    /**
+     * Returns the number of times an update to the active session count was retried because
+     * another thread updated it concurrently.
+     */
+    public static long getActiveSessionsRetries() {
+        return activeSessionsRetries.sum();
+    }
+
+    /**
+     * Returns the number of updates of the monitored active session count which had to wait for another thread's
+     * update to finish.
+     */
+    public static long getActiveSessionsMonitorWaits() {
+        return activeSessionsMonitorWaits.sum();
+    }
+
+    /**
+     * Looks up a session in the local session table without locking, recording lookup statistics.
+     */
+    private static InternalSession lookupSession(SessionID sid) {
+        InternalSession session = sessionTable.get(sid);
+        sessionLookups.increment();
+        if (session == null) {
+            sessionLookupMisses.increment();
+        }
+        return session;
     }
 
     /*
@@ -1831,7 +1931,6 @@ public class SessionService {
                 secureRandom = SecureRandom.getInstance("SHA1PRNG");
             }
 
-            sessionTable = new Hashtable();
             remoteSessionSet = Collections.synchronizedSet(new HashSet());
             if (stats.isEnabled()) {
                 maxSessionStats = new SessionMaxStats(sessionTable);
@@ -2387,6 +2486,26 @@ public class SessionService {
         return clusterServerList.toString();
     }
 
+    /**
+     * Logs the failure of an asynchronous Session fail-over write. Session fail-over writes are
+     * best effort, so no further action is taken.
+     */
+    private static class FailoverResultHandler<T> implements TokenResultHandler<T> {
+
+        private final String message;
+
+        FailoverResultHandler(String message) {
+            this.message = message;
+        }
+
+        public void processResults(T result) {
+        }
+
+        public void processError(CoreTokenException error) {
+            sessionDebug.error(message, error);
+        }
+    }
+
     /**
      * Inner Session Notification Publisher Class Thread.
      */
@@ -2479,8 +2598,6 @@ public class SessionService {
                         .toSessionInfo(), eventType, System.currentTimeMillis());
                 Notification notGlobal = new Notification(snGlobal
                         .toXMLString());
-                NotificationSet setGlobal = new NotificationSet(SESSION_SERVICE);
-                setGlobal.addNotification(notGlobal);
 
                 // CHECK THE GLOBAL URLS FIRST
                 Enumeration aenum = sessionService.sessionEventURLs.elements();
@@ -2491,7 +2608,7 @@ public class SessionService {
                         URL parsedUrl = new URL(url);
                         // ONLY SEND TO REMOTE URL
                         if (!sessionService.isLocalNotificationService(parsedUrl)) {
-                            PLLServer.send(parsedUrl, setGlobal);
+                            send(parsedUrl, notGlobal);
                             //remove this url from the indvidual url list.
                             urls.remove(url);
                         }
@@ -2515,10 +2632,7 @@ public class SessionService {
                                 SessionInfo info = makeSessionInfo(session, sid);
                                 SessionNotification sn = new SessionNotification(
                                     info, eventType, System.currentTimeMillis());
-                                Notification not = new Notification(sn.toXMLString());
-                                NotificationSet set = new NotificationSet(SESSION_SERVICE);
-                                set.addNotification(not);
-                                PLLServer.send(parsedUrl, set);
+                                send(parsedUrl, new Notification(sn.toXMLString()));
                             }
                         }
                     } catch (Exception e) {
@@ -2528,6 +2642,22 @@ public class SessionService {
                 }
             }
         }
+
+        /**
+         * Queues the notification with the dispatcher, or sends it straight
+         * away when notifications are not batched.
+         */
+        private void send(URL url, Notification notification)
+                throws SendNotificationException {
+            NotificationDispatcher dispatcher = notificationDispatcher;
+            if (dispatcher != null) {
+                dispatcher.dispatch(url, notification);
+            } else {
+                NotificationSet set = new NotificationSet(SESSION_SERVICE);
+                set.addNotification(notification);
+                PLLServer.send(url, set);
+            }
+        }
     } // End of SessionNotificationSender Inner Class.
 
     /**
@@ -2669,7 +2799,7 @@ public class SessionService {
             }
 
             SessionID sid = new SessionID(in.readUTF());
-            return (InternalSession) sessionTable.get(sid);
+            return lookupSession(sid);
 
         } catch (Exception ex) {
             sessionDebug.error("Failed to retrieve new session", ex);
@@ -2815,7 +2945,7 @@ public class SessionService {
         // switch to non-local mode for cached cient side session
         // image
         Session.markNonLocal(sid);
-        InternalSession is = (InternalSession) sessionTable.remove(sid);
+        InternalSession is = sessionTable.remove(sid);
         if (is != null) {
             is.cancel();
             removeSessionHandle(is);
@@ -2899,7 +3029,7 @@ public class SessionService {
                 HttpURLConnection conn = invokeRemote(url, sid, null);
                 in = new DataInputStream(conn.getInputStream());
 
-                sess = (InternalSession) sessionTable.get(sid);
+                sess = lookupSession(sid);
                 if (sess == null) {
                     sess = resolveRestrictedToken(sid, false);
                 }
@@ -3121,7 +3251,7 @@ public class SessionService {
         if (!isSessionFailoverEnabled) {
             return HttpURLConnection.HTTP_NOT_IMPLEMENTED;
         }
-        InternalSession is = (InternalSession) sessionTable.get(sid);
+        InternalSession is = lookupSession(sid);
 
         if (is == null) {
             sessionDebug.error("handleSaveSession: session not found " + sid);
@@ -3236,7 +3366,8 @@ public class SessionService {
                 return;
             }
             try {
-                getRepository().update(tokenAdapter.toToken(session));
+                getRepository().updateAsync(tokenAdapter.toToken(session),
+                        new FailoverResultHandler<Token>("SessionService.saveForFailover: exception encountered"));
             } catch (Exception e) {
                 sessionDebug.error("SessionService.saveForFailover: " +
                         "exception encountered", e);
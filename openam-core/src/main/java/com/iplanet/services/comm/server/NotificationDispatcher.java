@@ -0,0 +1,480 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package com.iplanet.services.comm.server;
+
+import com.iplanet.services.comm.share.Notification;
+import com.iplanet.services.comm.share.NotificationSet;
+import com.sun.identity.shared.stats.Stats;
+import com.sun.identity.shared.stats.StatsListener;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers notifications of a single service in batches, one destination URL at a time.
+ * <p/>
+ * Each destination has a bounded queue. The first notification queued for a destination schedules a flush at the
+ * end of the flush window, which sends everything queued by then, up to the maximum batch size, as a single
+ * {@link NotificationSet}. A burst of events aimed at the same agent therefore becomes a handful of requests rather
+ * than one request per event. Only one flush per destination is ever in progress, so notifications to a destination
+ * are delivered in the order they were queued.
+ * <p/>
+ * When a destination cannot be reached, the batch is retried with an exponential back-off that applies to the
+ * destination alone, and is dropped once the retries are exhausted. When the queue of a destination is full, new
+ * notifications to it are dropped. Destinations which have had nothing to deliver for the idle timeout are
+ * forgotten, so agents which have gone away do not accumulate. On shutdown, notifications still queued are sent
+ * once, without retries.
+ * <p/>
+ * Queue depth, batch sizes, delivery latency and failures are recorded to the statistics of the given name.
+ */
+public class NotificationDispatcher {
+
+    static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+    private static final long SHUTDOWN_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+
+    private final String serviceId;
+    private final long flushInterval;
+    private final int maxBatchSize;
+    private final int maxQueueSize;
+    private final int maxRetries;
+    private final long retryInterval;
+    private final long maxRetryInterval;
+    private final Transport transport;
+    private final ScheduledExecutorService executor;
+    // Keyed by the external form, as URL.equals() resolves host names.
+    private final ConcurrentMap<String, Destination> destinations = new ConcurrentHashMap<String, Destination>();
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong largestBatch = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Sends notification sets to their destination.
+     */
+    public interface Transport {
+
+        /**
+         * Sends a notification set.
+         *
+         * @param url The destination URL.
+         * @param set The notification set.
+         * @throws SendNotificationException If the notification set could not be delivered.
+         */
+        void send(URL url, NotificationSet set) throws SendNotificationException;
+    }
+
+    /**
+     * Creates a dispatcher delivering over HTTP.
+     *
+     * @param serviceId The service the notifications belong to.
+     * @param threads The number of threads delivering notifications.
+     * @param flushInterval Milliseconds a notification may wait for others to the same destination.
+     * @param maxBatchSize The maximum number of notifications sent at once.
+     * @param maxQueueSize The maximum number of notifications queued for a destination.
+     * @param maxRetries The number of times a batch is retried before it is dropped.
+     * @param retryInterval Milliseconds before the first retry, doubled on each consecutive failure.
+     * @param statsName The name of the statistics to record to, or null for none.
+     */
+    public NotificationDispatcher(String serviceId, int threads, long flushInterval, int maxBatchSize,
+            int maxQueueSize, int maxRetries, long retryInterval, String statsName) {
+        this(serviceId, threads, flushInterval, maxBatchSize, maxQueueSize, maxRetries, retryInterval,
+                statsName, new HttpTransport());
+    }
+
+    NotificationDispatcher(String serviceId, int threads, long flushInterval, int maxBatchSize, int maxQueueSize,
+            int maxRetries, long retryInterval, String statsName, Transport transport) {
+        this.serviceId = serviceId;
+        this.flushInterval = Math.max(0, flushInterval);
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxQueueSize = Math.max(1, maxQueueSize);
+        this.maxRetries = Math.max(0, maxRetries);
+        this.retryInterval = Math.max(1, retryInterval);
+        this.maxRetryInterval = this.retryInterval << 5;
+        this.transport = transport;
+        ScheduledThreadPoolExecutor executor =
+                new ScheduledThreadPoolExecutor(Math.max(1, threads), new DispatcherThreadFactory(serviceId));
+        // Waiting flushes are run by shutdown() itself, rather than after their delay.
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                pruneIdleDestinations(IDLE_TIMEOUT);
+            }
+        }, IDLE_TIMEOUT, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        this.executor = executor;
+
+        if (statsName != null) {
+            Stats stats = Stats.getInstance(statsName);
+            if (stats.isEnabled()) {
+                stats.addStatsListener(new DispatcherStats(stats));
+            }
+        }
+    }
+
+    /**
+     * Queues a notification for delivery.
+     *
+     * @param url The destination URL.
+     * @param notification The notification.
+     * @return False if the notification was dropped because the queue for the destination is full or the dispatcher
+     * has been shut down.
+     */
+    public boolean dispatch(URL url, Notification notification) {
+        if (executor.isShutdown()) {
+            return false;
+        }
+
+        String key = url.toExternalForm();
+        Destination destination = destinations.get(key);
+        if (destination == null) {
+            destination = new Destination(url);
+            Destination existing = destinations.putIfAbsent(key, destination);
+            if (existing != null) {
+                destination = existing;
+            }
+        }
+
+        destination.lastUsed = System.currentTimeMillis();
+        if (!destination.queue.offer(new Pending(notification))) {
+            dropped.incrementAndGet();
+            if (PLLServer.pllDebug.warningEnabled()) {
+                PLLServer.pllDebug.warning("NotificationDispatcher: queue for " + url + " is full, notification dropped");
+            }
+            return false;
+        }
+        queued.incrementAndGet();
+        destination.schedule(flushInterval);
+        return true;
+    }
+
+    /**
+     * Stops delivering notifications. Flushes in progress are given a few seconds to complete, then notifications
+     * still queued are sent once on the calling thread, without retries.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+
+        for (Destination destination : destinations.values()) {
+            deliverRemaining(destination);
+        }
+        destinations.clear();
+    }
+
+    /**
+     * Forgets the destinations which have had nothing to deliver for the given time.
+     *
+     * @param idleTimeout Milliseconds since a notification was last queued for a destination.
+     * @return The number of destinations forgotten.
+     */
+    int pruneIdleDestinations(long idleTimeout) {
+        long cutOff = System.currentTimeMillis() - idleTimeout;
+        int pruned = 0;
+        for (Map.Entry<String, Destination> entry : destinations.entrySet()) {
+            Destination destination = entry.getValue();
+            if (destination.isIdleSince(cutOff) && destinations.remove(entry.getKey(), destination)) {
+                if (destination.isIdleSince(cutOff)) {
+                    pruned++;
+                } else {
+                    // A notification was queued while it was being removed. Keep it, unless the destination has
+                    // been created again, in which case it is still delivered by its own flush.
+                    destinations.putIfAbsent(entry.getKey(), destination);
+                }
+            }
+        }
+        return pruned;
+    }
+
+    /**
+     * @return The number of destinations notifications are queued or have recently been queued for.
+     */
+    int getDestinationCount() {
+        return destinations.size();
+    }
+
+    /**
+     * @return The number of notifications waiting to be delivered.
+     */
+    public long getQueueDepth() {
+        long depth = 0;
+        for (Destination destination : destinations.values()) {
+            depth += destination.queue.size();
+            List<Pending> retry = destination.retry;
+            if (retry != null) {
+                depth += retry.size();
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * @return The number of notifications delivered.
+     */
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    /**
+     * @return The number of notification sets delivered.
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * @return The number of failed attempts to deliver a notification set.
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return The number of notifications dropped, either because their queue was full or because their retries
+     * were exhausted.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Sends the next batch for a destination. Runs on a dispatcher thread, never concurrently for one destination.
+     */
+    private void flush(Destination destination) {
+        List<Pending> batch = destination.retry;
+        if (batch == null) {
+            batch = new ArrayList<Pending>(Math.min(maxBatchSize, destination.queue.size() + 1));
+            destination.queue.drainTo(batch, maxBatchSize);
+        }
+
+        if (!batch.isEmpty()) {
+            NotificationSet set = new NotificationSet(serviceId);
+            for (Pending pending : batch) {
+                set.addNotification(pending.notification);
+            }
+
+            try {
+                transport.send(destination.url, set);
+                delivered(batch);
+                destination.retry = null;
+                destination.failures = 0;
+            } catch (SendNotificationException e) {
+                failures.incrementAndGet();
+                destination.failures++;
+                if (destination.failures > maxRetries) {
+                    PLLServer.pllDebug.error("NotificationDispatcher: dropping " + batch.size()
+                            + " notifications to " + destination.url + " after " + destination.failures
+                            + " attempts", e);
+                    dropped.addAndGet(batch.size());
+                    destination.retry = null;
+                    destination.failures = 0;
+                } else {
+                    if (PLLServer.pllDebug.warningEnabled()) {
+                        PLLServer.pllDebug.warning("NotificationDispatcher: cannot send notifications to "
+                                + destination.url + ", attempt " + destination.failures, e);
+                    }
+                    destination.retry = batch;
+                }
+            }
+        }
+
+        destination.flushed();
+    }
+
+    /**
+     * Sends what remains queued for a destination once the dispatcher threads have stopped.
+     */
+    private void deliverRemaining(Destination destination) {
+        List<Pending> remaining = new ArrayList<Pending>();
+        if (destination.retry != null) {
+            remaining.addAll(destination.retry);
+            destination.retry = null;
+        }
+        destination.queue.drainTo(remaining);
+
+        for (int start = 0; start < remaining.size(); start += maxBatchSize) {
+            List<Pending> batch = remaining.subList(start, Math.min(remaining.size(), start + maxBatchSize));
+            NotificationSet set = new NotificationSet(serviceId);
+            for (Pending pending : batch) {
+                set.addNotification(pending.notification);
+            }
+            try {
+                transport.send(destination.url, set);
+                delivered(batch);
+            } catch (SendNotificationException e) {
+                failures.incrementAndGet();
+                dropped.addAndGet(batch.size());
+                PLLServer.pllDebug.error("NotificationDispatcher: dropping " + batch.size()
+                        + " notifications to " + destination.url + " on shutdown", e);
+            }
+        }
+    }
+
+    private void delivered(List<Pending> batch) {
+        long now = System.currentTimeMillis();
+        long latency = now - batch.get(0).queuedAt;
+        delivered.addAndGet(batch.size());
+        batches.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        raise(maxLatency, latency);
+        raise(largestBatch, batch.size());
+    }
+
+    private static void raise(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * A queued notification.
+     */
+    private static final class Pending {
+        private final Notification notification;
+        private final long queuedAt = System.currentTimeMillis();
+
+        private Pending(Notification notification) {
+            this.notification = notification;
+        }
+    }
+
+    /**
+     * The queue and delivery state of a destination URL.
+     */
+    private final class Destination implements Runnable {
+        private final URL url;
+        private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>(maxQueueSize);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // Only written by the flush in progress; scheduling orders successive flushes.
+        private volatile List<Pending> retry;
+        private volatile int failures;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private Destination(URL url) {
+            this.url = url;
+        }
+
+        private boolean isIdleSince(long cutOff) {
+            return lastUsed < cutOff && !scheduled.get() && retry == null && queue.isEmpty();
+        }
+
+        private void schedule(long delay) {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+                } catch (RuntimeException e) {
+                    // Rejected as the dispatcher is shutting down.
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        private void flushed() {
+            scheduled.set(false);
+            if (retry != null) {
+                schedule(Math.min(maxRetryInterval, retryInterval << Math.min(failures - 1, 30)));
+            } else if (!queue.isEmpty()) {
+                // A full batch is sent straight away, anything less waits for the window.
+                schedule(queue.size() >= maxBatchSize ? 0 : flushInterval);
+            }
+        }
+
+        public void run() {
+            try {
+                flush(this);
+            } catch (RuntimeException e) {
+                PLLServer.pllDebug.error("NotificationDispatcher: cannot send notifications to " + url, e);
+                retry = null;
+                failures = 0;
+                flushed();
+            }
+        }
+    }
+
+    /**
+     * Delivers notification sets over HTTP, reusing connections where the destination allows it.
+     */
+    private static final class HttpTransport implements Transport {
+        public void send(URL url, NotificationSet set) throws SendNotificationException {
+            new NotificationSender(url, set).send();
+        }
+    }
+
+    /**
+     * Names and daemonises the dispatcher threads.
+     */
+    private static final class DispatcherThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private DispatcherThreadFactory(String serviceId) {
+            this.name = "NotificationDispatcher-" + serviceId + "-";
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Records the dispatcher statistics.
+     */
+    private final class DispatcherStats implements StatsListener {
+        private final Stats stats;
+
+        private DispatcherStats(Stats stats) {
+            this.stats = stats;
+        }
+
+        public void printStats() {
+            long batchCount = batches.get();
+            stats.record("Notification dispatcher (" + serviceId + "): destinations=" + destinations.size()
+                    + ", queueDepth=" + getQueueDepth()
+                    + ", queued=" + queued.get()
+                    + ", delivered=" + delivered.get()
+                    + ", batches=" + batchCount
+                    + ", averageBatchSize=" + (batchCount == 0 ? 0 : delivered.get() / batchCount)
+                    + ", largestBatchSize=" + largestBatch.get()
+                    + ", averageLatencyMs=" + (batchCount == 0 ? 0 : totalLatency.get() / batchCount)
+                    + ", maxLatencyMs=" + maxLatency.get()
+                    + ", failures=" + failures.get()
+                    + ", dropped=" + dropped.get());
+        }
+    }
+}
@@ -27,7 +27,7 @@
  */
 
 /**
- * Portions Copyrighted [2011] [ForgeRock AS]
+ * Portions Copyrighted 2011-2015 ForgeRock AS
  */
 package com.iplanet.services.comm.server;
 
@@ -59,8 +59,50 @@ public class NotificationSender {
     }
 
     public void run() throws SendNotificationException {
+        try {
+            String response = post();
+            if (!response.equals("OK")) {
+                throw new SendNotificationException(PLLBundle
+                        .getString("sendNotificationFailed"));
+            }
+        } catch (Exception e) {
+            PLLServer.pllDebug.error("Cannot send notification to " + url, e);
+            // FIXME: Currently we ignore the exception received here, because
+            // not all the agent answers with 'OK' if the notification was
+            // received, see OPENAM-498 (and linked RFE) for more details.
+        }
+    }
+
+    /**
+     * Sends the notification set, reporting whether it could be delivered.
+     * A response other than OK is logged but still counts as delivered, as
+     * not all agents answer with OK (see OPENAM-498).
+     *
+     * @throws SendNotificationException if the notification set could not be
+     *         delivered.
+     */
+    void send() throws SendNotificationException {
+        try {
+            String response = post();
+            if (!response.equals("OK") && PLLServer.pllDebug.warningEnabled()) {
+                PLLServer.pllDebug.warning("Unexpected response to notification from " + url + ": " + response);
+            }
+        } catch (IOException e) {
+            throw new SendNotificationException(e);
+        }
+    }
+
+    /**
+     * POSTs the notification set and returns the response. The response is
+     * read fully and the connection is only closed on failure, so that the
+     * underlying socket can be kept alive and reused for the next
+     * notification to the same destination.
+     */
+    private String post() throws IOException {
         HttpURLConnection conn = null;
         OutputStream httpOut = null;
+        BufferedReader in = null;
+        boolean failed = true;
         try {
             conn = HttpURLConnectionManager.getConnection(url);
             conn.setDoOutput(true);
@@ -68,15 +110,15 @@ public class NotificationSender {
             conn.setRequestMethod("POST");
             conn.setRequestProperty("Content-Type", "text/xml;charset=UTF-8");
             String xml = set.toXMLString();
+            byte[] content = xml.getBytes("UTF-8");
             // compute length in case iWS set arbitrary length
-            int requestLength = xml.getBytes("UTF-8").length;
             conn.setRequestProperty("Content-Length", Integer
-                    .toString(requestLength));
+                    .toString(content.length));
             if (PLLServer.pllDebug.messageEnabled()) {
                 PLLServer.pllDebug.message("Sent NotificationSet XML :" + xml);
             }
             httpOut = conn.getOutputStream();
-            httpOut.write(xml.getBytes("UTF-8"));
+            httpOut.write(content);
             httpOut.flush();
 
             // Input ...
@@ -86,31 +128,27 @@ public class NotificationSender {
             // URLs of the apps in case the apps died.
             // Read input stream fully
             StringBuilder in_buf = new StringBuilder();
-            BufferedReader in = new BufferedReader(new InputStreamReader(conn
-                    .getInputStream()));
+            in = new BufferedReader(new InputStreamReader(conn
+                    .getInputStream(), "UTF-8"));
             String in_string;
             while ((in_string = in.readLine()) != null) {
                 in_buf.append(in_string);
             }
-            in_string = in_buf.toString();
-            if (!in_string.equals("OK")) {
-                throw new SendNotificationException(PLLBundle
-                        .getString("sendNotificationFailed"));
-            }
-        } catch (Exception e) {
-            PLLServer.pllDebug.error("Cannot send notification to " + url, e);
-            // FIXME: Currently we ignore the exception received here, because
-            // not all the agent answers with 'OK' if the notification was
-            // received, see OPENAM-498 (and linked RFE) for more details.
+            failed = false;
+            return in_buf.toString();
         } finally {
             try {
-                if (conn != null) {
-                    conn.disconnect();
-                }
                 if (httpOut != null) {
                     httpOut.close();
                 }
+                if (in != null) {
+                    in.close();
+                }
             } catch (IOException e) {
+                failed = true;
+            }
+            if (failed && conn != null) {
+                conn.disconnect();
             }
         }
     }
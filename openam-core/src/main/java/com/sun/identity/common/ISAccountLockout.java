@@ -27,17 +27,19 @@
  */
 
 /*
- * Portions Copyrighted [2011] [ForgeRock AS]
+ * Portions Copyrighted 2011-2015 ForgeRock AS.
  */
 package com.sun.identity.common;
 
 import com.iplanet.am.util.AMSendMail;
+import com.iplanet.am.util.SystemProperties;
 import javax.mail.MessagingException;
 import com.iplanet.sso.SSOException;
 import com.sun.identity.authentication.spi.AMAuthCallBackImpl;
 import com.sun.identity.authentication.spi.AMAuthCallBackException;
 import com.sun.identity.idm.AMIdentity;
 import com.sun.identity.idm.IdRepoException;
+import com.sun.identity.shared.Constants;
 import com.sun.identity.shared.debug.Debug;
 import com.sun.identity.shared.debug.IDebug;
 import java.text.MessageFormat;
@@ -49,6 +51,8 @@ import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class ISAccountLockout {
     private static final String USER_STATUS_ATTR="inetuserstatus";
@@ -96,7 +100,10 @@ public class ISAccountLockout {
     private boolean needToSetInvalidAttemptsObjectClass = true;
     static Debug debug = Debug.getInstance("amAccountLockout");
     private AMAuthCallBackImpl callbackImpl = null;
-    static Map loginFailHash = Collections.synchronizedMap(new HashMap());
+    static ConcurrentMap loginFailHash = new ConcurrentHashMap();
+    private static final InvalidAttemptsWriter invalidAttemptsWriter = new InvalidAttemptsWriter(
+        SystemProperties.getAsInt(Constants.ACCOUNT_LOCKOUT_WRITE_INTERVAL, 1000),
+        SystemProperties.getAsInt(Constants.ACCOUNT_LOCKOUT_MAX_PENDING_WRITES, 10000));
     
     
     /**
@@ -208,7 +215,16 @@ public class ISAccountLockout {
         if (acInfo == null) {
             acInfo = new AccountLockoutInfo();
             acInfo.setActualLockoutDuration(failureLockoutDuration);
-            loginFailHash.put(userDN,acInfo);
+            AccountLockoutInfo existing =
+                (AccountLockoutInfo) loginFailHash.putIfAbsent(userDN, acInfo);
+            if (existing != null) {
+                acInfo = existing;
+            }
+        } else if (storeInvalidAttemptsInDS) {
+            // concurrent first failures of the user count against the same
+            // information instead of overwriting each other
+            acInfo = invalidAttemptsWriter.getPending(
+                userDN, this, amIdentity, acInfo);
         }
         
         if (debug.messageEnabled()) {
@@ -218,20 +234,33 @@ public class ISAccountLockout {
         }
         
         long now = System.currentTimeMillis();
-        int fail_count = acInfo.getFailCount();
-        long lastFailTime = acInfo.getLastFailTime();
-        long lockedAt = acInfo.getLockoutAt();
-        
-        if((lastFailTime + failureLockoutTime) > now) {
-            fail_count = fail_count +1;
-        } else {
-            fail_count = 1;
-        }        
-        
-        if (((lastFailTime + failureLockoutTime) > now) &&
-            (fail_count == failureLockoutCount)
-        ) {
-            lockedAt = now;
+        int fail_count;
+
+        // concurrent failures of the same user are counted one at a time
+        synchronized (acInfo) {
+            fail_count = acInfo.getFailCount();
+            long lastFailTime = acInfo.getLastFailTime();
+            long lockedAt = acInfo.getLockoutAt();
+
+            if((lastFailTime + failureLockoutTime) > now) {
+                fail_count = fail_count +1;
+            } else {
+                fail_count = 1;
+            }
+
+            if (((lastFailTime + failureLockoutTime) > now) &&
+                (fail_count == failureLockoutCount)
+            ) {
+                lockedAt = now;
+            }
+
+            acInfo.setLastFailTime(now);
+            acInfo.setFailCount(fail_count);
+            acInfo.setLockoutAt(lockedAt);
+            if (lockedAt > 0) {
+                acInfo.setLockout(true);
+            }
+            acInfo.setUserToken(userName);
         }
         if (debug.messageEnabled()) {
             debug.message("ISAccountLockout.invalidPasswd:fail_count:"
@@ -239,39 +268,21 @@ public class ISAccountLockout {
         }
        
         if (storeInvalidAttemptsInDS) {
-            Map attrMap = new HashMap();
-            Set invalidAttempts = new HashSet();
-            String invalidXML = createInvalidAttemptsXML(
-                fail_count,now,lockedAt, acInfo.getActualLockoutDuration());
-            invalidAttempts.add(invalidXML);
-            
-            if (debug.messageEnabled()) {
-                debug.message("ISAccountLockout.invalidPasswd: " + 
-                    "Invalid Attempt XML being inserted= " + invalidXML);
+            // the lockout itself is written straight away, the failures
+            // before it are written in the background
+            boolean stored;
+            if (fail_count == failureLockoutCount) {
+                stored = invalidAttemptsWriter.writeNow(
+                    userDN, this, amIdentity, acInfo);
+            } else {
+                stored = invalidAttemptsWriter.write(
+                    userDN, this, amIdentity, acInfo);
             }
-            
-            attrMap.put(invalidAttemptsDataAttrName, invalidAttempts);
-            
-            try {
-                setLockoutObjectClass(amIdentity);
-                amIdentity.setAttributes(attrMap);
-                amIdentity.store();
-                debug.message(
-                "ISAccountLockout.invalidPasswd: Stored Invalid Attempt XML");
-            } catch (Exception e) {
-                debug.error("ISAccountLockout.invalidPasswd", e);
+            if (!stored) {
                 return -1;
             }
         }
         
-        acInfo.setLastFailTime(now);
-        acInfo.setFailCount(fail_count);
-        acInfo.setLockoutAt(lockedAt);
-        if (lockedAt > 0) {
-            acInfo.setLockout(true);
-        }
-        acInfo.setUserToken(userName);
-        
         if (fail_count == failureLockoutCount) {
             if (!memoryLocking) {
                 inactivateUserAccount(amIdentity);
@@ -306,6 +317,15 @@ public class ISAccountLockout {
     public AccountLockoutInfo getAcInfo(String userDN, AMIdentity amIdentity) {
         AccountLockoutInfo acInfo = null;
         if (storeInvalidAttemptsInDS) {
+            // failures not yet written are more recent than the data store
+            acInfo = invalidAttemptsWriter.getPending(userDN);
+            if (acInfo != null) {
+                synchronized (acInfo) {
+                    setWarningCount(acInfo.getFailCount(), failureLockoutCount);
+                    acInfo.setWarningCount(userWarningCount);
+                }
+                return acInfo;
+            }
             acInfo =  new AccountLockoutInfo();
             Set attrValueSet = Collections.EMPTY_SET;
             
@@ -365,6 +385,47 @@ public class ISAccountLockout {
         return acInfo;
     }
     
+    /**
+     * Stores the invalid attempts data of the user in the data store, as it
+     * is at the time of the call.
+     *
+     * @param amIdentity the user object.
+     * @param acInfo lockout information object.
+     * @return <code>true</code> if the data was stored.
+     */
+    boolean storeInvalidAttempts(
+        AMIdentity amIdentity,
+        AccountLockoutInfo acInfo
+    ) {
+        String invalidXML;
+        synchronized (acInfo) {
+            invalidXML = createInvalidAttemptsXML(acInfo.getFailCount(),
+                acInfo.getLastFailTime(), acInfo.getLockoutAt(),
+                acInfo.getActualLockoutDuration());
+        }
+        if (debug.messageEnabled()) {
+            debug.message("ISAccountLockout.storeInvalidAttempts: " +
+                "Invalid Attempt XML being inserted= " + invalidXML);
+        }
+
+        Map attrMap = new HashMap();
+        Set invalidAttempts = new HashSet();
+        invalidAttempts.add(invalidXML);
+        attrMap.put(invalidAttemptsDataAttrName, invalidAttempts);
+
+        try {
+            setLockoutObjectClass(amIdentity);
+            amIdentity.setAttributes(attrMap);
+            amIdentity.store();
+            debug.message(
+            "ISAccountLockout.storeInvalidAttempts: Stored Invalid Attempt XML");
+            return true;
+        } catch (Exception e) {
+            debug.error("ISAccountLockout.storeInvalidAttempts", e);
+            return false;
+        }
+    }
+
     /**
      * Sets Lockout Object Class Attribute in <code>AMIdentity</code> Object
      * if it's not already present.
@@ -705,33 +766,25 @@ public class ISAccountLockout {
             }
         }
 
+        boolean changed = (fail_count != 0) || (lastFailTime != 0) ||
+            (locked_out_at != 0) ||
+            (actualLockoutDuration != currentLockoutDuration);
+        //loginFailHash.remove(userDN);
+        synchronized (acInfo) {
+            acInfo.setFailCount(0);
+            acInfo.setLastFailTime(0);
+            acInfo.setLockoutAt(0);
+            acInfo.setLockout(false);
+            acInfo.setActualLockoutDuration(actualLockoutDuration);
+        }
+
         if (storeInvalidAttemptsInDS) {
-            try {
-                if ((fail_count !=0)||(lastFailTime !=0)||(locked_out_at !=0)||
-                    (actualLockoutDuration != currentLockoutDuration)) {
-                    Map attrMap = new HashMap();
-                    Set invalidAttempts = new HashSet();
-                    String invalidXML = createInvalidAttemptsXML(0,0,0,
-                        actualLockoutDuration);
-                    invalidAttempts.add(invalidXML);
-                    attrMap.put(invalidAttemptsDataAttrName, invalidAttempts);
-                    setLockoutObjectClass(amIdentity);
-                    amIdentity.setAttributes(attrMap);
-                    debug.message("Saving XML = "+invalidXML);
-                    amIdentity.store();
-                }
-                debug.message("ISAccountLockout::resetLockoutAttempts done");
-            } catch (Exception exp) {
-                debug.message("error reseting Lockout Attempts");
+            // also replaces the failures waiting to be written
+            if (changed || (invalidAttemptsWriter.getPending(userDN) != null)) {
+                invalidAttemptsWriter.writeNow(userDN, this, amIdentity, acInfo);
             }
-        } 
-        //loginFailHash.remove(userDN);
-        acInfo.setFailCount(0);
-        acInfo.setLastFailTime(0);
-        acInfo.setLockoutAt(0);
-        acInfo.setLockout(false);
-        acInfo.setActualLockoutDuration(actualLockoutDuration);
-        
+            debug.message("ISAccountLockout::resetLockoutAttempts done");
+        }
     }
     
     /**
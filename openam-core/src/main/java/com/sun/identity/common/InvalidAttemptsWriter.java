@@ -0,0 +1,241 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package com.sun.identity.common;
+
+import com.sun.identity.idm.AMIdentity;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes the invalid attempts data of users to the data store in the background, so that a burst of failed logins for
+ * the same user costs a single data store write per write interval instead of one write per failed login.
+ * <p/>
+ * Until it has been written, the lockout information of a user is kept as pending, and is handed out to the following
+ * failed logins of the user, so that they all count against the same information. Each write stores the lockout
+ * information as it is at the time of the write, and the writes for a user are serialized, so an earlier state never
+ * overwrites a later one. When too many users have pending writes, the information is written straight away.
+ * <p/>
+ * A background write which fails is kept pending and retried on the following runs. The information is only dropped,
+ * and the loss logged, once it has failed {@link #MAX_ATTEMPTS} times or could not be written on shutdown.
+ */
+final class InvalidAttemptsWriter extends GeneralTaskRunnable {
+
+    private static final int LOCK_STRIPES = 64;
+    static final int MAX_ATTEMPTS = 3;
+
+    private final ConcurrentMap<String, PendingWrite> pending = new ConcurrentHashMap<String, PendingWrite>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final long writeInterval;
+    private final int maxPending;
+
+    /**
+     * Creates a writer.
+     *
+     * @param writeInterval Milliseconds between the background writes; 0 writes every state straight away.
+     * @param maxPending The number of users with pending writes above which states are written straight away.
+     */
+    InvalidAttemptsWriter(long writeInterval, int maxPending) {
+        this.writeInterval = writeInterval;
+        this.maxPending = maxPending;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Returns the lockout information of the user waiting to be written, if any.
+     *
+     * @param userDN The normalized DN of the user.
+     * @return The lockout information, or null if there is no pending write for the user.
+     */
+    AccountLockoutInfo getPending(String userDN) {
+        PendingWrite write = pending.get(userDN);
+        return write == null ? null : write.acInfo;
+    }
+
+    /**
+     * Returns the lockout information a failed login of the user should be counted against. This is the pending
+     * information of the user if there is any, otherwise the given information becomes pending, so that concurrent
+     * failed logins of the user all count against the same information.
+     *
+     * @param userDN The normalized DN of the user.
+     * @param lockout The lockout settings the information is stored with.
+     * @param amIdentity The user.
+     * @param acInfo The lockout information read from the data store.
+     * @return The pending lockout information, or acInfo if it is written straight away.
+     */
+    AccountLockoutInfo getPending(String userDN, ISAccountLockout lockout, AMIdentity amIdentity,
+            AccountLockoutInfo acInfo) {
+        if (!isWrittenInBackground(userDN)) {
+            return acInfo;
+        }
+        PendingWrite existing = pending.putIfAbsent(userDN, new PendingWrite(lockout, amIdentity, acInfo));
+        if (existing == null) {
+            schedule();
+            return acInfo;
+        }
+        return existing.acInfo;
+    }
+
+    /**
+     * Writes the lockout information of the user in the background.
+     *
+     * @param userDN The normalized DN of the user.
+     * @param lockout The lockout settings the information is stored with.
+     * @param amIdentity The user.
+     * @param acInfo The lockout information.
+     * @return false if the information was written straight away and could not be stored.
+     */
+    boolean write(String userDN, ISAccountLockout lockout, AMIdentity amIdentity, AccountLockoutInfo acInfo) {
+        if (!isWrittenInBackground(userDN)) {
+            return writeNow(userDN, lockout, amIdentity, acInfo);
+        }
+        PendingWrite write = new PendingWrite(lockout, amIdentity, acInfo);
+        PendingWrite existing = pending.putIfAbsent(userDN, write);
+        if (existing != null && existing.acInfo != acInfo) {
+            // the failure was not counted against the pending information, so it holds the latest state
+            pending.put(userDN, write);
+        }
+        schedule();
+        return true;
+    }
+
+    /**
+     * Writes the lockout information of the user straight away, replacing any pending write for the user.
+     *
+     * @param userDN The normalized DN of the user.
+     * @param lockout The lockout settings the information is stored with.
+     * @param amIdentity The user.
+     * @param acInfo The lockout information.
+     * @return true if the information was stored.
+     */
+    boolean writeNow(String userDN, ISAccountLockout lockout, AMIdentity amIdentity, AccountLockoutInfo acInfo) {
+        synchronized (getLock(userDN)) {
+            pending.remove(userDN);
+            return lockout.storeInvalidAttempts(amIdentity, acInfo);
+        }
+    }
+
+    /**
+     * Writes all the pending lockout information, keeping what could not be written pending for the next run.
+     */
+    public void run() {
+        writePending(true);
+    }
+
+    private void writePending(boolean retry) {
+        Map<String, PendingWrite> failed = new HashMap<String, PendingWrite>();
+        for (String userDN : pending.keySet()) {
+            synchronized (getLock(userDN)) {
+                PendingWrite write = pending.remove(userDN);
+                if (write != null && !write.lockout.storeInvalidAttempts(write.amIdentity, write.acInfo)) {
+                    if (retry && write.attempts + 1 < MAX_ATTEMPTS) {
+                        failed.put(userDN, write.failed());
+                    } else {
+                        ISAccountLockout.debug.error("InvalidAttemptsWriter: invalid attempts of " + userDN
+                                + " could not be written after " + (write.attempts + 1) + " attempts and are lost");
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String, PendingWrite> entry : failed.entrySet()) {
+            // a write pending since the failure is more recent, so it replaces the retry
+            pending.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public boolean addElement(Object obj) {
+        return false;
+    }
+
+    public boolean removeElement(Object obj) {
+        return false;
+    }
+
+    public boolean isEmpty() {
+        return true;
+    }
+
+    public long getRunPeriod() {
+        return writeInterval;
+    }
+
+    /**
+     * @return The number of users with pending writes.
+     */
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    private boolean isWrittenInBackground(String userDN) {
+        return writeInterval > 0 && (pending.size() < maxPending || pending.containsKey(userDN));
+    }
+
+    private Object getLock(String userDN) {
+        return locks[(userDN.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+    }
+
+    /*
+     * The writer is only scheduled once a write is pending, and writes what is still pending on shutdown.
+     */
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        SystemTimer.getTimer().schedule(this, new Date(System.currentTimeMillis() + writeInterval));
+        ShutdownManager shutdownMan = ShutdownManager.getInstance();
+        if (shutdownMan.acquireValidLock()) {
+            try {
+                shutdownMan.addShutdownListener(new ShutdownListener() {
+                    public void shutdown() {
+                        writePending(false);
+                    }
+                });
+            } finally {
+                shutdownMan.releaseLockAndNotify();
+            }
+        }
+    }
+
+    private static final class PendingWrite {
+        private final ISAccountLockout lockout;
+        private final AMIdentity amIdentity;
+        private final AccountLockoutInfo acInfo;
+        private final int attempts;
+
+        private PendingWrite(ISAccountLockout lockout, AMIdentity amIdentity, AccountLockoutInfo acInfo) {
+            this(lockout, amIdentity, acInfo, 0);
+        }
+
+        private PendingWrite(ISAccountLockout lockout, AMIdentity amIdentity, AccountLockoutInfo acInfo,
+                int attempts) {
+            this.lockout = lockout;
+            this.amIdentity = amIdentity;
+            this.acInfo = acInfo;
+            this.attempts = attempts;
+        }
+
+        private PendingWrite failed() {
+            return new PendingWrite(lockout, amIdentity, acInfo, attempts + 1);
+        }
+    }
+}
@@ -24,19 +24,26 @@
  *
  * $Id: IndexCache.java,v 1.3 2009/12/12 00:03:13 veiming Exp $
  *
- * Portions copyright 2013 ForgeRock, Inc.
+ * Portions copyright 2013-2015 ForgeRock, Inc.
  */
 package com.sun.identity.entitlement.opensso;
 
 import com.sun.identity.entitlement.ResourceSaveIndexes;
 import com.sun.identity.entitlement.ResourceSearchIndexes;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.forgerock.openam.shared.cache.CacheFactory;
+import org.forgerock.openam.shared.cache.ConcurrentLRUCache;
 
 /**
  * Caches the indexes which are stored in Directory Server.
+ *
+ * Each index maps to a concurrent set of DNs, so the caches can be read
+ * and updated by parallel policy evaluations without a shared lock.
  */
 public class IndexCache {
     public static final String HOST_ID = "host";
@@ -48,11 +55,10 @@ public class IndexCache {
 
     private int size = 1000000;
     private int initCapacity;
-    private Cache subjectIndexCache;
-    private Cache hostIndexCache;
-    private Cache pathIndexCache;
-    private Cache parentPathIndexCache;
-    private ReadWriteLock rwlock = new ReentrantReadWriteLock();
+    private volatile Map<String, Set<String>> subjectIndexCache;
+    private volatile Map<String, Set<String>> hostIndexCache;
+    private volatile Map<String, Set<String>> pathIndexCache;
+    private volatile Map<String, Set<String>> parentPathIndexCache;
 
     /**
      * Constructs
@@ -77,38 +83,56 @@ public class IndexCache {
         Set<String> subjectIndexes,
         String dn) {
         if (subjectIndexes != null) {
-            cache(dn, subjectIndexes, subjectIndexCache);
+            cache(dn, subjectIndexes, subjectIndexCache, SUBJECT_ID);
         }
-        cache(dn, indexes.getHostIndexes(), hostIndexCache);
-        cache(dn, indexes.getPathIndexes(), pathIndexCache);
-        cache(dn, indexes.getParentPathIndexes(), parentPathIndexCache);
+        cache(dn, indexes.getHostIndexes(), hostIndexCache, HOST_ID);
+        cache(dn, indexes.getPathIndexes(), pathIndexCache, PATH_ID);
+        cache(dn, indexes.getParentPathIndexes(), parentPathIndexCache,
+            PARENTPATH_ID);
     }
 
-    private void cache(String dn, Set<String> indexes, Cache cache) {
-        rwlock.writeLock().lock();
-
-        try {
-            for (String s : indexes) {
-                String lc = s.toLowerCase();
-                Set<String> setDNs = (Set<String>)cache.get(lc);
+    private void cache(
+        String dn,
+        Set<String> indexes,
+        Map<String, Set<String>> cache,
+        String cacheName) {
+        for (String s : indexes) {
+            String lc = s.toLowerCase();
+            Set<String> setDNs = cache.get(lc);
+            if (setDNs == null) {
+                Set<String> newDNs = Collections.newSetFromMap(
+                    new ConcurrentHashMap<String, Boolean>());
+                newDNs.add(dn);
+                setDNs = putIfAbsent(cache, lc, newDNs);
                 if (setDNs == null) {
-                    setDNs = new HashSet<String>();
-                    cache.put(lc, setDNs);
-                    setDNs.add(dn);
+                    continue;
+                }
+            }
+            if (!CacheTaboo.isTaboo(cacheName, lc)) {
+                if (setDNs.size() >= CACHE_BUCKET_LIMIT) {
+                    CacheTaboo.taboo(cacheName, lc);
+                    cache.remove(lc);
                 } else {
-                    String cacheName = cache.getName();
-                    if (!CacheTaboo.isTaboo(cacheName, lc)) {
-                        if (setDNs.size() >= CACHE_BUCKET_LIMIT) {
-                            CacheTaboo.taboo(cacheName, lc);
-                            cache.remove(lc);
-                        } else {
-                            setDNs.add(dn);
-                        }
-                    }
+                    setDNs.add(dn);
                 }
             }
-        } finally {
-            rwlock.writeLock().unlock();
+        }
+    }
+
+    private static Set<String> putIfAbsent(
+        Map<String, Set<String>> cache,
+        String key,
+        Set<String> value) {
+        if (cache instanceof ConcurrentMap) {
+            return ((ConcurrentMap<String, Set<String>>) cache).putIfAbsent(
+                key, value);
+        }
+        synchronized (cache) {
+            Set<String> existing = cache.get(key);
+            if (existing == null) {
+                cache.put(key, value);
+            }
+            return existing;
         }
     }
 
@@ -126,30 +150,36 @@ public class IndexCache {
         }
     }
 
-    private void clear(String dn, Set<String> indexes, Cache cache) {
-        rwlock.writeLock().lock();
-        try {
-            for (String s : indexes) {
-                Set<String> setDNs = (Set<String>)cache.get(s);
-                if (setDNs != null) {
-                    setDNs.remove(dn);
-                }
+    private void clear(
+        String dn,
+        Set<String> indexes,
+        Map<String, Set<String>> cache) {
+        for (String s : indexes) {
+            Set<String> setDNs = cache.get(s);
+            if (setDNs != null) {
+                setDNs.remove(dn);
             }
-        } finally {
-            rwlock.writeLock().unlock();
         }
     }
 
     private synchronized void clearCaches() {
-        rwlock.writeLock().lock();
-        try {
-            subjectIndexCache = new Cache(SUBJECT_ID, initCapacity, size);
-            hostIndexCache = new Cache(HOST_ID, initCapacity, size);
-            pathIndexCache = new Cache(PATH_ID, initCapacity, size);
-            parentPathIndexCache = new Cache(PARENTPATH_ID, initCapacity, size);
-        } finally {
-            rwlock.writeLock().unlock();
+        subjectIndexCache = createCache(SUBJECT_ID);
+        hostIndexCache = createCache(HOST_ID);
+        pathIndexCache = createCache(PATH_ID);
+        parentPathIndexCache = createCache(PARENTPATH_ID);
+    }
+
+    /**
+     * Creates one of the index caches, concurrent unless configured to use
+     * the legacy cache.
+     */
+    private Map<String, Set<String>> createCache(String name) {
+        if (CacheFactory.isConcurrent("IndexCache")) {
+            return CacheFactory.register(
+                new ConcurrentLRUCache<String, Set<String>>(
+                    "IndexCache." + name, Math.max(1, size)));
         }
+        return new Cache(name, initCapacity, size);
     }
 
     /**
@@ -165,43 +195,37 @@ public class IndexCache {
         Set<String> subjectIndexes,
         boolean bSubTree
     ) {
-        rwlock.readLock().lock();
-        try {
-            Set<String> results = new HashSet<String>();
-
-            boolean hasSubjectIndexes = (subjectIndexes != null) &&
-                !subjectIndexes.isEmpty();
-
-            if (hasSubjectIndexes) {
-                for (String i : subjectIndexes) {
-                    Set<String> r = (Set<String>)subjectIndexCache.get(i);
-                    if (r != null) {
-                        results.addAll(r);
-                    }
-                }
-                results.retainAll(getHostIndexes(indexes));
-            } else {
-                results.addAll(getHostIndexes(indexes));
-            }
+        Set<String> results = new HashSet<String>();
+
+        boolean hasSubjectIndexes = (subjectIndexes != null) &&
+            !subjectIndexes.isEmpty();
 
-            if (bSubTree) {
-                results.retainAll(getPathParentIndexes(indexes));
-            } else {
-                results.retainAll(getPathIndexes(indexes));
+        if (hasSubjectIndexes) {
+            for (String i : subjectIndexes) {
+                Set<String> r = subjectIndexCache.get(i);
+                if (r != null) {
+                    results.addAll(r);
+                }
             }
+            results.retainAll(getHostIndexes(indexes));
+        } else {
+            results.addAll(getHostIndexes(indexes));
+        }
 
-            return results;
-        } finally {
-            rwlock.readLock().unlock();
+        if (bSubTree) {
+            results.retainAll(getPathParentIndexes(indexes));
+        } else {
+            results.retainAll(getPathIndexes(indexes));
         }
+
+        return results;
     }
 
     private Set<String> getPathParentIndexes(ResourceSearchIndexes indexes) {
         Set<String> parentPathIndexes = indexes.getParentPathIndexes();
         Set<String> results = new HashSet<String>();
         for (String i : parentPathIndexes) {
-            Set<String> r = (Set<String>) parentPathIndexCache.get(
-                i.toLowerCase());
+            Set<String> r = parentPathIndexCache.get(i.toLowerCase());
             if (r != null) {
                 results.addAll(r);
             }
@@ -213,18 +237,19 @@ public class IndexCache {
         Set<String> pathIndexes = indexes.getPathIndexes();
         Set<String> results = new HashSet<String>();
         for (String i : pathIndexes) {
-            Set<String> r = (Set<String>) pathIndexCache.get(i.toLowerCase());
+            Set<String> r = pathIndexCache.get(i.toLowerCase());
             if (r != null) {
                 results.addAll(r);
             }
-        }return results;
+        }
+        return results;
     }
 
     private Set<String> getHostIndexes(ResourceSearchIndexes indexes) {
         Set<String> results = new HashSet<String>();
         Set<String> hostIndexes = indexes.getHostIndexes();
         for (String i : hostIndexes) {
-            Set<String> r = (Set<String>) hostIndexCache.get(i.toLowerCase());
+            Set<String> r = hostIndexCache.get(i.toLowerCase());
             if (r != null) {
                 results.addAll(r);
             }
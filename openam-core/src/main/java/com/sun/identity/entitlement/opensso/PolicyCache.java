@@ -24,7 +24,7 @@
  *
  * $Id: PolicyCache.java,v 1.3 2009/12/12 00:03:13 veiming Exp $
  *
- * Portions copyright 2013 ForgeRock, Inc.
+ * Portions copyright 2013-2015 ForgeRock, Inc.
  */
 
 package com.sun.identity.entitlement.opensso;
@@ -35,18 +35,28 @@ import com.sun.identity.entitlement.ReferralPrivilege;
 import java.util.Map;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.forgerock.openam.shared.cache.CacheFactory;
+import org.forgerock.openam.shared.cache.ConcurrentLRUCache;
 
 /**
  * Policy Cache
+ *
+ * The lock keeps the per realm counts consistent with the cache, lookups do
+ * not take it.
  */
 class PolicyCache {
-    private Cache cache;
+    private Map cache;
     private HashMap<String, Integer> countByRealm;
     private ReadWriteLock rwlock = new ReentrantReadWriteLock();
 
     PolicyCache(String name, int size) {
         int initCapacity = (int) (size * 0.01d);
-        cache = new Cache(name, initCapacity, size);
+        if (CacheFactory.isConcurrent(name)) {
+            cache = CacheFactory.register(
+                new ConcurrentLRUCache<String, Object>(name, Math.max(1, size)));
+        } else {
+            cache = new Cache(name, initCapacity, size);
+        }
         countByRealm = new HashMap<String, Integer>();
     }
 
@@ -121,12 +131,7 @@ class PolicyCache {
     }
 
     public Privilege getPolicy(String dn) {
-        rwlock.readLock().lock();
-        try {
-            return (Privilege)cache.get(dn);
-        } finally {
-            rwlock.readLock().unlock();
-        }
+        return (Privilege)cache.get(dn);
     }
     
     /**
@@ -164,11 +169,6 @@ class PolicyCache {
     }
 
     public ReferralPrivilege getReferral(String dn) {
-        rwlock.readLock().lock();
-        try {
-            return (ReferralPrivilege)cache.get(dn);
-        } finally {
-            rwlock.readLock().unlock();
-        }
+        return (ReferralPrivilege)cache.get(dn);
     }
 }
@@ -27,11 +27,12 @@
  */
 
 /*
- * Portions Copyrighted 2011-2014 ForgeRock AS
+ * Portions Copyrighted 2011-2015 ForgeRock AS
  */
 package com.sun.identity.idm.server;
 
-import java.util.Enumeration;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 
@@ -61,6 +62,7 @@ import com.sun.identity.sm.ServiceManager;
 import com.iplanet.am.sdk.AMEvent;
 import com.iplanet.am.sdk.AMHashMap;
 import com.iplanet.am.util.Cache;
+import org.forgerock.openam.shared.cache.CacheFactory;
 import com.sun.identity.monitoring.MonitoringUtil;
 
 /*
@@ -80,7 +82,7 @@ public class IdCachedServicesImpl extends IdServicesImpl implements
     private static IdServices instance;
 
     // Class Private
-    private Cache idRepoCache;
+    private Map idRepoCache;
 
     private IdCacheStats cacheStats;
 
@@ -131,7 +133,17 @@ public class IdCachedServicesImpl extends IdServicesImpl implements
     }
 
     private void initializeCache() {
-        idRepoCache = new Cache(maxSize);
+        idRepoCache = CacheFactory.newLRUCache("IdRepoCache", maxSize);
+    }
+
+    /**
+     * Returns the keys of the cache, copied so that the cache can change while they are used.
+     */
+    private Collection cacheKeys() {
+        if (idRepoCache instanceof Cache) {
+            return Collections.list(((Cache) idRepoCache).keys());
+        }
+        return idRepoCache.keySet();
     }
 
     /**
@@ -184,10 +196,12 @@ public class IdCachedServicesImpl extends IdServicesImpl implements
         StringBuilder sb = new StringBuilder();
         sb.append("\n<<<<<<< BEGIN SDK CACHE CONTENTS >>>>>>>>");
         if (!idRepoCache.isEmpty()) { // Should never be null
-            Enumeration cacheKeys = idRepoCache.keys();
-            while (cacheKeys.hasMoreElements()) {
-                String key = (String) cacheKeys.nextElement();
+            for (Object cacheKey : cacheKeys()) {
+                String key = (String) cacheKey;
                 IdCacheBlock cb = (IdCacheBlock) idRepoCache.get(key);
+                if (cb == null) {
+                    continue;
+                }
                 sb.append("\nSDK Cache Block: ").append(key);
                 sb.append(cb.toString());
             }
@@ -202,10 +216,8 @@ public class IdCachedServicesImpl extends IdServicesImpl implements
     // Update/Dirty methods of this class.
     // *************************************************************************
     private void removeCachedAttributes(String affectDNs, Set attrNames) {
-        Enumeration cacheKeys = idRepoCache.keys();
-        while (cacheKeys.hasMoreElements()) {
-            String key = DNUtils.normalizeDN(
-                cacheKeys.nextElement().toString());
+        for (Object cacheKey : cacheKeys()) {
+            String key = DNUtils.normalizeDN(cacheKey.toString());
             int l1 = key.length();
             int l2 = affectDNs.length();
             if (key.regionMatches(true, (l1 - l2), affectDNs, 0, l2)) {
@@ -24,7 +24,7 @@
  *
  * $Id: IdentityServicesImpl.java,v 1.20 2010/01/06 19:11:17 veiming Exp $
  *
- * Portions copyright 2010-2014 ForgeRock AS.
+ * Portions copyright 2010-2015 ForgeRock AS.
  */
 package com.sun.identity.idsvcs.opensso;
 
@@ -643,10 +643,7 @@ public class IdentityServicesImpl
                     List<String> names = getNames(realm, idType, objList);
 
                     if (!names.isEmpty()) {
-                        rv = new ArrayList();
-                        for (String name : names) {
-                            rv.add(name);
-                        }
+                        rv = names;
                     }
                 }
             } else {
@@ -0,0 +1,229 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package com.sun.identity.log.handlers;
+
+import com.iplanet.am.util.SystemProperties;
+import com.sun.identity.common.ShutdownListener;
+import com.sun.identity.common.ShutdownManager;
+import com.sun.identity.common.ShutdownPriority;
+import com.sun.identity.log.spi.Debug;
+import com.sun.identity.shared.Constants;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small pool of connections to an audit log database, shared by the handlers writing to it and the readers
+ * querying it.
+ * <p/>
+ * Connections are opened when no idle one is available, and handed back once they are no longer needed. Up to the
+ * pool size of them are kept open for the next caller; the rest are closed. A connection which has been closed, or
+ * which is handed back in the middle of a transaction, is not reused.
+ */
+class DBConnectionPool {
+
+    private static final Map<String, DBConnectionPool> POOLS = new HashMap<String, DBConnectionPool>();
+    private static boolean shutdownListenerAdded = false;
+
+    private final String driver;
+    private final String url;
+    private final String userName;
+    private final String password;
+    private final int maxIdle;
+    private final LinkedList<Connection> idle = new LinkedList<Connection>();
+    private boolean shutdown = false;
+
+    /**
+     * Creates a pool.
+     *
+     * @param driver The class name of the JDBC driver.
+     * @param url The database URL.
+     * @param userName The database user.
+     * @param password The password of the database user.
+     * @param maxIdle The maximum number of idle connections kept open.
+     */
+    DBConnectionPool(String driver, String url, String userName, String password, int maxIdle) {
+        this.driver = driver;
+        this.url = url;
+        this.userName = userName;
+        this.password = password;
+        this.maxIdle = Math.max(0, maxIdle);
+    }
+
+    /**
+     * Returns the pool of connections to the given database as the given user, creating it if necessary.
+     *
+     * @param driver The class name of the JDBC driver.
+     * @param url The database URL.
+     * @param userName The database user.
+     * @param password The password of the database user.
+     * @return The pool.
+     */
+    static synchronized DBConnectionPool getInstance(String driver, String url, String userName, String password) {
+        String key = driver + '\n' + url + '\n' + userName + '\n' + password;
+        DBConnectionPool pool = POOLS.get(key);
+        if (pool == null) {
+            pool = new DBConnectionPool(driver, url, userName, password,
+                    SystemProperties.getAsInt(Constants.LOG_DB_POOL_SIZE, 4));
+            POOLS.put(key, pool);
+            addShutdownListener();
+        }
+        return pool;
+    }
+
+    private static void addShutdownListener() {
+        if (shutdownListenerAdded) {
+            return;
+        }
+        ShutdownManager shutdownMan = ShutdownManager.getInstance();
+        if (shutdownMan.acquireValidLock()) {
+            try {
+                shutdownMan.addShutdownListener(
+                    new ShutdownListener() {
+                        public void shutdown() {
+                            closeAll();
+                        }
+                    }, ShutdownPriority.LOWEST
+                );
+                shutdownListenerAdded = true;
+            } finally {
+                shutdownMan.releaseLockAndNotify();
+            }
+        }
+    }
+
+    /**
+     * Shuts down every pool, and forgets them. Connections handed back to them afterwards are closed.
+     */
+    static void closeAll() {
+        List<DBConnectionPool> pools;
+        synchronized (DBConnectionPool.class) {
+            pools = new ArrayList<DBConnectionPool>(POOLS.values());
+            POOLS.clear();
+            shutdownListenerAdded = false;
+        }
+        for (DBConnectionPool pool : pools) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Returns an open connection, reusing an idle one if there is one.
+     *
+     * @return The connection.
+     * @throws ClassNotFoundException if the JDBC driver could not be loaded.
+     * @throws SQLException if a new connection could not be opened.
+     */
+    Connection getConnection() throws ClassNotFoundException, SQLException {
+        Connection conn;
+        while ((conn = pollIdle()) != null) {
+            if (isOpen(conn)) {
+                return conn;
+            }
+        }
+        Class.forName(driver);
+        return DriverManager.getConnection(url, userName, password);
+    }
+
+    private synchronized Connection pollIdle() {
+        return idle.poll();
+    }
+
+    /**
+     * Hands back a connection which is no longer needed, so that it can be reused.
+     *
+     * @param conn The connection, may be null.
+     */
+    void release(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        if (isReusable(conn)) {
+            synchronized (this) {
+                if (!shutdown && idle.size() < maxIdle) {
+                    idle.addFirst(conn);
+                    return;
+                }
+            }
+        }
+        close(conn);
+    }
+
+    /**
+     * Closes a connection which failed, rather than handing it back.
+     *
+     * @param conn The connection, may be null.
+     */
+    void discard(Connection conn) {
+        if (conn != null) {
+            close(conn);
+        }
+    }
+
+    /**
+     * Closes the idle connections, and stops keeping connections for reuse.
+     */
+    void shutdown() {
+        List<Connection> connections;
+        synchronized (this) {
+            shutdown = true;
+            connections = new ArrayList<Connection>(idle);
+            idle.clear();
+        }
+        for (Connection conn : connections) {
+            close(conn);
+        }
+    }
+
+    /**
+     * @return The number of idle connections.
+     */
+    synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    private boolean isOpen(Connection conn) {
+        try {
+            return !conn.isClosed();
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private boolean isReusable(Connection conn) {
+        try {
+            return !conn.isClosed() && conn.getAutoCommit();
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void close(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            if (Debug.messageEnabled()) {
+                Debug.message("DBConnectionPool:close (" + e.getErrorCode() + "): " + e.getMessage());
+            }
+        }
+    }
+}
@@ -27,14 +27,13 @@
  */
 
 /*
- * Portions Copyrighted 2011-2013 ForgeRock AS.
+ * Portions Copyrighted 2011-2015 ForgeRock AS.
  */
 package com.sun.identity.log.handlers;
 
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
@@ -52,6 +51,7 @@ import java.util.logging.Formatter;
 import java.util.logging.Handler;
 import java.util.logging.LogRecord;
 
+import com.iplanet.am.util.SystemProperties;
 import com.iplanet.am.util.ThreadPoolException;
 import com.iplanet.log.ConnectionException;
 import com.iplanet.log.DriverLoadException;
@@ -67,6 +67,7 @@ import com.sun.identity.monitoring.Agent;
 import com.sun.identity.monitoring.MonitoringUtil;
 import com.sun.identity.monitoring.SsoServerLoggingHdlrEntryImpl;
 import com.sun.identity.monitoring.SsoServerLoggingSvcImpl;
+import com.sun.identity.shared.Constants;
 
 /**
  * DBHandler takes log messages from the Logger and exports
@@ -75,11 +76,18 @@ import com.sun.identity.monitoring.SsoServerLoggingSvcImpl;
  * password, Database Driver, Database location. It takes from the caller the
  * table name which will be created if it doesn't already exists.
  * <p>
+ * Records are inserted in JDBC batches through a prepared statement which is
+ * kept for as long as the connection, and each batch is committed as a unit.
+ * A batch which fails is retried once the table has been created or the
+ * connection re-established; otherwise its records are kept in the buffer
+ * for the next flush. Connections are taken from, and handed back to, the
+ * {@link DBConnectionPool} shared with the readers of the same database.
+ * <p>
  * By default DBFormatter is used for formatting the logRecords.
  */
 public class DBHandler extends Handler {
 
-    private LogManager lmanager = LogManagerUtil.getLogManager();
+    private final LogManager lmanager;
     private String driver;
     private String databaseURL;
     private Connection conn = null;
@@ -88,6 +96,9 @@ public class DBHandler extends Handler {
     private String password;
     private int recCountLimit;
     private int recMaxDBMem = 2;
+    private int batchSize;
+    private PreparedStatement insertStatement = null;
+    private String insertStatementString = null;
     private LinkedList<LogRecord> recordBuffer;
     private TimeBufferingTask bufferTask;
     private boolean timeBufferingEnabled = false;
@@ -161,6 +172,8 @@ public class DBHandler extends Handler {
             recMaxDBMem = recCountLimit;
         }
 
+        batchSize = Math.max(1, SystemProperties.getAsInt(Constants.LOG_DB_BATCH_SIZE, 500));
+
         String status = lmanager.getProperty(LogConstants.TIME_BUFFERING_STATUS);
 
         if ( status != null && status.equalsIgnoreCase("ON")) {
@@ -213,6 +226,10 @@ public class DBHandler extends Handler {
         }
     }
 
+    private DBConnectionPool getConnectionPool() {
+        return DBConnectionPool.getInstance(driver, databaseURL, userName, password);
+    }
+
     private void connectToDatabase(String userName, String password) throws ConnectionException, DriverLoadException {
         //Monit start
         if (MonitoringUtil.isRunning()) {
@@ -226,9 +243,9 @@ public class DBHandler extends Handler {
             }
         }
         //Monit end
+        closeInsertStatement();
         try {
-            Class.forName(driver);
-            this.conn = DriverManager.getConnection(databaseURL, userName, password);
+            this.conn = getConnectionPool().getConnection();
         } catch (ClassNotFoundException e) {
             Debug.error(tableName + ":DBHandler: ClassNotFoundException " + e.getMessage());
             //Monit start
@@ -274,9 +291,9 @@ public class DBHandler extends Handler {
         }
         //Monit end
 
+        closeInsertStatement();
         try {
-            Class.forName(driver);
-            this.conn = DriverManager.getConnection(databaseURL, userName, password);
+            this.conn = getConnectionPool().getConnection();
         } catch (ClassNotFoundException e) {
             //Monit start
             if (MonitoringUtil.isRunning() && dbLogHandlerForMonitoring != null) {
@@ -311,6 +328,16 @@ public class DBHandler extends Handler {
      * @param tableName Database table name for logger.
      */
     public DBHandler(String tableName) {
+        this(tableName, LogManagerUtil.getLogManager());
+    }
+
+    /**
+     * Constructor taking the log manager which holds the configuration.
+     * @param tableName Database table name for logger.
+     * @param lmanager The log manager holding the configuration.
+     */
+    DBHandler(String tableName, LogManager lmanager) {
+        this.lmanager = lmanager;
         if ((tableName == null) || (tableName.length() == 0)) {
             return;
         }
@@ -389,15 +416,15 @@ public class DBHandler extends Handler {
     }
 
     /**
-     * Construct a PreparedStatement that can be used to insert the passed values
-     * into the table that this DBHandler represents.
+     * Get the PreparedStatement that is used to insert values into the table that this DBHandler represents.
+     * The statement is prepared once per connection, and prepared again only if the columns being logged change.
      * The first two values are always a timestamp string and the main data block, rest is optional based on the
      * database logging configuration.
-     * @param values The values to be added as part of the INSERT statement
-     * @return A PreparedStatement representing the INSERT statement for the provided values.
-     * @throws SQLException if there is an issue creating or preparing the statement values.
+     * @param valueCount The number of values to be added as part of the INSERT statement
+     * @return A PreparedStatement representing the INSERT statement for that number of values.
+     * @throws SQLException if there is an issue preparing the statement.
      */
-    private PreparedStatement getInsertPreparedStatement(List<String> values) throws SQLException {
+    private PreparedStatement getInsertPreparedStatement(int valueCount) throws SQLException {
 
         StringBuilder insertStringBuffer = new StringBuilder(2000);
         insertStringBuffer.append("INSERT INTO ").append(tableName);
@@ -409,20 +436,32 @@ public class DBHandler extends Handler {
         insertStringBuffer.append(" VALUES (");
 
         // Inset a placeholder for every value we have.
-        for (int i = 0; i < (values.size() - 1); i++) {
+        for (int i = 0; i < (valueCount - 1); i++) {
            insertStringBuffer.append("?,");
         }
         // Finish with remaining value placeholder less the ,
         insertStringBuffer.append("?)");
 
         String preparedStatementString = insertStringBuffer.toString();
-        if (Debug.messageEnabled()) {
-            Debug.message(tableName +
-                ":DBHandler:getInsertPreparedStatement preparedStatementString is " + preparedStatementString);
+        if (insertStatement == null || !preparedStatementString.equals(insertStatementString)) {
+            closeInsertStatement();
+            if (Debug.messageEnabled()) {
+                Debug.message(tableName +
+                    ":DBHandler:getInsertPreparedStatement preparedStatementString is " + preparedStatementString);
+            }
+            insertStatement = conn.prepareStatement(preparedStatementString);
+            insertStatementString = preparedStatementString;
         }
+        return insertStatement;
+    }
 
-        PreparedStatement preparedStatement = conn.prepareStatement(preparedStatementString);
-
+    /**
+     * Set the passed values as the parameters of the insert statement.
+     * @param preparedStatement The insert statement.
+     * @param values The values to be inserted.
+     * @throws SQLException if there is an issue setting the statement values.
+     */
+    private void setInsertValues(PreparedStatement preparedStatement, List<String> values) throws SQLException {
         // Column numbers in PreparedStatements start at 1 not 0.
         // Set the time and data values directly, these are always the first two columns.
         preparedStatement.setTimestamp(1, new Timestamp(Long.parseLong(values.get(0))));
@@ -435,8 +474,52 @@ public class DBHandler extends Handler {
         for (int i = 2; i < values.size(); i++) {
             preparedStatement.setString(i + 1, values.get(i));
         }
+    }
 
-        return preparedStatement;
+    /**
+     * Insert the values of a batch of records with a single JDBC batch, and commit them together.
+     * If the batch fails it is rolled back, so that it can be retried as a unit. Auto-commit is turned off for the
+     * batch only, so that the rest of the handler's statements and the connection pool see it as before.
+     * @param batch The values of each record in the batch.
+     * @throws SQLException if the batch could not be inserted.
+     */
+    private void insertBatch(List<List<String>> batch) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        try {
+            if (autoCommit) {
+                conn.setAutoCommit(false);
+            }
+            PreparedStatement preparedStatement = getInsertPreparedStatement(batch.get(0).size());
+            for (List<String> values : batch) {
+                setInsertValues(preparedStatement, values);
+                preparedStatement.addBatch();
+            }
+            preparedStatement.executeBatch();
+            conn.commit();
+        } catch (SQLException sqle) {
+            // The statement may hold a partly built batch, prepare it again for the retry.
+            closeInsertStatement();
+            try {
+                conn.rollback();
+            } catch (SQLException ex) {
+                if (Debug.messageEnabled()) {
+                    Debug.message(tableName + ":DBHandler:insertBatch:rollback:SQLE (" + ex.getErrorCode() + "): "
+                            + ex.getMessage());
+                }
+            }
+            throw sqle;
+        } finally {
+            if (autoCommit) {
+                try {
+                    conn.setAutoCommit(true);
+                } catch (SQLException ex) {
+                    if (Debug.messageEnabled()) {
+                        Debug.message(tableName + ":DBHandler:insertBatch:autoCommit:SQLE (" + ex.getErrorCode()
+                                + "): " + ex.getMessage());
+                    }
+                }
+            }
+        }
     }
 
     /**
@@ -568,13 +651,10 @@ public class DBHandler extends Handler {
         } catch (AMLogException ale) {
             Debug.error(tableName + ":DBHandler:close/flush error: " + ale.getMessage());
         }
+        closeInsertStatement();
         if(conn != null) {
-            try {
-                conn.close();
-            }
-            catch (SQLException ce) {
-                Debug.error(tableName + ":DBHandler: Unable To Close Connection", ce);
-            }
+            getConnectionPool().release(conn);
+            conn = null;
         }
         stopBufferTimer();
     }
@@ -614,7 +694,7 @@ public class DBHandler extends Handler {
                 //Monit end
             }
             if ((buffer != recordBuffer) && (!buffer.isEmpty())) {
-                for (int i = 0; i < buffer.size(); i++) {
+                while (!buffer.isEmpty()) {
                     recordBuffer.addFirst(buffer.removeLast());
                 }
             }
@@ -940,18 +1020,7 @@ public class DBHandler extends Handler {
             // try reconnecting to DB once.  if can't, dump the record
             // and wait for the next attempt.
             //
-            try {
-                if (conn != null) {
-                    conn.close();
-                }
-            } catch (SQLException ex) {
-                //
-                //  ignore exception and continue
-                //
-                if (Debug.messageEnabled()) {
-                    Debug.error (tableName + ":DBHandler:logRecords:cStatement:close:SQLE (" + ex.getErrorCode() + ")" + ex.getMessage());
-                }
-            }
+            getConnectionPool().discard(conn);
 
             connectionToDBLost = true;
             try {
@@ -1008,187 +1077,171 @@ public class DBHandler extends Handler {
             closeStatement(testConnectionStatement);
         }
 
-        PreparedStatement insertStatement = null;
-        for (LogRecord record : records) {
-            List<String> values = getValues(record);
-            try {
-                insertStatement = getInsertPreparedStatement(values);
-                insertStatement.executeUpdate();
-                //Monit start
-                if (MonitoringUtil.isRunning() && dbLogHandlerForMonitoring != null) {
-                    dbLogHandlerForMonitoring.incHandlerSuccessCount(1);
-                }
-                //Monit end
-            } catch (SQLException sqle) {
-                // Attempt to close this just in case it is holding resources.
-                closeStatement(insertStatement);
-                insertStatement = null;
+        //
+        //  insert the records in batches.  records stay in the list
+        //  until their batch is committed, so if a batch fails only
+        //  the records not yet logged are kept for the next flush.
+        //
+        while (!records.isEmpty()) {
+            List<LogRecord> batchRecords = records.subList(0, Math.min(batchSize, records.size()));
+            List<List<String>> batch = new ArrayList<List<String>>(batchRecords.size());
+            for (LogRecord record : batchRecords) {
+                batch.add(getValues(record));
+            }
+            logBatch(batch, records);
+            batchRecords.clear();
+            //Monit start
+            if (MonitoringUtil.isRunning() && dbLogHandlerForMonitoring != null) {
+                dbLogHandlerForMonitoring.incHandlerSuccessCount(batch.size());
+            }
+            //Monit end
+        }
+    }
 
+    private void logBatch(List<List<String>> batch, LinkedList<LogRecord> records) {
+        try {
+            insertBatch(batch);
+        } catch (SQLException sqle) {
+            /*
+             *  as mentioned above, connection errors to oracle
+             *  seem to get caught in the createStatement(), while
+             *  with mysql, they get caught here.
+             *
+             *  the other thing that could happen is the table was
+             *  dropped, but not the connection.
+             */
+            int sqleErrCode = sqle.getErrorCode();
+            if (Debug.messageEnabled()) {
+                Debug.message(tableName +
+                    ":DBHandler:logRecords:SQLException (" + sqleErrCode + "): " + sqle.getMessage());
+            }
+
+            /*
+             *  unfortunately have to check which db and specific
+             *  error codes...
+             *  see if table's missing
+             *  MySQL: 1146
+             *  Oracle: 942
+             */
+            if ((isMySQL && (sqleErrCode == 1146)) || (!isMySQL && (sqleErrCode == 942))) {
                 /*
-                 *  as mentioned above, connection errors to oracle
-                 *  seem to get caught in the createStatement(), while
-                 *  with mysql, they get caught here.
+                 *  connection to DB's there, but table's missing
                  *
-                 *  the other thing that could happen is the table was
-                 *  dropped, but not the connection.
+                 *  gotta make the table; try the batch again
                  */
-                int sqleErrCode = sqle.getErrorCode();
-                boolean tableDoesNotExist = false;
-                if (Debug.messageEnabled()) {
-                    Debug.message(tableName +
-                        ":DBHandler:logRecords:SQLException (" + sqleErrCode + "): " + sqle.getMessage());
+                try {
+                    createTable(tableName);
+                } catch (SQLException se) {
+                    //  just log the message and continue, for now
+                    Debug.error(tableName + ":DBHandler:logRecords:execUpdate:cTable:SQLE ("
+                        + se.getErrorCode() + "): " + se.getMessage());
+                } catch (UnsupportedEncodingException usee) {
+                    //  just log the message and continue, for now
+                    Debug.error(tableName + ":DBHandler:logRecords:execUpdate:cTable:UE: " + usee.getMessage());
                 }
 
+                try {
+                    insertBatch(batch);
+                } catch (SQLException sqle2) {
+                    //  guess NOW it's an error
+                    Debug.error(tableName +
+                        ":DBHandler:flush:logRecords:exUpdate:SQLE (" + sqle2.getErrorCode() + "): " +
+                        sqle2.getMessage());
+                    clearBuffer(records);
+                    throw new AMLogException (AMLogException.LOG_DB_EXECUPDATE);
+                }
+            } else if ((isMySQL && (sqleErrCode == 0))
+                    || (!isMySQL && ((sqleErrCode == 17002) || (sqleErrCode == 17410)))) {
                 /*
-                 *  unfortunately have to check which db and specific
-                 *  error codes...
-                 *  see if table's missing
-                 *  MySQL: 1146
-                 *  Oracle: 942
+                 *  connection's probably gone gotta try everything
+                 *  up to this point again, starting with
+                 *  reconnecting to the db.  any failure along the
+                 *  line this time gets an exception.
                  */
-                if ((isMySQL && (sqleErrCode == 1146)) || (!isMySQL && (sqleErrCode == 942))) {
-                    /*
-                     *  connection to DB's there, but table's missing
-                     *
-                     *  gotta make the table; try the executeUpdate()
-                     *  again
-                     */
-                    try {
-                        createTable(tableName);
-                    } catch (SQLException se) {
-                        //  just log the message and continue, for now
-                        Debug.error(tableName + ":DBHandler:logRecords:execUpdate:cTable:SQLE ("
-                            + se.getErrorCode() + "): " + se.getMessage());
-                    } catch (UnsupportedEncodingException usee) {
-                        //  just log the message and continue, for now
-                        Debug.error(tableName + ":DBHandler:logRecords:execUpdate:cTable:UE: " + usee.getMessage());
-                    }
 
-                    try {
-                        insertStatement = getInsertPreparedStatement(values);
-                        insertStatement.executeUpdate();
-                    } catch (SQLException sqle2) {
-                        //  guess NOW it's an error
-                        Debug.error(tableName +
-                            ":DBHandler:flush:logRecords:exUpdate:SQLE (" + sqle2.getErrorCode() + "): " +
-                            sqle2.getMessage());
-                        throw new AMLogException (AMLogException.LOG_DB_EXECUPDATE);
-                    } finally {
-                        closeStatement(insertStatement);
-                        insertStatement = null;
+                getConnectionPool().discard(conn);
+
+                connectionToDBLost = true;
+                try {
+                    reconnectToDatabase();
+                    Debug.error (tableName + ":DBHandler:logRecords:execUpdate:reconnect successful.");
+                } catch (DriverLoadException dle) {
+                    if (Debug.messageEnabled()) {
+                        Debug.message(tableName + ":DBHandler:logRecords:execUpdate:reconnect:DLE: " + dle.getMessage());
                     }
-                } else if ((isMySQL && (sqleErrCode == 0))
-                        || (!isMySQL && ((sqleErrCode == 17002) || (sqleErrCode == 17410)))) {
                     /*
-                     *  connection's probably gone gotta try everything
-                     *  up to this point again, starting with
-                     *  reconnecting to the db.  any failure along the
-                     *  line this time gets an exception.
+                     * if the max mem buffer is exceeded,
+                     * dump the records
                      */
-
-                    try {
-                        conn.close();
-                    } catch (SQLException ex) {
-                        //  log and continue
-                        if (Debug.messageEnabled()) {
-                            Debug.message(tableName +
-                                ":DBHandler:logRecords:execUpdate:close:SQLE (" + ex.getErrorCode() + "): " +
-                                ex.getMessage());
-                        }
-                    }
-
-                    connectionToDBLost = true;
-                    try {
-                        reconnectToDatabase();
-                        Debug.error (tableName + ":DBHandler:logRecords:execUpdate:reconnect successful.");
-                    } catch (DriverLoadException dle) {
-                        if (Debug.messageEnabled()) {
-                            Debug.message(tableName + ":DBHandler:logRecords:execUpdate:reconnect:DLE: " + dle.getMessage());
-                        }
-                        /*
-                         * if the max mem buffer is exceeded,
-                         * dump the records
-                         */
-                        clearBuffer(records);
-                        throw new AMLogException (AMLogException.LOG_DB_RECONNECT_FAILED);
-                    } catch (ConnectionException ce) {
-                        if (Debug.messageEnabled()) {
-                            Debug.message(tableName + ":DBHandler:logRecords:execUpdate:reconnect:CE: " + ce.getMessage());
-                        }
-                        /*
-                         * if the max mem buffer is exceeded,
-                         * dump the records
-                         */
-                        clearBuffer(records);
-                        throw new AMLogException (AMLogException.LOG_DB_RECONNECT_FAILED);
-                    } finally {
-                        closeStatement(insertStatement);
-                        insertStatement = null;
+                    clearBuffer(records);
+                    throw new AMLogException (AMLogException.LOG_DB_RECONNECT_FAILED);
+                } catch (ConnectionException ce) {
+                    if (Debug.messageEnabled()) {
+                        Debug.message(tableName + ":DBHandler:logRecords:execUpdate:reconnect:CE: " + ce.getMessage());
                     }
-                    connectionToDBLost = false;
+                    /*
+                     * if the max mem buffer is exceeded,
+                     * dump the records
+                     */
+                    clearBuffer(records);
+                    throw new AMLogException (AMLogException.LOG_DB_RECONNECT_FAILED);
+                }
+                connectionToDBLost = false;
 
+                /*
+                 *  bunch the createTable and the batch together
+                 *  because if either fails, throw an exception.
+                 */
+                try {
+                    createTable (tableName);
+                    insertBatch(batch);
+                } catch (SQLException sqe) {
+                    Debug.error (tableName +
+                        ":DBHandler:logRecords:executeUpd:reconnect:stmt:SQE: (" + sqe.getErrorCode() + "): "
+                        + sqe.getMessage());
                     /*
-                     *  bunch the createTable, createStatement, and
-                     *  executeUpdate together because if any of these
-                     *  fail, throw an exception.
+                     *  if the max mem buffer is exceeded,
+                     *  dump the records
                      */
-                    try {
-                        createTable (tableName);
-                        insertStatement = getInsertPreparedStatement(values);
-                        insertStatement.executeUpdate();
-                        //Monit start
-                        if (MonitoringUtil.isRunning() && dbLogHandlerForMonitoring != null) {
-                            dbLogHandlerForMonitoring.incHandlerSuccessCount(1);
-                        }
-                        //Monit end
-                    } catch (SQLException sqe) {
-                        Debug.error (tableName +
-                            ":DBHandler:logRecords:executeUpd:reconnect:stmt:SQE: (" + sqe.getErrorCode() + "): "
-                            + sqe.getMessage());
-                        /*
-                         *  if the max mem buffer is exceeded,
-                         *  dump the records
-                         */
-                        clearBuffer(records);
-                        throw new AMLogException (AMLogException.LOG_DB_EXECUPDATE);
-                    } catch (UnsupportedEncodingException usee) {
-                        Debug.error (tableName + ":DBHandler:logRecords:execUpd:reconnect:stmt:UE: " + usee.getMessage());
-                        /*
-                         *  if the max mem buffer is exceeded,
-                         *  dump the records
-                         */
-                        clearBuffer(records);
-                        throw new AMLogException (AMLogException.LOG_DB_EXECUPDATE);
-                    } finally {
-                        closeStatement(insertStatement);
-                        insertStatement = null;
-                    }
-                } else {
+                    clearBuffer(records);
+                    throw new AMLogException (AMLogException.LOG_DB_EXECUPDATE);
+                } catch (UnsupportedEncodingException usee) {
+                    Debug.error (tableName + ":DBHandler:logRecords:execUpd:reconnect:stmt:UE: " + usee.getMessage());
                     /*
-                     *  not sure what to do here yet.  log the error,
-                     *  throw an exception, and see what happens next.
-                     *
-                     *  just for informational purposes, you get the
-                     *  following if the columns don't exist:
-                     *    if ((isMySQL && (sqleErrCode == 1054)) ||
-                     *        (!isMySQL && ((sqleErrCode == 904) ||
-                     *              (sqleErrCode == 913))))
+                     *  if the max mem buffer is exceeded,
+                     *  dump the records
                      */
-                    Debug.error (tableName +
-                        ":DBHandler:flush:executeUpdate failed (" +
-                        sqleErrCode + "): " + sqle.getMessage());
-                    // if the max mem buffer is exceeded, dump the
-                    // records
                     clearBuffer(records);
                     throw new AMLogException (AMLogException.LOG_DB_EXECUPDATE);
                 }
-            } finally {
-                closeStatement(insertStatement);
-                insertStatement = null;
+            } else {
+                /*
+                 *  not sure what to do here yet.  log the error,
+                 *  throw an exception, and see what happens next.
+                 *
+                 *  just for informational purposes, you get the
+                 *  following if the columns don't exist:
+                 *    if ((isMySQL && (sqleErrCode == 1054)) ||
+                 *        (!isMySQL && ((sqleErrCode == 904) ||
+                 *              (sqleErrCode == 913))))
+                 */
+                Debug.error (tableName +
+                    ":DBHandler:flush:executeUpdate failed (" +
+                    sqleErrCode + "): " + sqle.getMessage());
+                // if the max mem buffer is exceeded, dump the
+                // records
+                clearBuffer(records);
+                throw new AMLogException (AMLogException.LOG_DB_EXECUPDATE);
             }
         }
     }
 
+    private void closeInsertStatement() {
+        closeStatement(insertStatement);
+        insertStatement = null;
+        insertStatementString = null;
+    }
+
     private void closeResultSet(ResultSet resultSet) {
 
         if (resultSet != null) {
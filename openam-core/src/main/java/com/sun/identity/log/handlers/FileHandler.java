@@ -26,28 +26,30 @@
  *
  */
 /*
- * Portions Copyrighted 2011-2013 ForgeRock Inc
+ * Portions Copyrighted 2011-2015 ForgeRock AS.
  */
 package com.sun.identity.log.handlers;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
-import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.text.SimpleDateFormat;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.logging.Formatter;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 
-import com.iplanet.am.util.ThreadPoolException;
 import com.iplanet.log.NullLocationException;
 import com.sun.identity.common.GeneralTaskRunnable;
 import com.sun.identity.common.SystemTimer;
@@ -74,13 +76,23 @@ import java.util.Calendar;
  * etc., * to the base filename. The Locking mechanism is much more relaxed 
  * (in JDK's  FileHandler an exclusive lock is created on the file till the
  * handler is closed which makes reading impossible)
+ * <p>
+ * Records are formatted by the logging thread and written by the
+ * {@link GroupCommitWriter}, which writes the records published in the
+ * meantime together, through a preallocated direct buffer.
  */
-public class FileHandler extends java.util.logging.Handler {
+public class FileHandler extends java.util.logging.Handler
+        implements GroupCommitWriter.Target {
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final long FLUSH_TIMEOUT = 10000;
 
     private LogManager lmanager = LogManagerUtil.getLogManager();
-    private OutputStream output;
-    private Writer writer;
-    private MeteredStream meteredStream;
+    private FileChannel channel;
+    private final ByteBuffer writeBuffer =
+            ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private CharsetEncoder encoder;
+    private long written;
     private File files[];
     private boolean headerWritten;
     private int count; // count represent number of history files
@@ -93,7 +105,7 @@ public class FileHandler extends java.util.logging.Handler {
     private String currentFileName;
     private String fileName;
     private int recCountLimit;
-    private LinkedList recordBuffer;
+    private final List<String> recordBuffer = new ArrayList<String>();
     private TimeBufferingTask bufferTask;
     private boolean timeBufferingEnabled = false;
     private static String headerString = null;
@@ -109,93 +121,35 @@ public class FileHandler extends java.util.logging.Handler {
 
     private static final String DEFAULT_LOG_SUFFIX_FORMAT = "-MM.dd.yy-kk.mm";
 
-    private class MeteredStream extends OutputStream {
-
-        OutputStream out;
-        int written;
-
-        MeteredStream(OutputStream out, int written) {
-            this.out = out;
-            this.written = written;
-        }
-
-        /**
-         * writes a single integer to the outputstream and increments 
-         * the number of bytes written by one.
-         * @param b integer value to be written.
-         * @throws IOException if it fails to write out.
-         */
-        public void write(int b) throws IOException {
-            out.write(b);
-            written++;
-        }
-
-        /**
-         * Writes the array of bytes to the output stream and increments 
-         * the number of bytes written by the size of the array.
-         * @param b the byte array to be written. 
-         * @throws IOException if it fails to write out.
-         */
-        public void write(byte[] b) throws IOException {
-            out.write(b);
-            written += b.length;
-        }
-
-        /**
-         * Writes the array of bytes to the output stream and increments 
-         * the number of bytes written by the size of the array.
-         * @param b the byte array to be written. 
-         * @param offset the offset of array to be written. 
-         * @param length the length of bytes to be written. 
-         * @throws IOException if it fails to write out.
-         */
-        public void write(byte[] b, int offset, int length)
-                throws IOException {
-            out.write(b, offset, length);
-            written += length;
-        }
-
-        /**
-         * Flush any buffered messages.
-         * @throws IOException if it fails to write out.
-         */
-        public void flush() throws IOException {
-            out.flush();
-        }
-
-        /**
-         * close the current output stream.
-         * @throws IOException if it fails to close output stream.
-         */
-        public void close() throws IOException {
-            out.close();
-        }
-    }
-
     /**
-     * sets the output stream to the specified output stream ..picked up from
-     * StreamHandler.
+     * Sets the channel the records are written to.
      */
-    private void setOutputStream(OutputStream out) throws SecurityException,
-            UnsupportedEncodingException {
-        if (out == null) {
-            if (Debug.warningEnabled()) {
-                Debug.warning(fileName + ":FileHandler: OutputStream is null");
-            }
-        }
-        output = out;
+    private void setChannel(FileChannel channel, long written)
+            throws UnsupportedEncodingException {
+        this.channel = channel;
+        this.written = written;
         headerWritten = false;
-        String encoding = getEncoding();
+        if (encoder == null) {
+            encoder = createEncoder(getEncoding());
+        }
+    }
+
+    private CharsetEncoder createEncoder(String encoding)
+            throws UnsupportedEncodingException {
+        Charset charset;
         if (encoding == null) {
-            writer = new OutputStreamWriter(output);
+            charset = Charset.defaultCharset();
         } else {
             try {
-                writer = new OutputStreamWriter(output, encoding);
-            } catch (UnsupportedEncodingException e) {
+                charset = Charset.forName(encoding);
+            } catch (IllegalArgumentException e) {
                 Debug.error(fileName + ":FileHandler: Unsupported Encoding", e);
                 throw new UnsupportedEncodingException(e.getMessage());
             }
         }
+        return charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
     }
 
     /**
@@ -213,16 +167,12 @@ public class FileHandler extends java.util.logging.Handler {
      */
     public void setEncoding(String encoding) throws SecurityException,
             UnsupportedEncodingException {
+        CharsetEncoder newEncoder = createEncoder(encoding);
         super.setEncoding(encoding);
-        if (output == null) {
-            return;
-        }
-        // Replace the current writer with a writer for the new encoding.
-        cleanup();
-        if (encoding == null) {
-            writer = new OutputStreamWriter(output);
-        } else {
-            writer = new OutputStreamWriter(output, encoding);
+        synchronized (this) {
+            // Write what has been encoded so far before switching encoders.
+            drainBuffer();
+            encoder = newEncoder;
         }
     }
 
@@ -336,18 +286,14 @@ public class FileHandler extends java.util.logging.Handler {
 
     /** 
      * Algorithm: Check how many bytes have already been written to to that file
-     * Get an instance of MeteredStream and assign it as the output stream. 
-     * Create a file of the name of FileOutputStream.
+     * Open a channel to the file and assign it as the channel records are
+     * written to.
      */
     private void open(File fileName, boolean append) throws IOException {
         String filename = fileName.toString();
-        int len = 0;
-        len = (int) fileName.length();
+        long len = append ? fileName.length() : 0;
         FileOutputStream fout = new FileOutputStream(filename, append);
-
-        BufferedOutputStream bout = new BufferedOutputStream(fout);
-        meteredStream = new MeteredStream(bout, len);
-        setOutputStream(meteredStream);
+        setChannel(fout.getChannel(), len);
         checkForHeaderWritten(fileName.toString());
     }
 
@@ -385,8 +331,6 @@ public class FileHandler extends java.util.logging.Handler {
         }
         logger.setCurrentFile(this.fileName);
 
-        recordBuffer = new LinkedList();
-
         if (timeBufferingEnabled) {
             startTimeBufferingThread();
         }
@@ -433,27 +377,20 @@ public class FileHandler extends java.util.logging.Handler {
 
     }
 
-    private void cleanup() {
-        if (writer != null) {
-            try {
-                writer.flush();
-            } catch (Exception ex) {
-                Debug.error(fileName +
-                        ":FileHandler: Could not Flush Output", ex);
-            }
-        }
-    }
-
     /**
      * Flush any buffered messages and Close all the files.
      */
     public void close() {
         flush();
-        if (writer != null) {
-            try {
-                writer.close();
-            } catch (IOException e) {
-                Debug.error(fileName + ":FileHandler: Error closing writer", e);
+        synchronized (this) {
+            drainBuffer();
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    Debug.error(fileName + ":FileHandler: Error closing writer", e);
+                }
+                channel = null;
             }
         }
         stopBufferTimer();
@@ -464,9 +401,10 @@ public class FileHandler extends java.util.logging.Handler {
      * <p>
      * This FileHandler is associated with a Formatter, which has to format the
      * LogRecord according to ELF and return back the string formatted as per 
-     * ELF. This method first checks if the header is already written to the 
-     * file, if not, gets the header from the Formatter and writes it at the 
-     * beginning of the file.
+     * ELF. The formatted record is handed over to the
+     * <code>GroupCommitWriter</code>, which writes it together with the other
+     * records published in the meantime. If the header is not already written
+     * to the file, it is written at the beginning of the file.
      * @param lrecord the log record to be published.
      */
     public void publish(LogRecord lrecord) {
@@ -482,16 +420,7 @@ public class FileHandler extends java.util.logging.Handler {
         }
         Formatter formatter = getFormatter();
         String message = formatter.format(lrecord);
-        synchronized (this) {        
-            recordBuffer.add(message);
-            if (recordBuffer.size() >= recCountLimit) {
-                if (Debug.messageEnabled()) {
-                    Debug.message(fileName + ":FileHandler.publish(): got " +
-                        recordBuffer.size() + " records, writing all");
-                }
-                nonBlockingFlush();
-            }
-        }
+        GroupCommitWriter.getInstance().write(this, message);
     }
 
     private String getHeaderString() {
@@ -502,75 +431,137 @@ public class FileHandler extends java.util.logging.Handler {
     }
 
     /**
-     * Flush any buffered messages.
+     * Flush any buffered messages, without waiting for them to be written.
      */
     protected void nonBlockingFlush() {
-        LinkedList writeBuffer = null;
-        synchronized (this) {
-            if (recordBuffer.size() <= 0) {
-                if (Debug.messageEnabled()) {
-                    Debug.message(fileName +
-                        ":FileHandler.flush: no records in buffer to write");
-                }
-                return;
+        GroupCommitWriter.getInstance().requestFlush(this);
+    }
+
+    /**
+     * Flush any buffered messages.
+     */
+    public void flush() {
+        if (!GroupCommitWriter.getInstance().flush(this, FLUSH_TIMEOUT)) {
+            Debug.warning(fileName +
+                ":FileHandler.flush: timed out waiting for records to be written");
+        }
+    }
+
+    /**
+     * Writes the records handed over by the <code>GroupCommitWriter</code>.
+     * Records are held back until the buffer size is reached, unless forced.
+     *
+     * @param records the formatted records.
+     * @param force whether to write the records held back as well.
+     * @return whether anything was written to the file.
+     */
+    public synchronized boolean write(List<Object> records, boolean force) {
+        for (Object record : records) {
+            recordBuffer.add((String) record);
+        }
+        if (recordBuffer.isEmpty() ||
+                (!force && recordBuffer.size() < recCountLimit)) {
+            return false;
+        }
+        if (channel == null) {
+            Debug.error(fileName + ":FileHandler: Writer is null");
+            if (MonitoringUtil.isRunning() && fileLogHandlerForMonitoring !=
+                null) {
+                fileLogHandlerForMonitoring.incHandlerDroppedCount(
+                    recordBuffer.size());
             }
-            writeBuffer = recordBuffer;
-            recordBuffer = new LinkedList();
+            recordBuffer.clear();
+            return false;
         }
-        LogTask task = new LogTask(writeBuffer);
-        try {
-            // Get an instance as required otherwise it can cause issues on container restart.
-            LoggingThread.getInstance().run(task);
-        } catch (ThreadPoolException ex) {
-            // use current thread to flush the data if ThreadPool is shutdown
-            synchronized (this) {
-                task.run();
+        if (Debug.messageEnabled()) {
+            Debug.message(fileName + ":FileHandler.flush: writing " +
+                "buffered records (" + recordBuffer.size() + " records)");
+        }
+        for (String message : recordBuffer) {
+            if (needsRotation(message)) {
+                rotate();
+            }
+            try {
+                if (!headerWritten) {
+                    encode(getHeaderString());
+                    headerWritten = true;
+                }
+                encode(message);
+                if (MonitoringUtil.isRunning() &&
+                    fileLogHandlerForMonitoring != null) {
+                    fileLogHandlerForMonitoring.incHandlerSuccessCount(1);
+                }
+            } catch (IOException ex) {
+                Debug.error(fileName +
+                    ":FileHandler: could not write to file: ", ex);
             }
         }
+        recordBuffer.clear();
+        drainBuffer();
+        return true;
     }
 
-    public void flush() {
-        synchronized (this) {
-            if (recordBuffer.size() <= 0) {
-                return;
+    /**
+     * Syncs the records written so far to disk.
+     */
+    public synchronized void sync() {
+        if (channel != null) {
+            try {
+                channel.force(false);
+            } catch (IOException ex) {
+                Debug.error(fileName + ":FileHandler: could not sync file", ex);
             }
-            if (writer == null) {
-                int recordsToBeDropped = recordBuffer.size();
-                if (MonitoringUtil.isRunning() && fileLogHandlerForMonitoring !=
-                    null) {
-                    fileLogHandlerForMonitoring.incHandlerDroppedCount(
-                        recordsToBeDropped);
-                }
-                recordBuffer.clear();
-                return;
+        }
+    }
+
+    /*
+     * Encodes the string into the write buffer, writing the buffer to the
+     * file whenever it fills up.
+     */
+    private void encode(String message) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(message);
+        encoder.reset();
+        CoderResult result;
+        while ((result = encoder.encode(chars, writeBuffer, true)).isOverflow()) {
+            writeOut();
+        }
+        if (result.isError()) {
+            throw new IOException("Could not encode record: " + result);
+        }
+        while (encoder.flush(writeBuffer).isOverflow()) {
+            writeOut();
+        }
+    }
+
+    private void writeOut() throws IOException {
+        writeBuffer.flip();
+        try {
+            while (writeBuffer.hasRemaining()) {
+                written += channel.write(writeBuffer);
             }
-            for (Iterator iter = recordBuffer.iterator(); iter.hasNext();) {
-                String message = (String) iter.next();
-                if (needsRotation(message)) {
-                    rotate();
-                }
-                try {
-                    if (!headerWritten) {
-                        writer.write(getHeaderString());
-                        headerWritten = true;
-                    }
-                    writer.write(message);
-                    if (MonitoringUtil.isRunning() &&
-                        fileLogHandlerForMonitoring != null) {
-                        fileLogHandlerForMonitoring.incHandlerSuccessCount(1);
-                    }
-                } catch (IOException ex) {
-                }
-                cleanup();
+        } finally {
+            writeBuffer.clear();
+        }
+    }
+
+    private void drainBuffer() {
+        if (channel != null && writeBuffer.position() > 0) {
+            try {
+                writeOut();
+            } catch (IOException ex) {
+                Debug.error(fileName +
+                    ":FileHandler: could not write to file: ", ex);
             }
-            recordBuffer.clear();
-        }        
+        } else {
+            writeBuffer.clear();
+        }
     }
 
     private boolean needsRotation(String message) {
         if (rotatingBySize) {
             if (message.length() > 0 &&
-                    meteredStream.written + message.length() >= maxFileSize) {
+                    written + writeBuffer.position() + message.length() >=
+                    maxFileSize) {
                 return true;
             }
         } else {
@@ -587,10 +578,10 @@ public class FileHandler extends java.util.logging.Handler {
     }
 
     private void rotate() {
-       if (writer != null) {
+        drainBuffer();
+        if (channel != null) {
             try {
-                writer.flush();
-                writer.close();
+                channel.close();
             } catch (Exception ex) {
                 Debug.error(fileName + ":FileHandler: " +
                         "Error closing writer", ex);
@@ -732,56 +723,6 @@ public class FileHandler extends java.util.logging.Handler {
         }
     }
 
-    private class LogTask implements Runnable {
-
-        private LinkedList buffer;
-
-        public LogTask(LinkedList buffer) {
-            this.buffer = buffer;
-        }
-
-        public void run() {
-            if (writer == null) {
-                Debug.error(fileName + ":FileHandler: Writer is null");
-                int recordsToBeDropped = buffer.size();
-                if (MonitoringUtil.isRunning() && fileLogHandlerForMonitoring !=
-                    null) {
-                    fileLogHandlerForMonitoring.incHandlerDroppedCount(
-                        recordsToBeDropped);
-                }
-                buffer.clear();
-                return;
-            }
-            if (Debug.messageEnabled()) {
-                Debug.message(fileName + ":FileHandler.flush: writing " +
-                    "buffered records (" +
-                    buffer.size() + " records)");
-            }
-            for (Iterator iter = buffer.iterator(); iter.hasNext();) {
-                String message = (String) iter.next();
-                if (needsRotation(message)) {
-                    rotate();
-                }
-                try {
-                    if (!headerWritten) {
-                        writer.write(getHeaderString());
-                        headerWritten = true;
-                    }
-                    writer.write(message);
-                    if (MonitoringUtil.isRunning() &&
-                        fileLogHandlerForMonitoring != null) {
-                        fileLogHandlerForMonitoring.incHandlerSuccessCount(1);
-                    }
-                } catch (IOException ex) {
-                    Debug.error(fileName +
-                        ":FileHandler: could not write to file: ", ex);
-                }
-                cleanup();
-            }
-        }
-
-    }
-
     private class TimeBufferingTask extends GeneralTaskRunnable {
 
         private long runPeriod;
@@ -0,0 +1,446 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package com.sun.identity.log.handlers;
+
+import com.iplanet.am.util.SystemProperties;
+import com.sun.identity.common.ShutdownListener;
+import com.sun.identity.common.ShutdownManager;
+import com.sun.identity.common.ShutdownPriority;
+import com.sun.identity.log.spi.Debug;
+import com.sun.identity.shared.Constants;
+import org.forgerock.openam.shared.concurrency.RingBuffer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes the records of the file log handlers on a single dedicated thread, committing them in groups.
+ * <p/>
+ * Logging threads hand their records over through a bounded lock free queue and return straight away. The writer
+ * drains whatever has been queued since its last pass, hands the records of each handler to it in one call, and syncs
+ * the files to disk as the fsync policy says: never, after every group, or once per interval. The busier the handlers
+ * are, the larger the groups become, so the cost of writing and syncing is shared by more records.
+ * <p/>
+ * When the queue is full, logging threads wait for room. Once the writer has been stopped, records are written by
+ * the logging thread itself, as they were when the logging thread pool had been shut down.
+ */
+public class GroupCommitWriter implements Runnable {
+
+    /**
+     * When the log files are synced to disk.
+     */
+    public enum FsyncPolicy {
+        /** Leave it to the operating system. */
+        NONE,
+        /** After every group of records written to a file. */
+        BATCH,
+        /** At most once per fsync interval. */
+        INTERVAL
+    }
+
+    /**
+     * A log handler whose records are written by the writer.
+     */
+    public interface Target {
+
+        /**
+         * Writes records to the log file, in the order they were handed over. Called by one thread at a time.
+         *
+         * @param records The records; may be empty.
+         * @param force Whether records held back earlier, for instance to fill the handler's buffer, must be
+         *              written too.
+         * @return Whether anything was written to the file.
+         */
+        boolean write(List<Object> records, boolean force);
+
+        /**
+         * Syncs what has been written to the log file to disk.
+         */
+        void sync();
+    }
+
+    private static final long BLOCK_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long IDLE_WAIT_IN_MS = 1000;
+    private static final long STOP_TIMEOUT_IN_MS = 10000;
+    private static final Object FLUSH = new Object();
+
+    private static volatile GroupCommitWriter instance;
+
+    private final RingBuffer<Entry> queue;
+    private final int batchSize;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncInterval;
+    private final Thread thread;
+
+    private volatile boolean running = true;
+    private volatile boolean waiting = false;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong groups = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+
+    /**
+     * Creates a writer. The writer thread is started by {@link #start()}.
+     *
+     * @param queueSize The number of records the queue holds.
+     * @param batchSize The maximum number of records taken from the queue in one pass.
+     * @param fsyncPolicy When the log files are synced to disk.
+     * @param fsyncInterval Milliseconds between syncs when the policy is {@link FsyncPolicy#INTERVAL}.
+     */
+    GroupCommitWriter(int queueSize, int batchSize, FsyncPolicy fsyncPolicy, long fsyncInterval) {
+        this.queue = new RingBuffer<Entry>(queueSize);
+        this.batchSize = Math.max(1, batchSize);
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncInterval = Math.max(1, fsyncInterval);
+        this.thread = new Thread(this, "LogWriter");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Returns the writer shared by the log handlers, starting it if necessary. The writer is stopped when the server
+     * shuts down; a new one is started if the handlers are used again after a container restart.
+     *
+     * @return The writer.
+     */
+    public static GroupCommitWriter getInstance() {
+        GroupCommitWriter writer = instance;
+        if (writer != null) {
+            return writer;
+        }
+        synchronized (GroupCommitWriter.class) {
+            if (instance == null) {
+                instance = createInstance();
+            }
+            return instance;
+        }
+    }
+
+    private static GroupCommitWriter createInstance() {
+        FsyncPolicy policy;
+        String value = SystemProperties.get(Constants.LOG_WRITER_FSYNC_POLICY, FsyncPolicy.NONE.name());
+        try {
+            policy = FsyncPolicy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            Debug.error("GroupCommitWriter: Invalid fsync policy " + value + ", using " + FsyncPolicy.NONE);
+            policy = FsyncPolicy.NONE;
+        }
+        final GroupCommitWriter writer = new GroupCommitWriter(
+                SystemProperties.getAsInt(Constants.LOG_WRITER_QUEUE_SIZE, 16384),
+                SystemProperties.getAsInt(Constants.LOG_WRITER_BATCH_SIZE, 1024),
+                policy,
+                SystemProperties.getAsInt(Constants.LOG_WRITER_FSYNC_INTERVAL, 1000));
+
+        ShutdownManager shutdownMan = ShutdownManager.getInstance();
+        if (shutdownMan.acquireValidLock()) {
+            try {
+                writer.start();
+                shutdownMan.addShutdownListener(
+                    new ShutdownListener() {
+                        public void shutdown() {
+                            writer.stop();
+                            synchronized (GroupCommitWriter.class) {
+                                if (instance == writer) {
+                                    instance = null;
+                                }
+                            }
+                        }
+                    }, ShutdownPriority.LOWEST
+                );
+            } finally {
+                shutdownMan.releaseLockAndNotify();
+            }
+        } else {
+            // Shutting down, so write on the logging threads
+            writer.running = false;
+        }
+        return writer;
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops the writer thread once the records already queued have been written.
+     */
+    void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+        if (thread.isAlive() && Thread.currentThread() != thread) {
+            try {
+                thread.join(STOP_TIMEOUT_IN_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Hands a record over to be written to the log file of the handler.
+     *
+     * @param target The handler.
+     * @param record The record.
+     */
+    public void write(Target target, Object record) {
+        if (!enqueue(new Entry(target, record, null))) {
+            writeNow(target, Collections.singletonList(record));
+        }
+    }
+
+    /**
+     * Writes the records handed over so far for the handler, including those the handler holds back, without
+     * waiting for them to be written.
+     *
+     * @param target The handler.
+     */
+    public void requestFlush(Target target) {
+        if (!enqueue(new Entry(target, FLUSH, null))) {
+            writeNow(target, Collections.<Object>emptyList());
+        }
+    }
+
+    /**
+     * Writes the records handed over so far for the handler, including those the handler holds back, and waits for
+     * them to be written.
+     *
+     * @param target The handler.
+     * @param timeout Milliseconds to wait for.
+     * @return Whether the records were written within the timeout.
+     */
+    public boolean flush(Target target, long timeout) {
+        if (Thread.currentThread() == thread) {
+            target.write(Collections.<Object>emptyList(), true);
+            return true;
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        if (!enqueue(new Entry(target, FLUSH, done))) {
+            writeNow(target, Collections.<Object>emptyList());
+            return true;
+        }
+        try {
+            return done.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /*
+     * Queues the entry, waiting for room if the queue is full. Returns false if the writer has been stopped, or if
+     * the queue is full and the caller is the writer thread itself.
+     */
+    private boolean enqueue(Entry entry) {
+        if (!running) {
+            return false;
+        }
+        if (!queue.offer(entry)) {
+            if (Thread.currentThread() == thread) {
+                return false;
+            }
+            blocked.incrementAndGet();
+            do {
+                if (!running) {
+                    return false;
+                }
+                LockSupport.unpark(thread);
+                LockSupport.parkNanos(this, BLOCK_WAIT_NANOS);
+            } while (!queue.offer(entry));
+        }
+        if (waiting) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    /*
+     * Once stopped, records are written by the logging thread itself.
+     */
+    private void writeNow(Target target, List<Object> records) {
+        try {
+            if (target.write(records, true) && fsyncPolicy != FsyncPolicy.NONE) {
+                target.sync();
+                syncs.incrementAndGet();
+            }
+            written.addAndGet(records.size());
+        } catch (RuntimeException e) {
+            Debug.error("GroupCommitWriter: Could not write log records", e);
+        }
+    }
+
+    /**
+     * Writes records until stopped, then writes what remains in the queue.
+     */
+    @Override
+    public void run() {
+        List<Entry> batch = new ArrayList<Entry>(batchSize);
+        Map<Target, Group> targets = new LinkedHashMap<Target, Group>();
+        Map<Target, Boolean> unsynced = new IdentityHashMap<Target, Boolean>();
+        long lastSync = System.currentTimeMillis();
+
+        while (true) {
+            batch.clear();
+            int count = queue.drainTo(batch, batchSize);
+            if (count > 0) {
+                targets.clear();
+                for (Entry entry : batch) {
+                    Group group = targets.get(entry.target);
+                    if (group == null) {
+                        group = new Group();
+                        targets.put(entry.target, group);
+                    }
+                    group.add(entry);
+                }
+                for (Map.Entry<Target, Group> entry : targets.entrySet()) {
+                    commit(entry.getKey(), entry.getValue(), unsynced);
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            if (!unsynced.isEmpty() && (now - lastSync >= fsyncInterval || !running)) {
+                sync(unsynced);
+                lastSync = now;
+            }
+
+            if (count < batchSize) {
+                if (!running && queue.size() == 0) {
+                    sync(unsynced);
+                    return;
+                }
+                long wait = unsynced.isEmpty() ? IDLE_WAIT_IN_MS : fsyncInterval - (now - lastSync);
+                waiting = true;
+                if (running && queue.size() == 0 && wait > 0) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(wait));
+                }
+                waiting = false;
+            }
+        }
+    }
+
+    private void commit(Target target, Group group, Map<Target, Boolean> unsynced) {
+        try {
+            if (target.write(group.records, group.force)) {
+                groups.incrementAndGet();
+                if (fsyncPolicy == FsyncPolicy.BATCH) {
+                    target.sync();
+                    syncs.incrementAndGet();
+                } else if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+                    unsynced.put(target, Boolean.TRUE);
+                }
+            }
+            written.addAndGet(group.records.size());
+        } catch (RuntimeException e) {
+            Debug.error("GroupCommitWriter: Could not write log records", e);
+        } finally {
+            for (CountDownLatch done : group.waiting) {
+                done.countDown();
+            }
+        }
+    }
+
+    private void sync(Map<Target, Boolean> unsynced) {
+        for (Target target : unsynced.keySet()) {
+            try {
+                target.sync();
+                syncs.incrementAndGet();
+            } catch (RuntimeException e) {
+                Debug.error("GroupCommitWriter: Could not sync log file", e);
+            }
+        }
+        unsynced.clear();
+    }
+
+    /**
+     * @return The number of records written.
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return The number of records whose logging thread had to wait for room in the queue.
+     */
+    public long getBlockedCount() {
+        return blocked.get();
+    }
+
+    /**
+     * @return The number of groups of records written to a file.
+     */
+    public long getGroupCount() {
+        return groups.get();
+    }
+
+    /**
+     * @return The number of times a log file has been synced to disk.
+     */
+    public long getSyncCount() {
+        return syncs.get();
+    }
+
+    /**
+     * @return The number of records waiting to be written.
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * A record or flush request waiting to be written.
+     */
+    private static final class Entry {
+        private final Target target;
+        private final Object record;
+        private final CountDownLatch done;
+
+        private Entry(Target target, Object record, CountDownLatch done) {
+            this.target = target;
+            this.record = record;
+            this.done = done;
+        }
+    }
+
+    /**
+     * The records of one handler taken from the queue in one pass.
+     */
+    private static final class Group {
+        private final List<Object> records = new ArrayList<Object>();
+        private final List<CountDownLatch> waiting = new ArrayList<CountDownLatch>(1);
+        private boolean force;
+
+        private void add(Entry entry) {
+            if (entry.record == FLUSH) {
+                force = true;
+                if (entry.done != null) {
+                    waiting.add(entry.done);
+                }
+            } else {
+                records.add(entry.record);
+            }
+        }
+    }
+}
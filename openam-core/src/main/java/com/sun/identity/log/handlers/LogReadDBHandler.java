@@ -27,14 +27,12 @@
  */
 
 /*
- * Portions Copyrighted [2011] [ForgeRock AS]
+ * Portions Copyrighted [2011-2015] [ForgeRock AS]
  */
 package com.sun.identity.log.handlers;
 
 import java.io.IOException;
-import java.lang.reflect.Array;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -42,14 +40,17 @@ import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
+import com.iplanet.am.util.SystemProperties;
 import com.sun.identity.log.AMLogException;
 import com.sun.identity.log.LogConstants;
 import com.sun.identity.log.LogQuery;
 import com.sun.identity.log.QueryElement;
 import com.sun.identity.log.spi.Debug;
 import com.sun.identity.log.util.LogRecordSorter;
+import com.sun.identity.shared.Constants;
 
 
 /**LogReadDBHandler class implements ReadDBHandler interface.
@@ -58,7 +59,9 @@ import com.sun.identity.log.util.LogRecordSorter;
  * into file). This class reads the DB table, applies query if any,
  * sorts records on field name when required, collects most recent records
  * (default option) or all records. It returns result 2D String to the
- * caller (LogReader).
+ * caller (LogReader). Rows are read from forward only cursors which fetch
+ * them from the database a few at a time, rather than all at once, over
+ * connections taken from the pool shared with the DBHandler.
  **/
 public class LogReadDBHandler implements ReadDBHandler  {
     // private attributes
@@ -69,6 +72,8 @@ public class LogReadDBHandler implements ReadDBHandler  {
     private String dbPassWord;
     private String maxRecordsStr = null;
     private int maxRecords = 0;
+    private int fetchSize =
+        SystemProperties.getAsInt(Constants.LOG_DB_FETCH_SIZE, 1000);
     private LogRecordSorter sorter =  null;
     private String [][] queryResult;    // will hold the return value
     // internal storage for records
@@ -184,7 +189,7 @@ public class LogReadDBHandler implements ReadDBHandler  {
             this.maxRecords = LogConstants.MAX_RECORDS_DEFAULT_INT;
         }
 
-        String [][] tableResults;
+        List<String[]> tableResults;
 
         try {
             connectToDatabase (dbUserName, dbPassWord);
@@ -200,21 +205,15 @@ public class LogReadDBHandler implements ReadDBHandler  {
         String selStr = selectStr;
 
         Statement stmt = null;
-        int numberOfRows = 0;
 
         try {
-            stmt = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,
-                                        ResultSet.CONCUR_UPDATABLE);
+            stmt = createQueryStatement();
 
             if (Debug.messageEnabled()) {
                 Debug.message("DBlogRecRead:about to execute: " + selStr);
             }
             ResultSet rs = stmt.executeQuery(selStr);
 
-            //
-            //  fetchsize appears to be 10 from rs.getFetchSize();
-            //
-
             ResultSetMetaData rsmd = rs.getMetaData();
             int numberOfColumns = rsmd.getColumnCount();
 
@@ -237,125 +236,21 @@ public class LogReadDBHandler implements ReadDBHandler  {
             }
             listOfValidRecords.add(spltHdrStr);
 
-            // have to figure out #rows
-            while (rs.next()) {
-                numberOfRows++;
-            }
-
-            if (Debug.messageEnabled()) {
-                Debug.message("DBlogRecRead:#rows = " + numberOfRows);
-            }
-
-            if (numberOfRows == 0) {
-                stmt.close();
-                try {
-                    conn.close();
-                } catch (SQLException ex) {
-                    //
-                    //  might not care about this too much...?
-                    //
-                    Debug.error ("DBlogRecRead:rows=0:conn.close (" +
-                        ex.getErrorCode() + "): " + ex.getMessage());
-                }
-
-                //
-                //  should be at least the column names
-                //
-
-                int recSize = listOfValidRecords.size();
-
-                //
-                // checks whether it has got any record or not
-                // weird if it's 0...
-                //
-
-                if (recSize <= 0) {
-                    // if no record found return null
-                    return null;
-                }
-                queryResult = new String[recSize][];
-                for (int i=0; i<recSize; i++) {
-                    queryResult[i] = (String [])listOfValidRecords.get(i);
-                }
-
-                return queryResult;
-            }
-
-            if (numberOfRows > this.maxRecords) {
-                 stmt.close();
-                try {
-                    conn.close();
-                } catch (SQLException ex) {
-                    //
-                    //  don't care about this too much...
-                    //
-                    Debug.error ("DBlogRecRead:conn.close (" +
-                        ex.getErrorCode() + "): " + ex.getMessage());
-                }
-                throw new AMLogException(AMLogException.LOG_DB_TOOMANYRECORDS);
-            }
-
             //
-            //  reset to the beginning
+            //  read the rows as they are fetched, stopping as soon
+            //  as there are more than this.maxRecords of them.
             //
-            boolean isFirst = rs.first();
-            if (isFirst == false) {
-                Debug.error("DBlogRecRead:first() is false!");
-            }
-
-            int rowsToAlloc = numberOfRows;
-            if (logQuery.getNumRecordsWanted() ==
-                LogQuery.MOST_RECENT_MAX_RECORDS) 
-            {
-                //
-                //  remember it's one for the column names, too
-                //
-                if (numberOfRows > this.maxRecords) {
-                    rowsToAlloc = this.maxRecords;
-                }
-            }
-            tableResults = new String[rowsToAlloc][numberOfColumns];
-
-            String result = null;
-            int rowCount = 0;
-
-            //
-            //  if LogQuery.MOST_RECENT_MAX_RECORDS selected,
-            //  then we just have to get the "this.maxRecords" records.
-            //
-
-            int skipThisManyRecords = 0;
-            if (logQuery.getNumRecordsWanted() ==
-                LogQuery.MOST_RECENT_MAX_RECORDS) 
-            {
-                if (numberOfRows > this.maxRecords) {
-                    skipThisManyRecords = numberOfRows - this.maxRecords;
-                }
-            }
+            tableResults = readRows(rs, numberOfColumns, this.maxRecords);
 
             if (Debug.messageEnabled()) {
-                Debug.message("DBlogRecRead:skipThisMany = " +
-                    skipThisManyRecords);
+                Debug.message("DBlogRecRead:#rows = " + tableResults.size());
             }
 
-            //
-            //  always do the first one... the column names
-            //
-
-            for (int i = 0; i < numberOfColumns; i++) {
-                result = rs.getString(i+1);
-                tableResults[0][i] = result;
-            }
-            rowCount = 1;
-
-            while (rs.next()) {
-                if (skipThisManyRecords-- <= 0) {
-                    for (int i = 0; i < numberOfColumns; i++) {
-                        result = rs.getString(i+1);
-                        tableResults[rowCount][i] = result;
-                    }
-                    rowCount++;
-                }
+            if (tableResults.size() > this.maxRecords) {
+                stmt.close();
+                releaseConnection();
+                throw new AMLogException(
+                    AMLogException.LOG_DB_TOOMANYRECORDS);
             }
 
             stmt.close();
@@ -364,9 +259,12 @@ public class LogReadDBHandler implements ReadDBHandler  {
             Debug.error("DBlogRecRead:query:SQE:code=" +
                 se.getErrorCode() + ", msg=" +
                 se.getMessage());
+            discardConnection();
             throw se; // rethrow for LogReader to catch
         }
 
+        releaseConnection();
+
         try {
             this.getRecords(tableResults, sourceData);
         } catch (IOException e) {
@@ -391,16 +289,6 @@ public class LogReadDBHandler implements ReadDBHandler  {
         //  sorting already done by DB
         //
 
-        try {
-            conn.close();
-        } catch (SQLException ex) {
-            //
-            //  might not care about this too much...?
-            //
-            Debug.error ("DBlogRecRead:conn.close (" + ex.getErrorCode() +
-                "): " + ex.getMessage());
-        }
-
         queryResult = new String[recSize][];
         for (int i=0; i<recSize; i++) {
             queryResult[i] = (String [])listOfValidRecords.get(i);
@@ -541,7 +429,7 @@ public class LogReadDBHandler implements ReadDBHandler  {
             }
 
 
-            String [][] tableResults;
+            List<String[]> tableResults;
 
             try {
                 connectToDatabase (dbUserName, dbPassWord);
@@ -557,21 +445,15 @@ public class LogReadDBHandler implements ReadDBHandler  {
             String selStr = selectStr;
 
             Statement stmt = null;
-            int numberOfRows = 0;
 
             try {
-                stmt = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,
-                                        ResultSet.CONCUR_UPDATABLE);
+                stmt = createQueryStatement();
 
                 if (Debug.messageEnabled()) {
                     Debug.message("DBlogRecRead:about to execute: " + selStr);
                 }
                 ResultSet rs = stmt.executeQuery(selStr);
 
-                //
-                //  fetchsize appears to be 10 from rs.getFetchSize();
-                //
-
                 ResultSetMetaData rsmd = rs.getMetaData();
                 int numberOfColumns = rsmd.getColumnCount();
 
@@ -595,110 +477,35 @@ public class LogReadDBHandler implements ReadDBHandler  {
                 }
                 listOfValidRecords.add(spltHdrStr);
 
-                // have to figure out #rows
-                while (rs.next()) {
-                    numberOfRows++;
-                }
-
-                if (Debug.messageEnabled()) {
-                    Debug.message("DBlogRecRead:#rows = " + numberOfRows);
-                }
-
                 //
-                //  possible to have no records
+                //  read the rows as they are fetched, stopping as soon
+                //  as there are more than this.maxRecords of them.
                 //
+                tableResults = readRows(rs, numberOfColumns, this.maxRecords);
 
-                if (numberOfRows == 0) {
-                    stmt.close();
-                    try {
-                        conn.close();
-                    } catch (SQLException ex) {
-                        //
-                        //  might not care about this too much...?
-                        //
-                        Debug.error("DBlogRecRead:rows=0:conn.close (" +
-                            ex.getErrorCode() + "): " + ex.getMessage());
-                    }
-
-                    //
-                    //  should be at least the column names
-                    //
-
-                    int recSize = listOfValidRecords.size();
-
-                    //
-                    //  weird if it's 0...
-                    //
-
-                    if (recSize <= 0) {
-                        return null;
-                    }
-                    queryResult = new String[recSize][];
-                    for (int i=0; i<recSize; i++) {
-                        queryResult[i] = (String [])listOfValidRecords.get(i);
-                    }
-                    return queryResult;
+                if (Debug.messageEnabled()) {
+                    Debug.message("DBlogRecRead:#rows = " + tableResults.size());
                 }
 
-                if (numberOfRows > this.maxRecords) {
-                     stmt.close();
-                    try {
-                        conn.close();
-                    } catch (SQLException ex) {
-                        //
-                        //  don't care about this too much...
-                        //
-                        Debug.error ("DBlogRecRead:conn.close (" +
-                            ex.getErrorCode() + "): " + ex.getMessage());
-                    }
+                if (tableResults.size() > this.maxRecords) {
+                    stmt.close();
+                    releaseConnection();
                     throw new AMLogException(
                         AMLogException.LOG_DB_TOOMANYRECORDS);
                 }
 
-                //
-                //  reset to the beginning
-                //
-                boolean isFirst = rs.first();
-                if (isFirst == false) {
-                    Debug.error("DBlogRecRead:first() is false!");
-                }
-
-                //
-                //  think we're not going to allow MOST_RECENT_MAX_RECORDS
-                //  with multi-table query...
-                //
-
-                int rowsToAlloc = numberOfRows;
-                tableResults = new String[rowsToAlloc][numberOfColumns];
-
-                String result = null;
-                int rowCount = 0;
-                //
-                //  always do the first one... the column names
-                //
-
-                for (int i = 0; i < numberOfColumns; i++) {
-                    result = rs.getString(i+1);
-                    tableResults[0][i] = result;
-                }
-                rowCount = 1;
-                while (rs.next()) {
-                    for (int i = 0; i < numberOfColumns; i++) {
-                        result = rs.getString(i+1);
-                        tableResults[rowCount][i] = result;
-                    }
-                    rowCount++;
-                }
-
-                 stmt.close();
+                stmt.close();
 
             } catch (SQLException se) {
                 Debug.error("DBlogRecRead:query:SQE:code=" +
                     se.getErrorCode() + ", msg=" +
                     se.getMessage());
+                discardConnection();
                 throw se; // rethrow for LogReader to catch
             }
 
+            releaseConnection();
+
             try {
                 this.getRecords(tableResults, sourceData);
             } catch (IOException e) {
@@ -723,16 +530,6 @@ public class LogReadDBHandler implements ReadDBHandler  {
             //  sorting already done by DB
             //
 
-            try {
-                conn.close();
-            } catch (SQLException ex) {
-                //
-                //  might not care about this too much...?
-                //
-                Debug.error ("DBlogRecRead:conn.close (" + ex.getErrorCode() +
-                    "): " + ex.getMessage());
-            }
-
             queryResult = new String[recSize][];
             for (int i=0; i<recSize; i++) {
                 queryResult[i] = (String [])listOfValidRecords.get(i);
@@ -791,7 +588,7 @@ public class LogReadDBHandler implements ReadDBHandler  {
                     }
                 }
 
-                String [][] tableResults = null;
+                List<String[]> tableResults = null;
 
                 try {
                     connectToDatabase (dbUserName, dbPassWord);
@@ -813,9 +610,7 @@ public class LogReadDBHandler implements ReadDBHandler  {
                 //  send the select statement
                 //
                 try {
-                    stmt = conn.createStatement(
-                                ResultSet.TYPE_SCROLL_INSENSITIVE,
-                                ResultSet.CONCUR_UPDATABLE);
+                    stmt = createQueryStatement();
 
                     if (Debug.messageEnabled()) {
                         Debug.message("DBlogRecRead:about to execute: " +
@@ -823,10 +618,6 @@ public class LogReadDBHandler implements ReadDBHandler  {
                     }
                     ResultSet rs = stmt.executeQuery(selStr);
 
-                    //
-                    //  fetchsize appears to be 10 from rs.getFetchSize();
-                    //
-
                     ResultSetMetaData rsmd = rs.getMetaData();
                     int numberOfColumns = rsmd.getColumnCount();
 
@@ -857,71 +648,36 @@ public class LogReadDBHandler implements ReadDBHandler  {
                         listOfValidRecords.add(spltHdrStr);
                     }
 
-                    // have to figure out #rows
-                    numberOfRows = 0;
-                    while (rs.next()) {
-                        numberOfRows++;
-                    }
+                    //
+                    //  read the rows as they are fetched, stopping as
+                    //  soon as the tables read so far have more than
+                    //  this.maxRecords rows between them.
+                    //
+                    tableResults = readRows(rs, numberOfColumns,
+                        this.maxRecords - totalNumberOfRows);
+                    numberOfRows = tableResults.size();
 
                     totalNumberOfRows += numberOfRows;
 
                     if (totalNumberOfRows > this.maxRecords) {
                          stmt.close();
-                        try {
-                            conn.close();
-                        } catch (SQLException ex) {
-                            //
-                            //  don't care about this too much...
-                            //
-                            Debug.error ("DBlogRecRead:conn.close (" +
-                                ex.getErrorCode() + "): " + ex.getMessage());
-                        }
+                        releaseConnection();
                         throw new AMLogException(
                             AMLogException.LOG_DB_TOOMANYRECORDS);
                     }
 
-                    if (numberOfRows > 0) {
-                        //
-                        //  reset to the "beginning"
-                        //
-
-                        boolean isFirst = rs.first();
-                        if (isFirst == false) {
-                            Debug.error("DBlogRecRead:first() is false!");
-                        }
-
-                        //
-                        //  think we're not going to allow 
-                        //  MOST_RECENT_MAX_RECORDS with multi-table query...
-                        //
-
-                        tableResults =
-                            new String[numberOfRows][numberOfColumns];
-
-                        String result = null;
-                        int rowCount = 0;
-
-                        do {
-                            for (int i = 0; i < numberOfColumns; i++) {
-                                result = rs.getString(i+1);
-                                tableResults[rowCount][i] = result;
-                            }
-                            rowCount++;
-                        } while (rs.next());
-                    }
-
-                    //
-                    //  print the actual results in the debug log
-                    //
                      stmt.close();
 
                 } catch (SQLException se) {
                     Debug.error("DBlogRecRead:query:SQE:code=" +
                         se.getErrorCode() + ", msg=" +
                         se.getMessage());
+                    discardConnection();
                     throw se; // rethrow for LogReader to catch
                 }
 
+                releaseConnection();
+
                 if (numberOfRows > 0) {
                     try {
                         this.getRecords(tableResults, sourceData);
@@ -942,16 +698,6 @@ public class LogReadDBHandler implements ReadDBHandler  {
 
             } // the for loop for the set of tables
 
-            try {
-                conn.close();
-            } catch (SQLException ex) {
-                //
-                //  might not care about this too much...?
-                //
-                Debug.error ("DBlogRecRead:conn.close (" +
-                    ex.getErrorCode() + "): " + ex.getMessage());
-            }
-
             //
             //  probably have to sort again
             //
@@ -1062,8 +808,7 @@ public class LogReadDBHandler implements ReadDBHandler  {
         ResultSetMetaData rsmd = null;
         String [][] tableResults = null;
         try {
-            stmt = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,
-                                        ResultSet.CONCUR_UPDATABLE);
+            stmt = createQueryStatement();
 
             if (Debug.messageEnabled()) {
                 Debug.message("DBgetTableNames:about to execute: " +
@@ -1085,60 +830,28 @@ public class LogReadDBHandler implements ReadDBHandler  {
                 spltHdrStr[i-1] = tempstr;
             }
 
-            // have to figure out #rows
-
-            int numberOfRows = 0;
-            while (rs.next()) {
-                numberOfRows++;
-            }
-
-            if (Debug.messageEnabled()) {
-                Debug.message("DBgetTableNames:#rows = " + numberOfRows);
-            }
-
             //
-            //  reset to the beginning
+            //  read the rows as they are fetched
             //
-            boolean isFirst = rs.first();
-            if (isFirst == false) {
-                Debug.error("DBgetTableNames:first() is false!");
-            }
-
-            String result = null;
-            tableResults = new String[numberOfRows][numberOfColumns];
+            List<String[]> rows = readRows(rs, numberOfColumns,
+                Integer.MAX_VALUE);
 
-            for (int i = 0; i < numberOfColumns; i++) {
-                result = rs.getString(i+1);
-                tableResults[0][i] = result;
+            if (Debug.messageEnabled()) {
+                Debug.message("DBgetTableNames:#rows = " + rows.size());
             }
-            int rowCount = 1;
 
-
-            while (rs.next()) {
-                for (int i = 0; i < numberOfColumns; i++) {
-                    result = rs.getString(i+1);
-                    tableResults[rowCount][i] = result;
-                    rowCount++;
-                }
-            }
+            tableResults = rows.toArray(new String[rows.size()][]);
 
             stmt.close();
         } catch (SQLException se) {
             Debug.error("DBgetTableNames:query:SQE:code=" +
                 se.getErrorCode() + ", msg=" +
                 se.getMessage());
+            discardConnection();
             return null;
         }
 
-        try {
-            conn.close();
-        } catch (SQLException ex) {
-            //
-            //  might not care about this too much...?
-            //
-            Debug.error ("DBgetTableNames:conn.close (" + ex.getErrorCode() +
-                "): " + ex.getMessage());
-        }
+        releaseConnection();
 
         return tableResults;
 
@@ -1186,8 +899,7 @@ public class LogReadDBHandler implements ReadDBHandler  {
         ResultSetMetaData rsmd = null;
         String result = null;
         try {
-            stmt = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,
-                                        ResultSet.CONCUR_UPDATABLE);
+            stmt = createQueryStatement();
 
             if (Debug.messageEnabled()) {
                 Debug.message("DBgetgetNumberOfRows:about to execute: " +
@@ -1215,18 +927,11 @@ public class LogReadDBHandler implements ReadDBHandler  {
             Debug.error("DBgetNumberOfRows:query:SQE:code=" +
                 se.getErrorCode() + ", msg=" +
                 se.getMessage());
+            discardConnection();
             return 0;
         }
 
-        try {
-            conn.close();
-        } catch (SQLException ex) {
-            //
-            //  might not care about this too much...?
-            //
-            Debug.error ("DBgetNumberOfRows:conn.close (" +
-                ex.getErrorCode() + "): " + ex.getMessage());
-        }
+        releaseConnection();
 
         try {
             Long longval = new Long(result);
@@ -1289,25 +994,51 @@ public class LogReadDBHandler implements ReadDBHandler  {
     //  them into tableResults, a 2D String array, which is passed
     //  in.
 
-    private boolean getRecords(String [][] tblResults, boolean isSourceData)
+    private boolean getRecords(List<String[]> tblResults, boolean isSourceData)
         throws IOException, RuntimeException
     {
-        //
-        //  could pass in the number of rows, or make it global,
-        //  but for now, just figure it out.
-        //
-
-        int numRows = Array.getLength(tblResults);
-
         //
         //  process the rows of columns
         //  query to DB already executed the "query"
         //
-        for (int i=0; i < numRows; i++) {
-            listOfValidRecords.add(tblResults[i]);
-        }
+        listOfValidRecords.addAll(tblResults);
         return true;
     }
+
+    //
+    //  statement for the queries.  the rows are read once, in order,
+    //  so a forward only, read only cursor will do, and the driver is
+    //  asked to fetch them fetchSize rows at a time.  MySQL's driver
+    //  reads all the rows into memory unless asked to stream them
+    //  one by one with a fetch size of Integer.MIN_VALUE.
+    //
+
+    private Statement createQueryStatement() throws SQLException {
+        Statement stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+            ResultSet.CONCUR_READ_ONLY);
+        stmt.setFetchSize(isMySQL ? Integer.MIN_VALUE : fetchSize);
+        return stmt;
+    }
+
+    //
+    //  reads the remaining rows of the result set, but no more than
+    //  maxRows + 1 of them, so the caller can tell whether there were
+    //  more than maxRows without the rest being fetched.
+    //
+
+    private List<String[]> readRows(ResultSet rs, int numberOfColumns,
+        int maxRows) throws SQLException
+    {
+        List<String[]> rows = new ArrayList<String[]>();
+        while ((rows.size() <= maxRows) && rs.next()) {
+            String [] row = new String[numberOfColumns];
+            for (int i = 0; i < numberOfColumns; i++) {
+                row[i] = rs.getString(i+1);
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
     
     // below method reset previous readings and prepare for new one.
     private    void cleaner() {
@@ -1327,9 +1058,7 @@ public class LogReadDBHandler implements ReadDBHandler  {
         throws SQLException, ClassNotFoundException
     {
         try {
-            Class.forName(dbDriver);
-            this.conn = 
-                DriverManager.getConnection(databaseURL, userName, password);
+            this.conn = getConnectionPool().getConnection();
         }
         catch (ClassNotFoundException e) {
             Debug.error("DBlogRecRead:connect:ClassNotFoundException: " +
@@ -1350,6 +1079,26 @@ public class LogReadDBHandler implements ReadDBHandler  {
         }
     }
 
+    private DBConnectionPool getConnectionPool() {
+        return DBConnectionPool.getInstance(dbDriver, databaseURL, dbUserName,
+            dbPassWord);
+    }
+
+    //
+    //  hands the connection back to the pool once the rows have been
+    //  read, or closes it if the query failed.
+    //
+
+    private void releaseConnection() {
+        getConnectionPool().release(conn);
+        conn = null;
+    }
+
+    private void discardConnection() {
+        getConnectionPool().discard(conn);
+        conn = null;
+    }
+
     //
     //  LogQuery-to-SQL-Select converter
     //
@@ -27,7 +27,7 @@
  */
 
 /*
- * Portions Copyrighted 2011 ForgeRock AS
+ * Portions Copyrighted 2011-2015 ForgeRock AS
  */
 package com.sun.identity.log.handlers;
 
@@ -46,9 +46,11 @@ import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
@@ -88,16 +90,29 @@ import com.sun.identity.security.keystore.AMPassword;
  * The Locking mechanism is much more relaxed(in JDK's
  * FileHandler an exclusive lock is created on the file till the handler is
  * closed which makes reading impossible)
+ * <p>
+ * Records are formatted and signed by the logging thread, which holds the
+ * logger's lock, so the MAC chain follows the order in which records were
+ * logged. The signed records are then handed over to the
+ * {@link GroupCommitWriter}, which writes and flushes the records of a group
+ * together. The writer does not take the logger's lock, so a logging thread
+ * may wait for it. The periodic signer, the verifier and archiving wait for
+ * the queued records to be written before they read or close the file.
  * @author rk133022
  * @version 6.0
  */
-public class SecureFileHandler extends java.util.logging.Handler {
+public class SecureFileHandler extends java.util.logging.Handler
+    implements GroupCommitWriter.Target {
     
+    private static final long FLUSH_TIMEOUT = 10000;
     private LogManager lmanager = LogManagerUtil.getLogManager();
     private static String PREFIX = "_secure.";
     private OutputStream output;
     private Writer writer;
     private MeteredStream meteredStream;
+    private FileOutputStream fileOut;
+    // Characters of the records handed over which have not been written yet.
+    private final AtomicLong queuedChars = new AtomicLong();
     private static Hashtable archiverTable = new Hashtable();
     private static Map currentFileList = new HashMap();
     private static Hashtable helperTable = new Hashtable();
@@ -236,10 +251,13 @@ public class SecureFileHandler extends java.util.logging.Handler {
         }
         // Replace the current writer with a writer for the new encoding.
         flush();
-        if (encoding == null) {
-            writer = new OutputStreamWriter(output);
-        } else {
-            writer = new OutputStreamWriter(output, encoding);
+        synchronized (this) {
+            flushWriter();
+            if (encoding == null) {
+                writer = new OutputStreamWriter(output);
+            } else {
+                writer = new OutputStreamWriter(output, encoding);
+            }
         }
     }
     
@@ -314,6 +332,7 @@ public class SecureFileHandler extends java.util.logging.Handler {
         int len = 0;
         len = (int)fileName.length();
         FileOutputStream fout = new FileOutputStream(fileName.toString(), true);
+        fileOut = fout;
         
         BufferedOutputStream bout = new BufferedOutputStream(fout);
         meteredStream = new MeteredStream(bout, len);
@@ -367,9 +386,17 @@ public class SecureFileHandler extends java.util.logging.Handler {
     }
     
     /**
-     * Flush any buffered messages.
+     * Flush any buffered messages, waiting for the records handed over to the
+     * <code>GroupCommitWriter</code> to be written.
      */
     public void flush() {
+        if (!GroupCommitWriter.getInstance().flush(this, FLUSH_TIMEOUT)) {
+            Debug.warning(logName + ":SecureFileHandler: timed out " +
+                "waiting for records to be written");
+        }
+    }
+
+    private void flushWriter() {
         if (writer != null) {
             try {
                 writer.flush();
@@ -388,13 +415,15 @@ public class SecureFileHandler extends java.util.logging.Handler {
             Debug.message(logName+":SecureFileHandler: close() called");
         }
         flush();
-        try {
-            if (writer != null) {
-                writer.close();
+        synchronized (this) {
+            try {
+                if (writer != null) {
+                    writer.close();
+                }
+            } catch (IOException ioe) {
+                Debug.error(logName +
+                    ":SecureFileHandler: Could not close writer", ioe);
             }
-        } catch (IOException ioe) {
-            Debug.error(logName +
-                ":SecureFileHandler: Could not close writer", ioe);
         }
         if(signTask != null) {
             stopPeriodicLogSigner();
@@ -415,12 +444,13 @@ public class SecureFileHandler extends java.util.logging.Handler {
      * <p>
      * This FileHandler is associated with a Formatter, which has to format the
      * LogRecord according to ELF and return back the string formatted as per 
-     * ELF. This method first checks if the header is already written to the 
-     * file, if not, gets the header from the Formatter and writes it at the 
-     * beginning of the file.
+     * ELF. The formatted record, which carries its MAC, is handed over to the
+     * <code>GroupCommitWriter</code>, which writes the header first if the
+     * file does not have one yet. The caller holds the logger's lock, so
+     * records are signed and handed over in the order they were logged.
      * @param lrecord the log record to be published.
      */
-    public synchronized void publish(LogRecord lrecord) {
+    public void publish(LogRecord lrecord) {
         if (MonitoringUtil.isRunning() && sfLogHandlerForMonitoring != null) {
             sfLogHandlerForMonitoring.incHandlerRequestCount(1);
         }
@@ -431,25 +461,9 @@ public class SecureFileHandler extends java.util.logging.Handler {
         if (!isLoggable(lrecord)) {
             return;
         }
-        String message = "";
-        message = getFormatter().format(lrecord);
-        try {
-            if (!headerWritten) {
-                writer.write(getFormatter().getHead(this));
-                headerWritten = true;
-            }
-            writer.write(message);
-            if (MonitoringUtil.isRunning() && sfLogHandlerForMonitoring != null) {
-                sfLogHandlerForMonitoring.incHandlerSuccessCount(1);
-            }
-        } catch (IOException ex) {
-            Debug.error(logName +
-                ":SecureFileHandler: could not write to file", ex);
-            if (MonitoringUtil.isRunning() && sfLogHandlerForMonitoring != null) {
-                sfLogHandlerForMonitoring.incHandlerDroppedCount(1);
-            }
-        }
-        flush();
+        String message = getFormatter().format(lrecord);
+        queuedChars.addAndGet(message.length());
+        GroupCommitWriter.getInstance().write(this, message);
         // This flag is set only when the Verification is on and at that time
         // the last line for the logger is not set for the duration of the 
         // verification.
@@ -460,16 +474,77 @@ public class SecureFileHandler extends java.util.logging.Handler {
         if(lv.getVerificationFlag() == false) {
             helper.setLastLineforLogger(true);
         }
+        // Count the records not yet written towards the size of the file.
+        long size = getWrittenSize() + queuedChars.get();
         if (Debug.messageEnabled()) {
                 Debug.message(logName+":Check for file size = "
                 + maxFileSize+" with size written = " 
-                + meteredStream.written);
+                + size);
         }
-        if ((message.length() > 0 ) && (meteredStream.written >= maxFileSize)) {
+        if ((message.length() > 0 ) && (size >= maxFileSize)) {
             if (Debug.messageEnabled()) {
                 Debug.message("SecureFileHandler: FileFull Event reached");
             }
-            archive();
+            // The signature closing the file must follow every record in it.
+            flush();
+            synchronized (this) {
+                archive();
+            }
+        }
+    }
+
+    private synchronized long getWrittenSize() {
+        return meteredStream.written;
+    }
+
+    /**
+     * Writes the signed records handed over by the
+     * <code>GroupCommitWriter</code>, and flushes them once they have all
+     * been written.
+     *
+     * @param records the formatted log records.
+     * @param force not used, as no records are held back.
+     * @return whether anything was written to the file.
+     */
+    public synchronized boolean write(List<Object> records, boolean force) {
+        if (records.isEmpty()) {
+            return false;
+        }
+        for (Object record : records) {
+            String message = (String) record;
+            try {
+                if (!headerWritten) {
+                    writer.write(getFormatter().getHead(this));
+                    headerWritten = true;
+                }
+                writer.write(message);
+                if (MonitoringUtil.isRunning() && sfLogHandlerForMonitoring != null) {
+                    sfLogHandlerForMonitoring.incHandlerSuccessCount(1);
+                }
+            } catch (IOException ex) {
+                Debug.error(logName +
+                    ":SecureFileHandler: could not write to file", ex);
+                if (MonitoringUtil.isRunning() && sfLogHandlerForMonitoring != null) {
+                    sfLogHandlerForMonitoring.incHandlerDroppedCount(1);
+                }
+            }
+            queuedChars.addAndGet(-message.length());
+        }
+        flushWriter();
+        return true;
+    }
+
+    /**
+     * Syncs the records written so far to disk.
+     */
+    public synchronized void sync() {
+        if (fileOut != null) {
+            try {
+                fileOut.getChannel().force(false);
+            } catch (IOException ex) {
+                Debug.error(logName +
+                    ":SecureFileHandler: could not sync file", ex);
+            }
         }
     }
     
@@ -545,7 +620,7 @@ public class SecureFileHandler extends java.util.logging.Handler {
             Debug.error(logName +
                 ":SecureLogHelper: could not write signature to file", ioe);
         }
-        flush();
+        flushWriter();
         try {
             if (writer != null) {
                 writer.close();
@@ -584,7 +659,7 @@ public class SecureFileHandler extends java.util.logging.Handler {
             Debug.error(logName +
                 ":SecureFileHandler: could not write to file", ex);
         }
-        flush();
+        flushWriter();
     }
     
     private void checkForHeaderWritten(String fileName) {
@@ -1014,6 +1089,9 @@ public class SecureFileHandler extends java.util.logging.Handler {
             try {
                 Logger.rwLock.readRequest();
                 synchronized(logger) {
+                    // Write the records published so far, so that the last
+                    // record read is the last one published.
+                    flush();
                     try {
                         String[][] result = LogReader.read(PREFIX + logName, 
                                         new LogQuery(1), 
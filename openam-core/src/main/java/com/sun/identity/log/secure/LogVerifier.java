@@ -27,7 +27,7 @@
  */
 
 /*
- * Portions Copyrighted [2011] [ForgeRock AS]
+ * Portions Copyrighted [2011-2015] [ForgeRock AS]
  */
 package com.sun.identity.log.secure;
 
@@ -35,6 +35,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Vector;
+import java.util.logging.Handler;
 import java.util.logging.LogManager;
 
 import com.sun.identity.common.GeneralTaskRunnable;
@@ -232,6 +233,12 @@ public class LogVerifier{
         synchronized(logger) {
             verificationOn = true;
             long start = System.currentTimeMillis();
+            // Write the records handed over to the log writer, so that the
+            // current file is verified up to the last record published.
+            Handler[] handlers = logger.getHandlers();
+            for (int i = 0; i < handlers.length; i++) {
+                handlers[i].flush();
+            }
             helper = SecureFileHandler.getSecureLogHelper(name);
             fileList = SecureFileHandler.getCurrentFileList(name);
             if (fileList == null) {
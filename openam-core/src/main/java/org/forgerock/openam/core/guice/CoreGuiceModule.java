@@ -33,6 +33,7 @@ import com.sun.identity.entitlement.EntitlementConfiguration;
 import com.sun.identity.entitlement.opensso.SubjectUtils;
 import com.sun.identity.security.AdminTokenAction;
 import com.sun.identity.shared.debug.Debug;
+import com.sun.identity.shared.stats.Stats;
 import com.sun.identity.sm.DNMapper;
 import com.sun.identity.sm.SMSEntry;
 import com.sun.identity.sm.ServiceManagementDAO;
@@ -116,6 +117,7 @@ public class CoreGuiceModule extends AbstractModule {
         // CTS General
         bind(Debug.class).annotatedWith(Names.named(CoreTokenConstants.CTS_DEBUG)).toInstance(Debug.getInstance(CoreTokenConstants.CTS_DEBUG));
         bind(Debug.class).annotatedWith(Names.named(CoreTokenConstants.CTS_REAPER_DEBUG)).toInstance(Debug.getInstance(CoreTokenConstants.CTS_REAPER_DEBUG));
+        bind(Stats.class).annotatedWith(Names.named(CoreTokenConstants.CTS_STATS)).toInstance(Stats.getInstance(CoreTokenConstants.CTS_STATS));
         bind(CoreTokenConstants.class).in(Singleton.class);
         bind(CTSPersistentStore.class).in(Singleton.class);
         bind(CoreTokenConfig.class).in(Singleton.class);
@@ -132,15 +134,16 @@ public class CoreGuiceModule extends AbstractModule {
                 return ConfigurationObserver.getInstance();
             }
         }).in(Singleton.class);
-        // CTS Worker Thread Pools
+        // CTS Worker Thread Pools, shared by all CTS components and shut down by the ExecutorServiceFactory.
+        // One scheduled thread each for the reaper, the write-behind flush and the change monitor.
         bind(ScheduledExecutorService.class)
                 .annotatedWith(Names.named(CoreTokenConstants.CTS_SCHEDULED_SERVICE))
                 .toProvider(new Provider<ScheduledExecutorService>() {
                     public ScheduledExecutorService get() {
                         ExecutorServiceFactory factory = InjectorHolder.getInstance(ExecutorServiceFactory.class);
-                        return factory.createScheduledService(1);
+                        return factory.createScheduledService(3);
                     }
-                });
+                }).in(Singleton.class);
         bind(ExecutorService.class)
                 .annotatedWith(Names.named(CoreTokenConstants.CTS_WORKER_POOL))
                 .toProvider(new Provider<ExecutorService>() {
@@ -148,7 +151,7 @@ public class CoreGuiceModule extends AbstractModule {
                         ExecutorServiceFactory factory = InjectorHolder.getInstance(ExecutorServiceFactory.class);
                         return factory.createThreadPool(5);
                     }
-                });
+                }).in(Singleton.class);
 
         /**
          * Session related dependencies.
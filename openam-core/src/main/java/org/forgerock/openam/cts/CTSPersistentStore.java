@@ -23,12 +23,16 @@ package org.forgerock.openam.cts;
 import com.google.inject.name.Named;
 import com.sun.identity.shared.debug.Debug;
 import org.forgerock.openam.cts.api.CoreTokenConstants;
+import org.forgerock.openam.cts.api.TokenResultHandler;
 import org.forgerock.openam.cts.api.fields.CoreTokenField;
 import org.forgerock.openam.cts.api.fields.CoreTokenFieldTypes;
 import org.forgerock.openam.cts.api.fields.SessionTokenField;
 import org.forgerock.openam.cts.api.tokens.Token;
+import org.forgerock.openam.cts.cache.CTSChangeMonitor;
+import org.forgerock.openam.cts.cache.CTSReadCache;
 import org.forgerock.openam.cts.exceptions.CoreTokenException;
 import org.forgerock.openam.cts.exceptions.DeleteFailedException;
+import org.forgerock.openam.cts.impl.AsyncCoreTokenAdapter;
 import org.forgerock.openam.cts.impl.CoreTokenAdapter;
 import org.forgerock.openam.cts.impl.query.QueryBuilder;
 import org.forgerock.openam.cts.impl.query.QueryFilter;
@@ -62,6 +66,20 @@ import java.util.concurrent.locks.Lock;
  *
  * Persistence is currently provided by LDAP.
  *
+ * The create, read, update and delete operations are also offered in an asynchronous form
+ * which returns as soon as the request has been issued and notifies a {@link TokenResultHandler}
+ * with the outcome. These are pipelined over a small number of long lived connections and are
+ * intended for callers, such as Session fail-over, which should not hold the request thread
+ * while the directory responds.
+ *
+ * When enabled, asynchronous updates are passed through the {@link CTSWriteBehindQueue} which
+ * coalesces repeated updates of the same Token. Reads will see a queued update and deletes will
+ * discard it.
+ *
+ * When enabled, Tokens that have been read are held in the {@link CTSReadCache}. The cache is kept
+ * coherent with changes made by other servers through the {@link CTSChangeMonitor}, and is only
+ * used while the monitor is running.
+ *
  * @see org.forgerock.openam.cts.adapters.TokenAdapter
  * @see Token
  */
@@ -73,6 +91,9 @@ public class CTSPersistentStore {
     private final LDAPDataConversion dataConversion;
     private final TokenBlobStrategy strategy;
     private final CoreTokenAdapter adapter;
+    private final AsyncCoreTokenAdapter asyncAdapter;
+    private final CTSWriteBehindQueue writeBehind;
+    private final CTSReadCache readCache;
     private final LockFactory<String> lockFactory;
 
     /**
@@ -80,18 +101,28 @@ public class CTSPersistentStore {
      */
     @Inject
     public CTSPersistentStore(LDAPDataConversion dataConversion, TokenBlobStrategy strategy,
-                              CoreTokenAdapter adapter, CTSReaperWatchDog watchDog,
+                              CoreTokenAdapter adapter, AsyncCoreTokenAdapter asyncAdapter,
+                              CTSWriteBehindQueue writeBehind, CTSReadCache readCache,
+                              CTSChangeMonitor changeMonitor, CTSReaperWatchDog watchDog,
                               @Named(CoreTokenConstants.CTS_LOCK_FACTORY) LockFactory<String> lockFactory,
                               @Named(CoreTokenConstants.CTS_DEBUG) Debug debug) {
 
         this.dataConversion = dataConversion;
         this.strategy = strategy;
         this.adapter = adapter;
+        this.asyncAdapter = asyncAdapter;
+        this.writeBehind = writeBehind;
+        this.readCache = readCache;
         this.lockFactory = lockFactory;
         this.debug = debug;
 
         // Start the CTS Reaper watch dog which will monitor the CTS Reaper
         watchDog.startReaper();
+
+        // The read cache is only used while changes to Tokens are being monitored
+        if (readCache.isEnabled()) {
+            changeMonitor.start();
+        }
     }
 
     /**
@@ -110,6 +141,7 @@ public class CTSPersistentStore {
         } catch (TokenStrategyFailedException e) {
             throw new CoreTokenException("Failed to perform Token Blob strategy.", e);
         }
+        readCache.invalidate(token.getTokenId());
         adapter.create(token);
     }
 
@@ -121,14 +153,22 @@ public class CTSPersistentStore {
      * @throws CoreTokenException If there was a non-recoverable error during the operation.
      */
     public Token read(String tokenId) throws CoreTokenException {
-        Token token = adapter.read(tokenId);
+        Token token = writeBehind.getPending(tokenId);
+        if (token != null) {
+            reverse(token);
+            return token;
+        }
 
+        token = readCache.get(tokenId);
         if (token != null) {
-            try {
-                strategy.reverse(token);
-            } catch (TokenStrategyFailedException e) {
-                throw new CoreTokenException("Failed to reverse Token Blob strategy.", e);
-            } 
+            return token;
+        }
+
+        long generation = readCache.getGeneration(tokenId);
+        token = adapter.read(tokenId);
+        if (token != null) {
+            reverse(token);
+            readCache.put(token, generation);
         }
 
         return token;
@@ -155,6 +195,8 @@ public class CTSPersistentStore {
         Lock lock = lockFactory.acquireLock(token.getTokenId());
         try {
             lock.lock();
+            writeBehind.cancel(token.getTokenId());
+            readCache.invalidate(token.getTokenId());
             adapter.updateOrCreate(token);
 
             if (debug.messageEnabled()) {
@@ -186,6 +228,8 @@ public class CTSPersistentStore {
      * @throws DeleteFailedException If there was an error while trying to remove the token with the given Id.
      */
     public void delete(String tokenId) throws DeleteFailedException {
+        writeBehind.cancel(tokenId);
+        readCache.invalidate(tokenId);
         adapter.delete(tokenId);
         if (debug.messageEnabled()) {
             debug.message(MessageFormat.format(
@@ -195,6 +239,115 @@ public class CTSPersistentStore {
         }
     }
 
+    /**
+     * Create a Token in the persistent store without waiting for the directory to respond.
+     *
+     * @see CTSPersistentStore#create(org.forgerock.openam.cts.api.tokens.Token)
+     *
+     * @param token Non null Token to create.
+     * @param handler Non null handler which will be notified of the outcome. Must not block.
+     */
+    public void createAsync(Token token, TokenResultHandler<Token> handler) {
+        try {
+            strategy.perfom(token);
+        } catch (TokenStrategyFailedException e) {
+            handler.processError(new CoreTokenException("Failed to perform Token Blob strategy.", e));
+            return;
+        }
+        readCache.invalidate(token.getTokenId());
+        asyncAdapter.create(token, handler);
+    }
+
+    /**
+     * Read a Token from the persistent store without waiting for the directory to respond.
+     *
+     * @see CTSPersistentStore#read(String)
+     *
+     * @param tokenId The non null Token Id that the Token was created with.
+     * @param handler Non null handler which will be notified with the Token, null if there was no
+     *                matching Token, or the reason for failure. Must not block.
+     */
+    public void readAsync(String tokenId, final TokenResultHandler<Token> handler) {
+        Token pending = writeBehind.getPending(tokenId);
+        if (pending != null) {
+            try {
+                reverse(pending);
+            } catch (CoreTokenException e) {
+                handler.processError(e);
+                return;
+            }
+            handler.processResults(pending);
+            return;
+        }
+
+        Token cached = readCache.get(tokenId);
+        if (cached != null) {
+            handler.processResults(cached);
+            return;
+        }
+
+        final long generation = readCache.getGeneration(tokenId);
+        asyncAdapter.read(tokenId, new TokenResultHandler<Token>() {
+            public void processResults(Token token) {
+                if (token != null) {
+                    try {
+                        reverse(token);
+                    } catch (CoreTokenException e) {
+                        handler.processError(e);
+                        return;
+                    }
+                    readCache.put(token, generation);
+                }
+                handler.processResults(token);
+            }
+
+            public void processError(CoreTokenException error) {
+                handler.processError(error);
+            }
+        });
+    }
+
+    /**
+     * Update, or create, a Token in the persistent store without waiting for the directory to respond.
+     *
+     * Asynchronous operations against the same Token are applied in the order they were submitted.
+     * If the write-behind queue is enabled, the update may be coalesced with later updates to the
+     * same Token and the handler is notified once the coalesced update has been written.
+     *
+     * @see CTSPersistentStore#update(org.forgerock.openam.cts.api.tokens.Token)
+     *
+     * @param token Non null Token to update.
+     * @param handler Non null handler which will be notified of the outcome. Must not block.
+     */
+    public void updateAsync(Token token, TokenResultHandler<Token> handler) {
+        try {
+            strategy.perfom(token);
+        } catch (TokenStrategyFailedException e) {
+            handler.processError(new CoreTokenException("Failed to perform Token Blob strategy.", e));
+            return;
+        }
+        readCache.invalidate(token.getTokenId());
+        if (writeBehind.isEnabled()) {
+            writeBehind.update(token, handler);
+        } else {
+            asyncAdapter.updateOrCreate(token, handler);
+        }
+    }
+
+    /**
+     * Delete a Token from the persistent store based on its id without waiting for the directory to respond.
+     *
+     * @see CTSPersistentStore#delete(String)
+     *
+     * @param tokenId The non null Token Id of the token to remove.
+     * @param handler Non null handler which will be notified of the outcome. Must not block.
+     */
+    public void deleteAsync(String tokenId, TokenResultHandler<String> handler) {
+        writeBehind.cancel(tokenId);
+        readCache.invalidate(tokenId);
+        asyncAdapter.delete(tokenId, handler);
+    }
+
     /**
      * Delete a collection of Tokens from the Token Store using a filter to narrow down the
      * Tokens to be deleted.
@@ -227,6 +380,7 @@ public class CTSPersistentStore {
             for (Entry entry : entries) {
                 Attribute attribute = entry.getAttribute(CoreTokenField.TOKEN_ID.toString());
                 String tokenId = attribute.firstValueAsString();
+                readCache.invalidate(tokenId);
                 adapter.delete(tokenId);
             }
             if (debug.messageEnabled()) {
@@ -294,6 +448,20 @@ public class CTSPersistentStore {
         return tokens;
     }
 
+    /**
+     * Reverses the Token Blob strategy on a Token read from the store.
+     *
+     * @param token Non null Token.
+     * @throws CoreTokenException If the strategy could not be reversed.
+     */
+    private void reverse(Token token) throws CoreTokenException {
+        try {
+            strategy.reverse(token);
+        } catch (TokenStrategyFailedException e) {
+            throw new CoreTokenException("Failed to reverse Token Blob strategy.", e);
+        }
+    }
+
     /**
      * Handles the decrypting of tokens when needed.
      *
@@ -0,0 +1,435 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.cts;
+
+import com.google.inject.name.Named;
+import com.sun.identity.common.ShutdownListener;
+import com.sun.identity.shared.debug.Debug;
+import com.sun.identity.shared.stats.Stats;
+import com.sun.identity.shared.stats.StatsListener;
+import org.forgerock.openam.core.guice.CoreGuiceModule;
+import org.forgerock.openam.cts.api.CoreTokenConstants;
+import org.forgerock.openam.cts.api.TokenResultHandler;
+import org.forgerock.openam.cts.api.tokens.Token;
+import org.forgerock.openam.cts.exceptions.CoreTokenException;
+import org.forgerock.openam.cts.impl.AsyncCoreTokenAdapter;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind stage for Token updates.
+ *
+ * Updates are queued by Token ID rather than written straight away. If a Token is updated
+ * again before it has been written, the queued update is replaced by the newer one, so a
+ * Token which changes many times within the flush window costs a single LDAP operation.
+ *
+ * The queue is flushed in batches when either the batch size is reached or the maximum delay
+ * elapses, which bounds how stale the persisted copy of a Token can be. Only one flush runs at
+ * a time, so two updates of the same Token are never in flight from the queue at once. Callers
+ * are never held: when the queue is full, the update is written directly.
+ *
+ * Reads made through the {@link CTSPersistentStore} are answered from the queue if an update
+ * is pending, and deletes discard any pending update for the Token. Batches are taken from the
+ * queue under its lock but issued outside it, through the {@link AsyncCoreTokenAdapter}, which
+ * applies operations against the same Token in order. A delete or direct write of a Token which
+ * has been taken from the queue waits until its update has been handed to the adapter.
+ *
+ * Queue depth, coalescing and flush latency are reported through the CTS Stats instance.
+ */
+@Singleton
+public class CTSWriteBehindQueue implements StatsListener, ShutdownListener {
+
+    private final AsyncCoreTokenAdapter adapter;
+    private final ScheduledExecutorService scheduler;
+    private final Stats stats;
+    private final Debug debug;
+
+    private final boolean enabled;
+    private final int capacity;
+    private final int batchSize;
+    private final long maxDelay;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition issued = lock.newCondition();
+    // Guarded by lock. Insertion order is the order in which Tokens were first queued.
+    private final Map<String, PendingUpdate> pending = new LinkedHashMap<String, PendingUpdate>();
+    // Guarded by lock. Updates taken from the queue which have not yet been handed to the adapter.
+    private final Map<String, PendingUpdate> issuing = new HashMap<String, PendingUpdate>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    // Held for the duration of a flush. Not reentrant, so a flush triggered from a write callback is skipped.
+    private final Semaphore flushing = new Semaphore(1);
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong bypassed = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong totalFlushLatency = new AtomicLong();
+    private final AtomicLong maxFlushLatency = new AtomicLong();
+
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Create the write-behind queue and, if enabled, start the periodic flush.
+     *
+     * @param adapter Required for issuing the batched writes.
+     * @param config Required for the queue configuration.
+     * @param scheduler Required for flushing the queue in the background.
+     * @param shutdownManager Required to flush the queue on shutdown.
+     * @param stats Required for reporting queue statistics.
+     * @param debug Required for debug logging.
+     */
+    @Inject
+    public CTSWriteBehindQueue(AsyncCoreTokenAdapter adapter, CoreTokenConfig config,
+                               @Named(CoreTokenConstants.CTS_SCHEDULED_SERVICE) ScheduledExecutorService scheduler,
+                               CoreGuiceModule.ShutdownManagerWrapper shutdownManager,
+                               @Named(CoreTokenConstants.CTS_STATS) Stats stats,
+                               @Named(CoreTokenConstants.CTS_DEBUG) Debug debug) {
+        this.adapter = adapter;
+        this.scheduler = scheduler;
+        this.stats = stats;
+        this.debug = debug;
+
+        enabled = config.isWriteBehindEnabled();
+        capacity = config.getWriteBehindQueueSize();
+        batchSize = config.getWriteBehindBatchSize();
+        maxDelay = config.getWriteBehindMaxDelay();
+
+        if (enabled) {
+            scheduler.scheduleWithFixedDelay(flushTask, maxDelay, maxDelay, TimeUnit.MILLISECONDS);
+            shutdownManager.addShutdownListener(this);
+            if (stats.isEnabled()) {
+                stats.addStatsListener(this);
+            }
+        }
+    }
+
+    /**
+     * @return True if updates should be queued, false if they should be written directly.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queue an update to the Token, replacing any update already queued for it.
+     *
+     * @param token Non null Token, which has already had the Token Blob strategy performed on it.
+     * @param handler Non null handler notified once the Token has been written, or the write failed.
+     */
+    public void update(Token token, TokenResultHandler<Token> handler) {
+        String tokenId = token.getTokenId();
+        boolean writeDirectly = false;
+
+        lock.lock();
+        try {
+            PendingUpdate existing = pending.get(tokenId);
+            if (existing != null) {
+                existing.replace(token, handler);
+                coalesced.incrementAndGet();
+                return;
+            }
+            if (pending.size() < capacity) {
+                pending.put(tokenId, new PendingUpdate(token, handler));
+                queued.incrementAndGet();
+                if (pending.size() >= batchSize) {
+                    scheduleFlush();
+                }
+                return;
+            }
+            scheduleFlush();
+            awaitIssued(tokenId);
+        } finally {
+            lock.unlock();
+        }
+
+        bypassed.incrementAndGet();
+        adapter.updateOrCreate(token, handler);
+    }
+
+    /**
+     * Provides the queued state of the Token if an update is waiting to be written.
+     *
+     * @param tokenId The non null Token ID.
+     * @return A copy of the queued Token, or null if no update is pending.
+     */
+    public Token getPending(String tokenId) {
+        lock.lock();
+        try {
+            PendingUpdate update = pending.get(tokenId);
+            if (update == null) {
+                update = issuing.get(tokenId);
+            }
+            return update == null ? null : new Token(update.token);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discard any update queued for the Token, because it is about to be deleted or written
+     * directly. Handlers of the discarded update are notified as though it had been written.
+     *
+     * @param tokenId The non null Token ID.
+     */
+    public void cancel(String tokenId) {
+        PendingUpdate update;
+        lock.lock();
+        try {
+            update = pending.remove(tokenId);
+            awaitIssued(tokenId);
+        } finally {
+            lock.unlock();
+        }
+        if (update != null) {
+            update.processResults(update.token);
+        }
+    }
+
+    /**
+     * Write all queued updates, in batches. If another flush is already running this returns
+     * straight away, leaving the queued updates to that flush.
+     */
+    public void flush() {
+        flushScheduled.set(false);
+        if (!flushing.tryAcquire()) {
+            return;
+        }
+        try {
+            drain();
+        } finally {
+            flushing.release();
+        }
+    }
+
+    /**
+     * Hand every queued update to the adapter. The adapter bounds the operations in flight, so
+     * batches are issued without waiting for the previous one to complete.
+     */
+    private void drain() {
+        int size;
+        do {
+            final List<PendingUpdate> batch = new ArrayList<PendingUpdate>();
+            final long start = System.currentTimeMillis();
+
+            lock.lock();
+            try {
+                Iterator<PendingUpdate> iterator = pending.values().iterator();
+                while (iterator.hasNext() && batch.size() < batchSize) {
+                    PendingUpdate update = iterator.next();
+                    iterator.remove();
+                    batch.add(update);
+                    issuing.put(update.token.getTokenId(), update);
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            size = batch.size();
+            if (size > 0) {
+                issue(batch, start);
+            }
+        } while (size == batchSize);
+    }
+
+    /**
+     * Hand the batch to the adapter outside of the queue lock, then release any delete or direct
+     * write which was waiting for one of its Tokens.
+     */
+    private void issue(final List<PendingUpdate> batch, final long start) {
+        final CountDownLatch latch = new CountDownLatch(batch.size());
+        try {
+            for (final PendingUpdate update : batch) {
+                adapter.updateOrCreate(update.token, new TokenResultHandler<Token>() {
+                    public void processResults(Token result) {
+                        update.processResults(result);
+                        complete();
+                    }
+
+                    public void processError(CoreTokenException error) {
+                        debug.error(CoreTokenConstants.DEBUG_HEADER + "Write-behind: failed to write Token "
+                                + update.token.getTokenId(), error);
+                        update.processError(error);
+                        complete();
+                    }
+
+                    private void complete() {
+                        latch.countDown();
+                        if (latch.getCount() == 0) {
+                            recordFlush(batch.size(), System.currentTimeMillis() - start);
+                        }
+                    }
+                });
+            }
+        } finally {
+            lock.lock();
+            try {
+                for (PendingUpdate update : batch) {
+                    issuing.remove(update.token.getTokenId());
+                }
+                issued.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Wait, holding the lock, until any update for the Token taken from the queue has been handed to
+     * the adapter, so that a later operation on the Token cannot overtake it.
+     */
+    private void awaitIssued(String tokenId) {
+        while (issuing.containsKey(tokenId)) {
+            issued.awaitUninterruptibly();
+        }
+    }
+
+    private void recordFlush(int size, long latency) {
+        written.addAndGet(size);
+        batches.incrementAndGet();
+        totalFlushLatency.addAndGet(latency);
+        long max = maxFlushLatency.get();
+        while (latency > max && !maxFlushLatency.compareAndSet(max, latency)) {
+            max = maxFlushLatency.get();
+        }
+
+        if (debug.messageEnabled()) {
+            debug.message(MessageFormat.format(
+                    CoreTokenConstants.DEBUG_HEADER +
+                    "Write-behind: wrote {0} Tokens in {1}ms",
+                    size,
+                    latency));
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            scheduler.execute(flushTask);
+        }
+    }
+
+    /**
+     * @return The number of Tokens currently waiting to be written.
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The fraction of all updates which were absorbed by an update already in the queue.
+     */
+    public double getCoalescingRatio() {
+        long coalescedCount = coalesced.get();
+        long total = coalescedCount + queued.get() + bypassed.get();
+        return total == 0 ? 0 : (double) coalescedCount / total;
+    }
+
+    /**
+     * @return The average time in milliseconds taken to write a batch.
+     */
+    public long getAverageFlushLatency() {
+        long count = batches.get();
+        return count == 0 ? 0 : totalFlushLatency.get() / count;
+    }
+
+    /**
+     * @return The longest time in milliseconds taken to write a batch.
+     */
+    public long getMaxFlushLatency() {
+        return maxFlushLatency.get();
+    }
+
+    /**
+     * Records the queue statistics to the CTS Stats instance.
+     */
+    public void printStats() {
+        stats.record(MessageFormat.format(
+                "CTS write-behind queue depth: {0}\n" +
+                "CTS write-behind updates queued/coalesced/bypassed/written: {1}/{2}/{3}/{4}\n" +
+                "CTS write-behind coalescing ratio: {5,number,#.##}\n" +
+                "CTS write-behind batches: {6} average/max latency: {7}ms/{8}ms",
+                getQueueDepth(), queued.get(), coalesced.get(), bypassed.get(), written.get(),
+                getCoalescingRatio(), batches.get(), getAverageFlushLatency(), getMaxFlushLatency()));
+    }
+
+    /**
+     * Write any queued updates before the server stops.
+     */
+    public void shutdown() {
+        flushing.acquireUninterruptibly();
+        try {
+            drain();
+        } finally {
+            flushing.release();
+        }
+    }
+
+    /**
+     * An update waiting to be written, along with the handlers of every update it has absorbed.
+     */
+    private static class PendingUpdate implements TokenResultHandler<Token> {
+        private Token token;
+        private final List<TokenResultHandler<Token>> handlers = new ArrayList<TokenResultHandler<Token>>(1);
+
+        PendingUpdate(Token token, TokenResultHandler<Token> handler) {
+            this.token = token;
+            handlers.add(handler);
+        }
+
+        void replace(Token token, TokenResultHandler<Token> handler) {
+            this.token = token;
+            handlers.add(handler);
+        }
+
+        public void processResults(Token result) {
+            for (TokenResultHandler<Token> handler : handlers) {
+                handler.processResults(result);
+            }
+        }
+
+        public void processError(CoreTokenException error) {
+            for (TokenResultHandler<Token> handler : handlers) {
+                handler.processError(error);
+            }
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /**
- * Copyright 2013 ForgeRock, AS.
+ * Copyright 2013-2015 ForgeRock AS.
  *
  * The contents of this file are subject to the terms of the Common Development and
  * Distribution License (the License). You may not use this file except in compliance with the
@@ -38,6 +38,20 @@ public class CoreTokenConfig {
     private final int cleanupPageSize;
 
     private final int sleepInterval;
+    private final int asyncConnectionCount;
+
+    // Write-behind queue
+    private final boolean writeBehindEnabled;
+    private final int writeBehindQueueSize;
+    private final int writeBehindBatchSize;
+    private final int writeBehindMaxDelay;
+
+    // CTS Reaper deletion rate, zero for no limit
+    private final int reaperMaxDeletesPerSecond;
+
+    // Read cache
+    private final int readCacheSize;
+    private final int readCacheMaxTimeToLive;
 
     // Token Blob strategy flags
     private final boolean tokensEncrypted;
@@ -75,6 +89,22 @@ public class CoreTokenConfig {
 
         // Controls the size of pages requested for CTS Reaper
         cleanupPageSize = 1000;
+
+        // Number of long lived connections over which asynchronous operations are pipelined.
+        asyncConnectionCount = Math.max(1, getSystemManagerPropertyAsInt(CoreTokenConstants.ASYNC_CONNECTION_COUNT, 2));
+
+        // Controls whether asynchronous updates are queued and coalesced before being written.
+        writeBehindEnabled = SystemProperties.getAsBoolean(CoreTokenConstants.WRITE_BEHIND_ENABLED);
+        writeBehindQueueSize = Math.max(1, getSystemManagerPropertyAsInt(CoreTokenConstants.WRITE_BEHIND_QUEUE_SIZE, 10000));
+        writeBehindBatchSize = Math.max(1, getSystemManagerPropertyAsInt(CoreTokenConstants.WRITE_BEHIND_BATCH_SIZE, 100));
+        writeBehindMaxDelay = Math.max(1, getSystemManagerPropertyAsInt(CoreTokenConstants.WRITE_BEHIND_MAX_DELAY, 1000));
+
+        // Caps the rate of deletes issued by the CTS Reaper, zero for no limit.
+        reaperMaxDeletesPerSecond = Math.max(0, getSystemManagerPropertyAsInt(CoreTokenConstants.REAPER_MAX_DELETES_PER_SECOND, 0));
+
+        // Number of Tokens held in the read cache, zero disables the cache.
+        readCacheSize = Math.max(0, getSystemManagerPropertyAsInt(CoreTokenConstants.READ_CACHE_SIZE, 0));
+        readCacheMaxTimeToLive = Math.max(1, getSystemManagerPropertyAsInt(CoreTokenConstants.READ_CACHE_MAX_TTL, 60 * 1000));
     }
 
     /**
@@ -184,4 +214,62 @@ public class CoreTokenConfig {
     public int getCleanupPageSize() {
         return cleanupPageSize;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return The maximum number of expired Tokens the CTS Reaper will delete per second. Zero, the default,
+     * means no limit.
+     */
+    public int getReaperMaxDeletesPerSecond() {
+        return reaperMaxDeletesPerSecond;
+    }
+
+    /**
+     * @return The number of connections held open for pipelining asynchronous operations. Always at least one.
+     */
+    public int getAsyncConnectionCount() {
+        return asyncConnectionCount;
+    }
+
+    /**
+     * @return True if asynchronous updates should be queued and coalesced before being written. False by default.
+     */
+    public boolean isWriteBehindEnabled() {
+        return writeBehindEnabled;
+    }
+
+    /**
+     * @return The maximum number of Tokens that may be waiting in the write-behind queue.
+     */
+    public int getWriteBehindQueueSize() {
+        return writeBehindQueueSize;
+    }
+
+    /**
+     * @return The maximum number of Tokens written by the write-behind queue in a single batch.
+     */
+    public int getWriteBehindBatchSize() {
+        return writeBehindBatchSize;
+    }
+
+    /**
+     * @return The maximum time in milliseconds an update will wait in the write-behind queue before
+     * a flush is started.
+     */
+    public int getWriteBehindMaxDelay() {
+        return writeBehindMaxDelay;
+    }
+
+    /**
+     * @return The maximum number of Tokens held in the read cache. Zero, the default, disables the cache.
+     */
+    public int getReadCacheSize() {
+        return readCacheSize;
+    }
+
+    /**
+     * @return The maximum time in milliseconds a Token will be served from the read cache.
+     */
+    public int getReadCacheMaxTimeToLive() {
+        return readCacheMaxTimeToLive;
+    }
+}
@@ -30,6 +30,11 @@ public class CoreTokenConstants {
      */
     public static final String CTS_DEBUG = "amCoreTokenService";
 
+    /**
+     * Stats instance name for all CTS statistics.
+     */
+    public static final String CTS_STATS = "amCoreTokenServiceStats";
+
     /**
      * CTS Lock Factory name for Guice.
      */
@@ -45,6 +50,31 @@ public class CoreTokenConstants {
      */
     public static final String CLEANUP_PERIOD = "com.sun.identity.session.repository.cleanupRunPeriod";
     public static final String HEALTH_CHECK_PERIOD = "com.sun.identity.session.repository.healthCheckRunPeriod";
+
+    /**
+     * Configuration property for the number of connections used to pipeline asynchronous operations.
+     */
+    public static final String ASYNC_CONNECTION_COUNT = "com.sun.identity.session.repository.asyncConnectionCount";
+
+    /**
+     * Configuration properties for the write-behind queue used for asynchronous updates.
+     */
+    public static final String WRITE_BEHIND_ENABLED = "com.sun.identity.session.repository.writeBehindEnabled";
+    public static final String WRITE_BEHIND_QUEUE_SIZE = "com.sun.identity.session.repository.writeBehindQueueSize";
+    public static final String WRITE_BEHIND_BATCH_SIZE = "com.sun.identity.session.repository.writeBehindBatchSize";
+    public static final String WRITE_BEHIND_MAX_DELAY = "com.sun.identity.session.repository.writeBehindMaxDelay";
+
+    /**
+     * Configuration properties for the read cache, which is disabled unless a size is configured.
+     */
+    public static final String READ_CACHE_SIZE = "com.sun.identity.session.repository.readCacheSize";
+    public static final String READ_CACHE_MAX_TTL = "com.sun.identity.session.repository.readCacheMaxTimeToLive";
+
+    /**
+     * Configuration property for the maximum number of expired Tokens deleted per second by the CTS Reaper.
+     */
+    public static final String REAPER_MAX_DELETES_PER_SECOND = "com.sun.identity.session.repository.reaperMaxDeletesPerSecond";
+
     /**
      * Globals public Constants, so not to pollute entire product.
      */
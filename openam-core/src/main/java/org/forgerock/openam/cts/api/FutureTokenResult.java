@@ -0,0 +1,146 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.cts.api;
+
+import org.forgerock.openam.cts.exceptions.CoreTokenException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A TokenResultHandler which captures the outcome of an asynchronous operation so that
+ * the caller can decide later whether, and how long, to wait for it.
+ *
+ * @param <T> The type of result the operation produces.
+ */
+public class FutureTokenResult<T> implements TokenResultHandler<T>, Future<T> {
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private volatile T result;
+    private volatile CoreTokenException error;
+
+    /**
+     * {@inheritDoc}
+     */
+    public void processResults(T result) {
+        this.result = result;
+        latch.countDown();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void processError(CoreTokenException error) {
+        this.error = error;
+        latch.countDown();
+    }
+
+    /**
+     * Block until the operation has completed.
+     *
+     * @return The result of the operation, possibly null.
+     * @throws CoreTokenException If the operation failed, or the caller was interrupted while waiting.
+     */
+    public T getResults() throws CoreTokenException {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CoreTokenException("Interrupted whilst waiting for CTS operation", e);
+        }
+        return resultOrError();
+    }
+
+    /**
+     * Block until the operation has completed or the timeout has elapsed.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of the timeout.
+     * @return The result of the operation, possibly null.
+     * @throws CoreTokenException If the operation failed, did not complete in time, or the caller
+     * was interrupted while waiting.
+     */
+    public T getResults(long timeout, TimeUnit unit) throws CoreTokenException {
+        try {
+            if (!latch.await(timeout, unit)) {
+                throw new CoreTokenException("Timed out waiting for CTS operation");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CoreTokenException("Interrupted whilst waiting for CTS operation", e);
+        }
+        return resultOrError();
+    }
+
+    private T resultOrError() throws CoreTokenException {
+        if (error != null) {
+            throw error;
+        }
+        return result;
+    }
+
+    /**
+     * Operations which have been dispatched cannot be cancelled.
+     *
+     * @param mayInterruptIfRunning Ignored.
+     * @return Always false.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    /**
+     * @return Always false, see {@link #cancel(boolean)}.
+     */
+    public boolean isCancelled() {
+        return false;
+    }
+
+    /**
+     * @return True if the operation has completed, successfully or otherwise.
+     */
+    public boolean isDone() {
+        return latch.getCount() == 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public T get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return getOrWrap();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getOrWrap();
+    }
+
+    private T getOrWrap() throws ExecutionException {
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return result;
+    }
+}
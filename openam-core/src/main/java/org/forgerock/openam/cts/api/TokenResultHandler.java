@@ -0,0 +1,46 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.cts.api;
+
+import org.forgerock.openam.cts.exceptions.CoreTokenException;
+
+/**
+ * Callback notified when an asynchronous Core Token Service operation has completed.
+ *
+ * Exactly one of the two methods will be called for each operation. Implementations are
+ * called on the thread which completed the LDAP operation and so must not block.
+ *
+ * @param <T> The type of result the operation produces.
+ *
+ * @see org.forgerock.openam.cts.CTSPersistentStore
+ */
+public interface TokenResultHandler<T> {
+
+    /**
+     * Signals that the operation completed successfully.
+     *
+     * @param result The result of the operation, which may be null. For example a read of a
+     *               Token that does not exist.
+     */
+    void processResults(T result);
+
+    /**
+     * Signals that the operation failed.
+     *
+     * @param error Non null reason for the failure.
+     */
+    void processError(CoreTokenException error);
+}
@@ -0,0 +1,267 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.cts.cache;
+
+import com.google.inject.name.Named;
+import com.sun.identity.common.ShutdownListener;
+import com.sun.identity.shared.debug.Debug;
+import org.forgerock.openam.core.guice.CoreGuiceModule;
+import org.forgerock.openam.cts.api.CoreTokenConstants;
+import org.forgerock.openam.cts.api.fields.CoreTokenField;
+import org.forgerock.openam.cts.impl.CTSConnectionFactory;
+import org.forgerock.openam.cts.impl.LDAPConfig;
+import org.forgerock.openam.utils.IOUtils;
+import org.forgerock.opendj.ldap.Attribute;
+import org.forgerock.opendj.ldap.CancelledResultException;
+import org.forgerock.opendj.ldap.Connection;
+import org.forgerock.opendj.ldap.ErrorResultException;
+import org.forgerock.opendj.ldap.FutureResult;
+import org.forgerock.opendj.ldap.SearchResultHandler;
+import org.forgerock.opendj.ldap.SearchScope;
+import org.forgerock.opendj.ldap.controls.PersistentSearchChangeType;
+import org.forgerock.opendj.ldap.controls.PersistentSearchRequestControl;
+import org.forgerock.opendj.ldap.requests.Requests;
+import org.forgerock.opendj.ldap.requests.SearchRequest;
+import org.forgerock.opendj.ldap.responses.Result;
+import org.forgerock.opendj.ldap.responses.SearchResultEntry;
+import org.forgerock.opendj.ldap.responses.SearchResultReference;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.text.MessageFormat;
+import java.util.EnumSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the {@link CTSReadCache} coherent with the directory by holding a persistent search open
+ * against the Core Token Service base DN, in the same way as the persistent search used for
+ * identity repository change notifications. The search runs on a dedicated connection, so that
+ * it does not take one of the CTS pooled connections away for the lifetime of the server.
+ *
+ * Every change notification invalidates the cached copy of the changed Token. The cache is only
+ * active while the persistent search is running. The directory does not acknowledge that a
+ * persistent search has been registered, so the cache is activated by the first notification, or
+ * once the search has stayed open for a short confirmation delay. If the search fails, the cache
+ * is deactivated, which discards its contents, and the search is retried periodically.
+ */
+@Singleton
+public class CTSChangeMonitor implements SearchResultHandler, ShutdownListener {
+
+    private static final long RETRY_INTERVAL = 30;
+    private static final long CONFIRMATION_DELAY = 1000;
+    private static final String TOKEN_FILTER =
+            "(" + CoreTokenConstants.OBJECT_CLASS + "=" + CoreTokenConstants.FR_CORE_TOKEN + ")";
+
+    // Injected
+    private final CTSConnectionFactory factory;
+    private final LDAPConfig ldapConfig;
+    private final CTSReadCache cache;
+    private final ScheduledExecutorService scheduler;
+    private final Debug debug;
+
+    private Connection connection;
+    private FutureResult<Result> searchStatus;
+    private boolean shutdown = false;
+    private boolean retryScheduled = false;
+
+    private final Runnable retryTask = new Runnable() {
+        public void run() {
+            synchronized (CTSChangeMonitor.this) {
+                retryScheduled = false;
+            }
+            start();
+        }
+    };
+
+    /**
+     * Create the monitor without starting it.
+     *
+     * @param factory Required for the dedicated persistent search connection.
+     * @param ldapConfig Required for the Core Token Service base DN.
+     * @param cache The cache to keep coherent.
+     * @param scheduler Required for retrying a failed persistent search.
+     * @param shutdownManager Required to stop the persistent search on shutdown.
+     * @param debug Required for debug logging.
+     */
+    @Inject
+    public CTSChangeMonitor(CTSConnectionFactory factory, LDAPConfig ldapConfig, CTSReadCache cache,
+                            @Named(CoreTokenConstants.CTS_SCHEDULED_SERVICE) ScheduledExecutorService scheduler,
+                            CoreGuiceModule.ShutdownManagerWrapper shutdownManager,
+                            @Named(CoreTokenConstants.CTS_DEBUG) Debug debug) {
+        this.factory = factory;
+        this.ldapConfig = ldapConfig;
+        this.cache = cache;
+        this.scheduler = scheduler;
+        this.debug = debug;
+        shutdownManager.addShutdownListener(this);
+    }
+
+    /**
+     * Start the persistent search. The cache is activated once the search is confirmed to be running.
+     * If the search cannot be started a retry is scheduled.
+     */
+    public synchronized void start() {
+        if (shutdown || searchStatus != null) {
+            return;
+        }
+
+        SearchRequest request = Requests.newSearchRequest(
+                ldapConfig.getTokenStoreRootSuffix().toString(),
+                SearchScope.WHOLE_SUBTREE,
+                TOKEN_FILTER,
+                CoreTokenField.TOKEN_ID.toString())
+                .addControl(PersistentSearchRequestControl.newControl(
+                        true, true, false,
+                        EnumSet.allOf(PersistentSearchChangeType.class)));
+
+        try {
+            // The search holds its connection for as long as it runs, so it must not take one from the pool.
+            connection = factory.getDedicatedConnection();
+            searchStatus = connection.searchAsync(request, null, this);
+            scheduler.schedule(new ConfirmationTask(searchStatus), CONFIRMATION_DELAY, TimeUnit.MILLISECONDS);
+
+            if (debug.messageEnabled()) {
+                debug.message(MessageFormat.format(
+                        CoreTokenConstants.DEBUG_HEADER +
+                        "Read cache: persistent search started against {0}",
+                        ldapConfig.getTokenStoreRootSuffix()));
+            }
+        } catch (ErrorResultException e) {
+            debug.error(CoreTokenConstants.DEBUG_HEADER + "Read cache: failed to start persistent search", e);
+            reset();
+        }
+    }
+
+    /**
+     * Invalidate the cached copy of the changed Token.
+     *
+     * @param entry The changed Token entry, containing only the Token ID.
+     * @return Always true, to continue receiving notifications.
+     */
+    public boolean handleEntry(SearchResultEntry entry) {
+        confirmed();
+        Attribute tokenId = entry.getAttribute(CoreTokenField.TOKEN_ID.toString());
+        if (tokenId == null || tokenId.isEmpty()) {
+            // Cannot tell which Token changed, so nothing cached can be trusted.
+            cache.clear();
+        } else {
+            cache.invalidate(tokenId.firstValueAsString());
+        }
+        return true;
+    }
+
+    /**
+     * References are not expected within the Core Token Service.
+     *
+     * @param reference Ignored.
+     * @return Always true.
+     */
+    public boolean handleReference(SearchResultReference reference) {
+        return true;
+    }
+
+    /**
+     * The persistent search has failed, or been cancelled during shutdown.
+     *
+     * @param error The reason for the failure.
+     */
+    public void handleErrorResult(ErrorResultException error) {
+        if (error instanceof CancelledResultException || isShutdown()) {
+            debug.message(CoreTokenConstants.DEBUG_HEADER + "Read cache: persistent search cancelled");
+            cache.setActive(false);
+            return;
+        }
+        debug.error(CoreTokenConstants.DEBUG_HEADER + "Read cache: persistent search failed", error);
+        reset();
+    }
+
+    /**
+     * A persistent search should never complete, so treat this in the same way as a failure.
+     *
+     * @param result Ignored.
+     */
+    public void handleResult(Result result) {
+        debug.warning(CoreTokenConstants.DEBUG_HEADER + "Read cache: persistent search ended unexpectedly");
+        reset();
+    }
+
+    /**
+     * Stop the persistent search and deactivate the cache.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        cache.setActive(false);
+        if (searchStatus != null) {
+            searchStatus.cancel(true);
+            searchStatus = null;
+        }
+        IOUtils.closeIfNotNull(connection);
+        connection = null;
+    }
+
+    /**
+     * The persistent search is known to be running, so the cache can be activated.
+     */
+    private synchronized void confirmed() {
+        if (shutdown || searchStatus == null || cache.isActive()) {
+            return;
+        }
+        cache.setActive(true);
+        if (debug.messageEnabled()) {
+            debug.message(CoreTokenConstants.DEBUG_HEADER + "Read cache: persistent search confirmed, cache active");
+        }
+    }
+
+    private synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Deactivate the cache, release the connection and schedule another attempt.
+     */
+    private synchronized void reset() {
+        cache.setActive(false);
+        searchStatus = null;
+        IOUtils.closeIfNotNull(connection);
+        connection = null;
+
+        if (!shutdown && !retryScheduled) {
+            retryScheduled = true;
+            scheduler.schedule(retryTask, RETRY_INTERVAL, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Activates the cache if the persistent search it was scheduled for is still open after the
+     * confirmation delay, meaning the directory has accepted it.
+     */
+    private class ConfirmationTask implements Runnable {
+        private final FutureResult<Result> search;
+
+        ConfirmationTask(FutureResult<Result> search) {
+            this.search = search;
+        }
+
+        public void run() {
+            synchronized (CTSChangeMonitor.this) {
+                if (search == searchStatus && !search.isDone()) {
+                    confirmed();
+                }
+            }
+        }
+    }
+}
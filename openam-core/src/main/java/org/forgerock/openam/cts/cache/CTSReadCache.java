@@ -0,0 +1,243 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.cts.cache;
+
+import com.google.inject.name.Named;
+import com.sun.identity.shared.stats.Stats;
+import com.sun.identity.shared.stats.StatsListener;
+import org.forgerock.openam.cts.CoreTokenConfig;
+import org.forgerock.openam.cts.api.CoreTokenConstants;
+import org.forgerock.openam.cts.api.tokens.Token;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.text.MessageFormat;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, least recently used cache of Tokens read from the Core Token Service.
+ *
+ * Tokens are held in the form returned to callers, that is with the Token Blob strategy already
+ * reversed, and a copy is returned on each hit. An entry is kept until the earlier of the Token's
+ * own expiry date or the configured maximum time to live.
+ *
+ * The cache only serves Tokens while it is active, which is controlled by the
+ * {@link CTSChangeMonitor}. While the monitor's persistent search is running, any change made
+ * to a Token in the directory, by this server or any other, invalidates the cached copy.
+ *
+ * To avoid caching a Token that was changed while it was being read, callers record the
+ * generation of the Token before reading it from the directory and pass it to
+ * {@link #put(Token, long)}. The Token is only cached if it has not been invalidated in between.
+ * Generations are kept for a fixed number of stripes of Token IDs rather than per Token, so an
+ * invalidation only holds back the caching of Tokens in the same stripe.
+ */
+@Singleton
+public class CTSReadCache implements StatsListener {
+
+    private static final int GENERATION_STRIPES = 256;
+
+    private final int maxSize;
+    private final long maxTimeToLive;
+    private final Stats stats;
+
+    // Guarded by this.
+    private final Map<String, CachedToken> cache;
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+    private volatile boolean active = false;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Create the cache, which is initially inactive.
+     *
+     * @param config Required for the size and time to live of the cache.
+     * @param stats Required for reporting cache statistics.
+     */
+    @Inject
+    public CTSReadCache(CoreTokenConfig config, @Named(CoreTokenConstants.CTS_STATS) Stats stats) {
+        this.maxSize = config.getReadCacheSize();
+        this.maxTimeToLive = config.getReadCacheMaxTimeToLive();
+        this.stats = stats;
+
+        cache = new LinkedHashMap<String, CachedToken>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedToken> eldest) {
+                if (size() > maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        if (isEnabled() && stats.isEnabled()) {
+            stats.addStatsListener(this);
+        }
+    }
+
+    /**
+     * @return True if the cache has been configured with a non zero size.
+     */
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Activate or deactivate the cache. When deactivated the contents are discarded and
+     * nothing will be cached until it is activated again.
+     *
+     * @param active True if changes to Tokens are being monitored.
+     */
+    public void setActive(boolean active) {
+        this.active = active && isEnabled();
+        if (!active) {
+            clear();
+        }
+    }
+
+    /**
+     * @return True if the cache is currently serving Tokens.
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * @param tokenId The non null Token ID.
+     * @return The current generation of the Token, to be passed to {@link #put(Token, long)} after
+     * reading the Token from the directory.
+     */
+    public long getGeneration(String tokenId) {
+        return generations.get(stripe(tokenId));
+    }
+
+    private static int stripe(String tokenId) {
+        int hash = tokenId.hashCode();
+        hash ^= (hash >>> 16);
+        return hash & (GENERATION_STRIPES - 1);
+    }
+
+    /**
+     * Retrieve a copy of the cached Token.
+     *
+     * @param tokenId The non null Token ID.
+     * @return A copy of the Token, or null if it was not cached or has expired from the cache.
+     */
+    public Token get(String tokenId) {
+        if (!active) {
+            return null;
+        }
+        synchronized (this) {
+            CachedToken cached = cache.get(tokenId);
+            if (cached != null && cached.expiry > System.currentTimeMillis()) {
+                hits.incrementAndGet();
+                return new Token(cached.token);
+            }
+            if (cached != null) {
+                cache.remove(tokenId);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Cache a copy of the Token, provided it has not been invalidated since it was read.
+     *
+     * @param token Non null Token, with the Token Blob strategy reversed.
+     * @param readGeneration The generation returned by {@link #getGeneration(String)} before the Token was read.
+     */
+    public void put(Token token, long readGeneration) {
+        if (!active) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long expiry = now + maxTimeToLive;
+        Calendar tokenExpiry = token.getExpiryTimestamp();
+        if (tokenExpiry != null) {
+            expiry = Math.min(expiry, tokenExpiry.getTimeInMillis());
+        }
+        if (expiry <= now) {
+            return;
+        }
+
+        synchronized (this) {
+            if (generations.get(stripe(token.getTokenId())) == readGeneration) {
+                cache.put(token.getTokenId(), new CachedToken(new Token(token), expiry));
+            }
+        }
+    }
+
+    /**
+     * Discard the cached copy of the Token, if any.
+     *
+     * @param tokenId The non null Token ID.
+     */
+    public void invalidate(String tokenId) {
+        generations.incrementAndGet(stripe(tokenId));
+        invalidations.incrementAndGet();
+        synchronized (this) {
+            cache.remove(tokenId);
+        }
+    }
+
+    /**
+     * Discard all cached Tokens.
+     */
+    public void clear() {
+        for (int i = 0; i < GENERATION_STRIPES; i++) {
+            generations.incrementAndGet(i);
+        }
+        synchronized (this) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * @return The number of Tokens currently cached.
+     */
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    /**
+     * Records the cache statistics to the CTS Stats instance.
+     */
+    public void printStats() {
+        stats.record(MessageFormat.format(
+                "CTS read cache active: {0} size: {1}/{2}\n" +
+                "CTS read cache hits/misses/evictions/invalidations: {3}/{4}/{5}/{6}",
+                active, size(), maxSize, hits.get(), misses.get(), evictions.get(), invalidations.get()));
+    }
+
+    private static class CachedToken {
+        private final Token token;
+        private final long expiry;
+
+        private CachedToken(Token token, long expiry) {
+            this.token = token;
+            this.expiry = expiry;
+        }
+    }
+}
@@ -0,0 +1,499 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.cts.impl;
+
+import com.google.inject.name.Named;
+import com.sun.identity.common.ShutdownListener;
+import com.sun.identity.shared.debug.Debug;
+import org.forgerock.openam.core.guice.CoreGuiceModule;
+import org.forgerock.openam.cts.CoreTokenConfig;
+import org.forgerock.openam.cts.api.CoreTokenConstants;
+import org.forgerock.openam.cts.api.TokenResultHandler;
+import org.forgerock.openam.cts.api.tokens.Token;
+import org.forgerock.openam.cts.exceptions.ConnectionFailedException;
+import org.forgerock.openam.cts.exceptions.CoreTokenException;
+import org.forgerock.openam.cts.exceptions.CreateFailedException;
+import org.forgerock.openam.cts.exceptions.DeleteFailedException;
+import org.forgerock.openam.cts.exceptions.LDAPOperationFailedException;
+import org.forgerock.openam.cts.exceptions.SetFailedException;
+import org.forgerock.openam.utils.IOUtils;
+import org.forgerock.opendj.ldap.Connection;
+import org.forgerock.opendj.ldap.ConnectionFactory;
+import org.forgerock.opendj.ldap.ErrorResultException;
+import org.forgerock.opendj.ldap.ResultCode;
+import org.forgerock.opendj.ldap.ResultHandler;
+import org.forgerock.opendj.ldap.responses.Result;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Non-blocking counterpart to the {@link CoreTokenAdapter}.
+ *
+ * Rather than checking out a connection per operation, this adapter holds a small number of
+ * long lived connections and pipelines every operation over them using the asynchronous calls
+ * of the LDAP SDK. The calling thread returns as soon as the request has been written and the
+ * supplied {@link TokenResultHandler} is notified once the directory has responded.
+ *
+ * Operations are assigned to a connection by Token ID. Operations against the same Token are
+ * issued one after another, in the order they were submitted, so that an update can never
+ * overtake the create or delete submitted before it. Operations against different Tokens are
+ * free to be in flight at the same time.
+ *
+ * If a connection is found to be invalid, for example because the directory was restarted or
+ * the CTS connection settings were changed, it is discarded and a replacement is requested
+ * from the ConnectionFactory when the next operation is dispatched.
+ */
+@Singleton
+public class AsyncCoreTokenAdapter implements ShutdownListener {
+    // Injected
+    private final ConnectionFactory connectionFactory;
+    private final LDAPAdapter ldapAdapter;
+    private final Debug debug;
+
+    private final PipelinedConnection[] connections;
+
+    /**
+     * Create a new instance of the AsyncCoreTokenAdapter.
+     *
+     * @param connectionFactory Required for connections to LDAP.
+     * @param ldapAdapter Required for all LDAP operations.
+     * @param config Required to determine the number of connections to pipeline over.
+     * @param shutdownManager Required to release the connections on shutdown.
+     * @param debug Required for debug logging.
+     */
+    @Inject
+    public AsyncCoreTokenAdapter(ConnectionFactory connectionFactory, LDAPAdapter ldapAdapter,
+                                 CoreTokenConfig config, CoreGuiceModule.ShutdownManagerWrapper shutdownManager,
+                                 @Named(CoreTokenConstants.CTS_DEBUG) Debug debug) {
+        this.connectionFactory = connectionFactory;
+        this.ldapAdapter = ldapAdapter;
+        this.debug = debug;
+
+        connections = new PipelinedConnection[Math.max(1, config.getAsyncConnectionCount())];
+        for (int i = 0; i < connections.length; i++) {
+            connections[i] = new PipelinedConnection();
+        }
+        shutdownManager.addShutdownListener(this);
+    }
+
+    /**
+     * Create a Token in the persistent store without waiting for the result.
+     *
+     * @param token Non null Token to create.
+     * @param handler Non null handler notified with the created Token, or the reason for failure.
+     */
+    public void create(final Token token, final TokenResultHandler<Token> handler) {
+        submit(new Operation(token.getTokenId()) {
+            void execute(Connection connection) {
+                ldapAdapter.createAsync(connection, token, new OperationHandler<Result>(this) {
+                    void success(Result result) {
+                        debugCreate(token);
+                        handler.processResults(token);
+                    }
+
+                    void failure(ErrorResultException e) {
+                        handler.processError(new CreateFailedException(token, e));
+                    }
+                });
+            }
+
+            void fail(CoreTokenException e) {
+                handler.processError(new CreateFailedException(token, e));
+            }
+        });
+    }
+
+    /**
+     * Read a Token from the persistent store without waiting for the result.
+     *
+     * @param tokenId The non null Token ID to read.
+     * @param handler Non null handler notified with the Token, null if it was not found, or the
+     *                reason for failure.
+     */
+    public void read(final String tokenId, final TokenResultHandler<Token> handler) {
+        submit(new Operation(tokenId) {
+            void execute(Connection connection) {
+                ldapAdapter.readAsync(connection, tokenId, new OperationHandler<Token>(this) {
+                    void success(Token token) {
+                        debugRead(tokenId, token);
+                        handler.processResults(token);
+                    }
+
+                    void failure(ErrorResultException e) {
+                        handler.processError(new LDAPOperationFailedException(e.getResult()));
+                    }
+                });
+            }
+
+            void fail(CoreTokenException e) {
+                handler.processError(e);
+            }
+        });
+    }
+
+    /**
+     * Update a Token in the persistent store, creating it if it does not exist, without waiting
+     * for the result.
+     *
+     * The previous state of the Token is read on the same connection and only the difference is
+     * written, as per {@link CoreTokenAdapter#updateOrCreate(Token)}.
+     *
+     * @param token Non null Token to update or create.
+     * @param handler Non null handler notified with the stored Token, or the reason for failure.
+     */
+    public void updateOrCreate(final Token token, final TokenResultHandler<Token> handler) {
+        submit(new Operation(token.getTokenId()) {
+            void execute(final Connection connection) {
+                final Operation operation = this;
+                ldapAdapter.readAsync(connection, token.getTokenId(), new ResultHandler<Token>() {
+                    public void handleResult(Token previous) {
+                        debugRead(token.getTokenId(), previous);
+                        try {
+                            if (previous == null) {
+                                ldapAdapter.createAsync(connection, token, new UpdateHandler(operation, token, handler));
+                                return;
+                            }
+                            if (!ldapAdapter.updateAsync(connection, previous, token,
+                                    new UpdateHandler(operation, token, handler))) {
+                                complete(operation);
+                                debugUpdate(token, false);
+                                handler.processResults(token);
+                            }
+                        } catch (RuntimeException e) {
+                            complete(operation);
+                            handler.processError(new SetFailedException(token, e));
+                        }
+                    }
+
+                    public void handleErrorResult(ErrorResultException e) {
+                        complete(operation);
+                        handler.processError(new SetFailedException(token, e));
+                    }
+                });
+            }
+
+            void fail(CoreTokenException e) {
+                handler.processError(new SetFailedException(token, e));
+            }
+        });
+    }
+
+    /**
+     * Delete a Token from the persistent store without waiting for the result.
+     *
+     * Deleting a Token which does not exist is not considered an error.
+     *
+     * @param tokenId The non null Token ID to delete.
+     * @param handler Non null handler notified with the deleted Token ID, or the reason for failure.
+     */
+    public void delete(final String tokenId, final TokenResultHandler<String> handler) {
+        submit(new Operation(tokenId) {
+            void execute(Connection connection) {
+                ldapAdapter.deleteAsync(connection, tokenId, new OperationHandler<Result>(this) {
+                    void success(Result result) {
+                        debugDelete(tokenId);
+                        handler.processResults(tokenId);
+                    }
+
+                    void failure(ErrorResultException e) {
+                        Result result = e.getResult();
+                        if (result != null && ResultCode.NO_SUCH_OBJECT.equals(result.getResultCode())) {
+                            handler.processResults(tokenId);
+                        } else {
+                            handler.processError(new DeleteFailedException(tokenId, e));
+                        }
+                    }
+                });
+            }
+
+            void fail(CoreTokenException e) {
+                handler.processError(new DeleteFailedException(tokenId, e));
+            }
+        });
+    }
+
+    /**
+     * Releases the pipelined connections. Operations which are still queued will be failed.
+     */
+    public void shutdown() {
+        for (PipelinedConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private void submit(Operation operation) {
+        operation.connection = connections[(operation.tokenId.hashCode() & Integer.MAX_VALUE) % connections.length];
+        operation.connection.submit(operation);
+    }
+
+    private void complete(Operation operation) {
+        operation.connection.complete(operation);
+    }
+
+    private void debugCreate(Token token) {
+        if (debug.messageEnabled()) {
+            debug.message(MessageFormat.format(
+                    CoreTokenConstants.DEBUG_HEADER +
+                    "Async Create: Created {0} Token {1}",
+                    token.getType(),
+                    token.getTokenId()));
+        }
+    }
+
+    private void debugRead(String tokenId, Token token) {
+        if (debug.messageEnabled()) {
+            debug.message(MessageFormat.format(
+                    CoreTokenConstants.DEBUG_HEADER +
+                    (token == null ? "Async Read: {0} not found." : "Async Read: {0} successfully."),
+                    tokenId));
+        }
+    }
+
+    private void debugUpdate(Token token, boolean modified) {
+        if (debug.messageEnabled()) {
+            debug.message(MessageFormat.format(
+                    CoreTokenConstants.DEBUG_HEADER +
+                    (modified ? "Async Update: Token {0} changed." : "Async Update: no modifications for Token {0}"),
+                    token.getTokenId()));
+        }
+    }
+
+    private void debugDelete(String tokenId) {
+        if (debug.messageEnabled()) {
+            debug.message(MessageFormat.format(
+                    CoreTokenConstants.DEBUG_HEADER +
+                    "Async Delete: Deleted DN {0}",
+                    tokenId));
+        }
+    }
+
+    /**
+     * A single CTS operation against one Token.
+     */
+    private abstract static class Operation {
+        private final String tokenId;
+        private PipelinedConnection connection;
+
+        Operation(String tokenId) {
+            this.tokenId = tokenId;
+        }
+
+        /**
+         * Issue the LDAP request(s) on the connection. Implementations must arrange for
+         * {@link AsyncCoreTokenAdapter#complete(Operation)} to be called once the directory has responded.
+         */
+        abstract void execute(Connection connection);
+
+        /**
+         * Called instead of execute if a connection could not be obtained.
+         */
+        abstract void fail(CoreTokenException e);
+    }
+
+    /**
+     * Marks the operation complete before delegating to the success or failure callback, so
+     * that the next operation against the same Token can be dispatched.
+     */
+    private abstract class OperationHandler<S> implements ResultHandler<S> {
+        private final Operation operation;
+
+        OperationHandler(Operation operation) {
+            this.operation = operation;
+        }
+
+        public void handleResult(S result) {
+            complete(operation);
+            success(result);
+        }
+
+        public void handleErrorResult(ErrorResultException e) {
+            complete(operation);
+            failure(e);
+        }
+
+        abstract void success(S result);
+
+        abstract void failure(ErrorResultException e);
+    }
+
+    /**
+     * Completes the create or modify stage of an update.
+     */
+    private class UpdateHandler extends OperationHandler<Result> {
+        private final Token token;
+        private final TokenResultHandler<Token> handler;
+
+        UpdateHandler(Operation operation, Token token, TokenResultHandler<Token> handler) {
+            super(operation);
+            this.token = token;
+            this.handler = handler;
+        }
+
+        void success(Result result) {
+            debugUpdate(token, true);
+            handler.processResults(token);
+        }
+
+        void failure(ErrorResultException e) {
+            handler.processError(new SetFailedException(token, e));
+        }
+    }
+
+    /**
+     * A long lived connection and the operations which are waiting to use it.
+     *
+     * All state is guarded by the instance monitor, which is only held while the queues are
+     * inspected and never while an LDAP request is being issued.
+     */
+    private final class PipelinedConnection {
+        private Connection connection;
+        private boolean connecting = false;
+        private boolean closed = false;
+        // Operations waiting for a connection to be established.
+        private final List<Operation> awaitingConnection = new ArrayList<Operation>();
+        // Token IDs with an operation in flight, mapped to the operations queued behind it.
+        private final Map<String, LinkedList<Operation>> inFlight = new HashMap<String, LinkedList<Operation>>();
+
+        void submit(Operation operation) {
+            synchronized (this) {
+                LinkedList<Operation> queued = inFlight.get(operation.tokenId);
+                if (queued != null) {
+                    queued.add(operation);
+                    return;
+                }
+                inFlight.put(operation.tokenId, new LinkedList<Operation>());
+            }
+            dispatch(operation);
+        }
+
+        void complete(Operation operation) {
+            Operation next;
+            synchronized (this) {
+                LinkedList<Operation> queued = inFlight.get(operation.tokenId);
+                if (queued == null || queued.isEmpty()) {
+                    inFlight.remove(operation.tokenId);
+                    return;
+                }
+                next = queued.removeFirst();
+            }
+            dispatch(next);
+        }
+
+        private void dispatch(Operation operation) {
+            Connection current;
+            boolean connect = false;
+            synchronized (this) {
+                if (closed) {
+                    current = null;
+                } else {
+                    if (connection != null && !connection.isValid()) {
+                        IOUtils.closeIfNotNull(connection);
+                        connection = null;
+                    }
+                    current = connection;
+                    if (current == null) {
+                        awaitingConnection.add(operation);
+                        if (connecting) {
+                            return;
+                        }
+                        connecting = true;
+                        connect = true;
+                    }
+                }
+            }
+
+            if (current != null) {
+                execute(operation, current);
+            } else if (connect) {
+                connect();
+            } else {
+                failed(operation, new ConnectionFailedException("CTS asynchronous adapter has been shutdown"));
+            }
+        }
+
+        private void connect() {
+            connectionFactory.getConnectionAsync(new ResultHandler<Connection>() {
+                public void handleResult(Connection established) {
+                    List<Operation> ready;
+                    synchronized (PipelinedConnection.this) {
+                        connecting = false;
+                        if (closed) {
+                            IOUtils.closeIfNotNull(established);
+                            ready = drainAwaiting();
+                            established = null;
+                        } else {
+                            connection = established;
+                            ready = drainAwaiting();
+                        }
+                    }
+                    for (Operation operation : ready) {
+                        if (established == null) {
+                            failed(operation, new ConnectionFailedException("CTS asynchronous adapter has been shutdown"));
+                        } else {
+                            execute(operation, established);
+                        }
+                    }
+                }
+
+                public void handleErrorResult(ErrorResultException e) {
+                    debug.error(CoreTokenConstants.DEBUG_HEADER + "Async: Failed to obtain a connection", e);
+                    List<Operation> waiting;
+                    synchronized (PipelinedConnection.this) {
+                        connecting = false;
+                        waiting = drainAwaiting();
+                    }
+                    for (Operation operation : waiting) {
+                        failed(operation, new ConnectionFailedException(e));
+                    }
+                }
+            });
+        }
+
+        private void execute(Operation operation, Connection current) {
+            try {
+                operation.execute(current);
+            } catch (RuntimeException e) {
+                failed(operation, new LDAPOperationFailedException("Failed to issue asynchronous request", e));
+            }
+        }
+
+        private void failed(Operation operation, CoreTokenException e) {
+            complete(operation);
+            operation.fail(e);
+        }
+
+        private List<Operation> drainAwaiting() {
+            List<Operation> drained = new ArrayList<Operation>(awaitingConnection);
+            awaitingConnection.clear();
+            return drained;
+        }
+
+        void close() {
+            synchronized (this) {
+                closed = true;
+                IOUtils.closeIfNotNull(connection);
+                connection = null;
+            }
+        }
+    }
+}
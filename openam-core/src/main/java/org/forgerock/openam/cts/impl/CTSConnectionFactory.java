@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2014 ForgeRock AS.
+ * Copyright 2013-2015 ForgeRock AS.
  *
  * The contents of this file are subject to the terms of the Common Development and
  * Distribution License (the License). You may not use this file except in compliance with the
@@ -81,6 +81,8 @@ public class CTSConnectionFactory implements ConnectionFactory, ShutdownListener
     private final Lock readLock = lock.readLock();
 
     private ConnectionFactory factory = null;
+    // Null when connecting to the default store, whose dedicated connections come from the DataLayerConnectionFactory.
+    private ConnectionFactory dedicatedFactory = null;
 
     /**
      * The connection factory registers as a config listener in case these settings change.
@@ -131,11 +133,13 @@ public class CTSConnectionFactory implements ConnectionFactory, ShutdownListener
     private void reconfigureConnection() {
         // Save the old factory temporarily
         ConnectionFactory previous = factory;
+        ConnectionFactory previousDedicated = dedicatedFactory;
 
         try {
             switch (external.getStoreMode()) {
                 case DEFAULT:
                     factory = configureDefault();
+                    dedicatedFactory = null;
                     if (debug.messageEnabled()) {
                         debug.message(MessageFormat.format(
                                 DEBUG_CONNECTION_CHANGED,
@@ -144,6 +148,7 @@ public class CTSConnectionFactory implements ConnectionFactory, ShutdownListener
                     break;
                 case EXTERNAL:
                     factory = configureExternal();
+                    dedicatedFactory = configureExternalDedicated();
                     if (debug.messageEnabled()) {
 
                         String message = MessageFormat.format(DEBUG_CONNECTION_CHANGED,
@@ -170,12 +175,14 @@ public class CTSConnectionFactory implements ConnectionFactory, ShutdownListener
             if (previous != null && !previous.equals(dlcf)) {
                 previous.close();
             }
+            IOUtils.closeIfNotNull(previousDedicated);
 
         } catch (ConnectionFailedException cfe) {
             debug.error("Configuration of token store failed, check token store settings", cfe);
 
             // Revert to the original factory
             factory = previous;
+            dedicatedFactory = previousDedicated;
         }
     }
 
@@ -208,12 +215,8 @@ public class CTSConnectionFactory implements ConnectionFactory, ShutdownListener
             throw new ConnectionFailedException(msg);
         }
 
-        LDAPURL ldapurl = LDAPURL.valueOf(external.getHostname(), portNum, external.isSslMode());
-        Set<LDAPURL> set = new HashSet<LDAPURL>();
-        set.add(ldapurl);
-
         return LDAPUtils.newFailoverConnectionPool(
-                set,
+                getExternalURLs(portNum),
                 external.getUsername(),
                 external.getPassword().toCharArray(),
                 maxConnections,
@@ -222,6 +225,26 @@ public class CTSConnectionFactory implements ConnectionFactory, ShutdownListener
                 new LDAPOptions());
     }
 
+    /**
+     * @return A factory for connections to the external store which are not pooled. Only called once
+     * {@link #configureExternal()} has validated the configuration.
+     */
+    private ConnectionFactory configureExternalDedicated() {
+        return LDAPUtils.newFailoverConnectionFactory(
+                getExternalURLs(parseNumber(external.getPort())),
+                external.getUsername(),
+                external.getPassword().toCharArray(),
+                external.getHeartbeat(),
+                TimeUnit.SECONDS.toString(),
+                new LDAPOptions());
+    }
+
+    private Set<LDAPURL> getExternalURLs(int portNum) {
+        Set<LDAPURL> set = new HashSet<LDAPURL>();
+        set.add(LDAPURL.valueOf(external.getHostname(), portNum, external.isSslMode()));
+        return set;
+    }
+
     /**
      * @return True if the configuration is present.
      */
@@ -262,6 +285,21 @@ public class CTSConnectionFactory implements ConnectionFactory, ShutdownListener
         }
     }
 
+    /**
+     * Provides a connection to the token store which is not taken from the connection pool, for long lived
+     * operations such as a persistent search. The caller must close the connection.
+     * @return a connection to the token store.
+     * @throws ErrorResultException unable to provide a connection.
+     */
+    public Connection getDedicatedConnection() throws ErrorResultException {
+        try {
+            readLock.lock();
+            return dedicatedFactory == null ? dlcf.getDedicatedConnection() : dedicatedFactory.getConnection();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
     /**
      * Provides an asynchronous connection to the token store.
      * @param resultHandler the result handler.
@@ -281,6 +319,7 @@ public class CTSConnectionFactory implements ConnectionFactory, ShutdownListener
      */
     public void close() {
         IOUtils.closeIfNotNull(factory);
+        IOUtils.closeIfNotNull(dedicatedFactory);
     }
 
     /**
@@ -1,5 +1,5 @@
 /**
- * Copyright 2013 ForgeRock AS.
+ * Copyright 2013-2015 ForgeRock AS.
  *
  * The contents of this file are subject to the terms of the Common Development and
  * Distribution License (the License). You may not use this file except in compliance with the
@@ -31,6 +31,7 @@ import org.forgerock.opendj.ldap.responses.Result;
 import org.forgerock.opendj.ldap.responses.SearchResultEntry;
 
 import javax.inject.Inject;
+import java.util.Collections;
 
 /**
  * Responsible adapting the LDAP SDK Connection and its associated domain
@@ -154,6 +155,103 @@ public class LDAPAdapter {
         connection.deleteAsync(Requests.newDeleteRequest(dn), null, handler);
     }
 
+    /**
+     * Create the Token in LDAP asynchronously.
+     *
+     * @param connection Non null connection to pipeline the request on.
+     * @param token Non null Token to create.
+     * @param handler Notified when the add has completed or failed, including when the Token could not be converted.
+     */
+    public void createAsync(Connection connection, Token token, ResultHandler<? super Result> handler) {
+        Entry entry;
+        try {
+            entry = conversion.getEntry(token);
+        } catch (RuntimeException e) {
+            handler.handleErrorResult(conversionFailed(token.getTokenId(), e));
+            return;
+        }
+        connection.addAsync(Requests.newAddRequest(entry), null, handler);
+    }
+
+    /**
+     * Read the Token from LDAP asynchronously.
+     *
+     * If the Token does not exist, the handler will be passed a null Token rather than
+     * being notified of an error. If the entry read cannot be converted to a Token, the
+     * handler is notified of an error.
+     *
+     * @param connection Non null connection to pipeline the request on.
+     * @param tokenId The id of the Token to read.
+     * @param handler Notified with the Token, or null, when the read has completed or failed.
+     */
+    public void readAsync(Connection connection, final String tokenId, final ResultHandler<Token> handler) {
+        DN dn = conversion.generateTokenDN(tokenId);
+        connection.readEntryAsync(dn, Collections.<String>emptyList(), new ResultHandler<SearchResultEntry>() {
+            public void handleErrorResult(ErrorResultException e) {
+                Result result = e.getResult();
+                // Check for NO_SUCH_OBJECT
+                if (result != null && ResultCode.NO_SUCH_OBJECT.equals(result.getResultCode())) {
+                    handler.handleResult(null);
+                    return;
+                }
+                handler.handleErrorResult(e);
+            }
+
+            public void handleResult(SearchResultEntry entry) {
+                Token token;
+                try {
+                    token = conversion.tokenFromEntry(entry);
+                } catch (RuntimeException e) {
+                    handler.handleErrorResult(conversionFailed(tokenId, e));
+                    return;
+                }
+                handler.handleResult(token);
+            }
+        });
+    }
+
+    /**
+     * Asynchronously update the Token based on the differences between the two.
+     *
+     * @param connection Non null connection to pipeline the request on.
+     * @param previous The non null previous Token to check against.
+     * @param updated The non null Token to update with.
+     * @param handler Notified when the modify has completed or failed, including when the Tokens could not be
+     *                converted. Not called if there were no changes.
+     * @return True if the handler will be notified, or false if there were no changes detected.
+     */
+    public boolean updateAsync(Connection connection, Token previous, Token updated,
+                               ResultHandler<? super Result> handler) {
+        ModifyRequest request;
+        try {
+            Entry currentEntry = conversion.getEntry(updated);
+            TokenAttributeConversion.stripObjectClass(currentEntry);
+
+            Entry previousEntry = conversion.getEntry(previous);
+            TokenAttributeConversion.stripObjectClass(previousEntry);
+
+            request = Entries.diffEntries(previousEntry, currentEntry);
+        } catch (RuntimeException e) {
+            handler.handleErrorResult(conversionFailed(updated.getTokenId(), e));
+            return true;
+        }
+        if (request.getModifications().isEmpty()) {
+            return false;
+        }
+
+        connection.modifyAsync(request, null, handler);
+        return true;
+    }
+
+    /**
+     * Wraps a failure to convert between a Token and its LDAP entry, so that it can be passed to a
+     * result handler like any other failed request.
+     */
+    private static ErrorResultException conversionFailed(String tokenId, RuntimeException e) {
+        return ErrorResultException.newErrorResult(ResultCode.CLIENT_SIDE_LOCAL_ERROR,
+                "Failed to convert Token " + tokenId, e);
+    }
+
     /**
      * Verify if the result was successful.
      * @param result Non null.
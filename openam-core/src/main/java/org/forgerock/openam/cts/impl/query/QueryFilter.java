@@ -1,5 +1,5 @@
 /**
- * Copyright 2013 ForgeRock, AS.
+ * Copyright 2013-2015 ForgeRock, AS.
  *
  * The contents of this file are subject to the terms of the Common Development and
  * Distribution License (the License). You may not use this file except in compliance with the
@@ -83,6 +83,17 @@ public class QueryFilter {
             return this;
         }
 
+        /**
+         * Match all Tokens that have an expiry date after or equal to the given date.
+         * @param timestamp Non null date to ldapFilter against.
+         * @return The QueryBuilder for subsequent calls.
+         */
+        public QueryFilterBuilder afterDate(Calendar timestamp) {
+            String dateString = dataConversion.toLDAPDate(timestamp);
+            filters.add(Filter.greaterOrEqual(CoreTokenField.EXPIRY_DATE.toString(), dateString));
+            return this;
+        }
+
         /**
          * Equality ldapFilter in the format key=value.
          *
@@ -17,180 +17,340 @@ package org.forgerock.openam.cts.reaper;
 
 import com.google.inject.name.Named;
 import com.sun.identity.shared.debug.Debug;
+import com.sun.identity.shared.stats.Stats;
+import com.sun.identity.shared.stats.StatsListener;
 import org.apache.commons.lang.time.StopWatch;
 import org.forgerock.openam.cts.CoreTokenConfig;
 import org.forgerock.openam.cts.api.CoreTokenConstants;
+import org.forgerock.openam.cts.api.TokenType;
 import org.forgerock.openam.cts.api.fields.CoreTokenField;
 import org.forgerock.openam.cts.impl.query.QueryBuilder;
 import org.forgerock.openam.cts.impl.query.QueryFactory;
+import org.forgerock.openam.cts.impl.query.QueryFilter;
 import org.forgerock.openam.cts.impl.query.QueryPageIterator;
 import org.forgerock.openam.utils.IOUtils;
 import org.forgerock.opendj.ldap.Entry;
 import org.forgerock.opendj.ldap.ErrorResultException;
-import org.forgerock.opendj.ldap.Filter;
+import org.forgerock.opendj.ldap.ResultCode;
 import org.forgerock.opendj.ldap.ResultHandler;
 import org.forgerock.opendj.ldap.responses.Result;
 
 import javax.inject.Inject;
+import javax.inject.Provider;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Responsible for the scheduled deletion of expired Tokens.
  *
- * This implementation consists a paged query (that is, one where results are returned
- * in pages) which is performed against the Directory and the results are scheduled for
- * deletion using the SDK provided asynchronous call.
+ * The expired Tokens are divided into shards by Token type and each shard is reaped in
+ * parallel on the CTS worker pool. Within a shard this implementation consists a paged query
+ * (that is, one where results are returned in pages) which is performed against the Directory
+ * and the results are scheduled for deletion using the SDK provided asynchronous call.
  *
- * The LDAP SDK is responsible for managing the scheduling around asynchronous tasks and
- * as such simplifies the implementation to one that queries the results and delegates the
- * responsibility of deletion to the SDK.
+ * Deletes across all shards are paced by a {@link ReaperRateLimiter} when a maximum rate has
+ * been configured, so that a large backlog does not result in bursts of deletes against the
+ * Directory. Progress through each shard is recorded in memory in a {@link ReaperCheckpoint},
+ * allowing subsequent runs on this server to resume from where the last successful run of that
+ * shard finished. A failure
+ * in one shard, such as being unable to get a connection, does not prevent the other shards
+ * from being reaped.
  *
- * Once the search is complete, we need to wait for all asynchronous delete operations to
- * complete before we close the connection to the Directory. Otherwise we risk closing a
+ * Once the search of a shard is complete, we need to wait for all asynchronous delete operations
+ * to complete before we close the connection to the Directory. Otherwise we risk closing a
  * connection that has pending operations on it.
  *
+ * Throughput and backlog are reported through the CTS {@link Stats} instance.
+ *
  * This class is not responsible for scheduling. See the {@link CTSReaperWatchDog} instead.
  *
  * @author robert.wapshott@forgerock.com
  */
-public class CTSReaper implements Runnable {
+public class CTSReaper implements Runnable, StatsListener {
 
     // Injected
     private final QueryFactory factory;
     private final CoreTokenConfig config;
-    private final TokenDeletion tokenDeletion;
+    private final Provider<TokenDeletion> deletionProvider;
+    private final ExecutorService workerPool;
+    private final Stats stats;
     private final Debug debug;
 
-    private final Calendar calendar = Calendar.getInstance();
+    private final ReaperRateLimiter rateLimiter;
+    private final ReaperCheckpoint checkpoint = new ReaperCheckpoint();
+
+    // Monitoring
+    private final AtomicLong totalDeleted = new AtomicLong();
+    private final AtomicLong totalFailed = new AtomicLong();
+    private final AtomicLong backlog = new AtomicLong();
+    private volatile long lastRunDeleted;
+    private volatile long lastRunTime;
+    private volatile int lastRunFailedShards;
 
     /**
      * Create an instance, but do not schedule the instance for execution.
      *
      * @param factory Required for generating queries against the directory.
      * @param config Required for providing runtime configuration.
-     * @param tokenDeletion Required for deleting tokens.
+     * @param deletionProvider Required for deleting tokens, one TokenDeletion per shard.
+     * @param workerPool Required for reaping shards in parallel.
+     * @param stats Required for reporting throughput and backlog.
+     * @param debug Required for debugging.
      */
     @Inject
-    public CTSReaper(QueryFactory factory, CoreTokenConfig config,
-                     TokenDeletion tokenDeletion, @Named(CoreTokenConstants.CTS_REAPER_DEBUG) Debug debug) {
+    public CTSReaper(QueryFactory factory, CoreTokenConfig config, Provider<TokenDeletion> deletionProvider,
+                     @Named(CoreTokenConstants.CTS_WORKER_POOL) ExecutorService workerPool,
+                     @Named(CoreTokenConstants.CTS_STATS) Stats stats,
+                     @Named(CoreTokenConstants.CTS_REAPER_DEBUG) Debug debug) {
         this.factory = factory;
         this.config = config;
-        this.tokenDeletion = tokenDeletion;
+        this.deletionProvider = deletionProvider;
+        this.workerPool = workerPool;
+        this.stats = stats;
         this.debug = debug;
+
+        rateLimiter = new ReaperRateLimiter(config.getReaperMaxDeletesPerSecond());
+
+        if (stats.isEnabled()) {
+            stats.addStatsListener(this);
+        }
     }
 
     /**
      * Performs the query against the directory by selecting the Token IDs for all Tokens
-     * that have expired. These Token IDs are then scheduled for deletion. The task will
-     * not complete until all of the delete operations have returned.
+     * that have expired, one shard at a time per worker. These Token IDs are then scheduled
+     * for deletion. The task will not complete until all of the shards have completed.
      */
     public void run() {
-        // Timers for debugging
-        StopWatch query = new StopWatch();
-        StopWatch waiting = new StopWatch();
-
-        // Latches will track each page of results
-        List<CountDownLatch> latches = new ArrayList<CountDownLatch>();
+        StopWatch timer = new StopWatch();
+        timer.start();
 
-        // Create the query against the directory
-        calendar.setTimeInMillis(System.currentTimeMillis());
-        Filter expired = factory.createFilter().and().beforeDate(calendar).build();
-        QueryBuilder queryBuilder = factory.createInstance()
-                .withFilter(expired)
-                .returnTheseAttributes(CoreTokenField.TOKEN_ID);
-        QueryPageIterator iterator = new QueryPageIterator(queryBuilder, config.getCleanupPageSize());
+        Calendar cutOff = Calendar.getInstance();
+        long now = cutOff.getTimeInMillis();
 
-        query.start();
-        long total = 0;
+        Map<TokenType, Future<Long>> shards = new EnumMap<TokenType, Future<Long>>(TokenType.class);
+        for (TokenType type : TokenType.values()) {
+            Calendar lowerBound = checkpoint.getLowerBound(type, now);
+            shards.put(type, workerPool.submit(new ShardReaper(type, lowerBound, cutOff)));
+        }
 
+        long deleted = 0;
+        int failedShards = 0;
         try {
-            // Iterate over the result pages
-            while (iterator.hasNext()) {
-                Collection<Entry> entries = iterator.next();
-                total += entries.size();
-
-                // If the thread has been interrupted, exit all processing.
-                if (Thread.interrupted()) {
-                    return;
-                }
-
-                // Latch will track the deletions of the page
-                CountDownLatch latch = new CountDownLatch(entries.size());
-                DeleteComplete complete = new DeleteComplete(latch);
-                latches.add(latch);
-
-                // Delete the tokens.
+            for (Map.Entry<TokenType, Future<Long>> shard : shards.entrySet()) {
                 try {
-                    tokenDeletion.deleteBatch(entries, complete);
-                } catch (ErrorResultException e) {
-                    debug.error("Failed to get a connection, will retry later", e);
-                    return;
-                }
-
-                if (debug.messageEnabled()) {
-                    debug.message(MessageFormat.format(
+                    Long count = shard.getValue().get();
+                    if (count == null) {
+                        failedShards++;
+                    } else {
+                        deleted += count;
+                    }
+                } catch (ExecutionException e) {
+                    failedShards++;
+                    debug.error(MessageFormat.format(
                             CoreTokenConstants.DEBUG_HEADER +
-                            "Reaper: Queried {0} Tokens",
-                            total));
+                            "Reaper: Failed to reap {0} Tokens, will retry later",
+                            shard.getKey()), e.getCause());
                 }
             }
+        } catch (InterruptedException e) {
+            // Exit all processing, the workers will see the interrupt.
+            for (Future<Long> future : shards.values()) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        timer.stop();
+        lastRunDeleted = deleted;
+        lastRunTime = timer.getTime();
+        lastRunFailedShards = failedShards;
+
+        if (debug.messageEnabled()) {
+            debug.message(MessageFormat.format(
+                    CoreTokenConstants.DEBUG_HEADER +
+                    "Reaper: Deleted {0} Tokens in {1}ms, {2} shards failed",
+                    deleted, timer.getTime(), failedShards));
+        }
+        if (timer.getTime() > config.getRunPeriod()) {
+            debug.warning(MessageFormat.format(
+                    CoreTokenConstants.DEBUG_HEADER +
+                    "Reaper: Run took {0}ms, longer than the run period of {1}ms",
+                    timer.getTime(), config.getRunPeriod()));
+        }
+    }
+
+    /**
+     * @return The number of expired Tokens found by the current run which have not yet been deleted.
+     */
+    public long getBacklog() {
+        return backlog.get();
+    }
 
-            query.stop();
-            waiting.start();
+    /**
+     * @return The number of Tokens deleted per second by the last completed run.
+     */
+    public double getLastRunThroughput() {
+        long time = lastRunTime;
+        return time == 0 ? lastRunDeleted : lastRunDeleted * 1000.0 / time;
+    }
+
+    /**
+     * Records the reaper statistics to the CTS Stats instance.
+     */
+    public void printStats() {
+        stats.record(MessageFormat.format(
+                "CTS Reaper last run deleted: {0} time: {1}ms throughput: {2}/s failed shards: {3}\n" +
+                "CTS Reaper backlog: {4} total deleted: {5} total failed: {6}",
+                lastRunDeleted, lastRunTime, getLastRunThroughput(), lastRunFailedShards,
+                backlog.get(), totalDeleted.get(), totalFailed.get()));
+    }
+
+    /**
+     * Reaps the expired Tokens of a single type, using its own connection to the Directory.
+     *
+     * Returns the number of Tokens deleted, or null if the shard could not be completed.
+     */
+    private class ShardReaper implements Callable<Long> {
+        private final TokenType type;
+        private final Calendar lowerBound;
+        private final Calendar cutOff;
 
-            if (debug.messageEnabled()) {
-                debug.message(MessageFormat.format(
-                        CoreTokenConstants.DEBUG_HEADER +
-                        "Reaper: Expired Token Query Time: {0}ms",
-                        query.getTime()));
+        private ShardReaper(TokenType type, Calendar lowerBound, Calendar cutOff) {
+            this.type = type;
+            this.lowerBound = lowerBound;
+            this.cutOff = cutOff;
+        }
+
+        public Long call() {
+            // Create the query against the directory
+            QueryFilter.QueryFilterBuilder filter = factory.createFilter().and()
+                    .attribute(CoreTokenField.TOKEN_TYPE, type)
+                    .beforeDate(cutOff);
+            if (lowerBound != null) {
+                filter = filter.afterDate(lowerBound);
             }
+            QueryBuilder queryBuilder = factory.createInstance()
+                    .withFilter(filter.build())
+                    .returnTheseAttributes(CoreTokenField.TOKEN_ID);
+            QueryPageIterator iterator = new QueryPageIterator(queryBuilder, config.getCleanupPageSize());
 
-            // Wait stage
-            for (CountDownLatch latch : latches) {
-                try {
+            // Latches will track each chunk of deletes
+            List<CountDownLatch> latches = new ArrayList<CountDownLatch>();
+            AtomicBoolean failed = new AtomicBoolean(false);
+            TokenDeletion tokenDeletion = deletionProvider.get();
+            long total = 0;
+            long unissued = 0;
+
+            try {
+                // Iterate over the result pages
+                while (iterator.hasNext()) {
+                    List<Entry> entries = new ArrayList<Entry>(iterator.next());
+                    total += entries.size();
+                    unissued += entries.size();
+                    backlog.addAndGet(entries.size());
+
+                    // Deletes are issued in chunks so that a rate limit is applied smoothly
+                    int chunkSize = rateLimiter.isLimited()
+                            ? Math.max(1, config.getReaperMaxDeletesPerSecond() / 10)
+                            : Math.max(1, entries.size());
+                    for (int start = 0; start < entries.size(); start += chunkSize) {
+                        Collection<Entry> chunk = entries.subList(start, Math.min(entries.size(), start + chunkSize));
+                        rateLimiter.acquire(chunk.size());
+
+                        // If the thread has been interrupted, exit all processing.
+                        if (Thread.currentThread().isInterrupted()) {
+                            return null;
+                        }
+
+                        // Latch will track the deletions of the chunk
+                        CountDownLatch latch = new CountDownLatch(chunk.size());
+                        latches.add(latch);
+                        try {
+                            tokenDeletion.deleteBatch(chunk, new DeleteComplete(latch, failed));
+                        } catch (ErrorResultException e) {
+                            debug.error(MessageFormat.format(
+                                    CoreTokenConstants.DEBUG_HEADER +
+                                    "Reaper: Failed to get a connection for {0} Tokens, will retry later",
+                                    type), e);
+                            return null;
+                        }
+                        unissued -= chunk.size();
+                    }
+
+                    if (debug.messageEnabled()) {
+                        debug.message(MessageFormat.format(
+                                CoreTokenConstants.DEBUG_HEADER +
+                                "Reaper: Queried {0} {1} Tokens",
+                                total, type));
+                    }
+                }
+
+                // Wait stage
+                for (CountDownLatch latch : latches) {
                     latch.await();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } finally {
+                // Once all latches are complete, close the TokenDeletion
+                IOUtils.closeIfNotNull(tokenDeletion);
+                backlog.addAndGet(-unissued);
             }
 
-            waiting.stop();
-
-            if (debug.messageEnabled()) {
-                debug.message(MessageFormat.format(
-                        CoreTokenConstants.DEBUG_HEADER +
-                                "Reaper: Worker threads Time: {0}ms",
-                        waiting.getTime()));
+            if (failed.get()) {
+                return null;
             }
-        } finally {
-            // Once all latches are complete, close the TokenDeletion
-            IOUtils.closeIfNotNull(tokenDeletion);
+            checkpoint.complete(type, cutOff, lowerBound == null);
+            return total;
         }
     }
 
     /**
      * DeleteComplete implements the standard LDAP ResultHandler and will indicate that the
-     * request has completed or failed. In either case we are only interested in decrementing
-     * the provided CountDownLatch.
+     * request has completed or failed. In either case the provided CountDownLatch is
+     * decremented, and a failure prevents the shard's checkpoint from advancing. A Token which
+     * no longer exists has already been removed, by another server or by its owner, so it is
+     * counted as deleted.
      */
     private class DeleteComplete implements ResultHandler<Result> {
         private final CountDownLatch latch;
+        private final AtomicBoolean failed;
 
-        private DeleteComplete(CountDownLatch latch) {
+        private DeleteComplete(CountDownLatch latch, AtomicBoolean failed) {
             this.latch = latch;
+            this.failed = failed;
         }
 
         public void handleErrorResult(ErrorResultException e) {
+            if (ResultCode.NO_SUCH_OBJECT.equals(e.getResult().getResultCode())) {
+                handleResult(e.getResult());
+                return;
+            }
             debug.error("Failed to delete Token", e);
+            failed.set(true);
+            totalFailed.incrementAndGet();
+            backlog.decrementAndGet();
             latch.countDown();
         }
 
         public void handleResult(Result result) {
+            totalDeleted.incrementAndGet();
+            backlog.decrementAndGet();
             latch.countDown();
         }
     }
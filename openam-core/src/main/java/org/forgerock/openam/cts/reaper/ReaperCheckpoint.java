@@ -0,0 +1,99 @@
+/**
+ * Copyright 2015 ForgeRock AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ */
+package org.forgerock.openam.cts.reaper;
+
+import org.forgerock.openam.cts.api.TokenType;
+
+import java.util.Calendar;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records, for each shard of the CTS Reaper, the expiry time up to which every expired Token
+ * is known to have been deleted.
+ *
+ * A shard's checkpoint only moves forward once every Token it found has been deleted. A later
+ * run on the same server can then restrict its query to Tokens that expired after the
+ * checkpoint, so a shard which failed part way through is reaped again from its last completed
+ * run, and completed shards are not scanned again from the beginning.
+ *
+ * The checkpoints are only held in memory, so they only last for as long as the server is
+ * running. After a restart every shard is swept in full, with no lower bound, and a full sweep
+ * is also performed for each shard periodically. The lower bound given to the query overlaps
+ * the checkpoint by a margin to allow for clock differences between servers writing Tokens.
+ */
+public class ReaperCheckpoint {
+
+    /**
+     * Margin by which the query overlaps the previous checkpoint.
+     */
+    static final long OVERLAP = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Maximum time between full sweeps of a shard.
+     */
+    static final long FULL_SWEEP_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+    // Guarded by this.
+    private final Map<TokenType, Long> checkpoints = new EnumMap<TokenType, Long>(TokenType.class);
+    private final Map<TokenType, Long> lastFullSweep = new EnumMap<TokenType, Long>(TokenType.class);
+
+    /**
+     * Determine the lower bound of the expiry query for a shard.
+     *
+     * @param shard The shard about to be reaped.
+     * @param now The current time in milliseconds.
+     * @return The time from which the query should start, or null if the shard should be swept in full.
+     */
+    public synchronized Calendar getLowerBound(TokenType shard, long now) {
+        Long checkpoint = checkpoints.get(shard);
+        Long fullSweep = lastFullSweep.get(shard);
+        if (checkpoint == null || fullSweep == null || now - fullSweep >= FULL_SWEEP_INTERVAL) {
+            return null;
+        }
+
+        Calendar lowerBound = Calendar.getInstance();
+        lowerBound.setTimeInMillis(checkpoint - OVERLAP);
+        return lowerBound;
+    }
+
+    /**
+     * Record that every Token in the shard which expired at or before the cut off has been deleted.
+     *
+     * @param shard The shard which has been reaped.
+     * @param cutOff The upper bound of the expiry query.
+     * @param fullSweep True if the query had no lower bound.
+     */
+    public synchronized void complete(TokenType shard, Calendar cutOff, boolean fullSweep) {
+        long time = cutOff.getTimeInMillis();
+        Long previous = checkpoints.get(shard);
+        if (previous == null || previous < time) {
+            checkpoints.put(shard, time);
+        }
+        if (fullSweep) {
+            lastFullSweep.put(shard, time);
+        }
+    }
+
+    /**
+     * @param shard The shard.
+     * @return The checkpoint time in milliseconds, or null if the shard has not yet completed.
+     */
+    public synchronized Long getCheckpoint(TokenType shard) {
+        return checkpoints.get(shard);
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2015 ForgeRock AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ */
+package org.forgerock.openam.cts.reaper;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces the deletes issued by the CTS Reaper so that a large backlog of expired Tokens is
+ * removed at a steady rate rather than in bursts which would compete with the normal load
+ * on the directory.
+ *
+ * The limiter is shared by all of the shards being reaped, so the limit applies to the
+ * Reaper as a whole. Permits are handed out evenly over time and unused permits are not
+ * saved up, so there is no burst after a quiet period.
+ */
+public class ReaperRateLimiter {
+
+    private final long nanosPerPermit;
+
+    // Guarded by this.
+    private long nextFree;
+
+    /**
+     * @param permitsPerSecond The maximum number of permits per second. Zero or less means no limit.
+     */
+    public ReaperRateLimiter(int permitsPerSecond) {
+        nanosPerPermit = permitsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / permitsPerSecond : 0;
+        nextFree = System.nanoTime();
+    }
+
+    /**
+     * @return True if the rate is limited.
+     */
+    public boolean isLimited() {
+        return nanosPerPermit > 0;
+    }
+
+    /**
+     * Block until the given number of permits may be used.
+     *
+     * @param permits The number of deletes about to be issued.
+     * @throws InterruptedException If interrupted whilst waiting.
+     */
+    public void acquire(int permits) throws InterruptedException {
+        if (!isLimited() || permits <= 0) {
+            return;
+        }
+
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (nextFree < now) {
+                nextFree = now;
+            }
+            wait = nextFree - now;
+            nextFree += permits * nanosPerPermit;
+        }
+
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2015 ForgeRock AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ */
+package org.forgerock.openam.cts.utils.blob;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Provides each thread with a reusable output buffer for Token Blob processing, rather than
+ * allocating and growing a fresh buffer for every Token that is written or read.
+ *
+ * A buffer must only be used for the duration of a single conversion, that is it must be
+ * copied out with {@link ByteArrayOutputStream#toByteArray()} before any other conversion
+ * is started on the same thread. Buffers which have grown unusually large are not retained.
+ */
+public final class BlobBuffers {
+
+    private static final int INITIAL_SIZE = 4 * 1024;
+    private static final int MAX_RETAINED_SIZE = 256 * 1024;
+
+    private static final ThreadLocal<ByteArrayOutputStream> BUFFERS = new ThreadLocal<ByteArrayOutputStream>() {
+        @Override
+        protected ByteArrayOutputStream initialValue() {
+            return new ByteArrayOutputStream(INITIAL_SIZE);
+        }
+    };
+
+    private BlobBuffers() {
+    }
+
+    /**
+     * @return An empty buffer for use by the calling thread.
+     */
+    public static ByteArrayOutputStream get() {
+        ByteArrayOutputStream buffer = BUFFERS.get();
+        if (buffer.size() > MAX_RETAINED_SIZE) {
+            buffer = new ByteArrayOutputStream(INITIAL_SIZE);
+            BUFFERS.set(buffer);
+        }
+        buffer.reset();
+        return buffer;
+    }
+}
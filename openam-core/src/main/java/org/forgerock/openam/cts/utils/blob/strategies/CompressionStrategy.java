@@ -1,5 +1,5 @@
 /**
- * Copyright 2013-2014 ForgeRock AS.
+ * Copyright 2013-2015 ForgeRock AS.
  *
  * The contents of this file are subject to the terms of the Common Development and
  * Distribution License (the License). You may not use this file except in compliance with the
@@ -16,6 +16,7 @@
 package org.forgerock.openam.cts.utils.blob.strategies;
 
 import org.forgerock.openam.cts.api.tokens.Token;
+import org.forgerock.openam.cts.utils.blob.BlobBuffers;
 import org.forgerock.openam.cts.utils.blob.BlobStrategy;
 import org.forgerock.openam.cts.utils.blob.TokenStrategyFailedException;
 import org.apache.commons.io.IOUtils;
@@ -29,12 +30,13 @@ import java.util.zip.GZIPOutputStream;
 /**
  * Responsible for compressing the binary object of Tokens using a GZip compression.
  *
+ * Output is assembled in the calling thread's reusable {@link BlobBuffers} buffer, so a single
+ * instance may be used concurrently.
+ *
  * @author robert.wapshott@forgerock.com
  */
 public class CompressionStrategy implements BlobStrategy {
 
-    private final ByteArrayOutputStream bout = new ByteArrayOutputStream();
-
     /**
      * Compress the Tokens binary object.
      *
@@ -44,7 +46,7 @@ public class CompressionStrategy implements BlobStrategy {
      */
     @Override
     public void perform(Token token) throws TokenStrategyFailedException {
-        bout.reset();
+        ByteArrayOutputStream bout = BlobBuffers.get();
         try {
             GZIPOutputStream out = new GZIPOutputStream(bout);
             out.write(token.getBlob(), 0, token.getBlob().length);
@@ -65,7 +67,7 @@ public class CompressionStrategy implements BlobStrategy {
      */
     @Override
     public void reverse(Token token) throws TokenStrategyFailedException {
-        bout.reset();
+        ByteArrayOutputStream bout = BlobBuffers.get();
         try {
             GZIPInputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(token.getBlob()));
             IOUtils.copy(inputStream, bout);
@@ -11,10 +11,11 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2013 ForgeRock Inc.
+ * Copyright 2013-2015 ForgeRock AS.
  */
 package org.forgerock.openam.entitlement.indextree;
 
+import com.iplanet.am.util.SystemProperties;
 import com.iplanet.sso.SSOToken;
 import com.sun.identity.common.ShutdownListener;
 import com.sun.identity.entitlement.EntitlementException;
@@ -30,6 +31,7 @@ import org.forgerock.openam.entitlement.indextree.events.ErrorEventType;
 import org.forgerock.openam.entitlement.indextree.events.EventType;
 import org.forgerock.openam.entitlement.indextree.events.IndexChangeEvent;
 import org.forgerock.openam.entitlement.indextree.events.IndexChangeObserver;
+import org.forgerock.openam.entitlement.utils.indextree.MemoizingIndexRuleTree;
 import org.forgerock.openam.entitlement.utils.indextree.IndexRuleTree;
 import org.forgerock.openam.entitlement.utils.indextree.SimpleReferenceTree;
 
@@ -46,6 +48,11 @@ import java.util.concurrent.ConcurrentMap;
  * Provides a search implementation that takes on a lazy approach to policy rule retrieval. Policy rules for a given
  * realm are only loaded into a index rule tree instance as search requests are made against that realm. This avoids
  * there being a potentially large memory consumption earlier on and instead builds up the data as it is required.
+ * <p/>
+ * Each realm tree remembers the matched index rules of the most recently searched resources, up to the number given
+ * by the system property {@value #RESULT_CACHE_SIZE_PROPERTY}, so that repeated evaluations of the same resource do not
+ * walk the tree. Setting the property to zero disables this. Remembered results are discarded whenever the index
+ * change monitor reports a change to the realm's rules.
  *
  * @author apforrest
  */
@@ -53,6 +60,13 @@ public class IndexTreeServiceImpl implements IndexTreeService, IndexChangeObserv
 
     private static final Debug DEBUG = Debug.getInstance("amEntitlements");
 
+    /**
+     * System property giving the number of searched resources whose results are remembered by each realm tree.
+     */
+    public static final String RESULT_CACHE_SIZE_PROPERTY = "org.forgerock.openam.entitlement.indextree.cache.size";
+
+    private static final int DEFAULT_RESULT_CACHE_SIZE = 10000;
+
     private static final String INDEX_PATH_ATT = "pathindex";
     private static final String SEARCH_FILTER = "(sunserviceID=indexes)";
     private static final String REALM_DN_TEMPLATE =
@@ -157,7 +171,7 @@ public class IndexTreeServiceImpl implements IndexTreeService, IndexChangeObserv
         SSOToken token = AccessController.doPrivileged(adminAction);
 
         if (smDAO.checkIfEntryExists(baseDN, token)) {
-            indexTree = new SimpleReferenceTree();
+            indexTree = newIndexTree();
 
             try {
                 Set<String> excludes = Collections.emptySet();
@@ -186,6 +200,27 @@ public class IndexTreeServiceImpl implements IndexTreeService, IndexChangeObserv
         return indexTree;
     }
 
+    /**
+     * Creates an empty index rule tree, remembering search results if so configured.
+     *
+     * @return A new index rule tree.
+     */
+    private IndexRuleTree newIndexTree() {
+        int resultCacheSize = DEFAULT_RESULT_CACHE_SIZE;
+        String value = SystemProperties.get(RESULT_CACHE_SIZE_PROPERTY);
+
+        if (value != null) {
+            try {
+                resultCacheSize = Integer.parseInt(value.trim());
+            } catch (NumberFormatException nfE) {
+                DEBUG.error(String.format("Invalid value '%s' for %s.", value, RESULT_CACHE_SIZE_PROPERTY), nfE);
+            }
+        }
+
+        IndexRuleTree indexTree = new SimpleReferenceTree();
+        return resultCacheSize > 0 ? new MemoizingIndexRuleTree(indexTree, resultCacheSize) : indexTree;
+    }
+
     @Override
     public void update(IndexChangeEvent event) {
         EventType type = event.getType();
@@ -1,5 +1,5 @@
 /**
- * Copyright 2013 ForgeRock AS.
+ * Copyright 2013-2015 ForgeRock AS.
  *
  * The contents of this file are subject to the terms of the Common Development and
  * Distribution License (the License). You may not use this file except in compliance with the
@@ -45,6 +45,7 @@ public class DataLayerConnectionFactory implements ConnectionFactory, ShutdownLi
 
     // State for intialising and shutting down the factory.
     private final ConnectionFactory factory;
+    private final ConnectionFactory dedicatedFactory;
 
     /**
      * Initialise the connection factory.
@@ -70,6 +71,8 @@ public class DataLayerConnectionFactory implements ConnectionFactory, ShutdownLi
 
         ServerGroupConfiguration config = getServerConfiguration("sms", "default");
         this.factory = initialiseBalancer(config);
+        this.dedicatedFactory = LDAPUtils.newFailoverConnectionFactory(config.getLDAPURLs(), config.getBindDN(),
+                config.getBindPassword(), config.getLdapHeartbeat(), TimeUnit.SECONDS.toString(), new LDAPOptions());
     }
 
     /**
@@ -123,11 +126,22 @@ public class DataLayerConnectionFactory implements ConnectionFactory, ShutdownLi
         return factory.getConnection();
     }
 
+    /**
+     * Establishes a connection which is not taken from the pool, for a long lived operation such as a
+     * persistent search which would otherwise hold a pooled connection indefinitely. The caller must close it.
+     *
+     * @return A non null connection to the first available LDAP server.
+     * @throws ErrorResultException If there was a problem establishing a connection to a valid server.
+     */
+    public Connection getDedicatedConnection() throws ErrorResultException {
+        return dedicatedFactory.getConnection();
+    }
+
     /**
      * Signal that the connection factory should shutdown and release any connections and resources.
      */
     public void shutdown() {
-        factory.close();
+        close();
     }
 
     /**
@@ -135,6 +149,7 @@ public class DataLayerConnectionFactory implements ConnectionFactory, ShutdownLi
      */
     public void close() {
         factory.close();
+        dedicatedFactory.close();
     }
 
     /**
@@ -143,6 +158,6 @@ public class DataLayerConnectionFactory implements ConnectionFactory, ShutdownLi
      * @return the FutureResult from the underlying factory.
      */
     public FutureResult<Connection> getConnectionAsync(ResultHandler<? super Connection> resultHandler) {
-        return getConnectionAsync(resultHandler);
+        return factory.getConnectionAsync(resultHandler);
     }
 }
\ No newline at end of file
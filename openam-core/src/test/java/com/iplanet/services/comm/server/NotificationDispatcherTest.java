@@ -0,0 +1,233 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package com.iplanet.services.comm.server;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import com.iplanet.services.comm.share.Notification;
+import com.iplanet.services.comm.share.NotificationSet;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class NotificationDispatcherTest {
+
+    private URL agent;
+    private URL otherAgent;
+    private RecordingTransport transport;
+    private NotificationDispatcher dispatcher;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        agent = new URL("http://agent.example.com:8080/notification");
+        otherAgent = new URL("http://other.example.com:8080/notification");
+        transport = new RecordingTransport();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void shouldSendNotificationsQueuedWithinWindowAsOneSet() throws Exception {
+        // Given
+        dispatcher = newDispatcher(200, 100, 10, 0);
+        transport.expect(1);
+
+        // When
+        for (int i = 0; i < 5; i++) {
+            dispatcher.dispatch(agent, new Notification("n" + i));
+        }
+
+        // Then
+        assertThat(transport.await()).isTrue();
+        assertThat(transport.sets).hasSize(1);
+        assertThat(transport.sets.get(0).getNotifications()).hasSize(5);
+        assertThat(dispatcher.getDeliveredCount()).isEqualTo(5);
+        assertThat(dispatcher.getBatchCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldSendToEachDestinationSeparately() throws Exception {
+        // Given
+        dispatcher = newDispatcher(50, 100, 10, 0);
+        transport.expect(2);
+
+        // When
+        dispatcher.dispatch(agent, new Notification("a"));
+        dispatcher.dispatch(otherAgent, new Notification("b"));
+
+        // Then
+        assertThat(transport.await()).isTrue();
+        assertThat(transport.urls).containsOnly(agent.toExternalForm(), otherAgent.toExternalForm());
+    }
+
+    @Test
+    public void shouldLimitBatchSize() throws Exception {
+        // Given
+        dispatcher = newDispatcher(200, 2, 10, 0);
+        transport.expect(3);
+
+        // When
+        for (int i = 0; i < 5; i++) {
+            dispatcher.dispatch(agent, new Notification("n" + i));
+        }
+
+        // Then
+        assertThat(transport.await()).isTrue();
+        assertThat(transport.sets.get(0).getNotifications()).hasSize(2);
+        assertThat(transport.sets.get(1).getNotifications()).hasSize(2);
+        assertThat(transport.sets.get(2).getNotifications()).hasSize(1);
+    }
+
+    @Test
+    public void shouldRetryFailedBatch() throws Exception {
+        // Given
+        dispatcher = newDispatcher(10, 100, 10, 2);
+        transport.failures.set(1);
+        transport.expect(1);
+
+        // When
+        dispatcher.dispatch(agent, new Notification("n"));
+
+        // Then
+        assertThat(transport.await()).isTrue();
+        assertThat(dispatcher.getFailureCount()).isEqualTo(1);
+        assertThat(dispatcher.getDeliveredCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldDropBatchWhenRetriesAreExhausted() throws Exception {
+        // Given
+        dispatcher = newDispatcher(10, 100, 10, 1);
+        transport.failures.set(Integer.MAX_VALUE);
+
+        // When
+        dispatcher.dispatch(agent, new Notification("n"));
+
+        // Then
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dispatcher.getDroppedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(dispatcher.getDroppedCount()).isEqualTo(1);
+        assertThat(dispatcher.getFailureCount()).isEqualTo(2);
+        assertThat(dispatcher.getQueueDepth()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldRejectNotificationsWhenQueueIsFull() throws Exception {
+        // Given
+        dispatcher = newDispatcher(10000, 100, 2, 0);
+
+        // When
+        boolean first = dispatcher.dispatch(agent, new Notification("1"));
+        boolean second = dispatcher.dispatch(agent, new Notification("2"));
+        boolean third = dispatcher.dispatch(agent, new Notification("3"));
+
+        // Then
+        assertThat(first).isTrue();
+        assertThat(second).isTrue();
+        assertThat(third).isFalse();
+        assertThat(dispatcher.getDroppedCount()).isEqualTo(1);
+        assertThat(dispatcher.getQueueDepth()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldDeliverQueuedNotificationsOnShutdown() throws Exception {
+        // Given
+        dispatcher = newDispatcher(10000, 100, 10, 0);
+        dispatcher.dispatch(agent, new Notification("1"));
+        dispatcher.dispatch(agent, new Notification("2"));
+
+        // When
+        dispatcher.shutdown();
+
+        // Then
+        assertThat(transport.sets).hasSize(1);
+        assertThat(transport.sets.get(0).getNotifications()).hasSize(2);
+        assertThat(dispatcher.getQueueDepth()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldForgetIdleDestinations() throws Exception {
+        // Given
+        dispatcher = newDispatcher(10, 100, 10, 0);
+        transport.expect(1);
+        dispatcher.dispatch(agent, new Notification("n"));
+        assertThat(transport.await()).isTrue();
+        Thread.sleep(50);
+
+        // When
+        int pruned = dispatcher.pruneIdleDestinations(0);
+
+        // Then
+        assertThat(pruned).isEqualTo(1);
+        assertThat(dispatcher.getDestinationCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotForgetDestinationWithQueuedNotifications() throws Exception {
+        // Given
+        dispatcher = newDispatcher(10000, 100, 10, 0);
+        dispatcher.dispatch(agent, new Notification("n"));
+
+        // When
+        int pruned = dispatcher.pruneIdleDestinations(0);
+
+        // Then
+        assertThat(pruned).isEqualTo(0);
+        assertThat(dispatcher.getDestinationCount()).isEqualTo(1);
+    }
+
+    private NotificationDispatcher newDispatcher(long flushInterval, int maxBatchSize, int maxQueueSize,
+            int maxRetries) {
+        return new NotificationDispatcher("session", 1, flushInterval, maxBatchSize, maxQueueSize, maxRetries, 10,
+                null, transport);
+    }
+
+    private static class RecordingTransport implements NotificationDispatcher.Transport {
+
+        private final List<NotificationSet> sets = new CopyOnWriteArrayList<NotificationSet>();
+        private final List<String> urls = new CopyOnWriteArrayList<String>();
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile CountDownLatch latch = new CountDownLatch(0);
+
+        void expect(int count) {
+            latch = new CountDownLatch(count);
+        }
+
+        boolean await() throws InterruptedException {
+            return latch.await(5, TimeUnit.SECONDS);
+        }
+
+        public void send(URL url, NotificationSet set) throws SendNotificationException {
+            if (failures.getAndDecrement() > 0) {
+                throw new SendNotificationException("unreachable");
+            }
+            sets.add(set);
+            urls.add(url.toExternalForm());
+            latch.countDown();
+        }
+    }
+}
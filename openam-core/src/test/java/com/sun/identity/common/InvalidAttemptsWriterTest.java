@@ -0,0 +1,142 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package com.sun.identity.common;
+
+import com.sun.identity.idm.AMIdentity;
+import static org.fest.assertions.Assertions.*;
+import static org.mockito.Mockito.*;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class InvalidAttemptsWriterTest {
+
+    private static final String USER = "uid=demo,ou=people,dc=example,dc=com";
+    private static final String OTHER_USER = "uid=other,ou=people,dc=example,dc=com";
+
+    private ISAccountLockout lockout;
+    private AMIdentity identity;
+
+    @BeforeMethod
+    public void setUp() {
+        lockout = mock(ISAccountLockout.class);
+        identity = mock(AMIdentity.class);
+        when(lockout.storeInvalidAttempts(any(AMIdentity.class), any(AccountLockoutInfo.class))).thenReturn(true);
+    }
+
+    @Test
+    public void shouldCoalesceWritesForTheSameUser() {
+        InvalidAttemptsWriter writer = new InvalidAttemptsWriter(60000, 100);
+        AccountLockoutInfo acInfo = new AccountLockoutInfo();
+
+        writer.write(USER, lockout, identity, acInfo);
+        writer.write(USER, lockout, identity, acInfo);
+        writer.write(USER, lockout, identity, acInfo);
+
+        verify(lockout, never()).storeInvalidAttempts(any(AMIdentity.class), any(AccountLockoutInfo.class));
+        assertThat(writer.getPending(USER)).isSameAs(acInfo);
+
+        writer.run();
+
+        verify(lockout, times(1)).storeInvalidAttempts(identity, acInfo);
+        assertThat(writer.getPending(USER)).isNull();
+    }
+
+    @Test
+    public void shouldReplacePendingWriteWhenWritingStraightAway() {
+        InvalidAttemptsWriter writer = new InvalidAttemptsWriter(60000, 100);
+        AccountLockoutInfo acInfo = new AccountLockoutInfo();
+
+        writer.write(USER, lockout, identity, acInfo);
+        assertThat(writer.writeNow(USER, lockout, identity, acInfo)).isTrue();
+        writer.run();
+
+        verify(lockout, times(1)).storeInvalidAttempts(identity, acInfo);
+        assertThat(writer.getPendingCount()).isZero();
+    }
+
+    @Test
+    public void shouldWriteStraightAwayWhenTooManyWritesArePending() {
+        InvalidAttemptsWriter writer = new InvalidAttemptsWriter(60000, 1);
+        AccountLockoutInfo acInfo = new AccountLockoutInfo();
+        AccountLockoutInfo otherInfo = new AccountLockoutInfo();
+
+        writer.write(USER, lockout, identity, acInfo);
+        writer.write(OTHER_USER, lockout, identity, otherInfo);
+
+        verify(lockout, never()).storeInvalidAttempts(identity, acInfo);
+        verify(lockout, times(1)).storeInvalidAttempts(identity, otherInfo);
+        assertThat(writer.getPendingCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldWriteStraightAwayWithoutWriteInterval() {
+        InvalidAttemptsWriter writer = new InvalidAttemptsWriter(0, 100);
+        AccountLockoutInfo acInfo = new AccountLockoutInfo();
+        when(lockout.storeInvalidAttempts(identity, acInfo)).thenReturn(false);
+
+        assertThat(writer.write(USER, lockout, identity, acInfo)).isFalse();
+
+        verify(lockout, times(1)).storeInvalidAttempts(identity, acInfo);
+        assertThat(writer.getPending(USER)).isNull();
+    }
+
+    @Test
+    public void shouldShareInformationBetweenConcurrentFirstFailures() {
+        InvalidAttemptsWriter writer = new InvalidAttemptsWriter(60000, 100);
+        AccountLockoutInfo first = new AccountLockoutInfo();
+        AccountLockoutInfo second = new AccountLockoutInfo();
+
+        assertThat(writer.getPending(USER, lockout, identity, first)).isSameAs(first);
+        assertThat(writer.getPending(USER, lockout, identity, second)).isSameAs(first);
+
+        writer.write(USER, lockout, identity, first);
+        writer.run();
+
+        verify(lockout, times(1)).storeInvalidAttempts(identity, first);
+        verify(lockout, never()).storeInvalidAttempts(identity, second);
+    }
+
+    @Test
+    public void shouldKeepFailedWritePendingUntilMaxAttempts() {
+        InvalidAttemptsWriter writer = new InvalidAttemptsWriter(60000, 100);
+        AccountLockoutInfo acInfo = new AccountLockoutInfo();
+        when(lockout.storeInvalidAttempts(identity, acInfo)).thenReturn(false);
+
+        writer.write(USER, lockout, identity, acInfo);
+        for (int i = 1; i < InvalidAttemptsWriter.MAX_ATTEMPTS; i++) {
+            writer.run();
+            assertThat(writer.getPending(USER)).isSameAs(acInfo);
+        }
+        writer.run();
+
+        verify(lockout, times(InvalidAttemptsWriter.MAX_ATTEMPTS)).storeInvalidAttempts(identity, acInfo);
+        assertThat(writer.getPending(USER)).isNull();
+    }
+
+    @Test
+    public void shouldRetryFailedWriteOnNextRun() {
+        InvalidAttemptsWriter writer = new InvalidAttemptsWriter(60000, 100);
+        AccountLockoutInfo acInfo = new AccountLockoutInfo();
+        when(lockout.storeInvalidAttempts(identity, acInfo)).thenReturn(false).thenReturn(true);
+
+        writer.write(USER, lockout, identity, acInfo);
+        writer.run();
+        writer.run();
+
+        verify(lockout, times(2)).storeInvalidAttempts(identity, acInfo);
+        assertThat(writer.getPendingCount()).isZero();
+    }
+}
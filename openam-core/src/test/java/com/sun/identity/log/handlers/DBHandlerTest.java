@@ -0,0 +1,209 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package com.sun.identity.log.handlers;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+
+import com.sun.identity.log.AMLogException;
+import com.sun.identity.log.LogConstants;
+import com.sun.identity.log.LogManager;
+import com.sun.identity.shared.Constants;
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class DBHandlerTest {
+
+    private static final String DRIVER = "org.h2.Driver";
+    private static final String USER = "sa";
+    private static final String PASSWORD = "secret";
+    private static final String TABLE = "amAuthentication_access";
+
+    /**
+     * H2 has no Oracle data dictionary, so every new database gets the two views the handler looks its table and
+     * columns up in.
+     */
+    private static final String ORACLE_DICTIONARY = ";INIT="
+            + "CREATE VIEW IF NOT EXISTS ALL_TABLES AS SELECT TABLE_NAME FROM INFORMATION_SCHEMA.TABLES\\;"
+            + "CREATE VIEW IF NOT EXISTS USER_TAB_COLUMNS AS SELECT TABLE_NAME, COLUMN_NAME"
+            + " FROM INFORMATION_SCHEMA.COLUMNS";
+
+    private static int databaseCount = 0;
+
+    private String url;
+    private String formatter;
+    private DBHandler handler;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        url = "jdbc:h2:mem:dbhandler" + (++databaseCount) + ";DB_CLOSE_DELAY=-1" + ORACLE_DICTIONARY;
+        formatter = LogManager.FORMATTER;
+        LogManager.FORMATTER = ColumnsFormatter.class.getName();
+        System.setProperty(Constants.LOG_DB_BATCH_SIZE, "2");
+
+        LogManager logManager = mock(LogManager.class);
+        given(logManager.getProperty(LogConstants.LOG_LOCATION)).willReturn(url);
+        given(logManager.getProperty(LogConstants.DB_DRIVER)).willReturn(DRIVER);
+        given(logManager.getProperty(LogConstants.DB_USER)).willReturn(USER);
+        given(logManager.getProperty(LogConstants.DB_PASSWORD)).willReturn(PASSWORD);
+        given(logManager.getProperty(LogConstants.BUFFER_SIZE)).willReturn("100");
+        given(logManager.getProperty(LogConstants.DB_MEM_MAX_RECS)).willReturn("1000");
+        given(logManager.getProperty(LogConstants.LOG_STATUS_ATTR)).willReturn("ACTIVE");
+        given(logManager.getProperty(LogConstants.ORA_DBDATA_FIELDTYPE)).willReturn("CLOB");
+        // getAllFields() is final, so set the fields it returns
+        Field allFields = LogManager.class.getDeclaredField("allFields");
+        allFields.setAccessible(true);
+        allFields.set(logManager, new String[] {"time", "Data", "LoginID", "ContextID"});
+
+        handler = new DBHandler("amAuthentication.access", logManager);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        handler.close();
+        DBConnectionPool.closeAll();
+        System.clearProperty(Constants.LOG_DB_BATCH_SIZE);
+        LogManager.FORMATTER = formatter;
+    }
+
+    @Test
+    public void shouldCreateTableAndInsertRecordsInBatches() throws Exception {
+        // Given
+        publish(5);
+
+        // When
+        handler.flush();
+
+        // Then
+        assertThat(countRows()).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldHandConnectionBackWithAutoCommitRestored() throws Exception {
+        // Given
+        publish(3);
+        handler.flush();
+
+        // When
+        handler.close();
+
+        // Then
+        DBConnectionPool pool = DBConnectionPool.getInstance(DRIVER, url, USER, PASSWORD);
+        assertThat(pool.getIdleCount()).isEqualTo(1);
+        Connection conn = pool.getConnection();
+        try {
+            assertThat(conn.getAutoCommit()).isTrue();
+        } finally {
+            pool.release(conn);
+        }
+    }
+
+    @Test
+    public void shouldReconnectAndCreateTableWhenConnectionIsLost() throws Exception {
+        // Given
+        publish(2);
+        handler.flush();
+        execute("SHUTDOWN");
+
+        // When
+        publish(3);
+        handler.flush();
+
+        // Then
+        assertThat(countRows()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldKeepRecordsOfFailedBatchForNextFlush() throws Exception {
+        // Given
+        execute("DROP TABLE " + TABLE);
+        publish(3);
+        boolean failed = false;
+        try {
+            handler.flush();
+        } catch (AMLogException e) {
+            failed = true;
+        }
+        execute("CREATE TABLE " + TABLE
+                + " (TIME DATE, DATA CLOB, LOGINID VARCHAR(255), CONTEXTID VARCHAR(255))");
+
+        // When
+        handler.flush();
+
+        // Then
+        assertThat(failed).isTrue();
+        assertThat(countRows()).isEqualTo(3);
+    }
+
+    private void publish(int count) {
+        for (int i = 0; i < count; i++) {
+            handler.publish(new LogRecord(Level.INFO, "record " + i));
+        }
+    }
+
+    private void execute(String sql) throws SQLException {
+        Connection conn = DriverManager.getConnection(url, USER, PASSWORD);
+        try {
+            Statement stmt = conn.createStatement();
+            stmt.execute(sql);
+            stmt.close();
+        } finally {
+            conn.close();
+        }
+    }
+
+    private int countRows() throws SQLException {
+        Connection conn = DriverManager.getConnection(url, USER, PASSWORD);
+        try {
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + TABLE);
+            rs.next();
+            int count = rs.getInt(1);
+            stmt.close();
+            return count;
+        } finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * Names the columns as DBFormatter does, without needing the log configuration.
+     */
+    public static class ColumnsFormatter extends Formatter {
+
+        @Override
+        public String format(LogRecord record) {
+            return formatMessage(record);
+        }
+
+        @Override
+        public String getHead(Handler h) {
+            return "time, Data, LoginID, ContextID";
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package com.sun.identity.log.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class GroupCommitWriterTest {
+
+    private GroupCommitWriter writer;
+
+    @AfterMethod
+    public void tearDown() {
+        if (writer != null) {
+            writer.stop();
+        }
+    }
+
+    @Test
+    public void shouldWriteRecordsInOrderBeforeFlushReturns() {
+        // Given
+        writer = new GroupCommitWriter(16, 4, GroupCommitWriter.FsyncPolicy.NONE, 1000);
+        writer.start();
+        RecordingTarget target = new RecordingTarget();
+
+        // When
+        for (int i = 0; i < 100; i++) {
+            writer.write(target, i);
+        }
+        boolean flushed = writer.flush(target, 10000);
+
+        // Then
+        assertThat(flushed).isTrue();
+        assertThat(target.records).hasSize(100);
+        for (int i = 0; i < 100; i++) {
+            assertThat(target.records.get(i)).isEqualTo(i);
+        }
+        assertThat(target.syncs).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldWriteRecordsOfEachTargetSeparately() {
+        // Given
+        writer = new GroupCommitWriter(16, 16, GroupCommitWriter.FsyncPolicy.NONE, 1000);
+        writer.start();
+        RecordingTarget first = new RecordingTarget();
+        RecordingTarget second = new RecordingTarget();
+
+        // When
+        writer.write(first, "a");
+        writer.write(second, "b");
+        writer.write(first, "c");
+        writer.flush(first, 10000);
+        writer.flush(second, 10000);
+
+        // Then
+        assertThat(first.records).containsExactly("a", "c");
+        assertThat(second.records).containsExactly("b");
+    }
+
+    @Test
+    public void shouldSyncAfterEachGroupWhenPolicyIsBatch() {
+        // Given
+        writer = new GroupCommitWriter(16, 16, GroupCommitWriter.FsyncPolicy.BATCH, 1000);
+        writer.start();
+        RecordingTarget target = new RecordingTarget();
+
+        // When
+        writer.write(target, "a");
+        writer.flush(target, 10000);
+
+        // Then
+        assertThat(target.syncs).isGreaterThan(0);
+        assertThat(target.syncs).isEqualTo(target.groups);
+    }
+
+    @Test
+    public void shouldWriteOnCallingThreadOnceStopped() {
+        // Given
+        writer = new GroupCommitWriter(16, 16, GroupCommitWriter.FsyncPolicy.BATCH, 1000);
+        writer.start();
+        writer.stop();
+        RecordingTarget target = new RecordingTarget();
+
+        // When
+        writer.write(target, "a");
+
+        // Then
+        assertThat(target.records).containsExactly("a");
+        assertThat(target.forced).isTrue();
+        assertThat(target.syncs).isEqualTo(1);
+    }
+
+    private static final class RecordingTarget implements GroupCommitWriter.Target {
+        private final List<Object> records = new ArrayList<Object>();
+        private volatile int groups;
+        private volatile int syncs;
+        private volatile boolean forced;
+
+        public synchronized boolean write(List<Object> records, boolean force) {
+            forced |= force;
+            if (records.isEmpty()) {
+                return false;
+            }
+            this.records.addAll(records);
+            groups++;
+            return true;
+        }
+
+        public synchronized void sync() {
+            syncs++;
+        }
+    }
+}
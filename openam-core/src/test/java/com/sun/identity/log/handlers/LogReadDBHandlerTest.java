@@ -0,0 +1,148 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package com.sun.identity.log.handlers;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+
+import com.sun.identity.log.AMLogException;
+import com.sun.identity.log.LogConstants;
+import com.sun.identity.log.LogQuery;
+import com.sun.identity.shared.Constants;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.logging.LogManager;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class LogReadDBHandlerTest {
+
+    private static final String DRIVER = "org.h2.Driver";
+    private static final String USER = "sa";
+    private static final String PASSWORD = "secret";
+    private static final String TABLE = "amAuthentication_access";
+    private static final int ROWS = 25;
+
+    private static int databaseCount = 0;
+
+    private String url;
+    private LogManager logManager;
+    private LogReadDBHandler reader;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        url = "jdbc:h2:mem:logreaddbhandler" + (++databaseCount) + ";DB_CLOSE_DELAY=-1";
+        Connection conn = DriverManager.getConnection(url, USER, PASSWORD);
+        try {
+            Statement stmt = conn.createStatement();
+            stmt.execute("CREATE TABLE " + TABLE + " (TIME TIMESTAMP, DATA VARCHAR(255), LOGINID VARCHAR(255))");
+            stmt.close();
+            PreparedStatement insert = conn.prepareStatement("INSERT INTO " + TABLE + " VALUES (?, ?, ?)");
+            for (int i = 0; i < ROWS; i++) {
+                insert.setTimestamp(1, new Timestamp(i * 1000L));
+                insert.setString(2, "record " + i);
+                insert.setString(3, "user" + i);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            insert.close();
+        } finally {
+            conn.close();
+        }
+
+        logManager = mock(LogManager.class);
+        given(logManager.getProperty(LogConstants.LOG_LOCATION)).willReturn(url);
+        given(logManager.getProperty(LogConstants.DB_DRIVER)).willReturn(DRIVER);
+        given(logManager.getProperty(LogConstants.DB_USER)).willReturn(USER);
+        given(logManager.getProperty(LogConstants.DB_PASSWORD)).willReturn(PASSWORD);
+
+        // fetch fewer rows at a time than the table holds
+        System.setProperty(Constants.LOG_DB_FETCH_SIZE, "10");
+        reader = new LogReadDBHandler();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        DBConnectionPool.closeAll();
+        System.clearProperty(Constants.LOG_DB_FETCH_SIZE);
+    }
+
+    @Test
+    public void shouldReadEveryRowAcrossFetches() throws Exception {
+        // Given
+        given(logManager.getProperty(LogConstants.MAX_RECORDS)).willReturn("100");
+
+        // When
+        String[][] result = reader.logRecRead(TABLE, new LogQuery(LogQuery.ALL_RECORDS), logManager, false);
+
+        // Then
+        assertThat(result.length).isEqualTo(ROWS + 1);
+        assertThat(result[0]).isEqualTo(new String[] {"TIME", "DATA", "LOGINID"});
+        assertThat(result[1][1]).isEqualTo("record 0");
+        assertThat(result[ROWS][1]).isEqualTo("record " + (ROWS - 1));
+    }
+
+    @Test
+    public void shouldReadAllRowsWhenTheyFitExactly() throws Exception {
+        // Given
+        given(logManager.getProperty(LogConstants.MAX_RECORDS)).willReturn(String.valueOf(ROWS));
+
+        // When
+        String[][] result = reader.logRecRead(TABLE, new LogQuery(LogQuery.ALL_RECORDS), logManager, false);
+
+        // Then
+        assertThat(result.length).isEqualTo(ROWS + 1);
+    }
+
+    @Test
+    public void shouldStopReadingOnceThereAreTooManyRows() throws Exception {
+        // Given
+        given(logManager.getProperty(LogConstants.MAX_RECORDS)).willReturn("10");
+
+        // When
+        String message = null;
+        try {
+            reader.logRecRead(TABLE, new LogQuery(LogQuery.ALL_RECORDS), logManager, false);
+        } catch (AMLogException e) {
+            message = e.getMessage();
+        }
+
+        // Then
+        assertThat(message).isEqualTo(AMLogException.LOG_DB_TOOMANYRECORDS);
+    }
+
+    @Test
+    public void shouldReuseConnectionForNextRead() throws Exception {
+        // Given
+        given(logManager.getProperty(LogConstants.MAX_RECORDS)).willReturn("100");
+        reader.logRecRead(TABLE, new LogQuery(LogQuery.ALL_RECORDS), logManager, false);
+        DBConnectionPool pool = DBConnectionPool.getInstance(DRIVER, url, USER, PASSWORD);
+        Connection conn = pool.getConnection();
+        pool.release(conn);
+
+        // When
+        reader.logRecRead(TABLE, new LogQuery(LogQuery.ALL_RECORDS), logManager, false);
+
+        // Then
+        assertThat(pool.getIdleCount()).isEqualTo(1);
+        assertThat(pool.getConnection()).isSameAs(conn);
+    }
+}
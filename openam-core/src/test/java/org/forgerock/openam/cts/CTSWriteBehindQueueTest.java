@@ -0,0 +1,250 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.cts;
+
+import com.sun.identity.shared.debug.Debug;
+import com.sun.identity.shared.stats.Stats;
+import org.forgerock.openam.core.guice.CoreGuiceModule;
+import org.forgerock.openam.cts.api.TokenResultHandler;
+import org.forgerock.openam.cts.api.TokenType;
+import org.forgerock.openam.cts.api.tokens.Token;
+import org.forgerock.openam.cts.impl.AsyncCoreTokenAdapter;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.mock;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class CTSWriteBehindQueueTest {
+
+    private AsyncCoreTokenAdapter mockAdapter;
+    private ScheduledExecutorService mockScheduler;
+    private CoreTokenConfig mockConfig;
+    private CTSWriteBehindQueue queue;
+
+    @BeforeMethod
+    public void setUp() {
+        mockAdapter = mock(AsyncCoreTokenAdapter.class);
+        mockScheduler = mock(ScheduledExecutorService.class);
+
+        mockConfig = mock(CoreTokenConfig.class);
+        given(mockConfig.isWriteBehindEnabled()).willReturn(true);
+        given(mockConfig.getWriteBehindQueueSize()).willReturn(10);
+        given(mockConfig.getWriteBehindBatchSize()).willReturn(5);
+        given(mockConfig.getWriteBehindMaxDelay()).willReturn(1);
+
+        // Every write completes immediately.
+        willAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                Token token = (Token) invocation.getArguments()[0];
+                TokenResultHandler<Token> handler = (TokenResultHandler<Token>) invocation.getArguments()[1];
+                handler.processResults(token);
+                return null;
+            }
+        }).given(mockAdapter).updateOrCreate(any(Token.class), any(TokenResultHandler.class));
+
+        queue = newQueue();
+    }
+
+    private CTSWriteBehindQueue newQueue() {
+        return new CTSWriteBehindQueue(mockAdapter, mockConfig, mockScheduler,
+                mock(CoreGuiceModule.ShutdownManagerWrapper.class), mock(Stats.class), mock(Debug.class));
+    }
+
+    @Test
+    public void shouldCoalesceUpdatesToTheSameToken() {
+        // Given
+        Token first = new Token("badger", TokenType.SESSION);
+        Token second = new Token("badger", TokenType.SESSION);
+        TokenResultHandler<Token> firstHandler = mock(TokenResultHandler.class);
+        TokenResultHandler<Token> secondHandler = mock(TokenResultHandler.class);
+
+        // When
+        queue.update(first, firstHandler);
+        queue.update(second, secondHandler);
+        queue.flush();
+
+        // Then
+        verify(mockAdapter, times(1)).updateOrCreate(eq(second), any(TokenResultHandler.class));
+        verify(firstHandler).processResults(second);
+        verify(secondHandler).processResults(second);
+        assertThat(queue.getCoalescingRatio()).isEqualTo(0.5);
+    }
+
+    @Test
+    public void shouldNotWriteUntilFlushed() {
+        // Given
+        // When
+        queue.update(new Token("badger", TokenType.SESSION), mock(TokenResultHandler.class));
+
+        // Then
+        verify(mockAdapter, never()).updateOrCreate(any(Token.class), any(TokenResultHandler.class));
+        assertThat(queue.getQueueDepth()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldScheduleFlushWhenBatchSizeReached() {
+        // Given
+        // When
+        for (int i = 0; i < 5; i++) {
+            queue.update(new Token("token" + i, TokenType.SESSION), mock(TokenResultHandler.class));
+        }
+
+        // Then
+        verify(mockScheduler).execute(any(Runnable.class));
+    }
+
+    @Test
+    public void shouldProvideCopyOfPendingToken() {
+        // Given
+        Token token = new Token("badger", TokenType.SESSION);
+        queue.update(token, mock(TokenResultHandler.class));
+
+        // When
+        Token pending = queue.getPending("badger");
+
+        // Then
+        assertThat(pending).isNotSameAs(token);
+        assertThat(pending.getTokenId()).isEqualTo("badger");
+        assertThat(queue.getPending("weasel")).isNull();
+    }
+
+    @Test
+    public void shouldDiscardPendingUpdateOnCancel() {
+        // Given
+        queue.update(new Token("badger", TokenType.SESSION), mock(TokenResultHandler.class));
+
+        // When
+        queue.cancel("badger");
+        queue.flush();
+
+        // Then
+        assertThat(queue.getQueueDepth()).isEqualTo(0);
+        verify(mockAdapter, never()).updateOrCreate(any(Token.class), any(TokenResultHandler.class));
+    }
+
+    @Test
+    public void shouldWriteDirectlyWhenQueueRemainsFull() {
+        // Given
+        given(mockConfig.getWriteBehindQueueSize()).willReturn(1);
+        queue = newQueue();
+        queue.update(new Token("badger", TokenType.SESSION), mock(TokenResultHandler.class));
+        Token overflow = new Token("weasel", TokenType.SESSION);
+
+        // When
+        queue.update(overflow, mock(TokenResultHandler.class));
+
+        // Then
+        verify(mockAdapter).updateOrCreate(eq(overflow), any(TokenResultHandler.class));
+        assertThat(queue.getQueueDepth()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldFlushInBatches() {
+        // Given
+        for (int i = 0; i < 7; i++) {
+            queue.update(new Token("token" + i, TokenType.SESSION), mock(TokenResultHandler.class));
+        }
+
+        // When
+        queue.flush();
+
+        // Then
+        verify(mockAdapter, times(7)).updateOrCreate(any(Token.class), any(TokenResultHandler.class));
+        assertThat(queue.getQueueDepth()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotHoldQueueLockWhileWriting() throws Exception {
+        // Given
+        final AtomicBoolean queueAvailable = new AtomicBoolean(false);
+        willAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                Thread reader = new Thread(new Runnable() {
+                    public void run() {
+                        queue.getQueueDepth();
+                        queueAvailable.set(true);
+                    }
+                });
+                reader.start();
+                reader.join(1000);
+                return null;
+            }
+        }).given(mockAdapter).updateOrCreate(any(Token.class), any(TokenResultHandler.class));
+        queue.update(new Token("badger", TokenType.SESSION), mock(TokenResultHandler.class));
+
+        // When
+        queue.flush();
+
+        // Then
+        assertThat(queueAvailable.get()).isTrue();
+    }
+
+    @Test
+    public void shouldProvideTokenTakenFromQueueUntilItIsWritten() {
+        // Given
+        final AtomicBoolean visible = new AtomicBoolean(false);
+        willAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                visible.set(queue.getPending("badger") != null);
+                return null;
+            }
+        }).given(mockAdapter).updateOrCreate(any(Token.class), any(TokenResultHandler.class));
+        queue.update(new Token("badger", TokenType.SESSION), mock(TokenResultHandler.class));
+
+        // When
+        queue.flush();
+
+        // Then
+        assertThat(visible.get()).isTrue();
+        assertThat(queue.getPending("badger")).isNull();
+    }
+
+    @Test
+    public void shouldSkipFlushWhileAnotherFlushIsRunning() {
+        // Given
+        final Token newer = new Token("badger", TokenType.SESSION);
+        willAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                if (invocation.getArguments()[0] != newer) {
+                    queue.update(newer, mock(TokenResultHandler.class));
+                    queue.flush();
+                }
+                return null;
+            }
+        }).given(mockAdapter).updateOrCreate(any(Token.class), any(TokenResultHandler.class));
+        queue.update(new Token("badger", TokenType.SESSION), mock(TokenResultHandler.class));
+
+        // When
+        queue.flush();
+
+        // Then
+        verify(mockAdapter, never()).updateOrCreate(eq(newer), any(TokenResultHandler.class));
+        assertThat(queue.getQueueDepth()).isEqualTo(1);
+    }
+}
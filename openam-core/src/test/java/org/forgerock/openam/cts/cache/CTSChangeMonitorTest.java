@@ -0,0 +1,129 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.cts.cache;
+
+import com.sun.identity.shared.debug.Debug;
+import com.sun.identity.shared.stats.Stats;
+import org.forgerock.openam.core.guice.CoreGuiceModule;
+import org.forgerock.openam.cts.CoreTokenConfig;
+import org.forgerock.openam.cts.impl.CTSConnectionFactory;
+import org.forgerock.openam.cts.impl.LDAPConfig;
+import org.forgerock.opendj.ldap.Connection;
+import org.forgerock.opendj.ldap.DN;
+import org.forgerock.opendj.ldap.FutureResult;
+import org.forgerock.opendj.ldap.IntermediateResponseHandler;
+import org.forgerock.opendj.ldap.SearchResultHandler;
+import org.forgerock.opendj.ldap.requests.SearchRequest;
+import org.forgerock.opendj.ldap.responses.Result;
+import org.forgerock.opendj.ldap.responses.SearchResultEntry;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.mock;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.verify;
+
+public class CTSChangeMonitorTest {
+
+    private ScheduledExecutorService mockScheduler;
+    private FutureResult<Result> mockSearch;
+    private CTSReadCache cache;
+    private CTSChangeMonitor monitor;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        mockScheduler = mock(ScheduledExecutorService.class);
+        mockSearch = mock(FutureResult.class);
+
+        Connection mockConnection = mock(Connection.class);
+        given(mockConnection.searchAsync(any(SearchRequest.class), any(IntermediateResponseHandler.class),
+                any(SearchResultHandler.class))).willReturn(mockSearch);
+        CTSConnectionFactory mockFactory = mock(CTSConnectionFactory.class);
+        given(mockFactory.getDedicatedConnection()).willReturn(mockConnection);
+
+        LDAPConfig mockLDAPConfig = mock(LDAPConfig.class);
+        given(mockLDAPConfig.getTokenStoreRootSuffix()).willReturn(DN.valueOf("ou=tokens,dc=example,dc=com"));
+
+        CoreTokenConfig mockConfig = mock(CoreTokenConfig.class);
+        given(mockConfig.getReadCacheSize()).willReturn(2);
+        given(mockConfig.getReadCacheMaxTimeToLive()).willReturn(60000);
+        cache = new CTSReadCache(mockConfig, mock(Stats.class));
+
+        monitor = new CTSChangeMonitor(mockFactory, mockLDAPConfig, cache, mockScheduler,
+                mock(CoreGuiceModule.ShutdownManagerWrapper.class), mock(Debug.class));
+    }
+
+    @Test
+    public void shouldNotActivateCacheWhenSearchIsIssued() {
+        // Given
+        // When
+        monitor.start();
+
+        // Then
+        assertThat(cache.isActive()).isFalse();
+    }
+
+    @Test
+    public void shouldActivateCacheOnceSearchIsConfirmed() {
+        // Given
+        monitor.start();
+        given(mockSearch.isDone()).willReturn(false);
+
+        // When
+        scheduledConfirmation().run();
+
+        // Then
+        assertThat(cache.isActive()).isTrue();
+    }
+
+    @Test
+    public void shouldNotActivateCacheWhenSearchEndedBeforeConfirmation() {
+        // Given
+        monitor.start();
+        given(mockSearch.isDone()).willReturn(true);
+
+        // When
+        scheduledConfirmation().run();
+
+        // Then
+        assertThat(cache.isActive()).isFalse();
+    }
+
+    @Test
+    public void shouldActivateCacheOnFirstNotification() {
+        // Given
+        monitor.start();
+
+        // When
+        monitor.handleEntry(mock(SearchResultEntry.class));
+
+        // Then
+        assertThat(cache.isActive()).isTrue();
+    }
+
+    private Runnable scheduledConfirmation() {
+        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        verify(mockScheduler).schedule(captor.capture(), anyLong(), any(TimeUnit.class));
+        return captor.getValue();
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.cts.cache;
+
+import com.sun.identity.shared.stats.Stats;
+import org.forgerock.openam.cts.CoreTokenConfig;
+import org.forgerock.openam.cts.api.TokenType;
+import org.forgerock.openam.cts.api.tokens.Token;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Calendar;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.mock;
+
+public class CTSReadCacheTest {
+
+    private CoreTokenConfig mockConfig;
+    private CTSReadCache cache;
+
+    @BeforeMethod
+    public void setUp() {
+        mockConfig = mock(CoreTokenConfig.class);
+        given(mockConfig.getReadCacheSize()).willReturn(2);
+        given(mockConfig.getReadCacheMaxTimeToLive()).willReturn(60000);
+
+        cache = new CTSReadCache(mockConfig, mock(Stats.class));
+        cache.setActive(true);
+    }
+
+    @Test
+    public void shouldReturnCopyOfCachedToken() {
+        // Given
+        Token token = new Token("badger", TokenType.SESSION);
+        cache.put(token, cache.getGeneration("badger"));
+
+        // When
+        Token result = cache.get("badger");
+
+        // Then
+        assertThat(result).isNotNull().isNotSameAs(token);
+        assertThat(result.getTokenId()).isEqualTo("badger");
+    }
+
+    @Test
+    public void shouldNotCacheWhenInactive() {
+        // Given
+        cache.setActive(false);
+
+        // When
+        cache.put(new Token("badger", TokenType.SESSION), cache.getGeneration("badger"));
+
+        // Then
+        assertThat(cache.get("badger")).isNull();
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldBeDisabledWithoutSize() {
+        // Given
+        given(mockConfig.getReadCacheSize()).willReturn(0);
+
+        // When
+        cache = new CTSReadCache(mockConfig, mock(Stats.class));
+        cache.setActive(true);
+
+        // Then
+        assertThat(cache.isEnabled()).isFalse();
+        assertThat(cache.isActive()).isFalse();
+    }
+
+    @Test
+    public void shouldDiscardTokenOnInvalidate() {
+        // Given
+        cache.put(new Token("badger", TokenType.SESSION), cache.getGeneration("badger"));
+
+        // When
+        cache.invalidate("badger");
+
+        // Then
+        assertThat(cache.get("badger")).isNull();
+    }
+
+    @Test
+    public void shouldNotCacheTokenReadBeforeInvalidation() {
+        // Given
+        long generation = cache.getGeneration("badger");
+        cache.invalidate("badger");
+
+        // When
+        cache.put(new Token("badger", TokenType.SESSION), generation);
+
+        // Then
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedToken() {
+        // Given
+        cache.put(new Token("badger", TokenType.SESSION), cache.getGeneration("badger"));
+        cache.put(new Token("ferret", TokenType.SESSION), cache.getGeneration("ferret"));
+        cache.get("badger");
+
+        // When
+        cache.put(new Token("weasel", TokenType.SESSION), cache.getGeneration("weasel"));
+
+        // Then
+        assertThat(cache.get("ferret")).isNull();
+        assertThat(cache.get("badger")).isNotNull();
+        assertThat(cache.get("weasel")).isNotNull();
+    }
+
+    @Test
+    public void shouldNotCacheExpiredToken() {
+        // Given
+        Token token = new Token("badger", TokenType.SESSION);
+        Calendar expired = Calendar.getInstance();
+        expired.add(Calendar.MINUTE, -1);
+        token.setExpiryTimestamp(expired);
+
+        // When
+        cache.put(token, cache.getGeneration("badger"));
+
+        // Then
+        assertThat(cache.get("badger")).isNull();
+    }
+
+    @Test
+    public void shouldClearWhenDeactivated() {
+        // Given
+        cache.put(new Token("badger", TokenType.SESSION), cache.getGeneration("badger"));
+
+        // When
+        cache.setActive(false);
+        cache.setActive(true);
+
+        // Then
+        assertThat(cache.get("badger")).isNull();
+    }
+
+    @Test
+    public void shouldCacheTokenReadDuringInvalidationOfAnotherStripe() {
+        // Given
+        String other = tokenInAnotherStripe("badger");
+        long generation = cache.getGeneration("badger");
+        cache.invalidate(other);
+
+        // When
+        cache.put(new Token("badger", TokenType.SESSION), generation);
+
+        // Then
+        assertThat(cache.get("badger")).isNotNull();
+    }
+
+    @Test
+    public void shouldNotCacheTokenReadBeforeClear() {
+        // Given
+        long generation = cache.getGeneration("badger");
+        cache.clear();
+
+        // When
+        cache.put(new Token("badger", TokenType.SESSION), generation);
+
+        // Then
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    private String tokenInAnotherStripe(String tokenId) {
+        for (int i = 0; ; i++) {
+            String candidate = "token" + i;
+            long before = cache.getGeneration(tokenId);
+            cache.invalidate(candidate);
+            if (cache.getGeneration(tokenId) == before) {
+                return candidate;
+            }
+        }
+    }
+}
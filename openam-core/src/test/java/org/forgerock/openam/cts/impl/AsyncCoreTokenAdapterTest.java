@@ -0,0 +1,194 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.cts.impl;
+
+import com.sun.identity.shared.debug.Debug;
+import org.forgerock.openam.core.guice.CoreGuiceModule;
+import org.forgerock.openam.cts.CoreTokenConfig;
+import org.forgerock.openam.cts.api.FutureTokenResult;
+import org.forgerock.openam.cts.api.TokenType;
+import org.forgerock.openam.cts.api.tokens.Token;
+import org.forgerock.openam.cts.exceptions.CoreTokenException;
+import org.forgerock.openam.cts.exceptions.CreateFailedException;
+import org.forgerock.opendj.ldap.Connection;
+import org.forgerock.opendj.ldap.ConnectionFactory;
+import org.forgerock.opendj.ldap.ErrorResultException;
+import org.forgerock.opendj.ldap.ResultCode;
+import org.forgerock.opendj.ldap.ResultHandler;
+import org.forgerock.opendj.ldap.responses.Result;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.mock;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class AsyncCoreTokenAdapterTest {
+    private Connection mockConnection;
+    private ConnectionFactory mockConnectionFactory;
+    private LDAPAdapter mockLDAPAdapter;
+    private AsyncCoreTokenAdapter adapter;
+
+    @BeforeMethod
+    public void setup() {
+        mockConnection = mock(Connection.class);
+        given(mockConnection.isValid()).willReturn(true);
+
+        mockConnectionFactory = mock(ConnectionFactory.class);
+        willAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                ResultHandler<Connection> handler = (ResultHandler<Connection>) invocation.getArguments()[0];
+                handler.handleResult(mockConnection);
+                return null;
+            }
+        }).given(mockConnectionFactory).getConnectionAsync(any(ResultHandler.class));
+
+        mockLDAPAdapter = mock(LDAPAdapter.class);
+
+        CoreTokenConfig mockConfig = mock(CoreTokenConfig.class);
+        given(mockConfig.getAsyncConnectionCount()).willReturn(1);
+
+        adapter = new AsyncCoreTokenAdapter(mockConnectionFactory, mockLDAPAdapter, mockConfig,
+                mock(CoreGuiceModule.ShutdownManagerWrapper.class), mock(Debug.class));
+    }
+
+    @Test
+    public void shouldCreateTokenAndNotifyHandler() throws CoreTokenException {
+        // Given
+        Token token = new Token("badger", TokenType.SESSION);
+        willAnswer(completeWith(2, null)).given(mockLDAPAdapter)
+                .createAsync(any(Connection.class), eq(token), any(ResultHandler.class));
+        FutureTokenResult<Token> result = new FutureTokenResult<Token>();
+
+        // When
+        adapter.create(token, result);
+
+        // Then
+        assertThat(result.getResults()).isSameAs(token);
+    }
+
+    @Test
+    public void shouldReuseConnectionForSubsequentOperations() throws CoreTokenException {
+        // Given
+        willAnswer(completeWith(2, null)).given(mockLDAPAdapter)
+                .deleteAsync(any(Connection.class), anyString(), any(ResultHandler.class));
+
+        // When
+        adapter.delete("one", new FutureTokenResult<String>());
+        adapter.delete("two", new FutureTokenResult<String>());
+        adapter.delete("three", new FutureTokenResult<String>());
+
+        // Then
+        verify(mockConnectionFactory, times(1)).getConnectionAsync(any(ResultHandler.class));
+        verify(mockLDAPAdapter, times(3)).deleteAsync(eq(mockConnection), anyString(), any(ResultHandler.class));
+    }
+
+    @Test
+    public void shouldReplaceInvalidConnection() {
+        // Given
+        willAnswer(completeWith(2, null)).given(mockLDAPAdapter)
+                .deleteAsync(any(Connection.class), anyString(), any(ResultHandler.class));
+        adapter.delete("one", new FutureTokenResult<String>());
+        given(mockConnection.isValid()).willReturn(false);
+
+        // When
+        adapter.delete("two", new FutureTokenResult<String>());
+
+        // Then
+        verify(mockConnectionFactory, times(2)).getConnectionAsync(any(ResultHandler.class));
+    }
+
+    @Test
+    public void shouldSequenceOperationsAgainstTheSameToken() {
+        // Given
+        final List<ResultHandler<Result>> pending = new ArrayList<ResultHandler<Result>>();
+        willAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                pending.add((ResultHandler<Result>) invocation.getArguments()[2]);
+                return null;
+            }
+        }).given(mockLDAPAdapter).deleteAsync(any(Connection.class), anyString(), any(ResultHandler.class));
+
+        // When
+        adapter.delete("badger", new FutureTokenResult<String>());
+        adapter.delete("badger", new FutureTokenResult<String>());
+        adapter.delete("ferret", new FutureTokenResult<String>());
+
+        // Then
+        assertThat(pending).hasSize(2);
+        pending.get(0).handleResult(null);
+        assertThat(pending).hasSize(3);
+    }
+
+    @Test
+    public void shouldTreatDeleteOfMissingTokenAsSuccess() throws CoreTokenException {
+        // Given
+        willAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                ResultHandler<Result> handler = (ResultHandler<Result>) invocation.getArguments()[2];
+                handler.handleErrorResult(ErrorResultException.newErrorResult(ResultCode.NO_SUCH_OBJECT));
+                return null;
+            }
+        }).given(mockLDAPAdapter).deleteAsync(any(Connection.class), anyString(), any(ResultHandler.class));
+        FutureTokenResult<String> result = new FutureTokenResult<String>();
+
+        // When
+        adapter.delete("badger", result);
+
+        // Then
+        assertThat(result.getResults()).isEqualTo("badger");
+    }
+
+    @Test (expectedExceptions = CreateFailedException.class)
+    public void shouldFailOperationWhenConnectionCannotBeObtained() throws CoreTokenException {
+        // Given
+        willAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                ResultHandler<Connection> handler = (ResultHandler<Connection>) invocation.getArguments()[0];
+                handler.handleErrorResult(ErrorResultException.newErrorResult(ResultCode.UNAVAILABLE));
+                return null;
+            }
+        }).given(mockConnectionFactory).getConnectionAsync(any(ResultHandler.class));
+        FutureTokenResult<Token> result = new FutureTokenResult<Token>();
+
+        // When
+        adapter.create(new Token("badger", TokenType.SESSION), result);
+
+        // Then
+        result.getResults();
+    }
+
+    private static Answer completeWith(final int handlerIndex, final Object value) {
+        return new Answer() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                ResultHandler handler = (ResultHandler) invocation.getArguments()[handlerIndex];
+                handler.handleResult(value);
+                return null;
+            }
+        };
+    }
+}
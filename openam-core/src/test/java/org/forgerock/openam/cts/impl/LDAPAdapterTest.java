@@ -1,5 +1,5 @@
 /**
- * Copyright 2013 ForgeRock AS.
+ * Copyright 2013-2015 ForgeRock AS.
  *
  * The contents of this file are subject to the terms of the Common Development and
  * Distribution License (the License). You may not use this file except in compliance with the
@@ -25,8 +25,10 @@ import org.forgerock.opendj.ldap.DN;
 import org.forgerock.opendj.ldap.Entry;
 import org.forgerock.opendj.ldap.ErrorResultException;
 import org.forgerock.opendj.ldap.ResultCode;
+import org.forgerock.opendj.ldap.ResultHandler;
 import org.forgerock.opendj.ldap.requests.ModifyRequest;
 import org.forgerock.opendj.ldap.responses.Result;
+import org.forgerock.opendj.ldap.responses.SearchResultEntry;
 import org.mockito.ArgumentCaptor;
 import org.testng.annotations.Test;
 
@@ -36,10 +38,12 @@ import static org.fest.assertions.Fail.fail;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.BDDMockito.mock;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 
 /**
  * @author robert.wapshott@forgerock.com
@@ -217,6 +221,50 @@ public class LDAPAdapterTest {
         verify(mockConnection).modify(any(ModifyRequest.class));
     }
 
+    @Test
+    public void shouldNotifyHandlerWhenReadEntryCannotBeConverted() {
+        // Given
+        DN testDN = DN.rootDN();
+        Connection mockConnection = mock(Connection.class);
+        TokenAttributeConversion mockConversion = mock(TokenAttributeConversion.class);
+        given(mockConversion.generateTokenDN(anyString())).willReturn(testDN);
+        given(mockConversion.tokenFromEntry(any(Entry.class))).willThrow(new IllegalStateException());
+        ResultHandler<Token> handler = mock(ResultHandler.class);
+
+        LDAPAdapter adapter = new LDAPAdapter(mockConversion);
+        adapter.readAsync(mockConnection, "badger", handler);
+        ArgumentCaptor<ResultHandler> captor = ArgumentCaptor.forClass(ResultHandler.class);
+        verify(mockConnection).readEntryAsync(eq(testDN), anyCollectionOf(String.class), captor.capture());
+
+        // When
+        captor.getValue().handleResult(mock(SearchResultEntry.class));
+
+        // Then
+        ArgumentCaptor<ErrorResultException> error = ArgumentCaptor.forClass(ErrorResultException.class);
+        verify(handler).handleErrorResult(error.capture());
+        assertThat(error.getValue().getResult().getResultCode()).isEqualTo(ResultCode.CLIENT_SIDE_LOCAL_ERROR);
+        verify(handler, never()).handleResult(any(Token.class));
+    }
+
+    @Test
+    public void shouldNotifyHandlerWhenTokenCannotBeConvertedForCreate() {
+        // Given
+        Token token = new Token("badger", TokenType.SESSION);
+        Connection mockConnection = mock(Connection.class);
+        TokenAttributeConversion mockConversion = mock(TokenAttributeConversion.class);
+        given(mockConversion.getEntry(any(Token.class))).willThrow(new IllegalStateException());
+        ResultHandler<Result> handler = mock(ResultHandler.class);
+
+        LDAPAdapter adapter = new LDAPAdapter(mockConversion);
+
+        // When
+        adapter.createAsync(mockConnection, token, handler);
+
+        // Then
+        verify(handler).handleErrorResult(any(ErrorResultException.class));
+        verifyZeroInteractions(mockConnection);
+    }
+
     private static Result mockSuccessfulResult() {
         Result result = mock(Result.class);
         ResultCode resultCode = ResultCode.SUCCESS;
@@ -16,7 +16,9 @@
 package org.forgerock.openam.cts.reaper;
 
 import com.sun.identity.shared.debug.Debug;
+import com.sun.identity.shared.stats.Stats;
 import org.forgerock.openam.cts.CoreTokenConfig;
+import org.forgerock.openam.cts.api.TokenType;
 import org.forgerock.openam.cts.api.fields.CoreTokenField;
 import org.forgerock.openam.cts.exceptions.CoreTokenException;
 import org.forgerock.openam.cts.impl.query.QueryBuilder;
@@ -27,19 +29,27 @@ import org.forgerock.opendj.ldap.Attribute;
 import org.forgerock.opendj.ldap.Entry;
 import org.forgerock.opendj.ldap.ErrorResultException;
 import org.forgerock.opendj.ldap.Filter;
+import org.forgerock.opendj.ldap.ResultCode;
 import org.forgerock.opendj.ldap.ResultHandler;
+import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import javax.inject.Provider;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import static org.fest.assertions.Assertions.assertThat;
 import static org.mockito.BDDMockito.*;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 /**
@@ -52,6 +62,8 @@ public class CTSReaperTest {
     private CTSReaper reaper;
     private QueryBuilder mockBuilder;
     private TokenDeletion mockTokenDeletion;
+    private ExecutorService workerPool;
+    private Stats mockStats;
 
     @BeforeMethod
     public void setUp() throws Exception {
@@ -61,8 +73,21 @@ public class CTSReaperTest {
 
         mockConfig = mock(CoreTokenConfig.class);
         mockTokenDeletion = mock(TokenDeletion.class);
+        Provider<TokenDeletion> deletionProvider = new Provider<TokenDeletion>() {
+            public TokenDeletion get() {
+                return mockTokenDeletion;
+            }
+        };
+        workerPool = Executors.newFixedThreadPool(2);
+        mockStats = mock(Stats.class);
+
+        reaper = new CTSReaper(mockQueryFactory, mockConfig, deletionProvider, workerPool,
+                mockStats, mock(Debug.class));
+    }
 
-        reaper = new CTSReaper(mockQueryFactory, mockConfig, mockTokenDeletion, mock(Debug.class));
+    @AfterMethod
+    public void tearDown() {
+        workerPool.shutdownNow();
     }
 
     @Test (timeOut = 5000)
@@ -101,7 +126,9 @@ public class CTSReaperTest {
         reaper.run();
 
         // Then
-        verify(mockTokenDeletion).deleteBatch(any(Collection.class), any(ResultHandler.class));
+        verify(mockTokenDeletion, times(TokenType.values().length))
+                .deleteBatch(any(Collection.class), any(ResultHandler.class));
+        assertThat(reaper.getBacklog()).isEqualTo(0);
     }
 
     @Test
@@ -119,7 +146,57 @@ public class CTSReaperTest {
         reaper.run();
 
         // Then
-        verify(mockTokenDeletion).close();
+        verify(mockTokenDeletion, times(TokenType.values().length)).close();
+    }
+
+    @Test
+    public void shouldContinueWithOtherShardsWhenConnectionFails() throws Exception {
+        // Given
+        given(mockBuilder.executeRawResults()).willReturn(Arrays.asList(generateEntry("one")));
+        given(mockBuilder.getPagingCookie()).willReturn(QueryBuilder.getEmptyPagingCookie());
+        given(mockBuilder.withFilter(any(Filter.class))).willReturn(mockBuilder);
+        given(mockBuilder.returnTheseAttributes(any(CoreTokenField.class))).willReturn(mockBuilder);
+        given(mockQueryFactory.createFilter()).willReturn(new QueryFilter(new LDAPDataConversion()));
+
+        willThrow(ErrorResultException.newErrorResult(ResultCode.UNAVAILABLE))
+                .given(mockTokenDeletion).deleteBatch(any(Collection.class), any(ResultHandler.class));
+
+        // When
+        reaper.run();
+
+        // Then
+        verify(mockTokenDeletion, times(TokenType.values().length))
+                .deleteBatch(any(Collection.class), any(ResultHandler.class));
+        verify(mockTokenDeletion, times(TokenType.values().length)).close();
+        assertThat(reaper.getBacklog()).isEqualTo(0);
+    }
+
+    @Test (timeOut = 5000)
+    public void shouldTreatTokenAlreadyDeletedAsDeleted() throws Exception {
+        // Given
+        given(mockBuilder.executeRawResults()).willReturn(Arrays.asList(generateEntry("one")));
+        given(mockBuilder.getPagingCookie()).willReturn(QueryBuilder.getEmptyPagingCookie());
+        given(mockBuilder.withFilter(any(Filter.class))).willReturn(mockBuilder);
+        given(mockBuilder.returnTheseAttributes(any(CoreTokenField.class))).willReturn(mockBuilder);
+        given(mockQueryFactory.createFilter()).willReturn(new QueryFilter(new LDAPDataConversion()));
+
+        willAnswer(new Answer() {
+            public Object answer(InvocationOnMock invo) throws Throwable {
+                ResultHandler handler = (ResultHandler) invo.getArguments()[1];
+                handler.handleErrorResult(ErrorResultException.newErrorResult(ResultCode.NO_SUCH_OBJECT));
+                return null;
+            }
+        }).given(mockTokenDeletion).deleteBatch(any(Collection.class), any(ResultHandler.class));
+
+        // When
+        reaper.run();
+        reaper.printStats();
+
+        // Then
+        ArgumentCaptor<String> record = ArgumentCaptor.forClass(String.class);
+        verify(mockStats).record(record.capture());
+        assertThat(record.getValue()).contains("failed shards: 0").contains("total failed: 0");
+        assertThat(reaper.getBacklog()).isEqualTo(0);
     }
 
     private static Entry generateEntry(String id) {
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2015 ForgeRock AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ */
+package org.forgerock.openam.cts.reaper;
+
+import org.forgerock.openam.cts.api.TokenType;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Calendar;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ReaperCheckpointTest {
+
+    private ReaperCheckpoint checkpoint;
+    private Calendar cutOff;
+
+    @BeforeMethod
+    public void setUp() {
+        checkpoint = new ReaperCheckpoint();
+        cutOff = Calendar.getInstance();
+        cutOff.setTimeInMillis(ReaperCheckpoint.FULL_SWEEP_INTERVAL * 10);
+    }
+
+    @Test
+    public void shouldSweepShardInFullBeforeFirstCompletion() {
+        assertThat(checkpoint.getLowerBound(TokenType.SESSION, cutOff.getTimeInMillis())).isNull();
+    }
+
+    @Test
+    public void shouldResumeFromCheckpointWithOverlap() {
+        // Given
+        checkpoint.complete(TokenType.SESSION, cutOff, true);
+
+        // When
+        Calendar lowerBound = checkpoint.getLowerBound(TokenType.SESSION, cutOff.getTimeInMillis() + 1);
+
+        // Then
+        assertThat(lowerBound.getTimeInMillis())
+                .isEqualTo(cutOff.getTimeInMillis() - ReaperCheckpoint.OVERLAP);
+    }
+
+    @Test
+    public void shouldNotAffectOtherShards() {
+        // Given
+        checkpoint.complete(TokenType.SESSION, cutOff, true);
+
+        // When
+        Calendar lowerBound = checkpoint.getLowerBound(TokenType.OAUTH, cutOff.getTimeInMillis() + 1);
+
+        // Then
+        assertThat(lowerBound).isNull();
+    }
+
+    @Test
+    public void shouldSweepInFullPeriodically() {
+        // Given
+        checkpoint.complete(TokenType.SESSION, cutOff, true);
+
+        // When
+        long later = cutOff.getTimeInMillis() + ReaperCheckpoint.FULL_SWEEP_INTERVAL;
+
+        // Then
+        assertThat(checkpoint.getLowerBound(TokenType.SESSION, later)).isNull();
+    }
+
+    @Test
+    public void shouldNotMoveCheckpointBackwards() {
+        // Given
+        checkpoint.complete(TokenType.SESSION, cutOff, true);
+        Calendar earlier = Calendar.getInstance();
+        earlier.setTimeInMillis(cutOff.getTimeInMillis() - 1000);
+
+        // When
+        checkpoint.complete(TokenType.SESSION, earlier, false);
+
+        // Then
+        assertThat(checkpoint.getCheckpoint(TokenType.SESSION)).isEqualTo(cutOff.getTimeInMillis());
+    }
+}
@@ -16,6 +16,7 @@
 package org.forgerock.openam.idrepo.ldap;
 
 import com.iplanet.am.util.Cache;
+import com.iplanet.am.util.SystemProperties;
 import com.iplanet.services.naming.ServerEntryNotFoundException;
 import com.iplanet.services.naming.WebtopNaming;
 import com.iplanet.sso.SSOToken;
@@ -33,17 +34,23 @@ import com.sun.identity.idm.IdRepoUnsupportedOpException;
 import com.sun.identity.idm.IdType;
 import com.sun.identity.idm.RepoSearchResults;
 import com.sun.identity.idm.common.IdRepoUtils;
+import com.sun.identity.shared.Constants;
 import com.sun.identity.shared.datastruct.CollectionHelper;
 import com.sun.identity.shared.debug.Debug;
 import com.sun.identity.shared.jaxrpc.SOAPClient;
 import com.sun.identity.sm.SchemaType;
 import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
@@ -165,6 +172,10 @@ public class DJLDAPv3Repo extends IdRepo implements IdentityMovedOrRenamedListen
     private Cache dnCache;
     // provides a switch to enable/disable the dnCache
     private boolean dnCacheEnabled = false;
+    //remembers group and role membership resolutions while the persistent search reports the changes
+    private MembershipCache membershipCache;
+    //expands direct group memberships into nested ones, if enabled
+    private NestedGroupResolver nestedGroupResolver;
 
     /**
      * Initializes the IdRepo instance, basically within this method we process
@@ -196,6 +207,12 @@ public class DJLDAPv3Repo extends IdRepo implements IdentityMovedOrRenamedListen
         if (dnCacheEnabled) {
             dnCache = new Cache(CollectionHelper.getIntMapAttr(configParams, LDAP_DNCACHE_SIZE, 1500, DEBUG));
         }
+        membershipCache = new MembershipCache("DJLDAPv3RepoMembership",
+                SystemProperties.getAsInt(Constants.LDAP_MEMBERSHIP_CACHE_SIZE, 10000),
+                SystemProperties.getAsInt(Constants.LDAP_MEMBERSHIP_CACHE_TTL, 300000),
+                getNotifiedBaseDN(configParams));
+        nestedGroupResolver = new NestedGroupResolver(
+                SystemProperties.getAsInt(Constants.LDAP_NESTED_GROUP_DEPTH, 0), new LDAPGroupReader());
         ldapServers = LDAPUtils.prioritizeServers(configParams.get(LDAP_SERVER_LIST), hostServerId, hostSiteId);
 
         defaultSizeLimit = CollectionHelper.getIntMapAttr(configParams, LDAP_MAX_RESULTS, 100, DEBUG);
@@ -652,6 +669,10 @@ public class DJLDAPv3Repo extends IdRepo implements IdentityMovedOrRenamedListen
             handleErrorResult(ere);
         } finally {
             IOUtils.closeIfNotNull(conn);
+            membershipCache.identityChanged(entry.getName());
+            if (type.equals(IdType.GROUP) && defaultGroupMember != null) {
+                membershipCache.identityChanged(DN.valueOf(defaultGroupMember));
+            }
         }
 
         return dn;
@@ -1015,6 +1036,7 @@ public class DJLDAPv3Repo extends IdRepo implements IdentityMovedOrRenamedListen
             handleErrorResult(ere);
         } finally {
             IOUtils.closeIfNotNull(conn);
+            membershipCache.identityChanged(modifyRequest.getName());
         }
     }
 
@@ -1053,6 +1075,7 @@ public class DJLDAPv3Repo extends IdRepo implements IdentityMovedOrRenamedListen
             handleErrorResult(ere);
         } finally {
             IOUtils.closeIfNotNull(conn);
+            membershipCache.identityChanged(modifyRequest.getName());
         }
     }
 
@@ -1202,6 +1225,7 @@ public class DJLDAPv3Repo extends IdRepo implements IdentityMovedOrRenamedListen
             handleErrorResult(ere);
         } finally {
             IOUtils.closeIfNotNull(conn);
+            membershipCache.identityChanged(DN.valueOf(dn));
         }
         if (dnCacheEnabled) {
             dnCache.remove(generateDNCacheKey(name, type));
@@ -1237,27 +1261,69 @@ public class DJLDAPv3Repo extends IdRepo implements IdentityMovedOrRenamedListen
             throw newIdRepoException("204", CLASS_NAME, membersType.getName(), type.getName());
         }
         String dn = getDN(type, name);
+        DN entryDN = DN.valueOf(dn);
+        Set<String> results = membershipCache.getMembers(type, entryDN);
+        if (results != null) {
+            return new HashSet<String>(results);
+        }
 
+        long version = membershipCache.getVersion();
+        Set<DN> searchBases = new HashSet<DN>();
         if (type.equals(IdType.GROUP)) {
-            return getGroupMembers(dn);
+            results = getGroupMembers(dn, searchBases);
+            if (nestedGroupResolver.isEnabled()) {
+                results = nestedGroupResolver.expandMembers(dn, results, searchBases);
+            }
         } else if (type.equals(IdType.ROLE)) {
-            return getRoleMembers(dn);
+            results = getRoleMembers(dn, searchBases);
         } else if (type.equals(IdType.FILTEREDROLE)) {
-            return getFilteredRoleMembers(dn);
+            results = getFilteredRoleMembers(dn, searchBases);
+        } else {
+            throw new IdRepoUnsupportedOpException(IdRepoBundle.BUNDLE_NAME, "305",
+                    new Object[]{CLASS_NAME, IdOperation.READ.getName(), type.getName()});
+        }
+        membershipCache.putMembers(type, entryDN, results, searchBases, version);
+        return results;
+    }
+
+    /**
+     * Returns the base DN of the subtree the persistent search reports every change of, which is only the case if the
+     * persistent search covers the whole subtree of its base DN without filtering the entries.
+     *
+     * @param configParams The configuration of the data store.
+     * @return The base DN of the persistent search, or null if it does not report every change below it.
+     */
+    private DN getNotifiedBaseDN(Map<String, Set<String>> configParams) {
+        String baseDN = CollectionHelper.getMapAttr(configParams, LDAP_PERSISTENT_SEARCH_BASE_DN);
+        if (baseDN == null || baseDN.isEmpty()) {
+            return null;
+        }
+        SearchScope scope = LDAPUtils.getSearchScope(
+                CollectionHelper.getMapAttr(configParams, LDAP_PERSISTENT_SEARCH_SCOPE), SearchScope.WHOLE_SUBTREE);
+        Filter filter = LDAPUtils.parseFilter(CollectionHelper.getMapAttr(configParams, LDAP_PERSISTENT_SEARCH_FILTER),
+                Filter.objectClassPresent());
+        if (!SearchScope.WHOLE_SUBTREE.equals(scope)
+                || !Filter.objectClassPresent().toString().equalsIgnoreCase(filter.toString())) {
+            if (DEBUG.messageEnabled()) {
+                DEBUG.message("The persistent search does not report every change below " + baseDN
+                        + ", group and role memberships will not be cached");
+            }
+            return null;
         }
-        throw new IdRepoUnsupportedOpException(IdRepoBundle.BUNDLE_NAME, "305",
-                new Object[]{CLASS_NAME, IdOperation.READ.getName(), type.getName()});
+        return DN.valueOf(baseDN);
     }
 
     /**
      * Returns the DNs of the members of this group. If the MemberURL attribute has been configured, then this
-     * will also try to retrieve dynamic group members using the memberURL.
+     * will also try to retrieve dynamic group members using the memberURL. The memberURLs sharing the same base DN and
+     * scope are combined into a single search.
      *
      * @param dn The DN of the group to query.
+     * @param searchBases The base DNs of the searches performed are added to this set.
      * @return The DNs of the members.
      * @throws IdRepoException If there is an error while trying to retrieve the members.
      */
-    private Set<String> getGroupMembers(String dn) throws IdRepoException {
+    private Set<String> getGroupMembers(String dn, Set<DN> searchBases) throws IdRepoException {
         Set<String> results = new HashSet<String>();
         Connection conn = null;
         String[] attrs;
@@ -1275,21 +1341,27 @@ public class DJLDAPv3Repo extends IdRepo implements IdentityMovedOrRenamedListen
             } else if (memberURLAttr != null) {
                 attr = entry.getAttribute(memberURLAttr);
                 if (attr != null) {
+                    Map<DN, Map<SearchScope, List<Filter>>> searches =
+                            new LinkedHashMap<DN, Map<SearchScope, List<Filter>>>();
                     for (ByteString byteString : attr) {
                         LDAPUrl url = LDAPUrl.valueOf(byteString.toString());
-                        SearchRequest searchRequest = Requests.newSearchRequest(
-                                url.getName(), url.getScope(), url.getFilter(), DN_ATTR);
-                        searchRequest.setTimeLimit(defaultTimeLimit);
-                        searchRequest.setSizeLimit(defaultSizeLimit);
-                        ConnectionEntryReader reader = conn.search(searchRequest);
-                        while (reader.hasNext()) {
-                            if (reader.isEntry()) {
-                                results.add(reader.readEntry().getName().toString());
-                            } else {
-                                //ignore search result references
-                                reader.readReference();
-                            }
+                        Map<SearchScope, List<Filter>> scopes = searches.get(url.getName());
+                        if (scopes == null) {
+                            scopes = new LinkedHashMap<SearchScope, List<Filter>>();
+                            searches.put(url.getName(), scopes);
+                        }
+                        List<Filter> filters = scopes.get(url.getScope());
+                        if (filters == null) {
+                            filters = new ArrayList<Filter>();
+                            scopes.put(url.getScope(), filters);
                         }
+                        filters.add(url.getFilter());
+                    }
+                    for (Map.Entry<DN, Map<SearchScope, List<Filter>>> search : searches.entrySet()) {
+                        for (Map.Entry<SearchScope, List<Filter>> scope : search.getValue().entrySet()) {
+                            searchDNs(conn, search.getKey(), scope.getKey(), scope.getValue(), results);
+                        }
+                        searchBases.add(search.getKey());
                     }
                 }
             }
@@ -1313,28 +1385,19 @@ public class DJLDAPv3Repo extends IdRepo implements IdentityMovedOrRenamedListen
      * for nsRoleDN=roleDN.
      *
      * @param dn The DN of the role to query.
+     * @param searchBases The base DN of the search performed is added to this set.
      * @return The DNs of the members.
      * @throws IdRepoException If there is an error while trying to retrieve the role members.
      */
-    private Set<String> getRoleMembers(String dn) throws IdRepoException {
+    private Set<String> getRoleMembers(String dn, Set<DN> searchBases) throws IdRepoException {
         Set<String> results = new HashSet<String>();
         DN roleBase = getBaseDN(IdType.ROLE);
         Filter filter = Filter.equality(roleDNAttr, dn);
-        SearchRequest searchRequest = Requests.newSearchRequest(roleBase, roleScope, filter, DN_ATTR);
-        searchRequest.setTimeLimit(defaultTimeLimit);
-        searchRequest.setSizeLimit(defaultSizeLimit);
         Connection conn = null;
         try {
             conn = connectionFactory.getConnection();
-            ConnectionEntryReader reader = conn.search(searchRequest);
-            while (reader.hasNext()) {
-                if (reader.isEntry()) {
-                    results.add(reader.readEntry().getName().toString());
-                } else {
-                    //ignore search result references
-                    reader.readReference();
-                }
-            }
+            searchDNs(conn, roleBase, roleScope, Collections.singletonList(filter), results);
+            searchBases.add(roleBase);
         } catch (ErrorResultException ere) {
             DEBUG.error("An error occurred while trying to retrieve filtered role members for " + dn, ere);
             handleErrorResult(ere);
@@ -1352,38 +1415,29 @@ public class DJLDAPv3Repo extends IdRepo implements IdentityMovedOrRenamedListen
 
     /**
      * Returns the DNs of the members of this filtered role. To do that this will execute a read on the filtered role
-     * entry to get the values of the nsRoleFilter attribute, and then it will perform searches using the retrieved
-     * filters.
+     * entry to get the values of the nsRoleFilter attribute, and then it will perform a single search matching any of
+     * the retrieved filters.
      *
      * @param dn The DN of the filtered role to query.
+     * @param searchBases The base DN of the search performed is added to this set.
      * @return The DNs of the members.
      * @throws IdRepoException If there is an error while trying to retrieve the filtered role members.
      */
-    private Set<String> getFilteredRoleMembers(String dn) throws IdRepoException {
+    private Set<String> getFilteredRoleMembers(String dn, Set<DN> searchBases) throws IdRepoException {
         Set<String> results = new HashSet<String>();
         Connection conn = null;
         try {
             conn = connectionFactory.getConnection();
             SearchResultEntry entry = conn.readEntry(dn, roleFilterAttr);
             Attribute filterAttr = entry.getAttribute(roleFilterAttr);
-            if (filterAttr != null) {
+            if (filterAttr != null && !filterAttr.isEmpty()) {
+                List<Filter> filters = new ArrayList<Filter>(filterAttr.size());
                 for (ByteString byteString : filterAttr) {
-                    Filter filter = Filter.valueOf(byteString.toString());
-                    //TODO: would it make sense to OR these filters and run a single search?
-                    SearchRequest searchRequest =
-                            Requests.newSearchRequest(rootSuffix, defaultScope, filter.toString(), DN_ATTR);
-                    searchRequest.setTimeLimit(defaultTimeLimit);
-                    searchRequest.setSizeLimit(defaultSizeLimit);
-                    ConnectionEntryReader reader = conn.search(searchRequest);
-                    while (reader.hasNext()) {
-                        if (reader.isEntry()) {
-                            results.add(reader.readEntry().getName().toString());
-                        } else {
-                            //ignore search result references
-                            reader.readReference();
-                        }
-                    }
+                    filters.add(Filter.valueOf(byteString.toString()));
                 }
+                DN rootDN = DN.valueOf(rootSuffix);
+                searchDNs(conn, rootDN, defaultScope, filters, results);
+                searchBases.add(rootDN);
             }
         } catch (ErrorResultException ere) {
             DEBUG.error("An error occurred while trying to retrieve filtered role members for " + dn, ere);
@@ -1421,47 +1475,61 @@ public class DJLDAPv3Repo extends IdRepo implements IdentityMovedOrRenamedListen
             throw newIdRepoException("206", CLASS_NAME);
         }
         String dn = getDN(IdType.USER, name);
+        DN entryDN = DN.valueOf(dn);
+        Set<String> results = membershipCache.getMemberships(membershipType, entryDN);
+        if (results != null) {
+            if (membershipType.equals(IdType.FILTEREDROLE)) {
+                Set<String> copy = new CaseInsensitiveHashSet();
+                copy.addAll(results);
+                return copy;
+            }
+            return new HashSet<String>(results);
+        }
+
+        long version = membershipCache.getVersion();
+        Set<DN> searchBases = new HashSet<DN>();
         if (membershipType.equals(IdType.GROUP)) {
-            return getGroupMemberships(dn);
+            results = getGroupMemberships(Collections.singleton(dn), searchBases);
+            if (nestedGroupResolver.isEnabled()) {
+                results = nestedGroupResolver.expandMemberships(results, searchBases);
+            }
         } else if (membershipType.equals(IdType.ROLE)) {
-            return getRoleMemberships(dn);
+            results = getRoleMemberships(dn);
         } else if (membershipType.equals(IdType.FILTEREDROLE)) {
-            return getFilteredRoleMemberships(dn);
+            results = getFilteredRoleMemberships(dn, searchBases);
+        } else {
+            throw newIdRepoException("204", CLASS_NAME, type.getName(), membershipType.getName());
         }
-        throw newIdRepoException("204", CLASS_NAME, type.getName(), membershipType.getName());
+        membershipCache.putMemberships(membershipType, entryDN, results, searchBases, version);
+        return results;
     }
 
     /**
-     * Returns the group membership informations for this given user. In case the memberOf attribute is configured,
-     * this will try to query the user entry and return the group DNs found in the memberOf attribute. Otherwise a
-     * search request will be issued using the uniqueMember attribute looking for matches with the user DN.
+     * Returns the group membership informations for the given users or groups. In case the memberOf attribute is
+     * configured, this will try to query the entries and return the group DNs found in their memberOf attribute.
+     * Otherwise a single search request will be issued using the uniqueMember attribute looking for matches with any
+     * of the DNs.
      *
-     * @param dn The DN of the user identity.
-     * @return The DNs of the groups that the provided user is member of.
+     * @param dns The DNs of the user identities, or of the groups whose parent groups are looked for.
+     * @param searchBases The base DN of the search performed, if any, is added to this set.
+     * @return The DNs of the groups that any of the provided entries is member of.
      * @throws IdRepoException If there was an error while retrieving the group membership information.
      */
-    private Set<String> getGroupMemberships(String dn) throws IdRepoException {
+    private Set<String> getGroupMemberships(Collection<String> dns, Set<DN> searchBases) throws IdRepoException {
         Set<String> results = new HashSet<String>();
         if (memberOfAttr == null) {
-            Filter filter = Filter.and(groupSearchFilter, Filter.equality(uniqueMemberAttr, dn));
-            SearchRequest searchRequest =
-                    Requests.newSearchRequest(getBaseDN(IdType.GROUP), defaultScope, filter, DN_ATTR);
-            searchRequest.setTimeLimit(defaultTimeLimit);
-            searchRequest.setSizeLimit(defaultSizeLimit);
+            DN groupBase = getBaseDN(IdType.GROUP);
+            List<Filter> filters = new ArrayList<Filter>(dns.size());
+            for (String dn : dns) {
+                filters.add(Filter.and(groupSearchFilter, Filter.equality(uniqueMemberAttr, dn)));
+            }
             Connection conn = null;
             try {
                 conn = connectionFactory.getConnection();
-                ConnectionEntryReader reader = conn.search(searchRequest);
-                while (reader.hasNext()) {
-                    if (reader.isEntry()) {
-                        results.add(reader.readEntry().getName().toString());
-                    } else {
-                        //ignore search result references
-                        reader.readReference();
-                    }
-                }
+                searchDNs(conn, groupBase, defaultScope, filters, results);
+                searchBases.add(groupBase);
             } catch (ErrorResultException ere) {
-                DEBUG.error("An error occurred while trying to retrieve group memberships for " + dn
+                DEBUG.error("An error occurred while trying to retrieve group memberships for " + dns
                         + " using " + uniqueMemberAttr, ere);
                 handleErrorResult(ere);
             } catch (ErrorResultIOException erioe) {
@@ -1475,12 +1543,16 @@ public class DJLDAPv3Repo extends IdRepo implements IdentityMovedOrRenamedListen
             }
         } else {
             Connection conn = null;
+            String dn = null;
             try {
                 conn = connectionFactory.getConnection();
-                SearchResultEntry entry = conn.readEntry(dn, memberOfAttr);
-                Attribute attr = entry.getAttribute(memberOfAttr);
-                if (attr != null) {
-                    results.addAll(LDAPUtils.getAttributeValuesAsStringSet(attr));
+                for (Iterator<String> iter = dns.iterator(); iter.hasNext();) {
+                    dn = iter.next();
+                    SearchResultEntry entry = conn.readEntry(dn, memberOfAttr);
+                    Attribute attr = entry.getAttribute(memberOfAttr);
+                    if (attr != null) {
+                        results.addAll(LDAPUtils.getAttributeValuesAsStringSet(attr));
+                    }
                 }
             } catch (ErrorResultException ere) {
                 DEBUG.error("An error occurred while trying to retrieve group memberships for " + dn
@@ -1527,11 +1599,13 @@ public class DJLDAPv3Repo extends IdRepo implements IdentityMovedOrRenamedListen
      * role memberships.
      *
      * @param dn The DN of the user identity.
+     * @param searchBases The root suffix is added to this set, as the nsRole attribute depends on the filtered role
+     * definitions.
      * @return The DNs of the filtered roles this user is member of.
      * @throws IdRepoException If there was an error while retrieving the filtered or non-filtered role membership
      * information.
      */
-    private Set<String> getFilteredRoleMemberships(String dn) throws IdRepoException {
+    private Set<String> getFilteredRoleMemberships(String dn, Set<DN> searchBases) throws IdRepoException {
         Set<String> results = new CaseInsensitiveHashSet();
         Connection conn = null;
         try {
@@ -1549,10 +1623,42 @@ public class DJLDAPv3Repo extends IdRepo implements IdentityMovedOrRenamedListen
             IOUtils.closeIfNotNull(conn);
         }
         results.addAll(getRoleMemberships(dn));
+        searchBases.add(DN.valueOf(rootSuffix));
 
         return results;
     }
 
+    /**
+     * Adds the DNs of the entries matching any of the provided filters to the results, using a single search. The
+     * size limit of the search is that of a separate search for each filter, so that combining the filters does not
+     * fail where the separate searches would have succeeded.
+     *
+     * @param conn The connection to search with.
+     * @param baseDN The base DN of the search.
+     * @param scope The scope of the search.
+     * @param filters The filters the entries need to match, at least one.
+     * @param results The set the DNs are added to.
+     * @throws ErrorResultIOException If the search failed.
+     * @throws SearchResultReferenceIOException If the search returned a reference instead of an entry.
+     */
+    private void searchDNs(Connection conn, DN baseDN, SearchScope scope, List<Filter> filters, Set<String> results)
+            throws ErrorResultIOException, SearchResultReferenceIOException {
+        Filter filter = filters.size() == 1 ? filters.get(0) : Filter.or(filters);
+        SearchRequest searchRequest = Requests.newSearchRequest(baseDN, scope, filter, DN_ATTR);
+        searchRequest.setTimeLimit(defaultTimeLimit);
+        // 0 stays unlimited
+        searchRequest.setSizeLimit((int) Math.min(Integer.MAX_VALUE, (long) defaultSizeLimit * filters.size()));
+        ConnectionEntryReader reader = conn.search(searchRequest);
+        while (reader.hasNext()) {
+            if (reader.isEntry()) {
+                results.add(reader.readEntry().getName().toString());
+            } else {
+                //ignore search result references
+                reader.readReference();
+            }
+        }
+    }
+
     /**
      * Adds or removes members to the provided group/role.
      *
@@ -1639,6 +1745,12 @@ public class DJLDAPv3Repo extends IdRepo implements IdentityMovedOrRenamedListen
             handleErrorResult(ere);
         } finally {
             IOUtils.closeIfNotNull(conn);
+            membershipCache.identityChanged(modifyRequest.getName());
+            if (memberOfAttr != null) {
+                for (String member : memberDNs) {
+                    membershipCache.identityChanged(DN.valueOf(member));
+                }
+            }
         }
 
     }
@@ -1675,6 +1787,9 @@ public class DJLDAPv3Repo extends IdRepo implements IdentityMovedOrRenamedListen
             handleErrorResult(ere);
         } finally {
             IOUtils.closeIfNotNull(conn);
+            for (String memberDN : memberDNs) {
+                membershipCache.identityChanged(DN.valueOf(memberDN));
+            }
         }
     }
 
@@ -2046,6 +2161,7 @@ public class DJLDAPv3Repo extends IdRepo implements IdentityMovedOrRenamedListen
                 if (dnCacheEnabled) {
                     pSearch.addMovedOrRenamedListener(this);
                 }
+                pSearch.addChangedListener(membershipCache);
                 pSearch.addListener(idRepoListener, getSupportedTypes());
                 pSearch.startPSearch();
                 pSearchMap.put(pSearchId, pSearch);
@@ -2054,6 +2170,7 @@ public class DJLDAPv3Repo extends IdRepo implements IdentityMovedOrRenamedListen
                 if (dnCacheEnabled) {
                     pSearch.addMovedOrRenamedListener(this);
                 }
+                pSearch.addChangedListener(membershipCache);
             }
         }
         return 0;
@@ -2075,6 +2192,7 @@ public class DJLDAPv3Repo extends IdRepo implements IdentityMovedOrRenamedListen
                 DEBUG.error("PSearch is already removed, unable to unregister");
             } else {
                 pSearch.removeMovedOrRenamedListener(this);
+                pSearch.removeChangedListener(membershipCache);
                 pSearch.removeListener(idRepoListener);
                 if (!pSearch.hasListeners()) {
                     pSearch.stopPSearch();
@@ -2082,6 +2200,7 @@ public class DJLDAPv3Repo extends IdRepo implements IdentityMovedOrRenamedListen
                 }
             }
         }
+        membershipCache.changeNotificationStopped();
     }
 
     /**
@@ -2473,6 +2592,29 @@ public class DJLDAPv3Repo extends IdRepo implements IdentityMovedOrRenamedListen
         return new IdRepoException(IdRepoBundle.BUNDLE_NAME, key, String.valueOf(resultCode.intValue()), args);
     }
 
+    /**
+     * Reads the direct group memberships the nested group resolver expands.
+     */
+    private class LDAPGroupReader implements NestedGroupResolver.GroupReader {
+
+        public Set<String> getGroupMembers(String dn, Set<DN> searchBases) throws IdRepoException {
+            try {
+                return DJLDAPv3Repo.this.getGroupMembers(dn, searchBases);
+            } catch (IdentityNotFoundException infe) {
+                //a member which no longer exists has no members either
+                return Collections.emptySet();
+            }
+        }
+
+        public Set<String> getGroupMemberships(Collection<String> dns, Set<DN> searchBases) throws IdRepoException {
+            return DJLDAPv3Repo.this.getGroupMemberships(dns, searchBases);
+        }
+
+        public boolean isGroupCandidate(DN dn) {
+            return dn.isSubordinateOrEqualTo(getBaseDN(IdType.GROUP));
+        }
+    }
+
     private static class StringAttributeExtractor implements Function<Attribute, Set<String>, Void> {
 
             public Set<String> apply(Attribute value, Void p) {
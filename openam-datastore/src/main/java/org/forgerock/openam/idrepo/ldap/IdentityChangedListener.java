@@ -0,0 +1,38 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.idrepo.ldap;
+
+import org.forgerock.opendj.ldap.DN;
+
+public interface IdentityChangedListener {
+
+    /**
+     * Called if an entry has been added, modified, deleted, moved or renamed within the identity store.
+     * @param dn The DN of the entry, or for a move or rename, either of its DNs
+     */
+    public void identityChanged(DN dn);
+
+    /**
+     * Called when the persistent search has started, and from now on reports the changes to the identity store.
+     * Changes made before this may not have been reported.
+     */
+    public void changeNotificationStarted();
+
+    /**
+     * Called when the persistent search has stopped, and no longer reports the changes to the identity store.
+     */
+    public void changeNotificationStopped();
+}
@@ -0,0 +1,331 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.idrepo.ldap;
+
+import com.sun.identity.idm.IdType;
+import org.forgerock.openam.shared.cache.ConcurrentLRUCache;
+import org.forgerock.opendj.ldap.DN;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Remembers the members of groups and roles, and the groups and roles identities are members of, so that repeated
+ * membership checks for the same identities need no LDAP round trip.
+ * <p/>
+ * Each resolution is remembered together with the parts of the directory it was read from: the entry it was resolved
+ * for and, when it was resolved by a search, the base DNs of the search. Dynamic group members, role members and group
+ * memberships found through the uniqueMember attribute are resolved by searches, for example. When an entry is
+ * reported as changed, the resolutions of that entry are forgotten, and the resolutions searched from a subtree
+ * containing it become out of date. The cost of a change does not depend on the number of resolutions remembered.
+ * <p/>
+ * Changes are reported by the persistent search, so resolutions are only remembered while the persistent search is
+ * running, and only if the entry and the search bases they were read from lie within the subtree the persistent search
+ * reports the changes of. They also expire after a while, in case a change is reported late.
+ */
+public class MembershipCache implements IdentityChangedListener {
+
+    private static final IdType[] TYPES = {IdType.GROUP, IdType.ROLE, IdType.FILTEREDROLE};
+    private static final int CHANGE_LOG_SIZE = 1024;
+
+    private final ConcurrentLRUCache<Key, Resolution> resolutions;
+    private final long ttl;
+    private final DN notifiedBase;
+    // the number of changes under each search base, so that the resolutions searched from it can tell they are stale
+    private final ConcurrentMap<DN, AtomicLong> searchBaseChanges = new ConcurrentHashMap<DN, AtomicLong>();
+    // the latest changes, so that a resolution read before a change to the entries it depends on is not remembered
+    private final AtomicReferenceArray<Change> changeLog = new AtomicReferenceArray<Change>(CHANGE_LOG_SIZE);
+    private final AtomicLong changes = new AtomicLong();
+    private volatile boolean notified = false;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param name The name of the cache.
+     * @param maxSize The maximum number of resolutions remembered; 0 disables the cache.
+     * @param ttl Milliseconds a resolution is remembered for; 0 disables the cache.
+     * @param notifiedBase The base DN of the subtree whose changes are reported; null disables the cache.
+     */
+    public MembershipCache(String name, int maxSize, long ttl, DN notifiedBase) {
+        this.resolutions = maxSize > 0 && ttl > 0 && notifiedBase != null
+                ? new ConcurrentLRUCache<Key, Resolution>(name, maxSize) : null;
+        this.ttl = ttl;
+        this.notifiedBase = notifiedBase;
+    }
+
+    /**
+     * Gets the remembered members of a group or role.
+     *
+     * @param type The type of the group or role.
+     * @param dn The DN of the group or role.
+     * @return The DNs of the members, or null if they are not remembered.
+     */
+    public Set<String> getMembers(IdType type, DN dn) {
+        return get(new Key(type, true, dn));
+    }
+
+    /**
+     * Gets the remembered groups or roles of an identity.
+     *
+     * @param type The type of the groups or roles.
+     * @param dn The DN of the identity.
+     * @return The DNs of the groups or roles, or null if they are not remembered.
+     */
+    public Set<String> getMemberships(IdType type, DN dn) {
+        return get(new Key(type, false, dn));
+    }
+
+    /**
+     * Returns the current version of the cache, which changes whenever an entry is reported as changed. The version
+     * has to be taken before a resolution is read from the directory, and passed in when the resolution is remembered.
+     *
+     * @return The current version.
+     */
+    public long getVersion() {
+        return changes.get();
+    }
+
+    /**
+     * Remembers the members of a group or role.
+     *
+     * @param type The type of the group or role.
+     * @param dn The DN of the group or role.
+     * @param members The DNs of the members.
+     * @param searchBases The base DNs of the searches the members were found by.
+     * @param readVersion The version of the cache taken before the members were read.
+     */
+    public void putMembers(IdType type, DN dn, Set<String> members, Collection<DN> searchBases, long readVersion) {
+        put(new Key(type, true, dn), members, searchBases, readVersion);
+    }
+
+    /**
+     * Remembers the groups or roles of an identity.
+     *
+     * @param type The type of the groups or roles.
+     * @param dn The DN of the identity.
+     * @param memberships The DNs of the groups or roles.
+     * @param searchBases The base DNs of the searches the groups or roles were found by.
+     * @param readVersion The version of the cache taken before the groups or roles were read.
+     */
+    public void putMemberships(IdType type, DN dn, Set<String> memberships, Collection<DN> searchBases,
+            long readVersion) {
+        put(new Key(type, false, dn), memberships, searchBases, readVersion);
+    }
+
+    /**
+     * Forgets the resolutions read from the changed entry.
+     *
+     * @param dn The DN of the entry.
+     */
+    public void identityChanged(DN dn) {
+        logChange(dn);
+        if (resolutions == null) {
+            return;
+        }
+        for (Map.Entry<DN, AtomicLong> searchBase : searchBaseChanges.entrySet()) {
+            if (dn.isSubordinateOrEqualTo(searchBase.getKey())) {
+                searchBase.getValue().incrementAndGet();
+            }
+        }
+        for (IdType type : TYPES) {
+            resolutions.remove(new Key(type, true, dn));
+            resolutions.remove(new Key(type, false, dn));
+        }
+    }
+
+    /**
+     * Starts remembering resolutions, forgetting those which may be out of date.
+     */
+    public void changeNotificationStarted() {
+        clear();
+        notified = true;
+    }
+
+    /**
+     * Stops remembering resolutions, as changes are no longer reported.
+     */
+    public void changeNotificationStopped() {
+        notified = false;
+        clear();
+    }
+
+    /**
+     * Forgets all resolutions.
+     */
+    public void clear() {
+        logChange(null);
+        if (resolutions != null) {
+            resolutions.clear();
+        }
+    }
+
+    private Set<String> get(Key key) {
+        if (resolutions == null || !notified) {
+            return null;
+        }
+        Resolution resolution = resolutions.get(key);
+        if (resolution == null) {
+            return null;
+        }
+        if (resolution.expiry <= System.currentTimeMillis() || resolution.isStale()) {
+            resolutions.remove(key, resolution);
+            return null;
+        }
+        return resolution.dns;
+    }
+
+    /*
+     * Remembers the resolution unless one of the entries it depends on has been reported as changed since the version
+     * was taken, as the resolution read may predate the change. The resolution is put first and checked afterwards, so
+     * that a change reported in between either shows in the change log or finds the resolution to forget.
+     */
+    private void put(Key key, Set<String> dns, Collection<DN> searchBases, long readVersion) {
+        if (resolutions == null || !notified || !isNotified(key.dn, searchBases)) {
+            return;
+        }
+        Resolution resolution = new Resolution(dns, searchBases, System.currentTimeMillis() + ttl);
+        resolutions.put(key, resolution);
+        if (hasChangedSince(readVersion, key.dn, searchBases)) {
+            resolutions.remove(key, resolution);
+        }
+    }
+
+    private boolean isNotified(DN dn, Collection<DN> searchBases) {
+        if (!dn.isSubordinateOrEqualTo(notifiedBase)) {
+            return false;
+        }
+        for (DN searchBase : searchBases) {
+            if (!searchBase.isSubordinateOrEqualTo(notifiedBase)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void logChange(DN dn) {
+        long sequence = changes.incrementAndGet();
+        changeLog.set((int) (sequence % CHANGE_LOG_SIZE), new Change(sequence, dn));
+    }
+
+    /*
+     * A change which has not been logged yet, or has already been overwritten in the log, counts as a change to every
+     * entry, as does clearing the cache.
+     */
+    private boolean hasChangedSince(long readVersion, DN dn, Collection<DN> searchBases) {
+        long current = changes.get();
+        if (current - readVersion >= CHANGE_LOG_SIZE) {
+            return true;
+        }
+        for (long sequence = readVersion + 1; sequence <= current; sequence++) {
+            Change change = changeLog.get((int) (sequence % CHANGE_LOG_SIZE));
+            if (change == null || change.sequence != sequence || change.dn == null || change.dn.equals(dn)) {
+                return true;
+            }
+            for (DN searchBase : searchBases) {
+                if (change.dn.isSubordinateOrEqualTo(searchBase)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private AtomicLong getSearchBaseChanges(DN searchBase) {
+        AtomicLong counter = searchBaseChanges.get(searchBase);
+        if (counter == null) {
+            AtomicLong existing = searchBaseChanges.putIfAbsent(searchBase, counter = new AtomicLong());
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        return counter;
+    }
+
+    private static final class Key {
+        private final IdType type;
+        private final boolean members;
+        private final DN dn;
+
+        private Key(IdType type, boolean members, DN dn) {
+            this.type = type;
+            this.members = members;
+            this.dn = dn;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return members == other.members && type.equals(other.type) && dn.equals(other.dn);
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * type.hashCode() + (members ? 1 : 0)) * 31 + dn.hashCode();
+        }
+    }
+
+    private static final class Change {
+        private final long sequence;
+        private final DN dn;
+
+        private Change(long sequence, DN dn) {
+            this.sequence = sequence;
+            this.dn = dn;
+        }
+    }
+
+    private final class Resolution {
+        private final Set<String> dns;
+        private final AtomicLong[] searchBaseCounters;
+        private final long[] searchBaseVersions;
+        private final long expiry;
+
+        private Resolution(Set<String> dns, Collection<DN> searchBases, long expiry) {
+            this.dns = Collections.unmodifiableSet(new HashSet<String>(dns));
+            this.searchBaseCounters = new AtomicLong[searchBases.size()];
+            this.searchBaseVersions = new long[searchBases.size()];
+            Iterator<DN> iter = searchBases.iterator();
+            for (int i = 0; i < searchBaseCounters.length; i++) {
+                searchBaseCounters[i] = getSearchBaseChanges(iter.next());
+                searchBaseVersions[i] = searchBaseCounters[i].get();
+            }
+            this.expiry = expiry;
+        }
+
+        private boolean isStale() {
+            for (int i = 0; i < searchBaseCounters.length; i++) {
+                if (searchBaseCounters[i].get() != searchBaseVersions[i]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.idrepo.ldap;
+
+import com.sun.identity.idm.IdRepoException;
+import org.forgerock.opendj.ldap.DN;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Expands direct group memberships into nested ones, so that the members of a group include the members of the
+ * groups it contains, and the groups of an identity include the groups containing them.
+ * <p/>
+ * The expansion is done in memory, one nesting level at a time, up to a maximum depth. Each group is expanded at most
+ * once, so membership cycles end the expansion rather than loop. A maximum depth of 0 disables the expansion, which
+ * is the default, since callers have always been given the direct memberships only.
+ */
+class NestedGroupResolver {
+
+    /**
+     * Reads the direct memberships the resolver expands.
+     */
+    interface GroupReader {
+
+        /**
+         * Returns the direct members of a group.
+         *
+         * @param dn The DN of the group.
+         * @param searchBases The base DNs of the searches performed are added to this set.
+         * @return The DNs of the members, empty if the entry is not a group or does not exist.
+         * @throws IdRepoException If the members could not be read.
+         */
+        Set<String> getGroupMembers(String dn, Set<DN> searchBases) throws IdRepoException;
+
+        /**
+         * Returns the groups any of the given entries is a direct member of.
+         *
+         * @param dns The DNs of the entries.
+         * @param searchBases The base DNs of the searches performed are added to this set.
+         * @return The DNs of the groups.
+         * @throws IdRepoException If the memberships could not be read.
+         */
+        Set<String> getGroupMemberships(Collection<String> dns, Set<DN> searchBases) throws IdRepoException;
+
+        /**
+         * Tells whether the entry may be a group, so that it is worth reading its members.
+         *
+         * @param dn The DN of the entry.
+         * @return Whether the entry may be a group.
+         */
+        boolean isGroupCandidate(DN dn);
+    }
+
+    private final int maxDepth;
+    private final GroupReader reader;
+
+    /**
+     * Creates a new resolver.
+     *
+     * @param maxDepth The number of nesting levels expanded beyond the direct memberships; 0 disables the expansion.
+     * @param reader Reads the direct memberships.
+     */
+    NestedGroupResolver(int maxDepth, GroupReader reader) {
+        this.maxDepth = Math.max(0, maxDepth);
+        this.reader = reader;
+    }
+
+    /**
+     * @return Whether nested groups are expanded.
+     */
+    boolean isEnabled() {
+        return maxDepth > 0;
+    }
+
+    /**
+     * Adds the members of the groups among the members of a group, and of the groups among theirs, to its members.
+     *
+     * @param groupDN The DN of the group.
+     * @param members The direct members of the group.
+     * @param searchBases The DNs of the nested groups read, and the base DNs of the searches performed, are added to
+     * this set.
+     * @return The direct and nested members of the group, which include the nested groups.
+     * @throws IdRepoException If the members of a nested group could not be read.
+     */
+    Set<String> expandMembers(String groupDN, Set<String> members, Set<DN> searchBases) throws IdRepoException {
+        Set<String> results = new HashSet<String>(members);
+        Set<DN> expanded = new HashSet<DN>();
+        expanded.add(DN.valueOf(groupDN));
+        Collection<String> level = members;
+        for (int depth = 0; depth < maxDepth && !level.isEmpty(); depth++) {
+            List<String> nextLevel = new ArrayList<String>();
+            for (String member : level) {
+                DN memberDN = parse(member);
+                if (memberDN == null || !reader.isGroupCandidate(memberDN) || !expanded.add(memberDN)) {
+                    continue;
+                }
+                Set<String> nested = reader.getGroupMembers(member, searchBases);
+                if (!nested.isEmpty()) {
+                    searchBases.add(memberDN);
+                }
+                for (String nestedMember : nested) {
+                    if (results.add(nestedMember)) {
+                        nextLevel.add(nestedMember);
+                    }
+                }
+            }
+            level = nextLevel;
+        }
+        return results;
+    }
+
+    /**
+     * Adds the groups containing the groups of an identity, and the groups containing those, to its groups.
+     *
+     * @param groups The groups the identity is a direct member of.
+     * @param searchBases The DNs of the groups expanded, and the base DNs of the searches performed, are added to this
+     * set.
+     * @return The groups the identity is a direct or nested member of.
+     * @throws IdRepoException If the groups of a group could not be read.
+     */
+    Set<String> expandMemberships(Set<String> groups, Set<DN> searchBases) throws IdRepoException {
+        Set<String> results = new HashSet<String>(groups);
+        Set<DN> expanded = new HashSet<DN>();
+        List<String> level = new ArrayList<String>(groups.size());
+        for (String group : groups) {
+            DN groupDN = parse(group);
+            if (groupDN != null && expanded.add(groupDN)) {
+                level.add(group);
+            }
+        }
+        for (int depth = 0; depth < maxDepth && !level.isEmpty(); depth++) {
+            for (String group : level) {
+                searchBases.add(DN.valueOf(group));
+            }
+            List<String> nextLevel = new ArrayList<String>();
+            for (String parent : reader.getGroupMemberships(level, searchBases)) {
+                DN parentDN = parse(parent);
+                if (parentDN != null && expanded.add(parentDN)) {
+                    results.add(parent);
+                    nextLevel.add(parent);
+                }
+            }
+            level = nextLevel;
+        }
+        return results;
+    }
+
+    private DN parse(String dn) {
+        try {
+            return DN.valueOf(dn);
+        } catch (IllegalArgumentException iae) {
+            // not a DN, so not a group either
+            return null;
+        }
+    }
+}
@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2014 ForgeRock AS
+ * Copyright 2014-2015 ForgeRock AS
  */
 package org.forgerock.openam.idrepo.ldap.psearch;
 
@@ -29,7 +29,9 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import static org.forgerock.openam.idrepo.ldap.LDAPConstants.*;
+import org.forgerock.openam.idrepo.ldap.IdentityChangedListener;
 import org.forgerock.openam.idrepo.ldap.IdentityMovedOrRenamedListener;
 import org.forgerock.openam.ldap.LDAPUtils;
 import org.forgerock.openam.utils.IOUtils;
@@ -65,17 +67,22 @@ import org.forgerock.opendj.ldap.responses.SearchResultReference;
 public class DJLDAPv3PersistentSearch {
 
     private static final Debug DEBUG = Debug.getInstance("PersistentSearch");
+    // how long a persistent search has to be outstanding without failing before it is considered to be running
+    private static final long CONFIRMATION_DELAY = 1000;
     private final ConnectionFactory factory;
     private final Map<IdRepoListener, Set<IdType>> listenerMap = new ConcurrentHashMap<IdRepoListener, Set<IdType>>(1);
     private final Set<IdentityMovedOrRenamedListener> movedOrRenamedListenerSet =
             new HashSet<IdentityMovedOrRenamedListener>(1);
+    private final Set<IdentityChangedListener> changedListenerSet =
+            new CopyOnWriteArraySet<IdentityChangedListener>();
     private final int retryInterval;
     private final DN pSearchBaseDN;
     private final Filter pSearchFilter;
     private final SearchScope pSearchScope;
     private volatile boolean shutdown = false;
+    private volatile boolean notifying = false;
     private volatile Connection conn;
-    private FutureResult<Result> futureResult;
+    private volatile FutureResult<Result> futureResult;
     private PersistentSearchMode mode;
     private RetryTask retryTask;
 
@@ -165,6 +172,30 @@ public class DJLDAPv3PersistentSearch {
         movedOrRenamedListenerSet.remove(movedOrRenamedListener);
     }
 
+    /**
+     * Adds an {@link IdentityChangedListener} object, which needs to be notified about every persistent search result,
+     * and about the persistent search starting and stopping. The persistent search is only reported as started once
+     * the directory has returned a first change, or the search has been outstanding for a while without failing. If
+     * the persistent search is already running, the listener is told so straight away.
+     *
+     * @param changedListener The {@link IdentityChangedListener} instance that needs to be notified about changes.
+     */
+    public synchronized void addChangedListener(IdentityChangedListener changedListener) {
+        changedListenerSet.add(changedListener);
+        if (notifying) {
+            changedListener.changeNotificationStarted();
+        }
+    }
+
+    /**
+     * Removes an {@link IdentityChangedListener} if it was registered to get persistent search notifications.
+     *
+     * @param changedListener The {@link IdentityChangedListener} instance to remove from the listeners
+     */
+    public void removeChangedListener(IdentityChangedListener changedListener) {
+        changedListenerSet.remove(changedListener);
+    }
+
     /**
      * Starts the persistent search connection against the directory. The caller must ensure that calls made to
      * startPSearch and stopPsearch are properly synchronized.
@@ -214,6 +245,29 @@ public class DJLDAPv3PersistentSearch {
         //cache, while PS was stopped, those gets cleared out and we start with a clean cache.
         clearCaches();
         futureResult = conn.searchAsync(searchRequest, null, new PSearchResultHandler());
+        SystemTimerPool.getTimerPool().schedule(new ConfirmationTask(futureResult),
+                new Date(System.currentTimeMillis() + CONFIRMATION_DELAY));
+    }
+
+    /*
+     * The directory gives no notice once the persistent search is registered, so the listeners are only told that
+     * changes are reported once the search is known to be running.
+     */
+    private synchronized void changeNotificationStarted() {
+        if (notifying || shutdown) {
+            return;
+        }
+        notifying = true;
+        for (IdentityChangedListener changedListener : changedListenerSet) {
+            changedListener.changeNotificationStarted();
+        }
+    }
+
+    private synchronized void changeNotificationStopped() {
+        notifying = false;
+        for (IdentityChangedListener changedListener : changedListenerSet) {
+            changedListener.changeNotificationStopped();
+        }
     }
 
     /**
@@ -228,6 +282,7 @@ public class DJLDAPv3PersistentSearch {
             throw new IllegalStateException("Persistent search has assigned listeners, unable to stop.");
         }
         shutdown = true;
+        notifying = false;
         if (futureResult != null) {
             futureResult.cancel(true);
         }
@@ -264,6 +319,8 @@ public class DJLDAPv3PersistentSearch {
             if (DEBUG.messageEnabled()) {
                 DEBUG.message("Processing persistent search response: " + entry.toString());
             }
+            //a change has been returned, so the search is running
+            changeNotificationStarted();
             String dn = entry.getName().toString();
             DN previousDn = null;
             int type = -1;
@@ -328,6 +385,13 @@ public class DJLDAPv3PersistentSearch {
                     }
                 }
 
+                for (IdentityChangedListener listener : changedListenerSet) {
+                    if (previousDn != null) {
+                        listener.identityChanged(previousDn);
+                    }
+                    listener.identityChanged(entry.getName());
+                }
+
                 for (Map.Entry<IdRepoListener, Set<IdType>> listenerEntry : listenerMap.entrySet()) {
                     IdRepoListener listener = listenerEntry.getKey();
 
@@ -345,6 +409,7 @@ public class DJLDAPv3PersistentSearch {
         }
 
         public void handleErrorResult(ErrorResultException error) {
+            changeNotificationStopped();
             if (!shutdown) {
             	DEBUG.error("An error occurred while executing persistent search", error);
             	clearCaches();
@@ -358,6 +423,40 @@ public class DJLDAPv3PersistentSearch {
         }
     }
 
+    /**
+     * Reports the persistent search as started if it is still outstanding after the confirmation delay.
+     */
+    private class ConfirmationTask extends GeneralTaskRunnable {
+
+        private final FutureResult<Result> search;
+
+        private ConfirmationTask(FutureResult<Result> search) {
+            this.search = search;
+        }
+
+        public boolean addElement(Object key) {
+            return false;
+        }
+
+        public boolean removeElement(Object key) {
+            return false;
+        }
+
+        public boolean isEmpty() {
+            return true;
+        }
+
+        public long getRunPeriod() {
+            return -1;
+        }
+
+        public void run() {
+            if (search == futureResult && !search.isDone()) {
+                changeNotificationStarted();
+            }
+        }
+    }
+
     private class RetryTask extends GeneralTaskRunnable {
 
         private long runPeriod;
@@ -0,0 +1,183 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.idrepo.ldap;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import com.sun.identity.idm.IdType;
+import java.util.Collections;
+import java.util.Set;
+import org.forgerock.openam.utils.CollectionUtils;
+import org.forgerock.opendj.ldap.DN;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class MembershipCacheTest {
+
+    private static final DN GROUP = DN.valueOf("cn=group,ou=groups,dc=example,dc=com");
+    private static final DN USER = DN.valueOf("uid=user,ou=people,dc=example,dc=com");
+    private static final DN OTHER_USER = DN.valueOf("uid=other,ou=people,dc=example,dc=com");
+    private static final DN PEOPLE = DN.valueOf("ou=people,dc=example,dc=com");
+    private static final DN BASE = DN.valueOf("dc=example,dc=com");
+    private static final Set<String> MEMBERS = CollectionUtils.asSet(USER.toString());
+
+    private MembershipCache cache;
+
+    @BeforeMethod
+    public void setUp() {
+        cache = new MembershipCache("test", 10, 60000, BASE);
+        cache.changeNotificationStarted();
+    }
+
+    @Test
+    public void shouldRememberMembersAndMembershipsSeparately() {
+        cache.putMembers(IdType.GROUP, GROUP, MEMBERS, Collections.<DN>emptySet(), cache.getVersion());
+
+        assertThat(cache.getMembers(IdType.GROUP, GROUP)).isEqualTo(MEMBERS);
+        assertThat(cache.getMembers(IdType.ROLE, GROUP)).isNull();
+        assertThat(cache.getMemberships(IdType.GROUP, GROUP)).isNull();
+    }
+
+    @Test
+    public void shouldNotRememberWithoutChangeNotification() {
+        cache.changeNotificationStopped();
+        cache.putMembers(IdType.GROUP, GROUP, MEMBERS, Collections.<DN>emptySet(), cache.getVersion());
+
+        assertThat(cache.getMembers(IdType.GROUP, GROUP)).isNull();
+    }
+
+    @Test
+    public void shouldForgetEverythingWhenChangeNotificationStops() {
+        cache.putMembers(IdType.GROUP, GROUP, MEMBERS, Collections.<DN>emptySet(), cache.getVersion());
+
+        cache.changeNotificationStopped();
+        cache.changeNotificationStarted();
+
+        assertThat(cache.getMembers(IdType.GROUP, GROUP)).isNull();
+    }
+
+    @Test
+    public void shouldForgetResolutionOfChangedEntry() {
+        cache.putMembers(IdType.GROUP, GROUP, MEMBERS, Collections.<DN>emptySet(), cache.getVersion());
+        cache.putMemberships(IdType.GROUP, USER, Collections.singleton(GROUP.toString()),
+                Collections.<DN>emptySet(), cache.getVersion());
+
+        cache.identityChanged(DN.valueOf("CN=Group,ou=groups,dc=example,dc=com"));
+
+        assertThat(cache.getMembers(IdType.GROUP, GROUP)).isNull();
+        assertThat(cache.getMemberships(IdType.GROUP, USER)).isNotNull();
+    }
+
+    @Test
+    public void shouldForgetResolutionSearchedUnderChangedEntry() {
+        cache.putMembers(IdType.GROUP, GROUP, MEMBERS, Collections.singleton(PEOPLE), cache.getVersion());
+
+        cache.identityChanged(OTHER_USER);
+
+        assertThat(cache.getMembers(IdType.GROUP, GROUP)).isNull();
+    }
+
+    @Test
+    public void shouldKeepResolutionSearchedElsewhere() {
+        cache.putMembers(IdType.GROUP, GROUP, MEMBERS, Collections.singleton(PEOPLE), cache.getVersion());
+
+        cache.identityChanged(DN.valueOf("cn=other,ou=groups,dc=example,dc=com"));
+
+        assertThat(cache.getMembers(IdType.GROUP, GROUP)).isEqualTo(MEMBERS);
+    }
+
+    @Test
+    public void shouldNotRememberResolutionReadBeforeChange() {
+        long version = cache.getVersion();
+        cache.identityChanged(GROUP);
+
+        cache.putMembers(IdType.GROUP, GROUP, MEMBERS, Collections.<DN>emptySet(), version);
+
+        assertThat(cache.getMembers(IdType.GROUP, GROUP)).isNull();
+    }
+
+    @Test
+    public void shouldNotRememberResolutionReadBeforeChangeUnderSearchBase() {
+        long version = cache.getVersion();
+        cache.identityChanged(OTHER_USER);
+
+        cache.putMembers(IdType.GROUP, GROUP, MEMBERS, Collections.singleton(PEOPLE), version);
+
+        assertThat(cache.getMembers(IdType.GROUP, GROUP)).isNull();
+    }
+
+    @Test
+    public void shouldRememberResolutionReadBeforeUnrelatedChange() {
+        long version = cache.getVersion();
+        cache.identityChanged(OTHER_USER);
+
+        cache.putMembers(IdType.GROUP, GROUP, MEMBERS, Collections.<DN>emptySet(), version);
+
+        assertThat(cache.getMembers(IdType.GROUP, GROUP)).isEqualTo(MEMBERS);
+    }
+
+    @Test
+    public void shouldNotRememberResolutionReadBeforeClear() {
+        long version = cache.getVersion();
+        cache.clear();
+
+        cache.putMembers(IdType.GROUP, GROUP, MEMBERS, Collections.<DN>emptySet(), version);
+
+        assertThat(cache.getMembers(IdType.GROUP, GROUP)).isNull();
+    }
+
+    @Test
+    public void shouldNotRememberResolutionOutsideNotifiedSubtree() {
+        cache = new MembershipCache("test", 10, 60000, PEOPLE);
+        cache.changeNotificationStarted();
+
+        cache.putMembers(IdType.GROUP, GROUP, MEMBERS, Collections.<DN>emptySet(), cache.getVersion());
+        cache.putMemberships(IdType.GROUP, USER, Collections.singleton(GROUP.toString()),
+                Collections.singleton(DN.valueOf("ou=groups,dc=example,dc=com")), cache.getVersion());
+
+        assertThat(cache.getMembers(IdType.GROUP, GROUP)).isNull();
+        assertThat(cache.getMemberships(IdType.GROUP, USER)).isNull();
+    }
+
+    @Test
+    public void shouldNotRememberWithoutNotifiedSubtree() {
+        cache = new MembershipCache("test", 10, 60000, null);
+        cache.changeNotificationStarted();
+        cache.putMembers(IdType.GROUP, GROUP, MEMBERS, Collections.<DN>emptySet(), cache.getVersion());
+
+        assertThat(cache.getMembers(IdType.GROUP, GROUP)).isNull();
+    }
+
+    @Test
+    public void shouldForgetExpiredResolution() throws Exception {
+        cache = new MembershipCache("test", 10, 1, BASE);
+        cache.changeNotificationStarted();
+        cache.putMembers(IdType.GROUP, GROUP, MEMBERS, Collections.<DN>emptySet(), cache.getVersion());
+
+        Thread.sleep(5);
+
+        assertThat(cache.getMembers(IdType.GROUP, GROUP)).isNull();
+    }
+
+    @Test
+    public void shouldNotRememberWhenDisabled() {
+        cache = new MembershipCache("test", 0, 60000, BASE);
+        cache.changeNotificationStarted();
+        cache.putMembers(IdType.GROUP, GROUP, MEMBERS, Collections.<DN>emptySet(), cache.getVersion());
+
+        assertThat(cache.getMembers(IdType.GROUP, GROUP)).isNull();
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.idrepo.ldap;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.forgerock.openam.utils.CollectionUtils;
+import org.forgerock.opendj.ldap.DN;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class NestedGroupResolverTest {
+
+    private static final DN GROUPS = DN.valueOf("ou=groups,dc=example,dc=com");
+    private static final String USER = "uid=user,ou=people,dc=example,dc=com";
+    private static final String OTHER_USER = "uid=other,ou=people,dc=example,dc=com";
+    private static final String INNER = "cn=inner,ou=groups,dc=example,dc=com";
+    private static final String MIDDLE = "cn=middle,ou=groups,dc=example,dc=com";
+    private static final String OUTER = "cn=outer,ou=groups,dc=example,dc=com";
+
+    private FakeGroupReader reader;
+
+    @BeforeMethod
+    public void setUp() {
+        reader = new FakeGroupReader();
+        reader.addGroup(INNER, USER);
+        reader.addGroup(MIDDLE, INNER, OTHER_USER);
+        reader.addGroup(OUTER, MIDDLE);
+    }
+
+    @Test
+    public void shouldBeDisabledByDefault() {
+        assertThat(new NestedGroupResolver(0, reader).isEnabled()).isFalse();
+        assertThat(new NestedGroupResolver(-1, reader).isEnabled()).isFalse();
+        assertThat(new NestedGroupResolver(1, reader).isEnabled()).isTrue();
+    }
+
+    @Test
+    public void shouldExpandMembersOfNestedGroups() throws Exception {
+        // Given
+        NestedGroupResolver resolver = new NestedGroupResolver(5, reader);
+        Set<DN> searchBases = new HashSet<DN>();
+
+        // When
+        Set<String> members = resolver.expandMembers(OUTER, reader.members.get(OUTER), searchBases);
+
+        // Then
+        assertThat(members).containsOnly(MIDDLE, INNER, OTHER_USER, USER);
+        assertThat(searchBases).containsOnly(DN.valueOf(MIDDLE), DN.valueOf(INNER));
+        // users outside of the group container are never read
+        assertThat(reader.memberReads).containsOnly(MIDDLE, INNER);
+    }
+
+    @Test
+    public void shouldExpandMembersUpToMaximumDepth() throws Exception {
+        // Given
+        NestedGroupResolver resolver = new NestedGroupResolver(1, reader);
+
+        // When
+        Set<String> members = resolver.expandMembers(OUTER, reader.members.get(OUTER), new HashSet<DN>());
+
+        // Then
+        assertThat(members).containsOnly(MIDDLE, INNER, OTHER_USER);
+    }
+
+    @Test
+    public void shouldStopExpandingMembersAtCycle() throws Exception {
+        // Given
+        reader.addGroup(INNER, USER, OUTER);
+        NestedGroupResolver resolver = new NestedGroupResolver(10, reader);
+
+        // When
+        Set<String> members = resolver.expandMembers(OUTER, reader.members.get(OUTER), new HashSet<DN>());
+
+        // Then
+        assertThat(members).containsOnly(MIDDLE, INNER, OTHER_USER, USER, OUTER);
+        assertThat(reader.memberReads).containsOnly(MIDDLE, INNER);
+    }
+
+    @Test
+    public void shouldExpandMembershipsOneLevelPerRead() throws Exception {
+        // Given
+        NestedGroupResolver resolver = new NestedGroupResolver(5, reader);
+        Set<DN> searchBases = new HashSet<DN>();
+
+        // When
+        Set<String> groups = resolver.expandMemberships(CollectionUtils.asSet(INNER), searchBases);
+
+        // Then
+        assertThat(groups).containsOnly(INNER, MIDDLE, OUTER);
+        assertThat(reader.membershipReads).hasSize(3);
+        assertThat(searchBases).contains(DN.valueOf(INNER), DN.valueOf(MIDDLE), DN.valueOf(OUTER), GROUPS);
+    }
+
+    @Test
+    public void shouldStopExpandingMembershipsAtCycle() throws Exception {
+        // Given
+        reader.addGroup(INNER, USER, OUTER);
+        NestedGroupResolver resolver = new NestedGroupResolver(10, reader);
+
+        // When
+        Set<String> groups = resolver.expandMemberships(CollectionUtils.asSet(INNER), new HashSet<DN>());
+
+        // Then
+        assertThat(groups).containsOnly(INNER, MIDDLE, OUTER);
+        // the last read finds the group the expansion started from, and ends it
+        assertThat(reader.membershipReads).hasSize(3);
+    }
+
+    private static final class FakeGroupReader implements NestedGroupResolver.GroupReader {
+
+        private final Map<String, Set<String>> members = new HashMap<String, Set<String>>();
+        private final List<String> memberReads = new ArrayList<String>();
+        private final List<Collection<String>> membershipReads = new ArrayList<Collection<String>>();
+
+        void addGroup(String dn, String... groupMembers) {
+            members.put(dn, CollectionUtils.asSet(groupMembers));
+        }
+
+        public Set<String> getGroupMembers(String dn, Set<DN> searchBases) {
+            memberReads.add(dn);
+            Set<String> result = members.get(dn);
+            return result == null ? Collections.<String>emptySet() : result;
+        }
+
+        public Set<String> getGroupMemberships(Collection<String> dns, Set<DN> searchBases) {
+            membershipReads.add(new ArrayList<String>(dns));
+            searchBases.add(GROUPS);
+            Set<String> result = new HashSet<String>();
+            for (Map.Entry<String, Set<String>> group : members.entrySet()) {
+                for (String dn : dns) {
+                    if (group.getValue().contains(dn)) {
+                        result.add(group.getKey());
+                    }
+                }
+            }
+            return result;
+        }
+
+        public boolean isGroupCandidate(DN dn) {
+            return dn.isSubordinateOrEqualTo(GROUPS);
+        }
+    }
+}
@@ -26,11 +26,12 @@
  */
 
 /*
- * Portions Copyrighted 2010-2013 ForgeRock, Inc.
+ * Portions Copyrighted 2010-2015 ForgeRock, Inc.
  */
 
 package com.sun.identity.entitlement;
 
+import com.sun.identity.entitlement.util.NetworkMonitor;
 import com.sun.identity.shared.JSONUtils;
 import java.util.Collections;
 import java.util.HashMap;
@@ -97,6 +98,12 @@ public abstract class Privilege implements IPrivilege {
     private static Class privilegeClass;
     public static final NoSubject NOT_SUBJECT = new NoSubject();
 
+    // Stats monitor
+    private static final NetworkMonitor SUBJECT_MONITOR =
+        NetworkMonitor.getInstance("PrivilegeEvaluatorMonitorSubject");
+    private static final NetworkMonitor CONDITION_MONITOR =
+        NetworkMonitor.getInstance("PrivilegeEvaluatorMonitorCondition");
+
     private boolean active = true;
     private String name;
     private String description;
@@ -585,10 +592,16 @@ public abstract class Privilege implements IPrivilege {
     ) throws EntitlementException {
         boolean result = true;
         if (getSubject() != null) {
-            SubjectAttributesManager mgr =
-                SubjectAttributesManager.getInstance(adminSubject, realm);
-            SubjectDecision sDecision = getSubject().evaluate(realm,
-                mgr, subject, resourceName, environment);
+            long start = SUBJECT_MONITOR.start();
+            SubjectDecision sDecision;
+            try {
+                SubjectAttributesManager mgr =
+                    SubjectAttributesManager.getInstance(adminSubject, realm);
+                sDecision = getSubject().evaluate(realm,
+                    mgr, subject, resourceName, environment);
+            } finally {
+                SUBJECT_MONITOR.end(start);
+            }
             if (!sDecision.isSatisfied()) {
                 Map<String, Set<String>> advices = sDecision.getAdvices();
                 if (advices != null) {
@@ -623,8 +636,14 @@ public abstract class Privilege implements IPrivilege {
         boolean result = true;
 
         if (eCondition != null) {
-            ConditionDecision decision = eCondition.evaluate(realm,
-                subject, resourceName, environment);
+            long start = CONDITION_MONITOR.start();
+            ConditionDecision decision;
+            try {
+                decision = eCondition.evaluate(realm,
+                    subject, resourceName, environment);
+            } finally {
+                CONDITION_MONITOR.end(start);
+            }
             Map<String, Set<String>> advices = decision.getAdvices();
             if (advices != null) {
                 resultAdvices.putAll(advices);
@@ -24,7 +24,7 @@
  *
  * $Id: PrivilegeEvaluator.java,v 1.2 2009/10/07 06:36:40 veiming Exp $
  *
- * Portions copyright 2010-2014 ForgeRock AS.
+ * Portions copyright 2010-2015 ForgeRock AS.
  */
 package com.sun.identity.entitlement;
 
@@ -33,15 +33,17 @@ import com.sun.identity.entitlement.util.NetworkMonitor;
 
 import com.sun.identity.shared.debug.Debug;
 import java.security.Principal;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.security.auth.Subject;
 import org.forgerock.openam.session.util.AppTokenHandler;
 import org.forgerock.openam.entitlement.PrivilegeEvaluatorContext;
@@ -49,6 +51,14 @@ import org.forgerock.openam.entitlement.PrivilegeEvaluatorContext;
 /**
  * This class evaluates entitlements of a subject for a given resource
  * and a environment parameters.
+ * <p/>
+ * Small sets of matching privileges are evaluated on the calling thread.
+ * Larger sets are split into chunks of {@link #TASKS_PER_THREAD}
+ * privileges which the calling thread and a number of helpers from the
+ * evaluation thread pool claim in turn, so a busy pool never holds up an
+ * evaluation: whatever the helpers have not claimed, the calling thread
+ * evaluates itself. Once the entitlement combiner has reached a final
+ * decision, no further privileges are evaluated.
  */
 class PrivilegeEvaluator {
     private String realm = "/";
@@ -58,23 +68,21 @@ class PrivilegeEvaluator {
     private String resourceName;
     private Map<String, Set<String>> envParameters;
     private ResourceSearchIndexes indexes;
-    private List<List<Entitlement>> resultQ = new
-        LinkedList<List<Entitlement>>();
     private Application application;
     private Set<String> actionNames;
     private EntitlementCombiner entitlementCombiner;
     private boolean recursive;
-    private EntitlementException eException;
-    private final Lock lock = new ReentrantLock();
-    private final Condition hasResults = lock.newCondition();
+    private final IThreadPool helperPool;
+    private final int maxHelpers;
 
     // Static variables
     // TODO determine number of tasks per thread
     private static int evalThreadSize = Evaluator.DEFAULT_POLICY_EVAL_THREAD;
     private static final int TASKS_PER_THREAD = 5;
+    // Privilege sets up to this size are not worth handing to other threads
+    private static final int INLINE_THRESHOLD = 2 * TASKS_PER_THREAD;
 
     private static final IThreadPool threadPool;
-    private static final IThreadPool referralThreadPool;
     private static final boolean isMultiThreaded;
     
     // Stats monitor
@@ -90,14 +98,16 @@ class PrivilegeEvaluator {
         NetworkMonitor.getInstance("PrivilegeEvaluatorMonitorSearchNext");
     private static final NetworkMonitor PRIVILEGE_EVAL_MONITOR_SUBMIT =
         NetworkMonitor.getInstance("PrivilegeEvaluatorMonitorSubmit");
-    private static final NetworkMonitor PRIVILEGE_EVAL_MONITOR_WAIT =
+    private static final NetworkMonitor PRIVILEGE_EVAL_MONITOR_COMBINE =
         NetworkMonitor.getInstance("PrivilegeEvaluatorMonitorCombineResults");
+    private static final NetworkMonitor PRIVILEGE_EVAL_MONITOR_WAIT =
+        NetworkMonitor.getInstance("PrivilegeEvaluatorMonitorWait");
 
     static {
         EntitlementConfiguration ec = EntitlementConfiguration.getInstance(
             PrivilegeManager.superAdminSubject, "/");
-        Set<String> setPolicyEvalThread = ec.getConfiguration(
-            EntitlementConfiguration.POLICY_EVAL_THREAD_SIZE);
+        Set<String> setPolicyEvalThread = (ec == null) ? null :
+            ec.getConfiguration(EntitlementConfiguration.POLICY_EVAL_THREAD_SIZE);
 
         if ((setPolicyEvalThread != null) && !setPolicyEvalThread.isEmpty()) {
             try {
@@ -111,7 +121,27 @@ class PrivilegeEvaluator {
         }
         isMultiThreaded = evalThreadSize > 1;
         threadPool = isMultiThreaded ? new EntitlementThreadPool(evalThreadSize) : new SequentialThreadPool();
-        referralThreadPool = isMultiThreaded ? new EntitlementThreadPool(evalThreadSize) : new SequentialThreadPool();
+    }
+
+    /**
+     * Creates an evaluator which asks the policy evaluation thread pool for
+     * help with larger sets of privileges.
+     */
+    PrivilegeEvaluator() {
+        this(threadPool, isMultiThreaded ? evalThreadSize : 0);
+    }
+
+    /**
+     * Creates an evaluator which asks the given pool for help with larger
+     * sets of privileges.
+     *
+     * @param helperPool Pool the helpers are submitted to.
+     * @param maxHelpers Maximum number of helpers for one evaluation,
+     *        <code>0</code> to evaluate on the calling thread only.
+     */
+    PrivilegeEvaluator(IThreadPool helperPool, int maxHelpers) {
+        this.helperPool = helperPool;
+        this.maxHelpers = maxHelpers;
     }
 
     /**
@@ -128,7 +158,7 @@ class PrivilegeEvaluator {
      * @throws com.sun.identity.entitlement.EntitlementException if
      * initialization fails.
      */
-    private void init(
+    void init(
         Subject adminSubject,
         Subject subject,
         String realm,
@@ -279,142 +309,71 @@ class PrivilegeEvaluator {
             sam.getSubjectSearchFilter(subject, applicationName), recursive);
         PRIVILEGE_EVAL_MONITOR_SEARCH.end(start);
         
-        // Submit the privileges for evaluation
-        // First collect tasks to be evaluated locally
-        Set<IPrivilege> localPrivileges = new HashSet<IPrivilege>(2 * TASKS_PER_THREAD);
+        // Collect the privileges to be evaluated
+        Set<IPrivilege> candidates = new LinkedHashSet<IPrivilege>();
         Debug debug = PrivilegeManager.debug;
 
-        int totalCount = 0;
-        while (totalCount != TASKS_PER_THREAD) {
-            start = PRIVILEGE_EVAL_MONITOR_SEARCH_NEXT.start();
-            if (i.hasNext()) {
-                IPrivilege p = i.next();
-                if (debug.messageEnabled()) {
-                    debug.message("[PolicyEval] PolicyEvaluator.evaluate", null);
-                    debug.message("[PolicyEval] search result: privilege=" +
-                        p.getName(), null);
-                }
-                localPrivileges.add(p);
-                totalCount++;
-                PRIVILEGE_EVAL_MONITOR_SEARCH_NEXT.end(start);
-            } else {
-                PRIVILEGE_EVAL_MONITOR_SEARCH_NEXT.end(start);
-                break;
-            }
-        }
-        // Submit additional privilges to be executed by worker threads
-        Set<IPrivilege> privileges = null;
-        Set<IPrivilege> referralPrivileges = null;
-        boolean tasksSubmitted = false;
-        PrivilegeEvaluatorContext ctx =
-                new PrivilegeEvaluatorContext(realm, resourceName, applicationName);
-        Object appToken = AppTokenHandler.getAndClear();
-
         while (true) {
             start = PRIVILEGE_EVAL_MONITOR_SEARCH_NEXT.start();
             if (!i.hasNext()) {
+                PRIVILEGE_EVAL_MONITOR_SEARCH_NEXT.end(start);
                 break;
             }
-            if (privileges == null) {
-                privileges = new HashSet<IPrivilege>(2 * TASKS_PER_THREAD);
-                tasksSubmitted = true;
-            }
-            if (referralPrivileges == null) {
-                referralPrivileges = new HashSet<IPrivilege>(2 * TASKS_PER_THREAD);
-                tasksSubmitted = true;
-            }
             IPrivilege p = i.next();
             if (debug.messageEnabled()) {
                 debug.message("[PolicyEval] PolicyEvaluator.evaluate", null);
                 debug.message("[PolicyEval] search result: privilege=" +
                     p.getName(), null);
             }
-            if (p instanceof ReferralPrivilege) {
-                referralPrivileges.add(p);
-            } else {
-                privileges.add(p);
-            }
+            candidates.add(p);
             PRIVILEGE_EVAL_MONITOR_SEARCH_NEXT.end(start);
-            totalCount++;
-            if (!privileges.isEmpty() && (privileges.size() % TASKS_PER_THREAD) == 0) {
-                start = PRIVILEGE_EVAL_MONITOR_SUBMIT.start();
-                threadPool.submit(new PrivilegeTask(this, privileges, isMultiThreaded, appToken, ctx));
-                PRIVILEGE_EVAL_MONITOR_SUBMIT.end(start);
-                privileges.clear();
-            }
-            if (!referralPrivileges.isEmpty() && (referralPrivileges.size() % TASKS_PER_THREAD) == 0) {
-                start = PRIVILEGE_EVAL_MONITOR_SUBMIT.start();
-                referralThreadPool.submit(new PrivilegeTask(this, referralPrivileges, isMultiThreaded, appToken, ctx));
-                PRIVILEGE_EVAL_MONITOR_SUBMIT.end(start);
-                referralPrivileges.clear();
-            }
         }
-        if (privileges != null && !privileges.isEmpty()) {
-            start = PRIVILEGE_EVAL_MONITOR_SUBMIT.start();
-            threadPool.submit(new PrivilegeTask(this, privileges, isMultiThreaded, appToken, ctx));
-            PRIVILEGE_EVAL_MONITOR_SUBMIT.end(start);
-        }
-        if (referralPrivileges != null && !referralPrivileges.isEmpty()) {
-            start = PRIVILEGE_EVAL_MONITOR_SUBMIT.start();
-            referralThreadPool.submit(new PrivilegeTask(this, referralPrivileges, isMultiThreaded, appToken, ctx));
-            PRIVILEGE_EVAL_MONITOR_SUBMIT.end(start);
-        }
-        // IPrivilege privileges locally
-        (new PrivilegeTask(this, localPrivileges, tasksSubmitted, appToken, ctx)).run();
-
-        // Wait for submitted threads to complete evaluation
-        start = PRIVILEGE_EVAL_MONITOR_WAIT.start();
-        if (tasksSubmitted) {
-            if (isMultiThreaded) {
-                receiveEvalResults(totalCount);
-            } else {
-                boolean isDone = false;
-                while (!resultQ.isEmpty() && !isDone) {
-                    entitlementCombiner.add(resultQ.remove(0));
-                    isDone = entitlementCombiner.isDone();
-                }
-            }
-        } else if (eException == null) {
-            boolean isDone = false;
-            while (!resultQ.isEmpty() && !isDone) {
-                entitlementCombiner.add(resultQ.remove(0));
-                isDone = entitlementCombiner.isDone();
+
+        return evaluate(new ArrayList<IPrivilege>(candidates),
+            AppTokenHandler.getAndClear());
+    }
+
+    /**
+     * Evaluates the privileges found for the request, which must have been
+     * initialized, and combines their entitlements.
+     *
+     * @param privileges Privileges to be evaluated.
+     * @param appToken Application token passed on to the privileges.
+     * @return The combined entitlements.
+     * @throws EntitlementException if a privilege could not be evaluated.
+     */
+    List<Entitlement> evaluate(List<IPrivilege> privileges, Object appToken)
+        throws EntitlementException {
+        PrivilegeEvaluatorContext ctx =
+                new PrivilegeEvaluatorContext(realm, resourceName, applicationName);
+        PrivilegeTask task = new PrivilegeTask(privileges, appToken, ctx);
+
+        // Ask for help only when there is enough work to outweigh the hand-off
+        if ((maxHelpers > 0) && (privileges.size() > INLINE_THRESHOLD)) {
+            int helpers = Math.min(maxHelpers,
+                (privileges.size() / TASKS_PER_THREAD) - 1);
+            long start = PRIVILEGE_EVAL_MONITOR_SUBMIT.start();
+            for (int h = 0; h < helpers; h++) {
+                helperPool.submit(task);
             }
+            PRIVILEGE_EVAL_MONITOR_SUBMIT.end(start);
         }
-        PRIVILEGE_EVAL_MONITOR_WAIT.end(start);
-        
-        if (eException != null) {
-            throw eException;
+        task.evaluateAndCombine();
+
+        Throwable failure = task.failure.get();
+        if (failure instanceof EntitlementException) {
+            throw (EntitlementException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
         }
 
         List<Entitlement> ents = entitlementCombiner.getResults();
         return ents;
     }
 
-    private void receiveEvalResults(int totalCount) {
-        int counter = 0;
-        lock.lock();
-        boolean isDone = (eException != null);
-
-        try {
-            while (!isDone && (counter < totalCount)) {
-                if (resultQ.isEmpty()) {
-                    hasResults.await();
-                }
-                while (!resultQ.isEmpty() && !isDone) {
-                    entitlementCombiner.add(resultQ.remove(0));
-                    isDone = entitlementCombiner.isDone();
-                    counter++;
-                }
-            }
-        } catch (InterruptedException ex) {
-            PrivilegeManager.debug.error("PrivilegeEvaluator.evaluate", ex);
-        } finally {
-            lock.unlock();
-        }
-    }
-    
-    private Application getApplication()
+    Application getApplication()
         throws EntitlementException {
         if (application == null) {
             application = ApplicationManager.getApplicationForEvaluation(
@@ -428,62 +387,149 @@ class PrivilegeEvaluator {
         return application;
     }
 
+    /**
+     * Evaluates a list of privileges in chunks, which the calling thread
+     * and any helper threads running this task claim in turn. Helpers hand
+     * their results back through a queue, as only the calling thread may
+     * use the entitlement combiner.
+     */
     class PrivilegeTask implements Runnable {
-        final PrivilegeEvaluator parent;
-        private Set<IPrivilege> privileges;
-        private boolean isThreaded;
-        private Object context;
-        private PrivilegeEvaluatorContext ctx;
-
-        PrivilegeTask(PrivilegeEvaluator parent, Set<IPrivilege> privileges,
-            boolean isThreaded, Object context, PrivilegeEvaluatorContext ctx) {
-            this.parent = parent;
-            this.privileges = new HashSet<IPrivilege>(privileges.size() *2);
-            this.privileges.addAll(privileges);
-            this.isThreaded = isThreaded;
+        private final List<IPrivilege> privileges;
+        private final Object context;
+        private final PrivilegeEvaluatorContext ctx;
+        private final AtomicInteger nextChunk = new AtomicInteger();
+        // Helpers that may still post results
+        private final AtomicInteger pending = new AtomicInteger();
+        private final BlockingQueue<List<List<Entitlement>>> results =
+            new LinkedBlockingQueue<List<List<Entitlement>>>();
+        private final AtomicReference<Throwable> failure =
+            new AtomicReference<Throwable>();
+        private volatile boolean cancelled;
+
+        PrivilegeTask(List<IPrivilege> privileges, Object context,
+            PrivilegeEvaluatorContext ctx) {
+            this.privileges = privileges;
             this.context = context;
             this.ctx = ctx;
         }
 
+        /**
+         * Helper thread entry point.
+         */
         public void run() {
             PrivilegeEvaluatorContext.setCurrent(ctx);
-            
+            pending.incrementAndGet();
+
+            try {
+                int from;
+                while ((from = claim()) >= 0) {
+                    List<List<Entitlement>> batch =
+                        new ArrayList<List<Entitlement>>(TASKS_PER_THREAD);
+                    evaluate(from, batch);
+                    results.add(batch);
+                }
+            } finally {
+                if (pending.decrementAndGet() == 0) {
+                    // Wake the calling thread should it be waiting
+                    results.add(new ArrayList<List<Entitlement>>(0));
+                }
+            }
+        }
+
+        /**
+         * Evaluates privileges on the calling thread until none are left to
+         * claim, then combines the results of the helpers still evaluating.
+         */
+        void evaluateAndCombine() {
+            PrivilegeEvaluatorContext.setCurrent(ctx);
+            List<List<Entitlement>> batch =
+                new ArrayList<List<Entitlement>>(TASKS_PER_THREAD);
+            int from;
+
+            while ((from = claim()) >= 0) {
+                batch.clear();
+                evaluate(from, batch);
+                combine(batch);
+            }
+
+            long start = PRIVILEGE_EVAL_MONITOR_WAIT.start();
             try {
-                for (final IPrivilege eval : privileges) {
-                    List<Entitlement> entitlements = eval.evaluate(
-                                            parent.adminSubject,
-                                            parent.realm, parent.subject,
-                                            parent.applicationName, parent.resourceName,
-                                            parent.actionNames, parent.envParameters,
-                                            parent.recursive, context);
+                while (true) {
+                    // Helpers post their results before they stop pending
+                    boolean idle = (pending.get() == 0);
+                    List<List<Entitlement>> posted;
+                    while ((posted = results.poll()) != null) {
+                        combine(posted);
+                    }
+                    if (idle) {
+                        break;
+                    }
+                    combine(results.take());
+                }
+            } catch (InterruptedException ex) {
+                PrivilegeManager.debug.error("PrivilegeEvaluator.evaluate", ex);
+                Thread.currentThread().interrupt();
+                cancelled = true;
+            }
+            PRIVILEGE_EVAL_MONITOR_WAIT.end(start);
+        }
 
+        /**
+         * Claims the next chunk of privileges.
+         *
+         * @return Index of the first privilege in the chunk, or -1 when
+         *         there is nothing more to evaluate.
+         */
+        private int claim() {
+            if (cancelled) {
+                return -1;
+            }
+            int from = nextChunk.getAndAdd(TASKS_PER_THREAD);
+            return (from < privileges.size()) ? from : -1;
+        }
+
+        private void evaluate(int from, List<List<Entitlement>> batch) {
+            int to = Math.min(from + TASKS_PER_THREAD, privileges.size());
+
+            try {
+                for (int i = from; (i < to) && !cancelled; i++) {
+                    List<Entitlement> entitlements = privileges.get(i).evaluate(
+                        adminSubject, realm, subject, applicationName,
+                        resourceName, actionNames, envParameters, recursive,
+                        context);
                     if (entitlements != null) {
-                        if (isThreaded) {
-                            try {
-                                parent.lock.lock();
-                                parent.resultQ.add(entitlements);
-                                parent.hasResults.signal();
-                            } finally {
-                                parent.lock.unlock();
-                            }
-                        } else {
-                            parent.resultQ.add(entitlements);
-                        }
+                        batch.add(entitlements);
                     }
                 }
             } catch (EntitlementException ex) {
-                if (isThreaded) {
-                    try {
-                        parent.lock.lock();
-                        parent.eException = ex;
-                        parent.hasResults.signal();
-                    } finally {
-                        parent.lock.unlock();
-                    }
-                } else {
-                    parent.eException = ex;
+                fail(ex);
+            } catch (RuntimeException ex) {
+                fail(ex);
+            } catch (Error ex) {
+                fail(ex);
+                throw ex;
+            }
+        }
+
+        private void fail(Throwable t) {
+            failure.compareAndSet(null, t);
+            cancelled = true;
+        }
+
+        private void combine(List<List<Entitlement>> batch) {
+            if (batch.isEmpty() || entitlementCombiner.isDone()) {
+                return;
+            }
+            long start = PRIVILEGE_EVAL_MONITOR_COMBINE.start();
+            for (List<Entitlement> entitlements : batch) {
+                entitlementCombiner.add(entitlements);
+                if (entitlementCombiner.isDone()) {
+                    // The decision is final, skip what is left
+                    cancelled = true;
+                    break;
                 }
             }
+            PRIVILEGE_EVAL_MONITOR_COMBINE.end(start);
         }
     }
 }
@@ -26,31 +26,27 @@
  *
  * $Id: RegExResourceName.java,v 1.1 2009/12/07 19:53:02 veiming Exp $
  *
- * Portions Copyrighted 2014 ForgeRock AS.
+ * Portions Copyrighted 2014-2015 ForgeRock AS.
  */
 
 package com.sun.identity.entitlement;
 
-import com.iplanet.am.util.Cache;
 import com.sun.identity.entitlement.interfaces.ResourceName;
 
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import org.forgerock.openam.shared.cache.CacheFactory;
 
 /**
  * A {@link ResourceName} implementation that matches the resourcenames using regular expressions.
  */
 public class RegExResourceName implements ResourceName {
     private String delimiter = "/";
-    private static final ReadWriteLock patternCacheLock =
-        new ReentrantReadWriteLock();
-
     private static final int MAX_CACHE_SIZE = 1000;
-    private static Cache patternCache = new Cache(MAX_CACHE_SIZE);
+    private static final Map<String, Pattern> patternCache =
+        CacheFactory.newLRUCache("RegExPatternCache", MAX_CACHE_SIZE);
 
     public Set<String> getServiceTypeNames() {
         return null;
@@ -171,42 +167,39 @@ public class RegExResourceName implements ResourceName {
     }
 
     private static Pattern getPatternFromCache(String strPattern) {
-        patternCacheLock.writeLock().lock();
-        try {
-            Pattern pattern = (Pattern)patternCache.get(strPattern);
-            if (pattern != null) {
-                return pattern;
-            }
-
-            StringBuilder buff = new StringBuilder();
-            for (int i = 0; i < strPattern.length()-1; i++) {
-                char c = strPattern.charAt(i);
-                if (c == '.') {
-                    buff.append("\\.");
-                } else if (c == '*') {
-                    buff.append(".*?");
-                } else if (c == '?') {
-                    buff.append("\\?");
-                } else if (c == '+') {
-                    buff.append("\\+");
-                } else {
-                    buff.append(c);
-                }
-            }
+        // Compiling the same pattern twice under a race is harmless, so the
+        // cache is not locked while the pattern is compiled.
+        Pattern pattern = patternCache.get(strPattern);
+        if (pattern != null) {
+            return pattern;
+        }
 
-            char lastChar = strPattern.charAt(strPattern.length()-1);
-            if (lastChar == '*') {
-                buff.append(".*");
+        StringBuilder buff = new StringBuilder();
+        for (int i = 0; i < strPattern.length()-1; i++) {
+            char c = strPattern.charAt(i);
+            if (c == '.') {
+                buff.append("\\.");
+            } else if (c == '*') {
+                buff.append(".*?");
+            } else if (c == '?') {
+                buff.append("\\?");
+            } else if (c == '+') {
+                buff.append("\\+");
             } else {
-                buff.append(lastChar);
+                buff.append(c);
             }
+        }
 
-            pattern = Pattern.compile(buff.toString() + "(.*)");
-            patternCache.put(strPattern, pattern);
-            return pattern;
-        } finally {
-            patternCacheLock.writeLock().unlock();
+        char lastChar = strPattern.charAt(strPattern.length()-1);
+        if (lastChar == '*') {
+            buff.append(".*");
+        } else {
+            buff.append(lastChar);
         }
+
+        pattern = Pattern.compile(buff.toString() + "(.*)");
+        patternCache.put(strPattern, pattern);
+        return pattern;
     }
 
     public String[] split(String res) {
@@ -27,7 +27,7 @@
  */
 
 /*
- * Portions Copyrighted [2011] [ForgeRock AS]
+ * Portions Copyrighted [2011-2015] [ForgeRock AS]
  */
 package com.sun.identity.entitlement.util;
 
@@ -124,7 +124,11 @@ import java.util.Set;
  * @see     Collection
  * @see            Map
  * @since JDK1.0
+ * @deprecated Use {@link org.forgerock.openam.shared.cache.ConcurrentLRUCache}
+ *             or {@link org.forgerock.openam.shared.cache.CacheFactory}, which
+ *             do not serialise every access on a single lock.
  */
+@Deprecated
 public class Cache extends Dictionary implements Map, java.io.Serializable {
 
     // Default Cache size.
@@ -0,0 +1,161 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.entitlement.utils.indextree;
+
+import org.forgerock.openam.shared.cache.ConcurrentLRUCache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Index rule tree that memoizes the matched index rules of recently searched resources, so that a resource which is
+ * evaluated repeatedly is resolved with a single lookup rather than a walk of the tree.
+ * <p/>
+ * This is a memo of search results in front of the tree, not a compiled index: a resource which has not been
+ * searched recently is still matched by walking the underlying tree. When index rules are added, only the remembered
+ * resources which one of the new rules matches are forgotten; when an index rule is removed, only the remembered
+ * resources whose results contain it are forgotten.
+ * <p/>
+ * A tree version is taken before each search of the underlying tree and the result is only remembered if no
+ * modification has happened since, so a search that races with a modification can never leave a stale result behind.
+ *
+ * @see IndexRuleTree
+ */
+public class MemoizingIndexRuleTree implements IndexRuleTree {
+
+    private final IndexRuleTree delegate;
+    private final ConcurrentLRUCache<String, Set<String>> results;
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * Creates a new memoizing tree.
+     *
+     * @param delegate
+     *         The tree holding the index rules.
+     * @param maxResults
+     *         The maximum number of resources whose results are remembered.
+     */
+    public MemoizingIndexRuleTree(IndexRuleTree delegate, int maxResults) {
+        this.delegate = delegate;
+        this.results = new ConcurrentLRUCache<String, Set<String>>("IndexRuleTree", maxResults);
+    }
+
+    @Override
+    public void addIndexRule(String indexRule) {
+        try {
+            delegate.addIndexRule(indexRule);
+        } finally {
+            version.incrementAndGet();
+            forgetMatchedBy(Collections.singleton(indexRule));
+        }
+    }
+
+    @Override
+    public void addIndexRules(Collection<String> indexRules) {
+        try {
+            delegate.addIndexRules(indexRules);
+        } finally {
+            version.incrementAndGet();
+            forgetMatchedBy(indexRules);
+        }
+    }
+
+    @Override
+    public void removeIndexRule(String indexRule) {
+        try {
+            delegate.removeIndexRule(indexRule);
+        } finally {
+            version.incrementAndGet();
+            forgetContaining(indexRule);
+        }
+    }
+
+    @Override
+    public Set<String> searchTree(String resource) {
+        if (resource == null) {
+            throw new IllegalArgumentException("The search term must not be null");
+        }
+
+        Set<String> matches = results.get(resource);
+
+        if (matches == null) {
+            long searchVersion = version.get();
+            matches = Collections.unmodifiableSet(delegate.searchTree(resource));
+
+            if (version.get() == searchVersion) {
+                results.put(resource, matches);
+
+                // Should a modification have slipped in between the check and the put, discard the result again.
+                if (version.get() != searchVersion) {
+                    results.remove(resource, matches);
+                }
+            }
+        }
+
+        return matches;
+    }
+
+    /**
+     * Forgets the remembered resources which any of the given index rules matches.
+     *
+     * @param indexRules
+     *         The added index rules.
+     */
+    private void forgetMatchedBy(Collection<String> indexRules) {
+        if (results.isEmpty()) {
+            return;
+        }
+
+        IndexRuleTree added = new SimpleReferenceTree();
+        for (String indexRule : indexRules) {
+            if (indexRule != null) {
+                added.addIndexRule(indexRule);
+            }
+        }
+
+        Iterator<Map.Entry<String, Set<String>>> entries = results.entrySet().iterator();
+        while (entries.hasNext()) {
+            if (!added.searchTree(entries.next().getKey()).isEmpty()) {
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets the remembered resources whose results contain the given index rule.
+     *
+     * @param indexRule
+     *         The removed index rule.
+     */
+    private void forgetContaining(String indexRule) {
+        Iterator<Map.Entry<String, Set<String>>> entries = results.entrySet().iterator();
+        while (entries.hasNext()) {
+            if (entries.next().getValue().contains(indexRule)) {
+                entries.remove();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+
+}
@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2013 ForgeRock Inc.
+ * Copyright 2013-2015 ForgeRock AS.
  */
 package org.forgerock.openam.entitlement.utils.indextree;
 
@@ -193,6 +193,8 @@ public class SimpleReferenceTree implements IndexRuleTree {
         List<TreeNode> candidates = new ArrayList<TreeNode>();
         // Start with the root node as the candidate.
         candidates.add(root);
+        // Elections alternate between the two lists rather than copying the candidates for each character.
+        List<TreeNode> elected = new ArrayList<TreeNode>();
 
         // Create a new search context for the current search.
         SearchContext context = new MapSearchContext();
@@ -204,7 +206,11 @@ public class SimpleReferenceTree implements IndexRuleTree {
             }
 
             // For each character of the search term.
-            searchTree(searchTerm[i], candidates, context);
+            searchTree(searchTerm[i], candidates, elected, context);
+
+            List<TreeNode> previousCandidates = candidates;
+            candidates = elected;
+            elected = previousCandidates;
         }
 
         Set<String> results = new HashSet<String>();
@@ -223,14 +229,16 @@ public class SimpleReferenceTree implements IndexRuleTree {
      *
      * @param searchTerm
      *         Current search character.
+     * @param previousCandidates
+     *         Candidates elected by the previous character.
      * @param candidates
-     *         Elected candidates as potential matches.
+     *         Cleared and populated with the elected candidates as potential matches.
      * @param context
      *         The shared search context.
      */
-    private void searchTree(char searchTerm, List<TreeNode> candidates, SearchContext context) {
+    private void searchTree(char searchTerm, List<TreeNode> previousCandidates, List<TreeNode> candidates,
+                            SearchContext context) {
         // Every candidate has to be reelected.
-        List<TreeNode> previousCandidates = new ArrayList<TreeNode>(candidates);
         candidates.clear();
 
         for (TreeNode previousCandidate : previousCandidates) {
@@ -0,0 +1,238 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package com.sun.identity.entitlement;
+
+import static java.util.Collections.EMPTY_MAP;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+
+import com.sun.identity.entitlement.interfaces.IThreadPool;
+import com.sun.identity.entitlement.interfaces.ResourceName;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.security.auth.Subject;
+import org.forgerock.openam.utils.CollectionUtils;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class PrivilegeEvaluatorTest {
+
+    private static final String REALM = "/";
+    private static final String APP_NAME = "testAppName";
+    private static final String RESOURCE_NAME = "http://test.web.com:8080/hello/world/page.html";
+    private static final String ACTION = "GET";
+
+    private Application application;
+    private List<Thread> evaluatingThreads;
+    private AtomicInteger evaluatedCount;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        application = mock(Application.class);
+        given(application.getName()).willReturn(APP_NAME);
+        given(application.getResourceComparator()).willReturn(mock(ResourceName.class));
+        given(application.getActions()).willReturn(EMPTY_MAP);
+        given(application.getEntitlementCombiner()).willAnswer(new Answer<EntitlementCombiner>() {
+            public EntitlementCombiner answer(InvocationOnMock invocation) {
+                return new DenyOverride() {
+                    @Override
+                    public void init(String realm, String applicationName, String resourceName, Set<String> actions,
+                            boolean isRecursive) throws EntitlementException {
+                        init(resourceName, actions, isRecursive, application);
+                    }
+                };
+            }
+        });
+
+        evaluatingThreads = new CopyOnWriteArrayList<Thread>();
+        evaluatedCount = new AtomicInteger();
+    }
+
+    @Test
+    public void shouldEvaluateSmallSetOfPrivilegesOnCallingThread() throws Exception {
+        // Given
+        RecordingThreadPool pool = new RecordingThreadPool(false);
+        PrivilegeEvaluator evaluator = newEvaluator(pool, 4);
+
+        // When
+        List<Entitlement> results = evaluator.evaluate(privileges(10, -1, -1), null);
+
+        // Then
+        assertThat(pool.submitted.get()).isEqualTo(0);
+        assertThat(evaluatedCount.get()).isEqualTo(10);
+        assertThat(evaluatingThreads).containsOnly(Thread.currentThread());
+        assertThat(results.get(0).getActionValue(ACTION)).isTrue();
+    }
+
+    @Test
+    public void shouldEvaluateOnCallingThreadWhenHelpersDoNotRun() throws Exception {
+        // Given
+        RecordingThreadPool pool = new RecordingThreadPool(false);
+        PrivilegeEvaluator evaluator = newEvaluator(pool, 4);
+
+        // When
+        List<Entitlement> results = evaluator.evaluate(privileges(20, -1, -1), null);
+
+        // Then
+        assertThat(pool.submitted.get()).isEqualTo(3);
+        assertThat(evaluatedCount.get()).isEqualTo(20);
+        assertThat(evaluatingThreads).containsOnly(Thread.currentThread());
+        assertThat(results.get(0).getActionValue(ACTION)).isTrue();
+    }
+
+    @Test
+    public void shouldCombineResultsOfHelpers() throws Exception {
+        // Given
+        RecordingThreadPool pool = new RecordingThreadPool(true);
+        PrivilegeEvaluator evaluator = newEvaluator(pool, 4);
+
+        // When
+        List<Entitlement> results = evaluator.evaluate(privileges(20, 17, -1), null);
+
+        // Then
+        assertThat(evaluatedCount.get()).isEqualTo(20);
+        assertThat(evaluatingThreads).excludes(Thread.currentThread());
+        assertThat(results.get(0).getActionValue(ACTION)).isFalse();
+    }
+
+    @Test
+    public void shouldStopEvaluatingOnceDenyOverrideHasDecided() throws Exception {
+        // Given
+        PrivilegeEvaluator evaluator = newEvaluator(new RecordingThreadPool(false), 0);
+
+        // When
+        List<Entitlement> results = evaluator.evaluate(privileges(12, 0, -1), null);
+
+        // Then
+        assertThat(evaluatedCount.get()).isEqualTo(5);
+        assertThat(results.get(0).getActionValue(ACTION)).isFalse();
+    }
+
+    @Test
+    public void shouldPropagateFailureOfPrivilegeEvaluatedByHelper() throws Exception {
+        // Given
+        PrivilegeEvaluator evaluator = newEvaluator(new RecordingThreadPool(true), 4);
+        List<IPrivilege> privileges = privileges(20, -1, 7);
+
+        // When
+        EntitlementException failure = null;
+        try {
+            evaluator.evaluate(privileges, null);
+        } catch (EntitlementException e) {
+            failure = e;
+        }
+
+        // Then
+        assertThat(failure).isSameAs(((TestPrivilege) privileges.get(7)).failure);
+        // the helper claimed the first two chunks, and stopped at the failing privilege
+        assertThat(evaluatedCount.get()).isEqualTo(8);
+    }
+
+    private PrivilegeEvaluator newEvaluator(IThreadPool pool, int maxHelpers) throws EntitlementException {
+        PrivilegeEvaluator evaluator = new PrivilegeEvaluator(pool, maxHelpers) {
+            @Override
+            Application getApplication() {
+                return application;
+            }
+        };
+        evaluator.init(new Subject(), new Subject(), REALM, APP_NAME, RESOURCE_NAME, CollectionUtils.asSet(ACTION),
+                Collections.<String, Set<String>>emptyMap(), false);
+        return evaluator;
+    }
+
+    /**
+     * Creates privileges which allow the action, except for the one at index <code>deny</code>, which denies it,
+     * and the one at index <code>fail</code>, which fails.
+     */
+    private List<IPrivilege> privileges(int count, int deny, int fail) {
+        List<IPrivilege> privileges = new ArrayList<IPrivilege>(count);
+        for (int i = 0; i < count; i++) {
+            privileges.add(new TestPrivilege("privilege" + i, i != deny,
+                    i == fail ? new EntitlementException(1) : null));
+        }
+        return privileges;
+    }
+
+    private class TestPrivilege implements IPrivilege {
+
+        private final String name;
+        private final boolean allow;
+        private final EntitlementException failure;
+
+        TestPrivilege(String name, boolean allow, EntitlementException failure) {
+            this.name = name;
+            this.allow = allow;
+            this.failure = failure;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public ResourceSaveIndexes getResourceSaveIndexes(Subject adminSubject, String realm) {
+            return null;
+        }
+
+        public List<Entitlement> evaluate(Subject adminSubject, String realm, Subject subject,
+                String applicationName, String resourceName, Set<String> actionNames,
+                Map<String, Set<String>> environment, boolean recursive, Object context)
+                throws EntitlementException {
+            evaluatingThreads.add(Thread.currentThread());
+            evaluatedCount.incrementAndGet();
+            if (failure != null) {
+                throw failure;
+            }
+            Map<String, Boolean> actionValues = Collections.singletonMap(ACTION, allow);
+            return Collections.singletonList(new Entitlement(applicationName, resourceName, actionValues));
+        }
+    }
+
+    /**
+     * Counts the helpers submitted to it, and either runs each of them to completion on a thread of its own, or
+     * never runs them at all, as a busy pool would.
+     */
+    private static class RecordingThreadPool implements IThreadPool {
+
+        private final boolean run;
+        private final AtomicInteger submitted = new AtomicInteger();
+
+        RecordingThreadPool(boolean run) {
+            this.run = run;
+        }
+
+        public void submit(Runnable r) {
+            submitted.incrementAndGet();
+            if (!run) {
+                return;
+            }
+            Thread helper = new Thread(r);
+            helper.start();
+            try {
+                helper.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
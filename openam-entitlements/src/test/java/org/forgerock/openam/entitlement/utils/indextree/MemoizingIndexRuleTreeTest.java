@@ -0,0 +1,151 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.entitlement.utils.indextree;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Unit test for {@link MemoizingIndexRuleTree}.
+ */
+public class MemoizingIndexRuleTreeTest {
+
+    private IndexRuleTree delegate;
+    private IndexRuleTree tree;
+
+    @BeforeMethod
+    public void setUp() {
+        delegate = spy(new SimpleReferenceTree());
+        tree = new MemoizingIndexRuleTree(delegate, 100);
+    }
+
+    @Test
+    public void shouldSearchDelegateOnceForRepeatedResource() {
+        // Given
+        tree.addIndexRule("http://www.example.com/*");
+
+        // When
+        Set<String> first = tree.searchTree("http://www.example.com/index.html");
+        Set<String> second = tree.searchTree("http://www.example.com/index.html");
+
+        // Then
+        assertThat(first).containsOnly("http://www.example.com/*");
+        assertThat(second).isEqualTo(first);
+        verify(delegate, times(1)).searchTree("http://www.example.com/index.html");
+    }
+
+    @Test
+    public void shouldSeeAddedRules() {
+        // Given
+        tree.addIndexRule("http://www.example.com/*");
+        tree.searchTree("http://www.example.com/index.html");
+
+        // When
+        tree.addIndexRule("http://www.example.com/index.html");
+
+        // Then
+        assertThat(tree.searchTree("http://www.example.com/index.html"))
+                .containsOnly("http://www.example.com/*", "http://www.example.com/index.html");
+    }
+
+    @Test
+    public void shouldNotSeeRemovedRules() {
+        // Given
+        tree.addIndexRules(Collections.singleton("http://www.example.com/*"));
+        tree.searchTree("http://www.example.com/index.html");
+
+        // When
+        tree.removeIndexRule("http://www.example.com/*");
+
+        // Then
+        assertThat(tree.searchTree("http://www.example.com/index.html")).isEmpty();
+    }
+
+    @Test
+    public void shouldKeepResultsUnaffectedByAddedRules() {
+        // Given
+        tree.addIndexRule("http://www.example.com/*");
+        tree.searchTree("http://www.example.com/index.html");
+
+        // When
+        tree.addIndexRule("http://www.test.com/*");
+        Set<String> matches = tree.searchTree("http://www.example.com/index.html");
+
+        // Then
+        assertThat(matches).containsOnly("http://www.example.com/*");
+        verify(delegate, times(1)).searchTree("http://www.example.com/index.html");
+    }
+
+    @Test
+    public void shouldKeepResultsUnaffectedByRemovedRule() {
+        // Given
+        tree.addIndexRules(Arrays.asList("http://www.example.com/*", "http://www.test.com/*"));
+        tree.searchTree("http://www.example.com/index.html");
+        tree.searchTree("http://www.test.com/index.html");
+
+        // When
+        tree.removeIndexRule("http://www.test.com/*");
+        Set<String> matches = tree.searchTree("http://www.example.com/index.html");
+
+        // Then
+        assertThat(matches).containsOnly("http://www.example.com/*");
+        assertThat(tree.searchTree("http://www.test.com/index.html")).isEmpty();
+        verify(delegate, times(1)).searchTree("http://www.example.com/index.html");
+        verify(delegate, times(2)).searchTree("http://www.test.com/index.html");
+    }
+
+    @Test (expectedExceptions = UnsupportedOperationException.class)
+    public void shouldNotAllowResultsToBeModified() {
+        tree.searchTree("http://www.example.com/").add("http://www.example.com/*");
+    }
+
+    @Test
+    public void shouldNotRememberResultOfSearchRacingWithModification() {
+        // Given
+        IndexRuleTree racingDelegate = mock(IndexRuleTree.class);
+        final IndexRuleTree racingTree = new MemoizingIndexRuleTree(racingDelegate, 100);
+        given(racingDelegate.searchTree("http://www.example.com/"))
+                .willAnswer(new Answer<Set<String>>() {
+                    @Override
+                    public Set<String> answer(InvocationOnMock invocation) {
+                        // A modification arrives while the tree is being searched.
+                        racingTree.addIndexRule("http://www.example.com/");
+                        return Collections.emptySet();
+                    }
+                });
+
+        // When
+        racingTree.searchTree("http://www.example.com/");
+        racingTree.searchTree("http://www.example.com/");
+
+        // Then
+        verify(racingDelegate, times(2)).searchTree("http://www.example.com/");
+    }
+
+}
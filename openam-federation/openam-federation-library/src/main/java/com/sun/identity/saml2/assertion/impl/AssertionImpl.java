@@ -24,6 +24,7 @@
  *
  * $Id: AssertionImpl.java,v 1.8 2009/05/09 15:43:59 mallas Exp $
  *
+ * Portions Copyrighted 2015 ForgeRock AS.
  */
 
 
@@ -82,6 +83,8 @@ public class AssertionImpl implements Assertion {
     private Issuer issuer;
     private boolean isMutable = true;
     private String signedXMLString = null;
+    // DOM of the signed assertion, held until it is first serialized
+    private Element signedElement = null;
     private Boolean isSignatureValid = null;
 
     public static String ASSERTION_ELEMENT = "Assertion";
@@ -679,12 +682,43 @@ public class AssertionImpl implements Assertion {
             cert
         );
         signature = XMLUtils.print(signatureElement); 
-        signedXMLString = XMLUtils.print(
-            signatureElement.getOwnerDocument().
-            getDocumentElement(), "UTF-8");
+        synchronized (this) {
+            signedXMLString = null;
+            signedElement =
+                signatureElement.getOwnerDocument().getDocumentElement();
+        }
         makeImmutable();  
     }
 
+    /**
+     * Imports the DOM of the signed assertion into the given document,
+     * so that an enclosing document can be built without serializing
+     * and parsing the signed assertion again.
+     *
+     * @param doc The document the signed assertion is imported into.
+     * @return The imported <code>Assertion</code> element, or null if
+     *         the assertion was not signed by this object or has already
+     *         been serialized.
+     */
+    public synchronized Element importSignedElement(Document doc) {
+        if (signedElement == null) {
+            return null;
+        }
+        return (Element) doc.importNode(signedElement, true);
+    }
+
+    /*
+     * Serializes the signed assertion on first use only, as it often gets
+     * imported into the enclosing response as DOM instead.
+     */
+    private synchronized String getSignedXMLString() {
+        if (signedXMLString == null && signedElement != null) {
+            signedXMLString = XMLUtils.print(signedElement, "UTF-8");
+            signedElement = null;
+        }
+        return signedXMLString;
+    }
+
     /**
      * Returns an <code>EncryptedAssertion</code> object.
      *
@@ -752,8 +786,11 @@ public class AssertionImpl implements Assertion {
     public String toXMLString(boolean includeNSPrefix, boolean declareNS)
         throws SAML2Exception {
 
-        if ((signature != null) && (signedXMLString != null)) {
-            return signedXMLString;
+        if (signature != null) {
+            String signedXML = getSignedXMLString();
+            if (signedXML != null) {
+                return signedXML;
+            }
         }
 
         StringBuffer sb = new StringBuffer(2000);
@@ -27,7 +27,7 @@
  */
 
 /*
- * Portions Copyrighted 2010-2014 ForgeRock AS
+ * Portions Copyrighted 2010-2015 ForgeRock AS.
  */
 
 package com.sun.identity.saml2.common;
@@ -1191,6 +1191,15 @@ public interface SAML2Constants {
     // default Cache cleanup interval in seconds
     public int CACHE_CLEANUP_INTERVAL_DEFAULT = 3600;
 
+    // Delay over which metadata change notifications are coalesced into a
+    // single cache flush, attribute name in AMConfig.properties.
+    // value in milliseconds, 0 flushes the caches on every notification
+    public String META_CACHE_FLUSH_DELAY =
+                "com.sun.identity.saml2.meta.cacheFlushDelay";
+
+    // default metadata cache flush delay in milliseconds
+    public long META_CACHE_FLUSH_DELAY_DEFAULT = 1000;
+
     // IDP SLO parameter name for logout all sessions
     public String LOGOUT_ALL = "logoutAll";
 
@@ -22,7 +22,7 @@
  * your own identifying information:
  * "Portions Copyrighted [year] [name of copyright owner]"
  *
- * Portions Copyrighted 2010-2014 ForgeRock AS.
+ * Portions Copyrighted 2010-2015 ForgeRock AS.
  */
 
 package com.sun.identity.saml2.common;
@@ -67,6 +67,7 @@ import com.sun.identity.saml2.jaxb.metadata.IDPSSODescriptorElement;
 import com.sun.identity.saml2.jaxb.metadata.SPSSODescriptorElement;
 import com.sun.identity.saml2.key.KeyUtil;
 import com.sun.identity.saml2.logging.LogUtil;
+import com.sun.identity.saml2.meta.SAML2EntityMetadata;
 import com.sun.identity.saml2.meta.SAML2MetaException;
 import com.sun.identity.saml2.meta.SAML2MetaManager;
 import com.sun.identity.saml2.meta.SAML2MetaUtils;
@@ -2518,33 +2519,12 @@ public class SAML2Utils extends SAML2SDKUtils {
             debug.message(method + "attrName - " + attrName);
         }
         try {
-            BaseConfigType config = null;
-            if (entityRole.equalsIgnoreCase(SAML2Constants.SP_ROLE)) {
-                config =  saml2MetaManager.getSPSSOConfig(realm, hostEntityId);
-            } else if (entityRole.equalsIgnoreCase(SAML2Constants.IDP_ROLE)) {
-                config = saml2MetaManager.getIDPSSOConfig(realm, hostEntityId);
-            } else if (entityRole.equalsIgnoreCase(
-                SAML2Constants.ATTR_AUTH_ROLE)) {
-                config = saml2MetaManager.getAttributeAuthorityConfig(realm,
-                    hostEntityId);
-            } else if (entityRole.equalsIgnoreCase(
-                SAML2Constants.AUTHN_AUTH_ROLE)) {
-                config = saml2MetaManager.getAuthnAuthorityConfig(realm,
-                    hostEntityId);
-            } else if (entityRole.equalsIgnoreCase(
-                SAML2Constants.ATTR_QUERY_ROLE)) {
-                config = saml2MetaManager.getAttributeQueryConfig(realm,
-                    hostEntityId);
-            }
-
-            if (config == null) {
-                return null;
-            }
-            Map attrs = SAML2MetaUtils.getAttributes(config);
-            if (attrs == null) {
+            SAML2EntityMetadata metadata =
+                saml2MetaManager.getEntityMetadata(realm, hostEntityId);
+            if (metadata == null) {
                 return null;
             }
-            return (List) attrs.get(attrName);
+            return metadata.getAttributeValues(entityRole, attrName);
         } catch (SAML2MetaException e) {
             debug.message("get SSOConfig failed:", e);
         }
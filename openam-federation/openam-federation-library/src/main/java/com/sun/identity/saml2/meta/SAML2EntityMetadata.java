@@ -0,0 +1,281 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package com.sun.identity.saml2.meta;
+
+import com.sun.identity.saml2.common.SAML2Constants;
+import com.sun.identity.saml2.jaxb.entityconfig.AttributeAuthorityConfigElement;
+import com.sun.identity.saml2.jaxb.entityconfig.AttributeQueryConfigElement;
+import com.sun.identity.saml2.jaxb.entityconfig.AttributeType;
+import com.sun.identity.saml2.jaxb.entityconfig.AuthnAuthorityConfigElement;
+import com.sun.identity.saml2.jaxb.entityconfig.BaseConfigType;
+import com.sun.identity.saml2.jaxb.entityconfig.EntityConfigElement;
+import com.sun.identity.saml2.jaxb.entityconfig.IDPSSOConfigElement;
+import com.sun.identity.saml2.jaxb.entityconfig.SPSSOConfigElement;
+import com.sun.identity.saml2.jaxb.metadata.AssertionConsumerServiceElement;
+import com.sun.identity.saml2.jaxb.metadata.EntityDescriptorElement;
+import com.sun.identity.saml2.jaxb.metadata.SPSSODescriptorElement;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable view of the metadata and extended configuration of an entity, compiled once when they are loaded so
+ * that the profiles can look up configuration attributes and assertion consumer services without walking the JAXB
+ * trees on every request.
+ * <p/>
+ * The view reflects the first configuration element of each role, and the first service provider SSO descriptor, as
+ * the {@link SAML2MetaManager} getters do.
+ */
+public final class SAML2EntityMetadata {
+
+    private static final String[] ROLES = {
+            SAML2Constants.SP_ROLE, SAML2Constants.IDP_ROLE, SAML2Constants.ATTR_AUTH_ROLE,
+            SAML2Constants.AUTHN_AUTH_ROLE, SAML2Constants.ATTR_QUERY_ROLE };
+
+    final EntityDescriptorElement descriptor;
+    final EntityConfigElement config;
+    private final Map<String, Map<String, List<String>>> attributesByRole;
+    private final Map<String, Endpoint> acsByBinding;
+    private final Map<Integer, Endpoint> acsByIndex;
+    private final Map<String, String> acsBindingByLocation;
+    private final Endpoint defaultAcs;
+    private final Endpoint firstAcs;
+    private final boolean serviceProvider;
+
+    SAML2EntityMetadata(EntityDescriptorElement descriptor, EntityConfigElement config) {
+        this.descriptor = descriptor;
+        this.config = config;
+        this.attributesByRole = compileAttributes(config);
+
+        Map<String, Endpoint> byBinding = new HashMap<String, Endpoint>();
+        Map<Integer, Endpoint> byIndex = new HashMap<Integer, Endpoint>();
+        Map<String, String> bindingByLocation = new HashMap<String, String>();
+        Endpoint first = null;
+        Endpoint lastDefault = null;
+        SPSSODescriptorElement spDescriptor = SAML2MetaUtils.getSPSSODescriptor(descriptor);
+        if (spDescriptor != null) {
+            for (Iterator iter = spDescriptor.getAssertionConsumerService().iterator(); iter.hasNext();) {
+                AssertionConsumerServiceElement acs = (AssertionConsumerServiceElement) iter.next();
+                Endpoint endpoint = new Endpoint(acs.getLocation(), acs.getBinding());
+                if (first == null) {
+                    first = endpoint;
+                }
+                if (acs.isIsDefault()) {
+                    lastDefault = endpoint;
+                }
+                if (acs.getBinding() != null && !byBinding.containsKey(acs.getBinding())) {
+                    byBinding.put(acs.getBinding(), endpoint);
+                }
+                if (!byIndex.containsKey(acs.getIndex())) {
+                    byIndex.put(acs.getIndex(), endpoint);
+                }
+                if (acs.getLocation() != null && !bindingByLocation.containsKey(acs.getLocation())) {
+                    bindingByLocation.put(acs.getLocation(), acs.getBinding());
+                }
+            }
+        }
+        this.acsByBinding = byBinding;
+        this.acsByIndex = byIndex;
+        this.acsBindingByLocation = bindingByLocation;
+        this.defaultAcs = lastDefault;
+        this.firstAcs = first;
+        this.serviceProvider = spDescriptor != null;
+    }
+
+    /**
+     * Returns the values of an extended configuration attribute.
+     *
+     * @param role The role of the entity, such as {@link SAML2Constants#IDP_ROLE}, compared case insensitively.
+     * @param attrName The name of the attribute.
+     * @return The unmodifiable values of the attribute, or null if the role has no configuration or the attribute is
+     *         not set.
+     */
+    public List<String> getAttributeValues(String role, String attrName) {
+        Map<String, List<String>> attributes = getAttributes(role);
+        return attributes == null ? null : attributes.get(attrName);
+    }
+
+    /**
+     * Returns the first value of an extended configuration attribute.
+     *
+     * @param role The role of the entity, compared case insensitively.
+     * @param attrName The name of the attribute.
+     * @return The first value of the attribute, or null if it is not set.
+     */
+    public String getAttributeValue(String role, String attrName) {
+        List<String> values = getAttributeValues(role, attrName);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * Returns whether an extended configuration attribute is set to true.
+     *
+     * @param role The role of the entity, compared case insensitively.
+     * @param attrName The name of the attribute.
+     * @return true if the first value of the attribute is "true", ignoring case.
+     */
+    public boolean getBooleanAttributeValue(String role, String attrName) {
+        return SAML2Constants.TRUE.equalsIgnoreCase(getAttributeValue(role, attrName));
+    }
+
+    /**
+     * Returns all the extended configuration attributes of a role.
+     *
+     * @param role The role of the entity, compared case insensitively.
+     * @return The unmodifiable attribute values keyed by attribute name, or null if the role has no configuration.
+     */
+    public Map<String, List<String>> getAttributes(String role) {
+        if (role == null) {
+            return null;
+        }
+        for (String knownRole : ROLES) {
+            if (knownRole.equalsIgnoreCase(role)) {
+                return attributesByRole.get(knownRole);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first assertion consumer service of the service provider with the given binding.
+     *
+     * @param binding The binding.
+     * @return The service, or null if there is none.
+     */
+    public Endpoint getAssertionConsumerServiceByBinding(String binding) {
+        return acsByBinding.get(binding);
+    }
+
+    /**
+     * Returns the first assertion consumer service of the service provider with the given index.
+     *
+     * @param index The index.
+     * @return The service, or null if there is none.
+     */
+    public Endpoint getAssertionConsumerServiceByIndex(int index) {
+        return acsByIndex.get(index);
+    }
+
+    /**
+     * Returns whether the entity has a service provider SSO descriptor.
+     *
+     * @return true if the entity is a service provider.
+     */
+    public boolean isServiceProvider() {
+        return serviceProvider;
+    }
+
+    /**
+     * Returns the default assertion consumer service of the service provider, which is the last one marked as
+     * default.
+     *
+     * @return The service, or null if none is marked as default.
+     */
+    public Endpoint getDefaultAssertionConsumerService() {
+        return defaultAcs;
+    }
+
+    /**
+     * Returns the first assertion consumer service of the service provider.
+     *
+     * @return The service, or null if the entity is no service provider or has no assertion consumer service.
+     */
+    public Endpoint getFirstAssertionConsumerService() {
+        return firstAcs;
+    }
+
+    /**
+     * Returns the binding of the first assertion consumer service of the service provider at the given location.
+     *
+     * @param location The location.
+     * @return The binding, or null if there is no service at the location.
+     */
+    public String getAssertionConsumerServiceBinding(String location) {
+        return acsBindingByLocation.get(location);
+    }
+
+    private static Map<String, Map<String, List<String>>> compileAttributes(EntityConfigElement config) {
+        Map<String, Map<String, List<String>>> attributesByRole = new HashMap<String, Map<String, List<String>>>();
+        if (config == null) {
+            return attributesByRole;
+        }
+        for (Iterator iter = config.getIDPSSOConfigOrSPSSOConfigOrAuthnAuthorityConfig().iterator();
+                iter.hasNext();) {
+            Object obj = iter.next();
+            String role = getRole(obj);
+            if (role != null && !attributesByRole.containsKey(role)) {
+                attributesByRole.put(role, compileAttributes((BaseConfigType) obj));
+            }
+        }
+        return attributesByRole;
+    }
+
+    private static Map<String, List<String>> compileAttributes(BaseConfigType config) {
+        Map<String, List<String>> attributes = new HashMap<String, List<String>>();
+        for (Iterator iter = config.getAttribute().iterator(); iter.hasNext();) {
+            AttributeType attribute = (AttributeType) iter.next();
+            List<String> values = new ArrayList<String>(attribute.getValue());
+            attributes.put(attribute.getName(), Collections.unmodifiableList(values));
+        }
+        return Collections.unmodifiableMap(attributes);
+    }
+
+    private static String getRole(Object config) {
+        if (config instanceof SPSSOConfigElement) {
+            return SAML2Constants.SP_ROLE;
+        } else if (config instanceof IDPSSOConfigElement) {
+            return SAML2Constants.IDP_ROLE;
+        } else if (config instanceof AttributeAuthorityConfigElement) {
+            return SAML2Constants.ATTR_AUTH_ROLE;
+        } else if (config instanceof AuthnAuthorityConfigElement) {
+            return SAML2Constants.AUTHN_AUTH_ROLE;
+        } else if (config instanceof AttributeQueryConfigElement) {
+            return SAML2Constants.ATTR_QUERY_ROLE;
+        }
+        return null;
+    }
+
+    /**
+     * A service endpoint of the entity.
+     */
+    public static final class Endpoint {
+        private final String location;
+        private final String binding;
+
+        private Endpoint(String location, String binding) {
+            this.location = location;
+            this.binding = binding;
+        }
+
+        /**
+         * @return The location of the endpoint.
+         */
+        public String getLocation() {
+            return location;
+        }
+
+        /**
+         * @return The binding of the endpoint.
+         */
+        public String getBinding() {
+            return binding;
+        }
+    }
+}
@@ -27,12 +27,13 @@
  */
 
  /*
- * Portions Copyrighted [2010] [ForgeRock AS]
+ * Portions Copyrighted 2010-2015 ForgeRock AS.
  */
 
 package com.sun.identity.saml2.meta;
 
-import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.sun.identity.shared.debug.Debug;
 
@@ -49,8 +50,12 @@ class SAML2MetaCache
 {
     private static Debug debug = SAML2MetaUtils.debug;
 
-    private static Hashtable descriptorCache = new Hashtable();
-    private static Hashtable configCache = new Hashtable();
+    private static Map descriptorCache = new ConcurrentHashMap();
+    private static Map configCache = new ConcurrentHashMap();
+    // compiled views, only valid for the cached descriptor and config
+    private static Map<String, SAML2EntityMetadata> metadataCache =
+        new ConcurrentHashMap<String, SAML2EntityMetadata>();
+    private static final Object lock = new Object();
 
     private SAML2MetaCache() {
     }
@@ -86,20 +91,22 @@ class SAML2MetaCache
             EntityDescriptorElement descriptor)
     {
         String cacheKey = buildCacheKey(realm, entityId);
-        if (descriptor != null) {
-            if (debug.messageEnabled()) {
-                debug.message("SAML2MetaCache.putEntityDescriptor: cacheKey = " +
-                    cacheKey);
+        synchronized (lock) {
+            metadataCache.remove(cacheKey);
+            if (descriptor != null) {
+                if (debug.messageEnabled()) {
+                    debug.message("SAML2MetaCache.putEntityDescriptor: " +
+                        "cacheKey = " + cacheKey);
+                }
+                descriptorCache.put(cacheKey, descriptor);
+            } else {
+                if (debug.messageEnabled()) {
+                    debug.message("SAML2MetaCache.putEntityDescriptor: " +
+                        "delete cacheEey = " + cacheKey);
+                }
+                descriptorCache.remove(cacheKey);
+                configCache.remove(cacheKey);
             }
-            descriptorCache.put(cacheKey, descriptor);
-        } else {
-            if (debug.messageEnabled()) {
-                debug.message(
-                    "SAML2MetaCache.putEntityDescriptor: delete cacheEey = " +
-                    cacheKey);
-            }
-            descriptorCache.remove(cacheKey);
-            configCache.remove(cacheKey);
         }
     }
 
@@ -132,19 +139,53 @@ class SAML2MetaCache
     static void putEntityConfig(String realm, String entityId,
         EntityConfigElement config) {
         String cacheKey = buildCacheKey(realm, entityId);
-        if (config != null) {
-            if (debug.messageEnabled()) {
-                debug.message("SAML2MetaCache.putEntityConfig: cacheKey = " +
-                    cacheKey);
+        synchronized (lock) {
+            metadataCache.remove(cacheKey);
+            if (config != null) {
+                if (debug.messageEnabled()) {
+                    debug.message("SAML2MetaCache.putEntityConfig: " +
+                        "cacheKey = " + cacheKey);
+                }
+                configCache.put(cacheKey, config);
+            } else {
+                if (debug.messageEnabled()) {
+                    debug.message("SAML2MetaCache.putEntityConfig: " +
+                        "delete cacheKey = " + cacheKey);
+                }
+                configCache.remove(cacheKey);
             }
-            configCache.put(cacheKey, config);
-        } else {
-            if (debug.messageEnabled()) {
-                debug.message(
-                    "SAML2MetaCache.putEntityConfig: delete cacheKey = " +
-                    cacheKey);
+        }
+    }
+
+    /**
+     * Returns the compiled metadata view of the entity under the realm from
+     * cache.
+     * @param realm The realm under which the entity resides.
+     * @param entityId ID of the entity to be retrieved.
+     * @return <code>SAML2EntityMetadata</code> for the entity or null if not
+     *         found.
+     */
+    static SAML2EntityMetadata getEntityMetadata(String realm,
+        String entityId) {
+        return metadataCache.get(buildCacheKey(realm, entityId));
+    }
+
+    /**
+     * Adds the compiled metadata view of the entity under the realm to cache,
+     * unless the entity descriptor or configuration it was compiled from is
+     * no longer the cached one.
+     * @param realm The realm under which the entity resides.
+     * @param entityId ID of the entity.
+     * @param metadata <code>SAML2EntityMetadata</code> for the entity.
+     */
+    static void putEntityMetadata(String realm, String entityId,
+        SAML2EntityMetadata metadata) {
+        String cacheKey = buildCacheKey(realm, entityId);
+        synchronized (lock) {
+            if ((descriptorCache.get(cacheKey) == metadata.descriptor) &&
+                (configCache.get(cacheKey) == metadata.config)) {
+                metadataCache.put(cacheKey, metadata);
             }
-            configCache.remove(cacheKey);
         }
     }
 
@@ -155,8 +196,11 @@ class SAML2MetaCache
         if (debug.messageEnabled()) {
             debug.message("SAML2MetaCache.clear() called");
         }
-	descriptorCache.clear();
-	configCache.clear();
+        synchronized (lock) {
+            metadataCache.clear();
+            descriptorCache.clear();
+            configCache.clear();
+        }
     }
 
     /**
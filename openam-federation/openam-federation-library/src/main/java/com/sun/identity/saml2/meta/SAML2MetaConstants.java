@@ -24,6 +24,7 @@
  *
  * $Id: SAML2MetaConstants.java,v 1.5 2008/06/25 05:47:49 qcheng Exp $
  *
+ * Portions Copyrighted 2015 ForgeRock AS.
  */
 
 
@@ -62,6 +63,11 @@ public interface SAML2MetaConstants {
      */
     String ENTITY_DESCRIPTOR = "EntityDescriptor";
 
+    /**
+     * Constant for EntitiesDescriptor Element
+     */
+    String ENTITIES_DESCRIPTOR = "EntitiesDescriptor";
+
     /**
      * Constant for RoleDescriptor Element
      */
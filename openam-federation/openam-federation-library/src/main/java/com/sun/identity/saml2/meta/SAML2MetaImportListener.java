@@ -0,0 +1,35 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package com.sun.identity.saml2.meta;
+
+import java.util.List;
+
+/**
+ * Receives the progress of an import of a SAML2 metadata document made of many entities.
+ *
+ * @see SAML2MetaUtils#importSAML2Document(SAML2MetaManager, String, org.w3c.dom.Document, SAML2MetaImportListener)
+ */
+public interface SAML2MetaImportListener {
+
+    /**
+     * Called after each batch of entities of the document has been imported.
+     *
+     * @param entityIds The IDs of the entities created by the batch.
+     * @param processed The number of entities of the document processed so far.
+     * @param total The number of entities in the document.
+     */
+    void batchImported(List<String> entityIds, int processed, int total);
+}
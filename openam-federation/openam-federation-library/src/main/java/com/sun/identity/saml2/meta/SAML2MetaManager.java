@@ -27,7 +27,7 @@
  */
 
  /*
- * Portions Copyrighted [2010] [ForgeRock AS]
+ * Portions Copyrighted 2010-2015 ForgeRock AS.
  */
 
 package com.sun.identity.saml2.meta;
@@ -803,6 +803,48 @@ public class SAML2MetaManager {
         }
     }
 
+    /**
+     * Returns the compiled, immutable view of the standard metadata and the
+     * extended configuration of an entity under the realm. The view is built
+     * once per metadata load or change, so looking up configuration
+     * attributes or endpoints through it does not walk the JAXB trees.
+     * @param realm The realm under which the entity resides.
+     * @param entityId ID of the entity to be retrieved.
+     * @return <code>SAML2EntityMetadata</code> for the entity or null if
+     *         neither the entity descriptor nor the entity configuration
+     *         is found.
+     * @throws SAML2MetaException if unable to retrieve the entity descriptor
+     *         or configuration.
+     */
+    public SAML2EntityMetadata getEntityMetadata(String realm, String entityId)
+        throws SAML2MetaException {
+        if (entityId == null) {
+            return null;
+        }
+        if (realm == null) {
+            realm = "/";
+        }
+        SAML2EntityMetadata metadata = null;
+        if (callerSession == null) {
+            metadata = SAML2MetaCache.getEntityMetadata(realm, entityId);
+            if (metadata != null) {
+                return metadata;
+            }
+        }
+
+        EntityDescriptorElement descriptor =
+            getEntityDescriptor(realm, entityId);
+        EntityConfigElement config = getEntityConfig(realm, entityId);
+        if ((descriptor == null) && (config == null)) {
+            return null;
+        }
+        metadata = new SAML2EntityMetadata(descriptor, config);
+        if (callerSession == null) {
+            SAML2MetaCache.putEntityMetadata(realm, entityId, metadata);
+        }
+        return metadata;
+    }
+
     /**
      * Returns first service provider's SSO configuration in an entity under
      * the realm.
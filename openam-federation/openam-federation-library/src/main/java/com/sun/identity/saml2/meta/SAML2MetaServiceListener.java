@@ -24,12 +24,21 @@
  *
  * $Id: SAML2MetaServiceListener.java,v 1.5 2009/08/28 23:42:14 exu Exp $
  *
+ * Portions Copyrighted 2015 ForgeRock AS.
  */
 
 
 package com.sun.identity.saml2.meta;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.identity.common.GeneralTaskRunnable;
+import com.sun.identity.common.SystemTimerPool;
+import com.sun.identity.shared.configuration.SystemPropertiesManager;
 import com.sun.identity.shared.debug.Debug;
+import com.sun.identity.saml2.common.SAML2Constants;
 import com.sun.identity.saml2.key.KeyUtil;
 import com.sun.identity.saml2.profile.IDPCache;
 import com.sun.identity.saml2.profile.SPCache;
@@ -40,10 +49,21 @@ import com.sun.identity.plugin.configuration.ConfigurationActionEvent;
  * The <code>SAML2MetaServiceListener</code> implements
  * <code>ConfigurationListener</code> interface and is
  * used for maintaining the metadata cache.
+ * <p>
+ * The notifications received within the flush delay are coalesced into a
+ * single flush of the caches, so that a bulk change of the metadata, such
+ * as the import of a federation, does not flush them once per entity.
+ * A bulk change holds the flushes back and flushes the caches itself after
+ * each batch of changes.
  */
 class SAML2MetaServiceListener implements ConfigurationListener
 {
     private static Debug debug = SAML2MetaUtils.debug;
+    private static final long flushDelay = getFlushDelay();
+    private static final AtomicBoolean flushPending = new AtomicBoolean();
+    private static final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private static final AtomicInteger suspended = new AtomicInteger();
+    private static final AtomicLong flushCount = new AtomicLong();
 
     SAML2MetaServiceListener() {
     }
@@ -60,10 +80,107 @@ class SAML2MetaServiceListener implements ConfigurationListener
                 e.getConfigurationName() + ", component=" + 
                 e.getComponentName());
         }
+        flushPending.set(true);
+        if (suspended.get() > 0) {
+            return;
+        }
+        if (flushDelay <= 0) {
+            flush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            SystemTimerPool.getTimerPool().schedule(new FlushTask(),
+                flushDelay);
+        }
+    }
+
+    /**
+     * Holds the cache flushes back until {@link #resumeCacheFlush()} is
+     * called, for the length of a bulk change of the metadata.
+     */
+    static void suspendCacheFlush() {
+        suspended.incrementAndGet();
+    }
+
+    /**
+     * Flushes the caches if notifications have been held back since the
+     * last flush, so that the metadata changed by a bulk change in progress
+     * is not served stale until the whole change ends.
+     */
+    static void flushHeldBack() {
+        flush();
+    }
+
+    /**
+     * Ends a bulk change of the metadata started by
+     * {@link #suspendCacheFlush()}, flushing the caches once no other bulk
+     * change is in progress.
+     */
+    static void resumeCacheFlush() {
+        flushPending.set(true);
+        if (suspended.decrementAndGet() == 0) {
+            flush();
+        }
+    }
+
+    private static void flush() {
+        if (!flushPending.getAndSet(false)) {
+            return;
+        }
+        if (debug.messageEnabled()) {
+            debug.message("SAML2MetaServiceListener.flush: " +
+                "clearing metadata caches");
+        }
+        flushCount.incrementAndGet();
         SAML2MetaCache.clear();
-        String realm = e.getRealm();
-        SPCache.clear(realm);
-        IDPCache.clear(realm);
+        // the caches are not realm specific
+        SPCache.clear(null);
+        IDPCache.clear(null);
         KeyUtil.clear();
     }
+
+    /**
+     * @return the number of times the caches have been flushed.
+     */
+    static long getFlushCount() {
+        return flushCount.get();
+    }
+
+    private static long getFlushDelay() {
+        String delay = SystemPropertiesManager.get(
+            SAML2Constants.META_CACHE_FLUSH_DELAY);
+        if ((delay != null) && (delay.length() != 0)) {
+            try {
+                return Long.parseLong(delay);
+            } catch (NumberFormatException nfe) {
+                debug.error("SAML2MetaServiceListener.getFlushDelay: " +
+                    "invalid flush delay " + delay + ", using default.");
+            }
+        }
+        return SAML2Constants.META_CACHE_FLUSH_DELAY_DEFAULT;
+    }
+
+    private static class FlushTask extends GeneralTaskRunnable {
+
+        public void run() {
+            flushScheduled.set(false);
+            if (suspended.get() == 0) {
+                flush();
+            }
+        }
+
+        public boolean addElement(Object obj) {
+            return false;
+        }
+
+        public boolean removeElement(Object obj) {
+            return false;
+        }
+
+        public boolean isEmpty() {
+            return true;
+        }
+
+        public long getRunPeriod() {
+            return -1;
+        }
+    }
 }
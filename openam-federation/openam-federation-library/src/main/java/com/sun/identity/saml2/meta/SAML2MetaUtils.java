@@ -27,7 +27,7 @@
  */
 
 /**
- * Portions Copyrighted 2010-2013 ForgeRock Inc
+ * Portions Copyrighted 2010-2015 ForgeRock AS.
  */
 package com.sun.identity.saml2.meta;
 
@@ -43,12 +43,14 @@ import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.Set;
 
+import javax.xml.XMLConstants;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
 
 import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 
 import com.sun.identity.shared.configuration.SystemPropertiesManager;
@@ -98,6 +100,8 @@ public final class SAML2MetaUtils {
     private static NamespacePrefixMapperImpl nsPrefixMapper =
                                             new NamespacePrefixMapperImpl();
     static String jaxbPackages = null;
+    // number of entities imported between two progress reports and cache flushes
+    private static final int IMPORT_BATCH_SIZE = 100;
 
     static {
         try {
@@ -650,20 +654,44 @@ public final class SAML2MetaUtils {
      */
     public static List<String> importSAML2Document(SAML2MetaManager metaManager,
             String realm, Document doc) throws SAML2MetaException, JAXBException {
+        return importSAML2Document(metaManager, realm, doc, null);
+    }
+
+    /**
+     * For the given XML metadata document representing either a SAML2 EntityDescriptorElement or EntitiesDescriptorElement,
+     * return a list of entityId's for all the Entities created. Carries out a signature validation of the document as
+     * part of the import process.
+     * <p>
+     * The entities of an EntitiesDescriptorElement are converted and created one at a time, so that only one of them is
+     * held as a JAXB object at any time, and the metadata caches are flushed once per batch of entities rather than
+     * once per entity.
+     * @param metaManager An instance of the SAML2MetaManager, used to do the actual create.
+     * @param realm The realm to create the Entities in
+     * @param doc The XML document that represents either an EntityDescriptorElement or EntitiesDescriptorElement
+     * @param listener The listener notified after each batch of entities is imported, or null.
+     * @return A list of all entityId's imported or an empty list if no Entities were imported.
+     * @throws SAML2MetaException for any issues as a result of trying to create the Entities.
+     * @throws JAXBException for any issues converting the document into a JAXB document.
+     */
+    public static List<String> importSAML2Document(SAML2MetaManager metaManager,
+            String realm, Document doc, SAML2MetaImportListener listener)
+            throws SAML2MetaException, JAXBException {
 
         List<String> result = new ArrayList<String>(1);
 
-        Object element = preProcessSAML2Document(doc);
+        if (isMetadataElement(doc.getDocumentElement(),
+                SAML2MetaConstants.ENTITIES_DESCRIPTOR)) {
+            result = importSAML2Entities(metaManager, realm, doc, listener);
+        } else {
+            Object element = preProcessSAML2Document(doc);
 
-        if (element instanceof EntityDescriptorElement) {
-            String entityId = importSAML2Entity(metaManager, realm,
-                    (EntityDescriptorElement)element);
-            if (entityId != null) {
-                result.add(entityId);
+            if (element instanceof EntityDescriptorElement) {
+                String entityId = importSAML2Entity(metaManager, realm,
+                        (EntityDescriptorElement)element);
+                if (entityId != null) {
+                    result.add(entityId);
+                }
             }
-        } else if (element instanceof EntitiesDescriptorElement) {
-            result = importSAML2Entites(metaManager, realm,
-                    (EntitiesDescriptorElement)element);
         }
 
         if (debug.messageEnabled()) {
@@ -687,29 +715,82 @@ public final class SAML2MetaUtils {
         return obj;
     }
 
-    private static List<String> importSAML2Entites(SAML2MetaManager metaManager, String realm,
-            EntitiesDescriptorElement descriptor) throws SAML2MetaException {
+    private static List<String> importSAML2Entities(SAML2MetaManager metaManager, String realm,
+            Document doc, SAML2MetaImportListener listener) throws SAML2MetaException, JAXBException {
 
-        List<String> result = new ArrayList<String>();
+        // The signature of the aggregate covers the whole document, so it is verified before any entity is imported.
+        SAML2MetaSecurityUtils.verifySignature(doc);
+        workaroundAbstractRoleDescriptor(doc);
 
-        List descriptors = descriptor.getEntityDescriptorOrEntitiesDescriptor();
-        if (descriptors != null && !descriptors.isEmpty()) {
-            Iterator entities = descriptors.iterator();
-            while (entities.hasNext()) {
-                Object o = entities.next();
-                if (o instanceof EntityDescriptorElement) {
-                    String entityId = importSAML2Entity(metaManager, realm,
-                            (EntityDescriptorElement) o);
+        List<Element> entities = getEntityDescriptors(doc);
+        List<String> result = new ArrayList<String>();
+        List<String> batch = new ArrayList<String>();
+        int total = entities.size();
+        SAML2MetaServiceListener.suspendCacheFlush();
+        try {
+            for (int i = 0; i < total; i++) {
+                // Remove any Extensions elements as these are currently not supported.
+                Object obj = workaroundJAXBBug(convertNodeToJAXB(entities.get(i)));
+                if (obj instanceof EntityDescriptorElement) {
+                    String entityId = importSAML2Entity(metaManager, realm, (EntityDescriptorElement) obj);
                     if (entityId != null) {
-                        result.add(entityId);
+                        batch.add(entityId);
                     }
                 }
+                int processed = i + 1;
+                if ((processed % IMPORT_BATCH_SIZE == 0) || (processed == total)) {
+                    if (debug.messageEnabled()) {
+                        debug.message("SAML2MetaUtils.importSAML2Entities: processed " + processed + " of " + total
+                                + " entities");
+                    }
+                    result.addAll(batch);
+                    SAML2MetaServiceListener.flushHeldBack();
+                    if (listener != null) {
+                        listener.batchImported(batch, processed, total);
+                    }
+                    batch = new ArrayList<String>();
+                }
             }
+        } finally {
+            SAML2MetaServiceListener.resumeCacheFlush();
         }
 
         return result;
     }
 
+    /**
+     * Returns the EntityDescriptor elements of an EntitiesDescriptor document. The namespace declarations of the
+     * EntitiesDescriptor are copied onto each of them, so that prefixes declared only on the root, for instance in
+     * xsi:type values, still resolve once an entity is converted on its own.
+     * @param doc The XML document that represents an EntitiesDescriptorElement.
+     * @return The EntityDescriptor elements, in document order.
+     */
+    static List<Element> getEntityDescriptors(Document doc) {
+        Element root = doc.getDocumentElement();
+        NamedNodeMap rootAttributes = root.getAttributes();
+        List<Element> entities = new ArrayList<Element>();
+        for (Node child = root.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (isMetadataElement(child, SAML2MetaConstants.ENTITY_DESCRIPTOR)) {
+                Element entity = (Element) child;
+                for (int i = 0; i < rootAttributes.getLength(); i++) {
+                    Node attribute = rootAttributes.item(i);
+                    if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())
+                            && !entity.hasAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, attribute.getLocalName())) {
+                        entity.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, attribute.getNodeName(),
+                                attribute.getNodeValue());
+                    }
+                }
+                entities.add(entity);
+            }
+        }
+        return entities;
+    }
+
+    private static boolean isMetadataElement(Node node, String localName) {
+        return (node.getNodeType() == Node.ELEMENT_NODE) && localName.equals(node.getLocalName())
+                && SAML2MetaConstants.NS_METADATA.equals(node.getNamespaceURI());
+    }
+
     private static String importSAML2Entity(SAML2MetaManager metaManager, String realm,
             EntityDescriptorElement descriptor) throws SAML2MetaException {
 
@@ -24,15 +24,22 @@
  *
  * $Id: IDPCache.java,v 1.18 2009/05/14 17:23:45 exu Exp $
  *
- * Portions Copyrighted 2010-2014 ForgeRock AS.
+ * Portions Copyrighted 2010-2015 ForgeRock AS.
  */
 package com.sun.identity.saml2.profile;
 
-import com.sun.identity.common.PeriodicCleanUpMap;
+import com.sun.identity.common.ConcurrentExpiringMap;
+import com.sun.identity.saml2.assertion.Assertion;
+import com.sun.identity.saml2.protocol.AuthnRequest;
+import com.sun.identity.saml2.protocol.LogoutRequest;
+import com.sun.identity.saml2.protocol.Response;
 import java.util.Collections;
-import java.util.Hashtable;
-import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.xml.soap.SOAPMessage;
+import org.forgerock.openam.shared.cache.CacheFactory;
 
 /**
  * This class caches authn request objects and relay states
@@ -47,6 +54,18 @@ public class IDPCache {
     private IDPCache() {
     }
 
+    /**
+     * Creates an expiring map, and includes it in the recorded cache statistics.
+     *
+     * @param name The name of the map, used in statistics.
+     * @param <V> The type of the values.
+     * @return The map.
+     */
+    private static <V> ConcurrentExpiringMap<String, V> newCache(String name) {
+        return CacheFactory.register(new ConcurrentExpiringMap<String, V>("IDPCache." + name,
+                SPCache.interval * 1000L, SPCache.interval * 1000L));
+    }
+
     /**
      * Cache saves the authn request objects.
      * Key : request ID String
@@ -54,8 +73,7 @@ public class IDPCache {
      * TODO : handle the case when assertion effective time is different
      *        from cleanup interval
      */
-    public static PeriodicCleanUpMap authnRequestCache = new PeriodicCleanUpMap(
-        SPCache.interval * 1000, SPCache.interval * 1000); 
+    public static ConcurrentExpiringMap<String, Object> authnRequestCache = newCache("authnRequestCache");
 
     /**
      * Cache saves the authn context objects before IDP redirects user to 
@@ -63,33 +81,28 @@ public class IDPCache {
      * Key : request ID String
      * Value : AuthnContext object
      */
-    public static PeriodicCleanUpMap idpAuthnContextCache = 
-        new PeriodicCleanUpMap(
-            SPCache.interval * 1000, SPCache.interval * 1000); 
+    public static ConcurrentExpiringMap<String, CacheObject> idpAuthnContextCache = newCache("idpAuthnContextCache");
 
     /**
      * Cache saves the assertion objects.
      * Key : user ID String
      * Value : list of assertion objects
      */
-    public static Hashtable assertionCache = new Hashtable();
+    public static ConcurrentHashMap assertionCache = new ConcurrentHashMap();
 
     /**
      * Cache saves the assertion objects.
      * Key : assertion ID String
      * Value : assertion object
      */
-    public static PeriodicCleanUpMap assertionByIDCache =
-        new PeriodicCleanUpMap(SPCache.interval * 1000,
-        SPCache.interval * 1000); 
+    public static ConcurrentExpiringMap<String, Assertion> assertionByIDCache = newCache("assertionByIDCache");
 
     /**
      * Cache saves the relay state strings.
      * Key : request ID String
      * Value : relay state string
      */
-    public static PeriodicCleanUpMap relayStateCache = new PeriodicCleanUpMap(
-        SPCache.interval * 1000, SPCache.interval * 1000); 
+    public static ConcurrentExpiringMap<String, String> relayStateCache = newCache("relayStateCache");
 
     /**
      * Cache saves the idp sessions.
@@ -98,7 +111,7 @@ public class IDPCache {
      * IDP: used in SingleSignOnService and SingleLogoutService
      *      to invalidate a specific session
      */
-    public static Hashtable<String, IDPSession> idpSessionsByIndices = new Hashtable<String, IDPSession>();
+    public static ConcurrentHashMap<String, IDPSession> idpSessionsByIndices = new ConcurrentHashMap<String, IDPSession>();
 
     /**
      * Cache saves Responses to be used by ArtifactResolutionService.
@@ -108,58 +121,56 @@ public class IDPCache {
      * TODO : handle the case when artifact expiration time is different
      *        from cleanup interval
      */
-    public static PeriodicCleanUpMap responsesByArtifacts = 
-       new PeriodicCleanUpMap(SPCache.interval * 1000, SPCache.interval * 1000);
+    public static ConcurrentExpiringMap<String, Response> responsesByArtifacts = newCache("responsesByArtifacts");
 
     /**
-     * Hashtable saves the MNI request info.
+     * ConcurrentHashMap saves the MNI request info.
      * Key   :   requestID String
      * Value : ManageNameIDRequestInfo object
      */
-    public static PeriodicCleanUpMap mniRequestHash = new PeriodicCleanUpMap(
-        SPCache.interval * 1000, SPCache.interval * 1000);
+    public static ConcurrentExpiringMap<String, ManageNameIDRequestInfo> mniRequestHash = newCache("mniRequestHash");
 
     /**
      * Cache saves the idp attribute mapper.
      * Key : idp attribute mapper class name
      * Value : idp attribute mapper object
      */
-    public static Hashtable idpAttributeMapperCache = new Hashtable(); 
+    public static ConcurrentHashMap idpAttributeMapperCache = new ConcurrentHashMap(); 
 
     /**
      * Cache saves the idp account mapper.
      * Key : idp account mapper class name
      * Value : idp account mapper object
      */
-    public static Hashtable idpAccountMapperCache = new Hashtable();
+    public static ConcurrentHashMap idpAccountMapperCache = new ConcurrentHashMap();
 
     /**
      * Cache saves the idp authn context mapper.
      * Key : idp authn context mapper class name
      * Value : idp authn context mapper object
      */
-    public static Hashtable idpAuthnContextMapperCache = new Hashtable(); 
+    public static ConcurrentHashMap idpAuthnContextMapperCache = new ConcurrentHashMap(); 
 
     /**
      * Cache saves the idp ecp session mapper.
      * Key : idp ecp session mapper class name
      * Value : idp ecp session mapper object
      */
-    public static Hashtable idpECPSessionMapperCache = new Hashtable(); 
+    public static ConcurrentHashMap idpECPSessionMapperCache = new ConcurrentHashMap(); 
 
      /**
      * Cache saves the IDP Proxy Finder.
      * Key : IDP Proxy Finder class name
      * Value : IDP Proxy Finder mapper object
      */
-    public static Hashtable idpProxyFinderCache = new Hashtable();
+    public static ConcurrentHashMap idpProxyFinderCache = new ConcurrentHashMap();
 
     /**
      * Cache saves the IDP Adapter.
      * Key : IDP Adapter class name
      * Value : IDP Adapter mapper object
      */
-    public static Hashtable idpAdapterCache = new Hashtable();
+    public static ConcurrentHashMap idpAdapterCache = new ConcurrentHashMap();
 
     /**
      * Cache saves information needed after coming back from COT cookie setting.
@@ -167,8 +178,7 @@ public class IDPCache {
      * value --- Response Information List (ArrayList of size 9)
      * IDP: used in SingleSignOnService and ArtifactResolutionService
      */
-    public static PeriodicCleanUpMap responseCache = new PeriodicCleanUpMap(
-        SPCache.interval * 1000, SPCache.interval * 1000);
+    public static ConcurrentExpiringMap<String, List<?>> responseCache = newCache("responseCache");
  
     /**
      * Cache saves informate needed to determine the Authentication
@@ -176,71 +186,66 @@ public class IDPCache {
      * key   : sessionIndex (String)
      * value : the AuthnContext object
      */
-    public static Hashtable authnContextCache = new Hashtable();
+    public static ConcurrentHashMap authnContextCache = new ConcurrentHashMap();
 
     /**
      * Cache saves information to determine if the request was
      * a session upgrade case. 
      * key   : requestID (String)
-     * value : session upgrade (Boolean)
      */
-    public static Set isSessionUpgradeCache =  
-        Collections.synchronizedSet(new HashSet());
+    public static Set<String> isSessionUpgradeCache =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     /**
      * Cache saves the IDP Session object before an session upgrade.
      * key    : requestID (String)
      * value  : IDPSession object.
      */
-    public static Hashtable oldIDPSessionCache = new Hashtable();
+    public static ConcurrentHashMap oldIDPSessionCache = new ConcurrentHashMap();
     
     /**
       * Cache saves the original AuthnRequest coming from SP to IDP proxy
       * key   : requestID (String) 
       * value : AuthnRequest 
       */ 
-    public static PeriodicCleanUpMap proxySPAuthnReqCache =
-         new PeriodicCleanUpMap(
-         SPCache.interval * 1000, SPCache.interval * 1000); 
+    public static ConcurrentExpiringMap<String, AuthnRequest> proxySPAuthnReqCache = newCache("proxySPAuthnReqCache");
 
     /** 
       * Cache saves the SAML2SessionPartner  
       * key   : sessionId (String) 
       * value : SAML2SessionPartner
       */
-    public static Hashtable idpSessionsBySessionID = new Hashtable(); 
+    public static ConcurrentHashMap idpSessionsBySessionID = new ConcurrentHashMap(); 
     
     /** 
       * Cache saves user ID for transient NameID 
       * key   : NameID value (String) 
       * value : user ID 
       */
-    public static Hashtable userIDByTransientNameIDValue = new Hashtable(); 
+    public static ConcurrentHashMap userIDByTransientNameIDValue = new ConcurrentHashMap(); 
 
     /** 
       * Cache saves the original LogoutRequest coming from SP to IDP proxy
       * key   : requestID (String) 
       * value : LogoutRequest
       */
-    public static PeriodicCleanUpMap proxySPLogoutReqCache =
-        new PeriodicCleanUpMap(
-        SPCache.interval * 1000, SPCache.interval * 1000); 
+    public static ConcurrentExpiringMap<String, LogoutRequest> proxySPLogoutReqCache =
+        newCache("proxySPLogoutReqCache");
     
     /** 
       * Cache saves the SOAPMessage created by proxy IDP to the original SP
       * key   : requestID (String) 
       * value : SOAPMessage
       */
-    public static PeriodicCleanUpMap SOAPMessageByLogoutRequestID =
-         new PeriodicCleanUpMap(
-         SPCache.interval * 1000, SPCache.interval * 1000); 
+    public static ConcurrentExpiringMap<String, SOAPMessage> SOAPMessageByLogoutRequestID =
+        newCache("SOAPMessageByLogoutRequestID");
     
     /**
       * Cache saves the SAML2 Session Partner's providerID 
       * key   : sessionId (String)
       * value : SAML2 SessionPartner's provider id 
       */
-    public static Hashtable spSessionPartnerBySessionID = new Hashtable();
+    public static ConcurrentHashMap spSessionPartnerBySessionID = new ConcurrentHashMap();
     
      /** 
       * Cache saves the original LogoutResponse generated by IDP proxy 
@@ -249,39 +254,37 @@ public class IDPCache {
       * value : Map keeping LogoutResponse, sending location, 
       *         spEntityID and idpEntityID. 
       */
-     public static PeriodicCleanUpMap logoutResponseCache =
-          new PeriodicCleanUpMap(
-          SPCache.interval * 1000, SPCache.interval * 1000); 
+     public static ConcurrentExpiringMap<String, Map<?, ?>> logoutResponseCache = newCache("logoutResponseCache");
     /**
-     * Hashtable saves AuthnContextClassRef to auth schems mapping
+     * ConcurrentHashMap saves AuthnContextClassRef to auth schems mapping
      * key  : hostEntityID + "|" + realmName
      * value: Map containing AuthnContext class ref as Key and 
      *            Set of auth schemes as value.
      */
-    public static Hashtable classRefSchemesHash = new Hashtable();
+    public static ConcurrentHashMap classRefSchemesHash = new ConcurrentHashMap();
 
     /**
-     * Hashtable saves AuthnContextClassRef to AuthLevel mapping
+     * ConcurrentHashMap saves AuthnContextClassRef to AuthLevel mapping
      * key  : hostEntityID + "|" + realmName
      * value: Map containing AuthnContext class ref as Key and 
      *            authLevel as value.
      */
-    public static Hashtable classRefLevelHash = new Hashtable();
+    public static ConcurrentHashMap classRefLevelHash = new ConcurrentHashMap();
 
     /**
-     * Hashtable saves AuthLevel to AuthnContextClassRef mapping
+     * ConcurrentHashMap saves AuthLevel to AuthnContextClassRef mapping
      * key  : hostEntityID + "|" + realmName
      * value: String default AuthnContext Class Ref.
      */
-    public static Hashtable defaultClassRefHash = new Hashtable();
+    public static ConcurrentHashMap defaultClassRefHash = new ConcurrentHashMap();
 
     /**
-     * Hashtable saves NameID format to user profile attribute mapping
+     * ConcurrentHashMap saves NameID format to user profile attribute mapping
      * key  : hostEntityID + "|" + realm
      * value: Map containing NameNameID format as Key and user profile
      *     attribute name as Value.
      */
-    public static Hashtable formatAttributeHash = new Hashtable();
+    public static ConcurrentHashMap formatAttributeHash = new ConcurrentHashMap();
 
     /**
      * Clears the authn context mapping hash tables.
@@ -22,7 +22,7 @@
  * your own identifying information:
  * "Portions Copyrighted [year] [name of copyright owner]"
  *
- * Portions Copyrighted 2010-2014 ForgeRock AS.
+ * Portions Copyrighted 2010-2015 ForgeRock AS.
  */
 
 package com.sun.identity.saml2.profile;
@@ -543,17 +543,13 @@ public class IDPSSOFederate {
 
                     // save the AuthnRequest in the IDPCache so that it can be
                     // retrieved later when the user successfully authenticates
-                    synchronized (IDPCache.authnRequestCache) { 
-                        IDPCache.authnRequestCache.put(reqID,
-                            new CacheObject(authnReq));
-                    }
+                    IDPCache.authnRequestCache.put(reqID,
+                        new CacheObject(authnReq));
     
                     // save the AuthnContext in the IDPCache so that it can be
                     // retrieved later when the user successfully authenticates
-                    synchronized (IDPCache.idpAuthnContextCache) { 
-                        IDPCache.idpAuthnContextCache.put(reqID,
-                            new CacheObject(matchingAuthnContext));
-                    }
+                    IDPCache.idpAuthnContextCache.put(reqID,
+                        new CacheObject(matchingAuthnContext));
                     
                     // save the relay state in the IDPCache so that it can be
                     // retrieved later when the user successfully authenticates
@@ -831,17 +827,13 @@ public class IDPSSOFederate {
                         
                         // save the AuthnRequest in the IDPCache so that it can be
                         // retrieved later when the user successfully authenticates                        
-                        synchronized (IDPCache.authnRequestCache) {
-                            IDPCache.authnRequestCache.put(reqID,
-                                    new CacheObject(authnReq));
-                        }
+                        IDPCache.authnRequestCache.put(reqID,
+                                new CacheObject(authnReq));
 
                         // save the AuthnContext in the IDPCache so that it can be
                         // retrieved later when the user successfully authenticates
-                        synchronized (IDPCache.idpAuthnContextCache) {
-                            IDPCache.idpAuthnContextCache.put(reqID,
-                                    new CacheObject(matchingAuthnContext));
-                        }
+                        IDPCache.idpAuthnContextCache.put(reqID,
+                                new CacheObject(matchingAuthnContext));
 
                         // save the relay state in the IDPCache so that it can be
                         // retrieved later when the user successfully authenticates
@@ -901,9 +893,7 @@ public class IDPSSOFederate {
                 // invoking the IDP Adapter
 
                 CacheObject cacheObj;
-                synchronized (IDPCache.authnRequestCache) {
-                    cacheObj = (CacheObject) IDPCache.authnRequestCache.get(reqID);
-                }
+                cacheObj = (CacheObject) IDPCache.authnRequestCache.get(reqID);
                 if (cacheObj != null) {
                     authnReq = (AuthnRequest)cacheObj.getObject();
                 }
@@ -969,18 +959,14 @@ public class IDPSSOFederate {
                 }
                 // End of block for IDP Adapter invocation
 
-                synchronized (IDPCache.authnRequestCache) {
-                    cacheObj =
-                        (CacheObject)IDPCache.authnRequestCache.remove(reqID);
-                }
+                cacheObj =
+                    (CacheObject)IDPCache.authnRequestCache.remove(reqID);
                 if (cacheObj != null) {
                     authnReq = (AuthnRequest)cacheObj.getObject();
                 }
                 AuthnContext matchingAuthnContext = null;
-                synchronized (IDPCache.idpAuthnContextCache) {
-                    cacheObj = (CacheObject)
-                        IDPCache.idpAuthnContextCache.remove(reqID);
-                }
+                cacheObj = (CacheObject)
+                    IDPCache.idpAuthnContextCache.remove(reqID);
                 if (cacheObj != null) {
                     matchingAuthnContext = (AuthnContext)cacheObj.getObject();
                 }
@@ -27,7 +27,7 @@
  */
 
 /*
- * Portions Copyrighted 2010-2014 ForgeRock AS
+ * Portions Copyrighted 2010-2015 ForgeRock AS.
  */
 
 package com.sun.identity.saml2.profile;
@@ -75,6 +75,7 @@ import com.sun.identity.saml2.jaxb.metadata.SPSSODescriptorElement;
 import com.sun.identity.saml2.logging.LogUtil;
 import com.sun.identity.saml2.key.EncInfo;
 import com.sun.identity.saml2.key.KeyUtil;
+import com.sun.identity.saml2.meta.SAML2EntityMetadata;
 import com.sun.identity.saml2.meta.SAML2MetaException;
 import com.sun.identity.saml2.meta.SAML2MetaManager;
 import com.sun.identity.saml2.meta.SAML2MetaUtils;
@@ -1786,35 +1787,19 @@ public class IDPSSOUtil {
             String realm,
             StringBuffer returnedBinding) throws SAML2Exception {
         String classMethod = "IDPSSOUtil.getDefaultACSurl: ";
-        SPSSODescriptorElement spSSODescriptorElement = getSPSSODescriptor(
-                realm, spEntityID, classMethod);
-        List acsList = spSSODescriptorElement.getAssertionConsumerService();
-        AssertionConsumerServiceElement acs = null;
-        String acsURL = null;
-        String binding = null;
-        String firstAcsURL = null;
-        String firstBinding = null;
-        for (int i = 0; i < acsList.size(); i++) {
-            acs = (AssertionConsumerServiceElement) acsList.get(i);
-            if (acs.isIsDefault()) {
-                acsURL = acs.getLocation();
-                binding = acs.getBinding();
-            }
-            if (i == 0) {
-                firstAcsURL = acs.getLocation();
-                firstBinding = acs.getBinding();
-            }
+        SAML2EntityMetadata spMetadata = getSPMetadata(realm, spEntityID, classMethod);
+        SAML2EntityMetadata.Endpoint acs = spMetadata.getDefaultAssertionConsumerService();
+        if (acs == null || acs.getLocation() == null) {
+            acs = spMetadata.getFirstAssertionConsumerService();
         }
-
-        if (acsURL == null) {
-            acsURL = firstAcsURL;
-            binding = firstBinding;
+        if (acs == null) {
+            return null;
         }
 
-        if (binding != null) {
-            returnedBinding.append(binding);
+        if (acs.getBinding() != null) {
+            returnedBinding.append(acs.getBinding());
         }
-        return acsURL;
+        return acs.getLocation();
     }
 
     /**
@@ -1831,19 +1816,7 @@ public class IDPSSOUtil {
             String realm,
             String acsURL) throws SAML2Exception {
         String classMethod = "IDPSSOUtil.getBindingForAcsUrl: ";
-        SPSSODescriptorElement spSSODescriptorElement = getSPSSODescriptor(
-                realm, spEntityID, classMethod);
-        List acsList = spSSODescriptorElement.getAssertionConsumerService();
-        AssertionConsumerServiceElement acs = null;
-        String binding = null;
-        for (int i = 0; i < acsList.size(); i++) {
-            acs = (AssertionConsumerServiceElement) acsList.get(i);
-            String location = acs.getLocation();
-            if (location != null && location.equals(acsURL)) {
-                return acs.getBinding();
-            }
-        }
-        return null;
+        return getSPMetadata(realm, spEntityID, classMethod).getAssertionConsumerServiceBinding(acsURL);
     }
 
     /**
@@ -1866,52 +1839,9 @@ public class IDPSSOUtil {
             throws SAML2Exception {
 
         String classMethod = "IDPSSOUtil.getACSurlFromMetaByBinding: ";
-        SPSSODescriptorElement spSSODescriptorElement = getSPSSODescriptor(
-                realm, spEntityID, classMethod);
-        List acsList = spSSODescriptorElement.getAssertionConsumerService();
-        String acsURL = null;
-        String binding = null;
-        String defaultAcsURL = null;
-        String defaultBinding = null;
-        String firstAcsURL = null;
-        String firstBinding = null;
-        AssertionConsumerServiceElement acs = null;
-        for (int i = 0; i < acsList.size(); i++) {
-            acs = (AssertionConsumerServiceElement) acsList.get(i);
-
-            binding = acs.getBinding();
-            if (binding.equals(desiredBinding)) {
-                acsURL = acs.getLocation();
-                break;
-            }
-            if (acs.isIsDefault()) {
-                defaultAcsURL = acs.getLocation();
-                defaultBinding = acs.getBinding();
-            }
-            if (i == 0) {
-                firstAcsURL = acs.getLocation();
-                firstBinding = acs.getBinding();
-            }
-        }
-        if (acsURL == null || acsURL.length() == 0) {
-            acsURL = defaultAcsURL;
-            if (acsURL == null || acsURL.length() == 0) {
-                acsURL = firstAcsURL;
-                if (acsURL == null || acsURL.length() == 0) {
-                    acsURL = null;
-                    SAML2Utils.debug.error(classMethod +
-                            "Unable to get valid Assertion " +
-                            "Consumer Service URL");
-                    return null;
-                }
-                returnedBinding.append(firstBinding);
-            } else {
-                returnedBinding.append(defaultBinding);
-            }
-        } else {
-            returnedBinding.append(binding);
-        }
-        return acsURL;
+        SAML2EntityMetadata spMetadata = getSPMetadata(realm, spEntityID, classMethod);
+        return getACSurl(spMetadata, spMetadata.getAssertionConsumerServiceByBinding(desiredBinding),
+                returnedBinding, classMethod);
     }
 
 
@@ -1936,55 +1866,46 @@ public class IDPSSOUtil {
 
         String classMethod = "IDPSSOUtil.getACSurlFromMetaByIndex: ";
 
-        SPSSODescriptorElement spSSODescriptorElement = getSPSSODescriptor(
-                realm, spEntityID, classMethod);
-        List acsList = spSSODescriptorElement.getAssertionConsumerService();
-        int index;
-        String acsURL = null;
-        String binding = null;
-        String defaultAcsURL = null;
-        String defaultBinding = null;
-        String firstAcsURL = null;
-        String firstBinding = null;
-        AssertionConsumerServiceElement acs = null;
-        for (int i = 0; i < acsList.size(); i++) {
-            acs = (AssertionConsumerServiceElement) acsList.get(i);
+        SAML2EntityMetadata spMetadata = getSPMetadata(realm, spEntityID, classMethod);
+        return getACSurl(spMetadata, spMetadata.getAssertionConsumerServiceByIndex(acsIndex), returnedBinding,
+                classMethod);
+    }
 
-            index = acs.getIndex();
-            binding = acs.getBinding();
-            if (index == acsIndex) {
-                acsURL = acs.getLocation();
-                binding = acs.getBinding();
-                break;
-            }
-            if (acs.isIsDefault()) {
-                defaultAcsURL = acs.getLocation();
-                defaultBinding = acs.getBinding();
-            }
-            if (i == 0) {
-                firstAcsURL = acs.getLocation();
-                firstBinding = acs.getBinding();
-            }
-        }
-        if (acsURL == null || acsURL.length() == 0) {
-            acsURL = defaultAcsURL;
-            if (acsURL == null || acsURL.length() == 0) {
-                acsURL = firstAcsURL;
-                if (acsURL == null || acsURL.length() == 0) {
-                    acsURL = null;
+    /**
+     * Returns the location of the requested assertion consumer service, falling back to the default, then to the
+     * first, assertion consumer service of the service provider.
+     *
+     * @param spMetadata      the metadata of the service provider
+     * @param acs             the requested assertion consumer service, or null
+     * @param returnedBinding the binding used to send back
+     *                        <code>Response</code>
+     * @param classMethod     the calling class method
+     * @return the assertion consumer service <code>URL</code>
+     */
+    private static String getACSurl(
+            SAML2EntityMetadata spMetadata,
+            SAML2EntityMetadata.Endpoint acs,
+            StringBuffer returnedBinding,
+            String classMethod) {
+
+        if (!hasLocation(acs)) {
+            acs = spMetadata.getDefaultAssertionConsumerService();
+            if (!hasLocation(acs)) {
+                acs = spMetadata.getFirstAssertionConsumerService();
+                if (!hasLocation(acs)) {
                     SAML2Utils.debug.error(classMethod +
                             "Unable to get valid Assertion " +
                             "Consumer Service URL");
                     return null;
                 }
-                returnedBinding.append(firstBinding);
-            } else {
-                returnedBinding.append(defaultBinding);
             }
-        } else {
-            returnedBinding.append(binding);
         }
-        return acsURL;
+        returnedBinding.append(acs.getBinding());
+        return acs.getLocation();
+    }
+
+    private static boolean hasLocation(SAML2EntityMetadata.Endpoint acs) {
+        return acs != null && acs.getLocation() != null && acs.getLocation().length() > 0;
     }
 
     /**
@@ -3025,6 +2946,37 @@ public class IDPSSOUtil {
         return spSSODescriptor.isWantAssertionsSigned();
     }
 
+    /**
+     * Returns the metadata of the service provider entity under the realm.
+     * @param realm The realm under which the entity resides.
+     * @param spEntityID ID of the SP entity to be retrieved.
+     * @param classMethod the calling class method
+     * @return <code>SAML2EntityMetadata</code> for the entity
+     * @throws SAML2Exception if entity is not found or is no service provider
+     */
+    private static SAML2EntityMetadata getSPMetadata(String realm,
+            String spEntityID, String classMethod)
+            throws SAML2Exception {
+
+        if (metaManager == null) {
+            SAML2Utils.debug.error(classMethod + "Unable to get meta manager.");
+            throw new SAML2Exception(SAML2Utils.bundle.getString("errorMetaManager"));
+        }
+        SAML2EntityMetadata spMetadata = null;
+        try {
+            spMetadata = metaManager.getEntityMetadata(realm, spEntityID);
+        } catch (SAML2MetaException sme) {
+            // reported below, as getSPSSODescriptor does
+        }
+        if (spMetadata == null || !spMetadata.isServiceProvider()) {
+            SAML2Utils.debug.error(classMethod + "Unable to get SP SSO Descriptor from metadata, descriptor is null.");
+            String[] data = { spEntityID };
+            LogUtil.error(Level.INFO, LogUtil.SP_METADATA_ERROR, data, null);
+            throw new SAML2Exception(SAML2Utils.bundle.getString("metaDataError"));
+        }
+        return spMetadata;
+    }
+
     /**
      * Returns the service provider's SSO descriptor in an entity under the realm.
      * @param realm The realm under which the entity resides.
@@ -27,7 +27,7 @@
  */
 
 /*
- * Portions Copyrighted 2010-2014 ForgeRock AS
+ * Portions Copyrighted 2010-2015 ForgeRock AS
  */
 
 package com.sun.identity.saml2.profile;
@@ -239,9 +239,7 @@ public class SPACSUtils {
                 SAML2Utils.debug.message("SPACSUtils.getResponseFromGet: resID="
                         + resID);
             }
-            synchronized (SPCache.responseHash) {
-                respInfo = (ResponseInfo) SPCache.responseHash.remove(resID);
-            }
+            respInfo = (ResponseInfo) SPCache.responseHash.remove(resID);
             if (respInfo == null) {
                 if (SAML2Utils.debug.messageEnabled()) {
                     SAML2Utils.debug.message("SPACSUtils.getResponseFromGet: "
@@ -1843,10 +1841,7 @@ public class SPACSUtils {
                         + orgName;
             }
         }
-        synchronized (SPCache.responseHash) {
-           SPCache.responseHash.put(respInfo.getResponse().getID(), 
-               respInfo);
-        }   
+        SPCache.responseHash.put(respInfo.getResponse().getID(), respInfo);
         if (SAML2Utils.debug.messageEnabled()) {
             SAML2Utils.debug.message("SPACSUtils:prepareForLocalLogin: " +
                 "localLoginUrl = " + localLoginUrl);
@@ -24,21 +24,25 @@
  *
  * $Id: SPCache.java,v 1.17 2009/06/09 20:28:32 exu Exp $
  *
+ * Portions Copyrighted 2015 ForgeRock AS.
  */
 
 
 package com.sun.identity.saml2.profile;
 
-import com.sun.identity.common.PeriodicCleanUpMap;
+import com.sun.identity.common.ConcurrentExpiringMap;
 import com.sun.identity.saml2.common.SAML2Constants;
 import com.sun.identity.saml2.common.SAML2Utils;
+import com.sun.identity.saml2.protocol.LogoutRequest;
 import com.sun.identity.shared.Constants;
 import com.sun.identity.shared.configuration.SystemPropertiesManager;
 import java.util.Collections;
-import java.util.Hashtable;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import com.sun.identity.shared.ldap.util.DN;
+import org.forgerock.openam.shared.cache.CacheFactory;
 
 
 /**
@@ -84,39 +88,48 @@ public class SPCache {
     private SPCache() {
     }
 
+    /**
+     * Creates an expiring map, and includes it in the recorded cache statistics.
+     *
+     * @param name The name of the map, used in statistics.
+     * @param <V> The type of the values.
+     * @return The map.
+     */
+    private static <V> ConcurrentExpiringMap<String, V> newCache(String name) {
+        return CacheFactory.register(new ConcurrentExpiringMap<String, V>("SPCache." + name,
+                interval * 1000L, interval * 1000L));
+    }
+
     /**
      * Map saves the request info.
      * Key   :   requestID String
      * Value : AuthnRequestInfo object
      */
-    public static PeriodicCleanUpMap requestHash = new PeriodicCleanUpMap(
-        interval * 1000, interval * 1000); 
+    public static ConcurrentExpiringMap<String, AuthnRequestInfo> requestHash = newCache("requestHash");
 
     /**
      * Map saves the MNI request info.
      * Key   :   requestID String
      * Value : ManageNameIDRequestInfo object
      */
-    protected static PeriodicCleanUpMap mniRequestHash = new PeriodicCleanUpMap(
-        interval * 1000, interval * 1000);
+    protected static ConcurrentExpiringMap<String, ManageNameIDRequestInfo> mniRequestHash = newCache("mniRequestHash");
 
     /**
      * Map to save the relayState URL.
      * Key  : a String the relayStateID 
      * Value: a String the RelayState Value 
      */
-    public static PeriodicCleanUpMap relayStateHash= new PeriodicCleanUpMap(
-        interval * 1000, interval * 1000); 
+    public static ConcurrentExpiringMap<String, CacheObject> relayStateHash = newCache("relayStateHash");
 
     /**
-     * Hashtable stores information required for LogoutRequest consumption.
+     * ConcurrentHashMap stores information required for LogoutRequest consumption.
      * key : String NameIDInfoKey (NameIDInfoKey.toValueString())
      * value : List of SPFedSession's
      *       (SPFedSession - idp sessionIndex (String)
      *                     - sp token id (String)                     
      * one key --- multiple SPFedSession's
      */
-    protected static Hashtable fedSessionListsByNameIDInfoKey = new Hashtable();
+    protected static ConcurrentHashMap fedSessionListsByNameIDInfoKey = new ConcurrentHashMap();
 
     /**
      * SP: used to map LogoutRequest ID and inResponseTo in LogoutResponse
@@ -124,40 +137,37 @@ public class SPCache {
      * key : request ID (String)
      * value : original logout request object  (LogotRequest)
      */
-    public static PeriodicCleanUpMap logoutRequestIDHash = 
-        new PeriodicCleanUpMap(interval * 1000, interval * 1000);
+    public static ConcurrentExpiringMap<String, LogoutRequest> logoutRequestIDHash = newCache("logoutRequestIDHash");
 
     /**
      * Map saves response info for local auth.
      * Key: requestID String
      * Value: ResponseInfo object
      */
-    protected static PeriodicCleanUpMap responseHash = new PeriodicCleanUpMap(
-        interval * 1000, interval * 1000);
+    protected static ConcurrentExpiringMap<String, ResponseInfo> responseHash = newCache("responseHash");
 
     /**
-     * Hashtable saves AuthnContext Mapper object.
+     * ConcurrentHashMap saves AuthnContext Mapper object.
      * Key: hostEntityID+realmName
      * Value: SPAuthnContextMapper
      */
-    public static Hashtable authCtxObjHash = new Hashtable();
+    public static ConcurrentHashMap authCtxObjHash = new ConcurrentHashMap();
 
     /**
-     * Hashtable saves AuthnContext class name and the authLevel. 
+     * ConcurrentHashMap saves AuthnContext class name and the authLevel. 
      * Key: hostEntityID+realmName
      * Value: Map containing AuthContext Class Name as Key and value
      *              is authLevel.
      */
-    public static Hashtable authContextHash = new Hashtable();
+    public static ConcurrentHashMap authContextHash = new ConcurrentHashMap();
 
     /**
-     * Hashtable saves the Request Parameters before redirecting
+     * ConcurrentHashMap saves the Request Parameters before redirecting
      * to IDP Discovery Service to retreive the preferred IDP.
      * Key: requestID a String
      * Value : Request Parameters Map , a Map
      */
-    public static PeriodicCleanUpMap reqParamHash = new PeriodicCleanUpMap(
-        SPCache.interval * 1000, SPCache.interval * 1000);
+    public static ConcurrentExpiringMap<String, Map<?, ?>> reqParamHash = newCache("reqParamHash");
 
 
     /**
@@ -165,7 +175,7 @@ public class SPCache {
      * Key : sp account mapper class name
      * Value : sp account mapper object
      */
-    public static Hashtable spAccountMapperCache = new Hashtable();
+    public static ConcurrentHashMap spAccountMapperCache = new ConcurrentHashMap();
     
     /**
      * Cache saves the sp adapter class instance.
@@ -173,7 +183,7 @@ public class SPCache {
      * Value : sp adapter class instance 
      * (<code>SAML2ServiceProviderAdapter</code>)
      */
-    public static Hashtable spAdapterClassCache = new Hashtable();
+    public static ConcurrentHashMap spAdapterClassCache = new ConcurrentHashMap();
 
     /**
      * Cache saves the fedlet adapter class instance.
@@ -181,23 +191,21 @@ public class SPCache {
      * Value : fedlet adapter class instance 
      * (<code>FedletAdapter</code>)
      */
-    public static Hashtable fedletAdapterClassCache = new Hashtable();
+    public static ConcurrentHashMap fedletAdapterClassCache = new ConcurrentHashMap();
 
     /**
      * Cache saves the ecp request IDP list finder.
      * Key : ecp request IDP list finder class name
      * Value : ecp request IDP list finder object
      */
-    public static Hashtable ecpRequestIDPListFinderCache = new Hashtable();
+    public static ConcurrentHashMap ecpRequestIDPListFinderCache = new ConcurrentHashMap();
 
     /**
      * Cache saves the assertion id.
      * Key : assertion ID String
      * Value : Constant  
      */
-    public static PeriodicCleanUpMap assertionByIDCache =
-        new PeriodicCleanUpMap(interval * 1000,
-        interval * 1000);
+    public static ConcurrentExpiringMap<String, String> assertionByIDCache = newCache("assertionByIDCache");
     
     /**
      * Clears the auth context object hash table.
@@ -27,7 +27,7 @@
  */
 
 /*
- * Portions Copyrighted 2011-2014 ForgeRock AS
+ * Portions Copyrighted 2011-2015 ForgeRock AS
  */
 
 package com.sun.identity.saml2.profile;
@@ -358,9 +358,7 @@ public class SPSSOFederate {
                 new AuthnRequestInfo(request,response,realm,spEntityID,
                                      idpEntityID,authnRequest,relayState,
                                      paramsMap);
-            synchronized(SPCache.requestHash) {             
-                SPCache.requestHash.put(authnRequest.getID(),reqInfo);
-            }
+            SPCache.requestHash.put(authnRequest.getID(),reqInfo);
             if (SAML2Utils.isSAML2FailOverEnabled()) {
                 // sessionExpireTime is counted in seconds
                 long sessionExpireTime = System.currentTimeMillis() / 1000 + SPCache.interval;                    
@@ -610,9 +608,7 @@ public class SPSSOFederate {
                 new AuthnRequestInfo(request,response,realm,spEntityID,
                                      null, authnRequest,relayState,
                                      paramsMap);
-            synchronized(SPCache.requestHash) {             
-                SPCache.requestHash.put(authnRequest.getID(),reqInfo);
-            }
+            SPCache.requestHash.put(authnRequest.getID(),reqInfo);
             if (SAML2Utils.isSAML2FailOverEnabled()) {
                 // sessionExpireTime is counted in seconds
                 long sessionExpireTime = System.currentTimeMillis() / 1000 + SPCache.interval;                    
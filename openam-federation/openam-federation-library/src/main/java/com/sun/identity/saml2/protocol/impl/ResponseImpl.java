@@ -24,13 +24,16 @@
  *
  * $Id: ResponseImpl.java,v 1.4 2009/12/16 05:26:39 ericow Exp $
  *
+ * Portions Copyrighted 2015 ForgeRock AS.
  */
 
 
 
 package com.sun.identity.saml2.protocol.impl;
 
+import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.cert.X509Certificate;
 import java.text.ParseException;
 import java.util.Date;
 import java.util.Iterator;
@@ -53,6 +56,7 @@ import com.sun.identity.saml2.assertion.Assertion;
 import com.sun.identity.saml2.assertion.EncryptedAssertion;
 import com.sun.identity.saml2.assertion.AssertionFactory;
 import com.sun.identity.saml2.assertion.Issuer;
+import com.sun.identity.saml2.assertion.impl.AssertionImpl;
 import com.sun.identity.saml2.common.SAML2Constants;
 import com.sun.identity.saml2.common.SAML2Exception;
 import com.sun.identity.saml2.common.SAML2SDKUtils;
@@ -60,6 +64,9 @@ import com.sun.identity.saml2.protocol.Status;
 import com.sun.identity.saml2.protocol.Extensions;
 import com.sun.identity.saml2.protocol.ProtocolFactory;
 import com.sun.identity.saml2.protocol.Response;
+import com.sun.identity.saml2.xmlsig.DOMSigProvider;
+import com.sun.identity.saml2.xmlsig.SigManager;
+import com.sun.identity.saml2.xmlsig.SigProvider;
 
 /**
  * This is an implementation of interface <code>Response</code>.
@@ -393,6 +400,72 @@ public class ResponseImpl extends StatusResponseImpl implements Response {
         }
     }
 
+    /**
+     * Signs the Response. When all the assertions of the Response have
+     * just been signed, their signed DOM is imported into the document to
+     * be signed, and the signed Response is serialized once, instead of
+     * serializing the signed assertions and parsing them again. This
+     * needs the configured signature provider to be a
+     * <code>DOMSigProvider</code>; otherwise the Response is signed as a
+     * string.
+     *
+     * @param privateKey Signing key
+     * @param cert Certificate which contain the public key correlated to
+     *             the signing key; It if is not null, then the signature
+     *             will include the certificate; Otherwise, the signature
+     *             will not include any certificate.
+     * @throws SAML2Exception if it could not sign the Response.
+     */
+    public void sign(PrivateKey privateKey, X509Certificate cert)
+        throws SAML2Exception {
+        SigProvider sigProvider = SigManager.getSigInstance();
+        if (assertions == null || assertions.isEmpty()
+            || !(sigProvider instanceof DOMSigProvider)) {
+            super.sign(privateKey, cert);
+            return;
+        }
+        Document doc = XMLUtils.toDOMDocument(
+            toXMLString(true, true, false), SAML2SDKUtils.debug);
+        if (doc == null) {
+            throw new SAML2Exception(
+                SAML2SDKUtils.bundle.getString("errorObtainingElement"));
+        }
+        List signedAssertions = new ArrayList(assertions.size());
+        Iterator iter = assertions.iterator();
+        while (iter.hasNext()) {
+            Object assertion = iter.next();
+            Element signedAssertion = null;
+            if (assertion instanceof AssertionImpl) {
+                signedAssertion =
+                    ((AssertionImpl) assertion).importSignedElement(doc);
+            }
+            if (signedAssertion == null) {
+                super.sign(privateKey, cert);
+                return;
+            }
+            signedAssertions.add(signedAssertion);
+        }
+
+        // assertions go after Status and before any EncryptedAssertion
+        Element root = doc.getDocumentElement();
+        Node next = root.getFirstChild();
+        while (next != null && (next.getNodeType() != Node.ELEMENT_NODE
+            || !"EncryptedAssertion".equals(next.getLocalName()))) {
+            next = next.getNextSibling();
+        }
+        iter = signedAssertions.iterator();
+        while (iter.hasNext()) {
+            root.insertBefore((Element) iter.next(), next);
+        }
+
+        Element signatureEle = ((DOMSigProvider) sigProvider).sign(
+            doc, getID(), privateKey, cert);
+        signatureString = XMLUtils.print(signatureEle);
+        signedXMLString = XMLUtils.print(root, "UTF-8");
+        isSigned = true;
+        makeImmutable();
+    }
+
     /**
      * Returns a String representation of this Object.
      *
@@ -418,6 +491,11 @@ public class ResponseImpl extends StatusResponseImpl implements Response {
 	if (isSigned && signedXMLString != null) {
 	    return signedXMLString;
 	}
+	return toXMLString(includeNSPrefix, declareNS, true);
+    }
+
+    private String toXMLString(boolean includeNSPrefix, boolean declareNS,
+        boolean includeAssertions) throws SAML2Exception {
 	this.validateData();
         StringBuffer result = new StringBuffer(1000);
         String prefix = "";
@@ -456,7 +534,7 @@ public class ResponseImpl extends StatusResponseImpl implements Response {
             result.append(extensions.toXMLString(includeNSPrefix, declareNS));
         }
 	result.append(status.toXMLString(includeNSPrefix, declareNS));
-	if (assertions != null) {
+	if (includeAssertions && assertions != null) {
 	    Iterator iter = assertions.iterator();
 	    while (iter.hasNext()) {
 		result.append(((Assertion) iter.next()).toXMLString(
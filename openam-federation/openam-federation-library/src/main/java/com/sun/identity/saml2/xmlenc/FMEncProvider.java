@@ -24,6 +24,7 @@
  *
  * $Id: FMEncProvider.java,v 1.5 2008/06/25 05:48:03 qcheng Exp $
  *
+ * Portions Copyrighted 2015 ForgeRock AS.
  */
 
 
@@ -41,6 +42,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 
 import javax.crypto.KeyGenerator;
+import javax.xml.parsers.ParserConfigurationException;
 import javax.crypto.SecretKey;
 
 import com.sun.org.apache.xml.internal.security.encryption.XMLCipher;
@@ -48,7 +50,11 @@ import com.sun.org.apache.xml.internal.security.encryption.EncryptedData;
 import com.sun.org.apache.xml.internal.security.encryption.EncryptedKey;
 import com.sun.org.apache.xml.internal.security.encryption.XMLEncryptionException;
 import java.io.IOException;
-import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.sun.identity.common.SystemConfigurationUtil;
 import com.sun.identity.shared.xml.XMLUtils;
@@ -56,6 +62,7 @@ import com.sun.identity.xmlenc.EncryptionConstants;
 import com.sun.identity.saml2.common.SAML2Exception;
 import com.sun.identity.saml2.common.SAML2SDKUtils;
 import com.sun.identity.saml2.common.SAML2Constants;
+import org.forgerock.openam.shared.cache.CacheFactory;
 
 /**
  * <code>FMEncProvier</code> is a class for encrypting and 
@@ -69,9 +76,50 @@ public final class FMEncProvider implements EncProvider {
      * the indices and symmetric keys as values. Symmetric key
      * generation each time is expensive operation. Using the
      * same key for each recipient is provided as an option
-     * here.
+     * here. The map holds the keys of a bounded number of
+     * recipients, and a key is replaced once it is older than
+     * the key timeout.
      */ 
-    static Hashtable cachedKeys = new Hashtable();
+    private static final Map<String, CachedKey> cachedKeys;
+
+    /**
+     * The maximum number of recipients whose secret keys are cached.
+     */
+    private static int keyCacheSize = 1000;
+
+    /**
+     * The default time in milliseconds a cached secret key is used for
+     * before it is replaced by a new one.
+     */
+    private static long defaultKeyTimeout = 3600 * 1000;
+
+    /**
+     * A hidden property to reuse the xenc:EncryptedKey along with the
+     * cached secret key. If true, all the elements encrypted for a
+     * recipient, such as the assertion, NameID and attributes, share one
+     * transported key, and the secret key is encrypted with the
+     * recipient's public key once per key timeout instead of once per
+     * element. Default to false if not specified.
+     */
+    private static boolean defaultReuseEncryptedKey = false;
+
+    /**
+     * The maximum number of idle XML ciphers kept for each algorithm.
+     */
+    private static int cipherPoolSize = 16;
+
+    /**
+     * The idle XML ciphers by algorithm, shared by all threads. A cipher
+     * is initialized again for each use, so it can be reused once the
+     * encryption which used it is done. The pool is bounded, so it never
+     * keeps more ciphers, nor the documents they last encrypted, than the
+     * pool size for each algorithm.
+     */
+    private static final ConcurrentMap<String, BlockingQueue<XMLCipher>>
+        cipherPool = new ConcurrentHashMap<String, BlockingQueue<XMLCipher>>();
+
+    private final long keyTimeout;
+    private final boolean reuseEncryptedKey;
 
     /**
      * A hidden property to switch between two encryption formats.
@@ -90,6 +138,64 @@ public final class FMEncProvider implements EncProvider {
         if ((tmp != null) && (tmp.equalsIgnoreCase("false"))) {
             encryptedKeyInKeyInfo = false;
         }
+        tmp = SystemConfigurationUtil.getProperty(
+            "com.sun.identity.saml2.xmlenc.keyCacheSize");
+        if (tmp != null) {
+            try {
+                keyCacheSize = Integer.parseInt(tmp);
+            } catch (NumberFormatException nfe) {
+                SAML2SDKUtils.debug.error("FMEncProvider.static: " +
+                    "invalid key cache size " + tmp + ", using default.");
+            }
+        }
+        // key timeout in seconds
+        tmp = SystemConfigurationUtil.getProperty(
+            "com.sun.identity.saml2.xmlenc.keyTimeout");
+        if (tmp != null) {
+            try {
+                defaultKeyTimeout = Long.parseLong(tmp) * 1000;
+            } catch (NumberFormatException nfe) {
+                SAML2SDKUtils.debug.error("FMEncProvider.static: " +
+                    "invalid key timeout " + tmp + ", using default.");
+            }
+        }
+        tmp = SystemConfigurationUtil.getProperty(
+            "com.sun.identity.saml2.xmlenc.reuseEncryptedKey");
+        if ((tmp != null) && (tmp.equalsIgnoreCase("true"))) {
+            defaultReuseEncryptedKey = true;
+        }
+        tmp = SystemConfigurationUtil.getProperty(
+            "com.sun.identity.saml2.xmlenc.cipherPoolSize");
+        if (tmp != null) {
+            try {
+                cipherPoolSize = Integer.parseInt(tmp);
+            } catch (NumberFormatException nfe) {
+                SAML2SDKUtils.debug.error("FMEncProvider.static: " +
+                    "invalid cipher pool size " + tmp + ", using default.");
+            }
+        }
+        cachedKeys = CacheFactory.newLRUCache("saml2SecretKeys",
+            keyCacheSize);
+    }
+
+    /**
+     * Creates a provider configured by the system properties.
+     */
+    public FMEncProvider() {
+        this(defaultReuseEncryptedKey, defaultKeyTimeout);
+    }
+
+    /**
+     * Creates a provider with the given secret key cache settings.
+     *
+     * @param reuseEncryptedKey whether the xenc:EncryptedKey is cached along
+     *     with the secret key.
+     * @param keyTimeout the time in milliseconds a cached secret key is
+     *     used for.
+     */
+    FMEncProvider(boolean reuseEncryptedKey, long keyTimeout) {
+        this.reuseEncryptedKey = reuseEncryptedKey;
+        this.keyTimeout = keyTimeout;
     }
 
     /**
@@ -221,16 +327,12 @@ public final class FMEncProvider implements EncProvider {
 		SAML2SDKUtils.bundle.getString("emptyDoc"));
 	}
 	// start of obtaining secret key
+        CachedKey cachedKey = null;
         if (secretKey == null) {
             if (recipientEntityID != null) {
-	        if (cachedKeys.containsKey(recipientEntityID)) {
-		    secretKey = (SecretKey)
-		        cachedKeys.get(recipientEntityID);
-                } else {
-		    secretKey = generateSecretKey(
-		        dataEncAlgorithm, dataEncStrength);
-                    cachedKeys.put(recipientEntityID, secretKey);
-                }
+                cachedKey = getCachedKey(recipientEntityID,
+                    recipientPublicKey, dataEncAlgorithm, dataEncStrength);
+                secretKey = cachedKey.secretKey;
             } else {
                 secretKey = generateSecretKey(
                    dataEncAlgorithm, dataEncStrength);
@@ -242,59 +344,23 @@ public final class FMEncProvider implements EncProvider {
         }
 	// end of obtaining secret key
 
-	XMLCipher cipher = null;
-	// start of encrypting the secret key with public key
-	String publicKeyEncAlg = recipientPublicKey.getAlgorithm();
-	/* note that the public key encryption algorithm could only
-	 * have three possible values here: "RSA", "AES", "DESede"
-	 */
-	try {	    
-	    if (publicKeyEncAlg.equals(EncryptionConstants.RSA)) {
-		cipher = XMLCipher.getInstance(XMLCipher.RSA_v1dot5);
-		
-	    } else if (publicKeyEncAlg.equals(EncryptionConstants.TRIPLEDES)) {
-		cipher = XMLCipher.getInstance(XMLCipher.TRIPLEDES_KeyWrap);
-		
-	    } else if (publicKeyEncAlg.equals(EncryptionConstants.AES)) {
-		
-		cipher = XMLCipher.getInstance(XMLCipher.AES_128_KeyWrap);
-	    } else {
-		throw new SAML2Exception(
-		    SAML2SDKUtils.bundle.getString("unsupportedKeyAlg"));
-	    }
-	} catch (XMLEncryptionException xe1) {
-            SAML2SDKUtils.debug.error(
-		classMethod + 
-                "Unable to obtain cipher with public key algorithm.", xe1);
-	    throw new SAML2Exception(
-		SAML2SDKUtils.bundle.getString("noCipherForPublicKeyAlg"));
-	}
-	try {
-	    cipher.init(XMLCipher.WRAP_MODE, recipientPublicKey);
-	} catch (XMLEncryptionException xe2) {
-            SAML2SDKUtils.debug.error(
-		classMethod + "Failed to initialize cipher with public key",
-		xe2);
-	    throw new SAML2Exception(
-		SAML2SDKUtils.bundle.getString(
-		    "failedInitCipherWithPublicKey"));
+	// start of encrypting the secret key with public key, unless the
+	// encrypted key of the recipient is reused
+	Element ek = null;
+	if ((cachedKey != null) && reuseEncryptedKey) {
+	    ek = cachedKey.getEncryptedKey(doc);
 	}
 	EncryptedKey encryptedKey = null;
-	try {
-	    encryptedKey = cipher.encryptKey(doc, secretKey);
-	} catch (XMLEncryptionException xe3) {
-            SAML2SDKUtils.debug.error(
-		classMethod + "Failed to encrypt secret key with public key",
-		xe3);
-	    throw new SAML2Exception(
-		SAML2SDKUtils.bundle.getString(
-		    "failedEncryptingSecretKeyWithPublicKey"));
+	if (ek == null) {
+	    encryptedKey = encryptSecretKey(doc, recipientPublicKey,
+	        secretKey);
 	}
 	// end of encrypting the secret key with public key
 	
 	// start of doing data encryption
+	XMLCipher cipher = null;
 	try {
-	    cipher = XMLCipher.getInstance(dataEncAlgorithm);
+	    cipher = getCipher(dataEncAlgorithm);
 	} catch (XMLEncryptionException xe4) {
             SAML2SDKUtils.debug.error(
 		classMethod + "Failed to obtain a cipher for "+
@@ -326,16 +392,21 @@ public final class FMEncProvider implements EncProvider {
 	// end of doing data encryption
 	
 	// add the EncryptedKey element
-	Element ek = null;
-	try {
-	    ek = cipher.martial(doc, encryptedKey);
-	} catch (Exception xe6) {
-            SAML2SDKUtils.debug.error(
-		classMethod + "Failed to martial the encrypted key", xe6);
-	    throw new SAML2Exception(
-		SAML2SDKUtils.bundle.getString(
-		    "failedMartialingEncryptedKey"));
+	if (ek == null) {
+	    try {
+	        ek = cipher.martial(doc, encryptedKey);
+	    } catch (Exception xe6) {
+                SAML2SDKUtils.debug.error(
+		    classMethod + "Failed to martial the encrypted key", xe6);
+	        throw new SAML2Exception(
+		    SAML2SDKUtils.bundle.getString(
+		        "failedMartialingEncryptedKey"));
+	    }
+	    if ((cachedKey != null) && reuseEncryptedKey) {
+	        cachedKey.setEncryptedKey(ek);
+	    }
 	}
+	releaseCipher(dataEncAlgorithm, cipher);
 
         String outerElemNS = SAML2Constants.ASSERTION_NAMESPACE_URI;
         String outerElemPrefix = "saml";
@@ -717,6 +788,130 @@ public final class FMEncProvider implements EncProvider {
         return decryptedDoc.getDocumentElement();
     }
 
+    /**
+     * Returns the cached secret key of the recipient, replacing it with a
+     * new one if it has timed out, or was generated for another algorithm
+     * or public key.
+     */
+    private CachedKey getCachedKey(
+        String recipientEntityID,
+        Key recipientPublicKey,
+        String dataEncAlgorithm,
+        int dataEncStrength)
+
+        throws SAML2Exception {
+
+        long now = System.currentTimeMillis();
+        CachedKey cachedKey = cachedKeys.get(recipientEntityID);
+        if ((cachedKey == null) || !cachedKey.isValid(recipientPublicKey,
+            dataEncAlgorithm, dataEncStrength, now)) {
+
+            SecretKey secretKey = generateSecretKey(
+                dataEncAlgorithm, dataEncStrength);
+            if (secretKey == null) {
+                throw new SAML2Exception(SAML2SDKUtils.bundle.getString(
+                    "errorGenerateKey"));
+            }
+            cachedKey = new CachedKey(secretKey, recipientPublicKey,
+                dataEncAlgorithm, dataEncStrength, now + keyTimeout);
+            cachedKeys.put(recipientEntityID, cachedKey);
+        }
+        return cachedKey;
+    }
+
+    /**
+     * Encrypts the secret key with the recipient's public key.
+     */
+    private EncryptedKey encryptSecretKey(
+        Document doc,
+        Key recipientPublicKey,
+        SecretKey secretKey)
+
+        throws SAML2Exception {
+
+	String classMethod = "FMEncProvider.encryptSecretKey: ";
+	XMLCipher cipher = null;
+	String keyWrapAlg = null;
+	String publicKeyEncAlg = recipientPublicKey.getAlgorithm();
+	/* note that the public key encryption algorithm could only
+	 * have three possible values here: "RSA", "AES", "DESede"
+	 */
+	if (publicKeyEncAlg.equals(EncryptionConstants.RSA)) {
+	    keyWrapAlg = XMLCipher.RSA_v1dot5;
+	} else if (publicKeyEncAlg.equals(EncryptionConstants.TRIPLEDES)) {
+	    keyWrapAlg = XMLCipher.TRIPLEDES_KeyWrap;
+	} else if (publicKeyEncAlg.equals(EncryptionConstants.AES)) {
+	    keyWrapAlg = XMLCipher.AES_128_KeyWrap;
+	} else {
+	    throw new SAML2Exception(
+		SAML2SDKUtils.bundle.getString("unsupportedKeyAlg"));
+	}
+	try {
+	    cipher = getCipher(keyWrapAlg);
+	} catch (XMLEncryptionException xe1) {
+            SAML2SDKUtils.debug.error(
+		classMethod + 
+                "Unable to obtain cipher with public key algorithm.", xe1);
+	    throw new SAML2Exception(
+		SAML2SDKUtils.bundle.getString("noCipherForPublicKeyAlg"));
+	}
+	try {
+	    cipher.init(XMLCipher.WRAP_MODE, recipientPublicKey);
+	} catch (XMLEncryptionException xe2) {
+            SAML2SDKUtils.debug.error(
+		classMethod + "Failed to initialize cipher with public key",
+		xe2);
+	    throw new SAML2Exception(
+		SAML2SDKUtils.bundle.getString(
+		    "failedInitCipherWithPublicKey"));
+	}
+	EncryptedKey encryptedKey = null;
+	try {
+	    encryptedKey = cipher.encryptKey(doc, secretKey);
+	} catch (XMLEncryptionException xe3) {
+            SAML2SDKUtils.debug.error(
+		classMethod + "Failed to encrypt secret key with public key",
+		xe3);
+	    throw new SAML2Exception(
+		SAML2SDKUtils.bundle.getString(
+		    "failedEncryptingSecretKeyWithPublicKey"));
+	}
+	releaseCipher(keyWrapAlg, cipher);
+	return encryptedKey;
+    }
+
+    /**
+     * Returns an idle cipher for the algorithm from the pool, or a new one
+     * if there is none. It has to be initialized before use.
+     */
+    private static XMLCipher getCipher(String algorithm)
+        throws XMLEncryptionException {
+
+        BlockingQueue<XMLCipher> idle = cipherPool.get(algorithm);
+        XMLCipher cipher = (idle == null) ? null : idle.poll();
+        return (cipher == null) ? XMLCipher.getInstance(algorithm) : cipher;
+    }
+
+    /**
+     * Hands a cipher which is no longer used back to the pool, unless the
+     * pool of its algorithm is full.
+     */
+    private static void releaseCipher(String algorithm, XMLCipher cipher) {
+        if (cipherPoolSize <= 0) {
+            return;
+        }
+        BlockingQueue<XMLCipher> idle = cipherPool.get(algorithm);
+        if (idle == null) {
+            BlockingQueue<XMLCipher> created =
+                new ArrayBlockingQueue<XMLCipher>(cipherPoolSize);
+            idle = cipherPool.putIfAbsent(algorithm, created);
+            if (idle == null) {
+                idle = created;
+            }
+        }
+        idle.offer(cipher);
+    }
+
     /**
      * Returns the next Element node, return null if no such node exists.
      */
@@ -759,4 +954,61 @@ public final class FMEncProvider implements EncProvider {
         
         return (keygen != null) ? keygen.generateKey() : null;
     }
+
+    /**
+     * A secret key cached for a recipient, with the xenc:EncryptedKey
+     * element of the key if it is reused. The element is kept in a
+     * document of its own, and copied into each document it is added to.
+     */
+    private static final class CachedKey {
+        private final SecretKey secretKey;
+        private final Key recipientPublicKey;
+        private final String dataEncAlgorithm;
+        private final int dataEncStrength;
+        private final long expiry;
+        private Element encryptedKey;
+
+        private CachedKey(SecretKey secretKey, Key recipientPublicKey,
+            String dataEncAlgorithm, int dataEncStrength, long expiry) {
+            this.secretKey = secretKey;
+            this.recipientPublicKey = recipientPublicKey;
+            this.dataEncAlgorithm = dataEncAlgorithm;
+            this.dataEncStrength = dataEncStrength;
+            this.expiry = expiry;
+        }
+
+        private boolean isValid(Key recipientPublicKey, String dataEncAlgorithm,
+            int dataEncStrength, long now) {
+            return (now < expiry) &&
+                this.dataEncAlgorithm.equals(dataEncAlgorithm) &&
+                (this.dataEncStrength == dataEncStrength) &&
+                this.recipientPublicKey.equals(recipientPublicKey);
+        }
+
+        /**
+         * Returns a copy of the xenc:EncryptedKey element owned by the
+         * document, or null if the element has not been cached yet.
+         */
+        private synchronized Element getEncryptedKey(Document doc) {
+            return (encryptedKey == null) ? null :
+                (Element) doc.importNode(encryptedKey, true);
+        }
+
+        /**
+         * Caches a copy of the xenc:EncryptedKey element, unless one is
+         * cached already.
+         */
+        private synchronized void setEncryptedKey(Element ek) {
+            if (encryptedKey != null) {
+                return;
+            }
+            try {
+                encryptedKey = (Element)
+                    XMLUtils.newDocument().importNode(ek, true);
+            } catch (ParserConfigurationException pce) {
+                SAML2SDKUtils.debug.warning("FMEncProvider.CachedKey: " +
+                    "Unable to cache the encrypted key.", pce);
+            }
+        }
+    }
 }
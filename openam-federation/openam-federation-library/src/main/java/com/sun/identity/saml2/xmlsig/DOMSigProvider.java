@@ -0,0 +1,47 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package com.sun.identity.saml2.xmlsig;
+
+import com.sun.identity.saml2.common.SAML2Exception;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+
+/**
+ * An optional extension of {@link SigProvider} for providers which can sign a document that has already been built as
+ * a DOM, without it being serialized and parsed again. Callers check whether the configured {@link SigProvider}
+ * implements this interface, and use the string based {@link SigProvider#sign(String, String, PrivateKey,
+ * X509Certificate)} otherwise.
+ */
+public interface DOMSigProvider extends SigProvider {
+
+    /**
+     * Sign the root node of the xml document in place, using enveloped signatures and exclusive xml canonicalization.
+     * The resulting signature is inserted after the first child node (normally Issuer element for SAML2) of the root
+     * node.
+     *
+     * @param doc XML document to be signed.
+     * @param idValue id attribute value of the root node to be signed.
+     * @param privateKey Signing key.
+     * @param cert Certificate which contain the public key correlated to the signing key; if it is not null, then the
+     *             signature will include the certificate; otherwise, the signature will not include any certificate.
+     * @return Element representing the signature element.
+     * @throws SAML2Exception if the document could not be signed.
+     */
+    Element sign(Document doc, String idValue, PrivateKey privateKey, X509Certificate cert) throws SAML2Exception;
+}
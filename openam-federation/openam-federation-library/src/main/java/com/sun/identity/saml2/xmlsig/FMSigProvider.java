@@ -27,7 +27,7 @@
  */
 
 /**
- * Portions Copyrighted 2011-2013 ForgeRock AS
+ * Portions Copyrighted 2011-2015 ForgeRock AS
  */
 package com.sun.identity.saml2.xmlsig;
 
@@ -64,7 +64,7 @@ import com.sun.identity.saml2.common.SAML2Utils;
  * and verifying XML documents, it implements <code>SigProvider</code>
  */
 
-public final class FMSigProvider implements SigProvider {
+public final class FMSigProvider implements DOMSigProvider {
 
     private static String c14nMethod = null;
     private static String transformAlg = null;
@@ -146,6 +146,44 @@ public final class FMSigProvider implements SigProvider {
 		    "errorObtainingElement")
 	    );
         }
+        return sign(doc, idValue, privateKey, cert);
+    }
+
+    /**
+     * Sign the root node of the xml document in place, whose identifying
+     * attribute value is as supplied, using enveloped signatures and use
+     * exclusive xml canonicalization. The resulting signature is inserted
+     * after the Issuer element of the root node.
+     * @param doc XML document to be signed
+     * @param idValue id attribute value of the root node to be signed
+     * @param privateKey Signing key
+     * @param cert Certificate which contain the public key correlated to
+     *             the signing key; It if is not null, then the signature
+     *             will include the certificate; Otherwise, the signature
+     *             will not include any certificate
+     * @return Element representing the signature element
+     * @throws SAML2Exception if the document could not be signed
+     */
+    public Element sign(
+	Document doc,
+	String idValue,
+	PrivateKey privateKey,
+	X509Certificate cert
+    ) throws SAML2Exception {
+
+	String classMethod = "FMSigProvider.sign: ";
+        if (doc == null ||
+	    idValue == null ||
+	    idValue.length() == 0 ||
+	    privateKey == null) {
+
+            SAML2SDKUtils.debug.error(
+		classMethod +
+		"Either input document or id value or "+
+		"private key is null.");
+            throw new SAML2Exception(
+		SAML2SDKUtils.bundle.getString("nullInput"));
+        }
 	Element root = doc.getDocumentElement();
 	XMLSignature sig = null;
 	try {
@@ -0,0 +1,79 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+
+package com.sun.identity.saml2.meta;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import com.sun.identity.saml2.common.SAML2Constants;
+import com.sun.identity.saml2.jaxb.entityconfig.EntityConfigElement;
+import com.sun.identity.saml2.jaxb.metadata.EntityDescriptorElement;
+import com.sun.identity.shared.xml.XMLUtils;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class SAML2EntityMetadataTest {
+
+    private static final String XML_DOCUMENT_TO_LOAD = "sp-metadata.xml";
+    private static final String ENTITY_CONFIG = "<EntityConfig xmlns=\"urn:sun:fm:SAML:2.0:entityconfig\" "
+            + "entityID=\"https://sp.example.com\" hosted=\"true\">"
+            + "<SPSSOConfig metaAlias=\"/sp\">"
+            + "<Attribute name=\"wantPOSTResponseSigned\"><Value>TRUE</Value></Attribute>"
+            + "<Attribute name=\"spAdapter\"><Value>first</Value><Value>second</Value></Attribute>"
+            + "</SPSSOConfig>"
+            + "</EntityConfig>";
+
+    private SAML2EntityMetadata metadata;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        String spMetadata = XMLUtils.print(
+                XMLUtils.toDOMDocument(ClassLoader.getSystemResourceAsStream(XML_DOCUMENT_TO_LOAD),
+                        SAML2MetaUtils.debug), "UTF-8");
+        EntityDescriptorElement descriptor = SAML2MetaUtils.getEntityDescriptorElement(spMetadata);
+        EntityConfigElement config = (EntityConfigElement) SAML2MetaUtils.convertStringToJAXB(ENTITY_CONFIG);
+        metadata = new SAML2EntityMetadata(descriptor, config);
+    }
+
+    @Test
+    public void shouldLookUpAssertionConsumerServices() {
+        assertThat(metadata.isServiceProvider()).isTrue();
+        assertThat(metadata.getAssertionConsumerServiceByBinding(SAML2Constants.HTTP_POST).getLocation())
+                .isEqualTo("https://sp.example.com/acs/post");
+        assertThat(metadata.getAssertionConsumerServiceByIndex(2).getLocation())
+                .isEqualTo("https://sp.example.com/acs/post2");
+        assertThat(metadata.getAssertionConsumerServiceByIndex(3)).isNull();
+        assertThat(metadata.getDefaultAssertionConsumerService().getLocation())
+                .isEqualTo("https://sp.example.com/acs/post");
+        assertThat(metadata.getFirstAssertionConsumerService().getBinding()).isEqualTo(SAML2Constants.HTTP_ARTIFACT);
+        assertThat(metadata.getAssertionConsumerServiceBinding("https://sp.example.com/acs/artifact"))
+                .isEqualTo(SAML2Constants.HTTP_ARTIFACT);
+    }
+
+    @Test
+    public void shouldLookUpConfigurationAttributes() {
+        assertThat(metadata.getAttributeValues("sprole", "spAdapter")).containsExactly("first", "second");
+        assertThat(metadata.getAttributeValue(SAML2Constants.SP_ROLE, "spAdapter")).isEqualTo("first");
+        assertThat(metadata.getBooleanAttributeValue(SAML2Constants.SP_ROLE, "wantPOSTResponseSigned")).isTrue();
+        assertThat(metadata.getAttributeValues(SAML2Constants.SP_ROLE, "missing")).isNull();
+        assertThat(metadata.getAttributes(SAML2Constants.IDP_ROLE)).isNull();
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void shouldNotAllowChangingAttributeValues() {
+        metadata.getAttributeValues(SAML2Constants.SP_ROLE, "spAdapter").add("third");
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package com.sun.identity.saml2.meta;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import com.sun.identity.plugin.configuration.ConfigurationActionEvent;
+import org.testng.annotations.Test;
+
+public class SAML2MetaServiceListenerTest {
+
+    private final SAML2MetaServiceListener listener = new SAML2MetaServiceListener();
+
+    @Test
+    public void shouldCoalesceHeldBackNotificationsIntoOneFlushPerBatch() {
+        SAML2MetaServiceListener.suspendCacheFlush();
+        try {
+            // Given
+            long flushes = SAML2MetaServiceListener.getFlushCount();
+
+            // When
+            listener.configChanged(new Event("https://sp1.example.com"));
+            listener.configChanged(new Event("https://sp2.example.com"));
+            listener.configChanged(new Event("https://sp3.example.com"));
+
+            // Then
+            assertThat(SAML2MetaServiceListener.getFlushCount()).isEqualTo(flushes);
+            SAML2MetaServiceListener.flushHeldBack();
+            assertThat(SAML2MetaServiceListener.getFlushCount()).isEqualTo(flushes + 1);
+        } finally {
+            SAML2MetaServiceListener.resumeCacheFlush();
+        }
+    }
+
+    @Test
+    public void shouldNotFlushBatchWithoutNotifications() {
+        SAML2MetaServiceListener.suspendCacheFlush();
+        try {
+            // Given
+            SAML2MetaServiceListener.flushHeldBack();
+            long flushes = SAML2MetaServiceListener.getFlushCount();
+
+            // When
+            SAML2MetaServiceListener.flushHeldBack();
+
+            // Then
+            assertThat(SAML2MetaServiceListener.getFlushCount()).isEqualTo(flushes);
+        } finally {
+            SAML2MetaServiceListener.resumeCacheFlush();
+        }
+    }
+
+    @Test
+    public void shouldFlushOnceWhenBulkChangeEnds() {
+        // Given
+        SAML2MetaServiceListener.suspendCacheFlush();
+        listener.configChanged(new Event("https://sp1.example.com"));
+        listener.configChanged(new Event("https://sp2.example.com"));
+        long flushes = SAML2MetaServiceListener.getFlushCount();
+
+        // When
+        SAML2MetaServiceListener.resumeCacheFlush();
+
+        // Then
+        assertThat(SAML2MetaServiceListener.getFlushCount()).isEqualTo(flushes + 1);
+    }
+
+    private static final class Event implements ConfigurationActionEvent {
+        private final String name;
+
+        private Event(String name) {
+            this.name = name;
+        }
+
+        public int getType() {
+            return ADDED;
+        }
+
+        public String getConfigurationName() {
+            return name;
+        }
+
+        public String getComponentName() {
+            return "SAML2";
+        }
+
+        public String getRealm() {
+            return "/";
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package com.sun.identity.saml2.meta;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import com.sun.identity.saml2.jaxb.metadata.EntityDescriptorElement;
+import com.sun.identity.shared.xml.XMLUtils;
+import java.util.List;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+public class SAML2MetaUtilsTest {
+
+    private static final String AGGREGATE = "<md:EntitiesDescriptor "
+            + "xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" Name=\"federation\">"
+            + "<md:Extensions/>"
+            + "<md:EntityDescriptor entityID=\"https://sp1.example.com\">"
+            + "<md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+            + "<md:AssertionConsumerService index=\"0\" "
+            + "Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\" Location=\"https://sp1.example.com/acs\"/>"
+            + "</md:SPSSODescriptor>"
+            + "</md:EntityDescriptor>"
+            + "<md:EntityDescriptor entityID=\"https://sp2.example.com\">"
+            + "<md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+            + "<md:AssertionConsumerService index=\"0\" "
+            + "Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\" Location=\"https://sp2.example.com/acs\"/>"
+            + "</md:SPSSODescriptor>"
+            + "</md:EntityDescriptor>"
+            + "</md:EntitiesDescriptor>";
+
+    @Test
+    public void shouldListEachEntityOfAggregate() throws Exception {
+        // Given
+        Document doc = XMLUtils.toDOMDocument(AGGREGATE, SAML2MetaUtils.debug);
+
+        // When
+        List<Element> entities = SAML2MetaUtils.getEntityDescriptors(doc);
+
+        // Then
+        assertThat(entities).hasSize(2);
+        assertThat(entities.get(0).getAttribute("entityID")).isEqualTo("https://sp1.example.com");
+        assertThat(entities.get(1).getAttribute("entityID")).isEqualTo("https://sp2.example.com");
+    }
+
+    @Test
+    public void shouldConvertEntityUsingPrefixDeclaredOnAggregate() throws Exception {
+        // Given
+        Document doc = XMLUtils.toDOMDocument(AGGREGATE, SAML2MetaUtils.debug);
+
+        // When
+        Element entity = SAML2MetaUtils.getEntityDescriptors(doc).get(1);
+
+        // Then
+        EntityDescriptorElement descriptor = (EntityDescriptorElement) SAML2MetaUtils.convertNodeToJAXB(entity);
+        assertThat(descriptor.getEntityID()).isEqualTo("https://sp2.example.com");
+        assertThat(descriptor.getRoleDescriptorOrIDPSSODescriptorOrSPSSODescriptor()).hasSize(1);
+    }
+
+    @Test
+    public void shouldMakeEntityOfAggregateStandalone() throws Exception {
+        // Given
+        Document doc = XMLUtils.toDOMDocument(AGGREGATE, SAML2MetaUtils.debug);
+        Element entity = SAML2MetaUtils.getEntityDescriptors(doc).get(0);
+
+        // When
+        EntityDescriptorElement descriptor =
+                SAML2MetaUtils.getEntityDescriptorElement(XMLUtils.print(entity, "UTF-8"));
+
+        // Then
+        assertThat(descriptor.getEntityID()).isEqualTo("https://sp1.example.com");
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+
+package com.sun.identity.saml2.xmlenc;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import com.sun.identity.saml.xmlsig.KeyProvider;
+import com.sun.identity.saml2.common.SAML2Constants;
+import com.sun.identity.shared.xml.XMLUtils;
+import com.sun.org.apache.xml.internal.security.encryption.XMLCipher;
+import java.security.PublicKey;
+import javax.crypto.SecretKey;
+import org.forgerock.openam.utils.AMKeyProvider;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+public class FMEncProviderTest {
+
+    private static final String DEFAULT_PRIVATE_KEY_ALIAS = "defaultkey";
+    private static final long KEY_TIMEOUT = 3600 * 1000;
+    private static final String NAME_ID = "<saml:NameID xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\">"
+            + "demo</saml:NameID>";
+
+    private KeyProvider keyProvider;
+    private FMEncProvider encProvider;
+
+    @BeforeMethod
+    public void setUp() {
+        // The keystore properties required to bootstrap this class are setup in the POM
+        keyProvider = new AMKeyProvider();
+        encProvider = new FMEncProvider();
+    }
+
+    @Test
+    public void shouldReuseSecretKeyOfRecipient() throws Exception {
+        // When
+        Element first = encrypt(XMLCipher.AES_128, 128, "http://sp1.example.com");
+        Element second = encrypt(XMLCipher.AES_128, 128, "http://sp1.example.com");
+
+        // Then
+        assertThat(getSecretKey(second)).isEqualTo(getSecretKey(first));
+        assertThat(decrypt(second).getTextContent()).isEqualTo("demo");
+    }
+
+    @Test
+    public void shouldNotReuseSecretKeyForAnotherAlgorithm() throws Exception {
+        // When
+        Element first = encrypt(XMLCipher.AES_128, 128, "http://sp2.example.com");
+        Element second = encrypt(XMLCipher.TRIPLEDES, 168, "http://sp2.example.com");
+
+        // Then
+        assertThat(getSecretKey(second)).isNotEqualTo(getSecretKey(first));
+        assertThat(getSecretKey(second).getEncoded()).hasSize(24);
+        assertThat(decrypt(second).getTextContent()).isEqualTo("demo");
+    }
+
+    @Test
+    public void shouldNotCacheSecretKeyWithoutRecipient() throws Exception {
+        // When
+        Element first = encrypt(XMLCipher.AES_128, 128, null);
+        Element second = encrypt(XMLCipher.AES_128, 128, null);
+
+        // Then
+        assertThat(getSecretKey(second)).isNotEqualTo(getSecretKey(first));
+        assertThat(decrypt(first).getTextContent()).isEqualTo("demo");
+    }
+
+    @Test
+    public void shouldEncryptReusedSecretKeyForEachElementByDefault() throws Exception {
+        // When
+        Element first = encrypt(XMLCipher.AES_128, 128, "http://sp3.example.com");
+        Element second = encrypt(XMLCipher.AES_128, 128, "http://sp3.example.com");
+
+        // Then
+        assertThat(getSecretKey(second)).isEqualTo(getSecretKey(first));
+        assertThat(getEncryptedKeyValue(second)).isNotEqualTo(getEncryptedKeyValue(first));
+    }
+
+    @Test
+    public void shouldReuseEncryptedKeyOfRecipient() throws Exception {
+        // Given
+        encProvider = new FMEncProvider(true, KEY_TIMEOUT);
+
+        // When
+        Element first = encrypt(XMLCipher.AES_128, 128, "http://sp4.example.com");
+        Element second = encrypt(XMLCipher.AES_128, 128, "http://sp4.example.com");
+
+        // Then
+        assertThat(getEncryptedKeyValue(second)).isEqualTo(getEncryptedKeyValue(first));
+        assertThat(getSecretKey(second)).isEqualTo(getSecretKey(first));
+        assertThat(decrypt(first).getTextContent()).isEqualTo("demo");
+        assertThat(decrypt(second).getTextContent()).isEqualTo("demo");
+    }
+
+    @Test
+    public void shouldReplaceSecretKeyOnceTimedOut() throws Exception {
+        // Given
+        encProvider = new FMEncProvider(true, 0);
+
+        // When
+        Element first = encrypt(XMLCipher.AES_128, 128, "http://sp5.example.com");
+        Element second = encrypt(XMLCipher.AES_128, 128, "http://sp5.example.com");
+
+        // Then
+        assertThat(getSecretKey(second)).isNotEqualTo(getSecretKey(first));
+        assertThat(getEncryptedKeyValue(second)).isNotEqualTo(getEncryptedKeyValue(first));
+        assertThat(decrypt(second).getTextContent()).isEqualTo("demo");
+    }
+
+    /**
+     * Measures the throughput of encrypting an assertion, with the secret key generated for every assertion, with
+     * the secret key of the recipient reused, and with the encrypted key of the recipient reused as well.
+     *
+     * @param args none.
+     */
+    public static void main(String[] args) throws Exception {
+        FMEncProviderTest test = new FMEncProviderTest();
+        test.setUp();
+        String assertion = "<saml:Assertion xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"s2a\" "
+                + "Version=\"2.0\" IssueInstant=\"2015-01-01T00:00:00Z\"><saml:Issuer>http://idp.example.com"
+                + "</saml:Issuer><saml:Subject>" + NAME_ID + "</saml:Subject></saml:Assertion>";
+        PublicKey publicKey = test.keyProvider.getX509Certificate(DEFAULT_PRIVATE_KEY_ALIAS).getPublicKey();
+        int iterations = 2000;
+
+        String[] names = { "New key per assertion: ", "Reused key: ", "Reused key and EncryptedKey: " };
+        String[] recipients = { null, "http://sp.example.com", "http://sp-reuse.example.com" };
+        FMEncProvider[] providers = { new FMEncProvider(false, KEY_TIMEOUT), new FMEncProvider(false, KEY_TIMEOUT),
+                new FMEncProvider(true, KEY_TIMEOUT) };
+        for (int run = 0; run < names.length; run++) {
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < iterations; i++) {
+                providers[run].encrypt(assertion, publicKey, XMLCipher.AES_128, 128, recipients[run],
+                        "EncryptedAssertion");
+            }
+            long delta = System.currentTimeMillis() - start;
+            System.out.println(names[run] + (iterations * 1000L / Math.max(delta, 1)) + " assertions/s");
+        }
+    }
+
+    private Element encrypt(String algorithm, int strength, String recipient) throws Exception {
+        return encProvider.encrypt(NAME_ID, keyProvider.getX509Certificate(DEFAULT_PRIVATE_KEY_ALIAS).getPublicKey(),
+                algorithm, strength, recipient, "EncryptedID");
+    }
+
+    private SecretKey getSecretKey(Element encrypted) throws Exception {
+        return encProvider.getSecretKey(XMLUtils.print(encrypted),
+                keyProvider.getPrivateKey(DEFAULT_PRIVATE_KEY_ALIAS));
+    }
+
+    private String getEncryptedKeyValue(Element encrypted) {
+        Element encryptedKey = (Element) encrypted.getElementsByTagNameNS(SAML2Constants.NS_XMLENC, "EncryptedKey")
+                .item(0);
+        return encryptedKey.getElementsByTagNameNS(SAML2Constants.NS_XMLENC, "CipherValue").item(0).getTextContent();
+    }
+
+    private Element decrypt(Element encrypted) throws Exception {
+        return encProvider.decrypt(XMLUtils.print(encrypted), keyProvider.getPrivateKey(DEFAULT_PRIVATE_KEY_ALIAS));
+    }
+}
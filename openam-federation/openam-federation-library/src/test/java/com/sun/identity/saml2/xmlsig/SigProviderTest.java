@@ -11,15 +11,23 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2013-2014 ForgeRock AS.
+ * Copyright 2013-2015 ForgeRock AS.
  */
 
 package com.sun.identity.saml2.xmlsig;
 
 
 import com.sun.identity.saml.xmlsig.KeyProvider;
+import com.sun.identity.saml2.assertion.Assertion;
+import com.sun.identity.saml2.assertion.AssertionFactory;
+import com.sun.identity.saml2.assertion.Issuer;
+import com.sun.identity.saml2.common.SAML2Constants;
 import com.sun.identity.saml2.common.SAML2Exception;
 import com.sun.identity.saml2.common.SAML2Utils;
+import com.sun.identity.saml2.protocol.ProtocolFactory;
+import com.sun.identity.saml2.protocol.Response;
+import com.sun.identity.saml2.protocol.Status;
+import com.sun.identity.saml2.protocol.StatusCode;
 import com.sun.identity.shared.xml.XMLUtils;
 import org.forgerock.openam.utils.AMKeyProvider;
 import org.testng.Assert;
@@ -28,6 +36,12 @@ import org.testng.annotations.Test;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
 public class SigProviderTest {
 
     private static final String DEFAULT_PRIVATE_KEY_ALIAS = "defaultkey";
@@ -87,4 +101,54 @@ public class SigProviderTest {
         }
         Assert.assertTrue(verified);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testSigningResponseWithSignedAssertion() throws Exception {
+
+        PrivateKey privateKey = keyProvider.getPrivateKey(DEFAULT_PRIVATE_KEY_ALIAS);
+        X509Certificate cert = keyProvider.getX509Certificate(DEFAULT_PRIVATE_KEY_ALIAS);
+        AssertionFactory assertionFactory = AssertionFactory.getInstance();
+        ProtocolFactory protocolFactory = ProtocolFactory.getInstance();
+
+        Assertion assertion = assertionFactory.createAssertion();
+        assertion.setID("signedassertion");
+        assertion.setVersion(SAML2Constants.VERSION_2_0);
+        assertion.setIssueInstant(new Date());
+        assertion.setIssuer(createIssuer());
+        assertion.sign(privateKey, cert);
+
+        StatusCode statusCode = protocolFactory.createStatusCode();
+        statusCode.setValue(SAML2Constants.SUCCESS);
+        Status status = protocolFactory.createStatus();
+        status.setStatusCode(statusCode);
+        List<Assertion> assertions = new ArrayList<Assertion>();
+        assertions.add(assertion);
+
+        Response response = protocolFactory.createResponse();
+        response.setID("signedresponse");
+        response.setVersion(SAML2Constants.VERSION_2_0);
+        response.setIssueInstant(new Date());
+        response.setIssuer(createIssuer());
+        response.setStatus(status);
+        response.setAssertion(assertions);
+
+        // The default provider signs the Response on the DOM, importing the signed Assertion
+        Assert.assertTrue(sigProvider instanceof DOMSigProvider);
+        response.sign(privateKey, cert);
+
+        // Verify both signatures the way a service provider would
+        Response received = protocolFactory.createResponse(response.toXMLString(true, true));
+        Assert.assertTrue(received.isSigned());
+        Assert.assertTrue(received.isSignatureValid(cert));
+        Assert.assertEquals(received.getAssertion().size(), 1);
+        Assertion receivedAssertion = (Assertion) received.getAssertion().get(0);
+        Assert.assertTrue(receivedAssertion.isSigned());
+        Assert.assertTrue(receivedAssertion.isSignatureValid(cert));
+    }
+
+    private Issuer createIssuer() throws SAML2Exception {
+        Issuer issuer = AssertionFactory.getInstance().createIssuer();
+        issuer.setValue("http://idp.example.com");
+        return issuer;
+    }
+}
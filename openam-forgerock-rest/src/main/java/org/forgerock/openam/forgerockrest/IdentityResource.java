@@ -20,10 +20,13 @@ import java.net.HttpURLConnection;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentHashMap;
 
 import com.sun.identity.sm.SMSException;
@@ -1074,29 +1077,88 @@ public final class IdentityResource implements CollectionResourceProvider {
         Token admin = new Token();
         admin.setId(getCookieFromServerContext(context));
 
+        // getQueryFilter() is not implemented yet, the query id is used as the pattern the user names need to match
+        String queryFilter = request.getQueryId();
+        if (queryFilter == null || queryFilter.isEmpty()) {
+            queryFilter = "*";
+        }
 
-        String queryFilter;
-
+        List<String> users;
         try {
-            // This will only return 1 user..
-            // getQueryFilter() is not implemented yet..returns dummy false value
-            queryFilter = request.getQueryId();
-            if (queryFilter == null || queryFilter.isEmpty()) {
-                queryFilter = "*";
-            }
             IdentityServicesImpl id = new IdentityServicesImpl();
-            List<String> users = id.search(queryFilter, idSvcsAttrList, admin);
+            users = id.search(queryFilter, idSvcsAttrList, admin);
+        } catch (final TokenExpired tokenExpired) {
+            RestDispatcher.debug.error("IdentityResource.queryCollection() :: Cannot query " + queryFilter + ":"
+                    + tokenExpired);
+            handler.handleError(new PermanentException(401, "Unauthorized", null));
+            return;
+        } catch (final Exception ex) {
+            RestDispatcher.debug.error("IdentityResource.queryCollection() :: Cannot query " + queryFilter + ":" + ex);
+            handler.handleError(new InternalServerErrorException(ex.getMessage(), ex));
+            return;
+        }
 
-            for (final String user : users) {
-                JsonValue val = new JsonValue(user);
-                Resource resource = new Resource(user, "0", val);
-                handler.handleResource(resource);
-            }
-        } catch (Exception ex) {
+        handler.handleResult(handlePage(users, request.getPagedResultsCookie(), request.getPageSize(), handler));
+    }
+
+    /**
+     * The order in which user names are returned: case insensitive, with names differing only in case in their
+     * natural order, so that every name has a single position.
+     */
+    static final Comparator<String> USER_ORDER = new Comparator<String>() {
+        public int compare(String first, String second) {
+            int result = String.CASE_INSENSITIVE_ORDER.compare(first, second);
+            return result != 0 ? result : first.compareTo(second);
+        }
+    };
 
+    /**
+     * Hands the page of user names following the paged results cookie to the handler, in {@link #USER_ORDER}.
+     * <p/>
+     * The cookie is the last name of the previous page, so a page stays in place when names are added or removed
+     * before it. Only the names of the page are kept in order, rather than sorting every name for each page.
+     *
+     * @param users The user names matching the query.
+     * @param cookie The last name of the previous page, or null or empty for the first page.
+     * @param pageSize The number of names in a page, or 0 to return all the names after the cookie.
+     * @param handler The handler the names are handed to.
+     * @return The result of the query, with the cookie for the next page and the number of remaining names if paged.
+     */
+    static QueryResult handlePage(List<String> users, String cookie, int pageSize, QueryResultHandler handler) {
+        String after = cookie == null || cookie.isEmpty() ? null : cookie;
+        int following = 0;
+        // Holds the first pageSize names after the cookie, largest at the head.
+        PriorityQueue<String> page =
+                new PriorityQueue<String>(Math.max(1, pageSize), Collections.reverseOrder(USER_ORDER));
+        List<String> all = new ArrayList<String>();
+        for (String user : users) {
+            if (after != null && USER_ORDER.compare(user, after) <= 0) {
+                continue;
+            }
+            following++;
+            if (pageSize <= 0) {
+                all.add(user);
+            } else if (page.size() < pageSize) {
+                page.add(user);
+            } else if (USER_ORDER.compare(user, page.peek()) < 0) {
+                page.poll();
+                page.add(user);
+            }
         }
 
-        handler.handleResult(new QueryResult());
+        if (pageSize > 0) {
+            all.addAll(page);
+        }
+        Collections.sort(all, USER_ORDER);
+        for (String user : all) {
+            handler.handleResource(new Resource(user, "0", new JsonValue(user)));
+        }
+        if (pageSize <= 0) {
+            return new QueryResult();
+        }
+        int remaining = following - all.size();
+        String nextCookie = remaining > 0 ? all.get(all.size() - 1) : null;
+        return new QueryResult(nextCookie, remaining);
     }
 
     /**
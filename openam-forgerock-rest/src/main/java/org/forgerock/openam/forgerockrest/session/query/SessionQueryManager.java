@@ -1,5 +1,5 @@
 /**
- * Copyright 2013 ForgeRock, Inc.
+ * Copyright 2013-2015 ForgeRock, Inc.
  *
  * The contents of this file are subject to the terms of the Common Development and
  * Distribution License (the License). You may not use this file except in compliance with the
@@ -15,19 +15,29 @@
  */
 package org.forgerock.openam.forgerockrest.session.query;
 
+import com.iplanet.am.util.SystemProperties;
 import com.iplanet.dpro.session.share.SessionInfo;
+import com.sun.identity.session.util.RestrictedTokenAction;
+import com.sun.identity.session.util.RestrictedTokenContext;
+import com.sun.identity.shared.Constants;
 import com.sun.identity.shared.debug.Debug;
+import org.forgerock.openam.shared.concurrency.ScatterGather;
 
 import java.text.MessageFormat;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Provides the ability to query a collection of OpenAM servers for Session information. Uses the
  * SessionQueryFactory to determine the most appropriate mechanism for performing the query and handles any
  * complexity around querying Sessions.
  *
+ * The servers are queried concurrently. Servers which fail, or do not answer within the session peer query timeout,
+ * are left out of the results.
+ *
  * This manager should easily be expanded to support new functions like 'Session Count' or 'Get Sessions for User'.
  *
  * @author robert.wapshott@forgerock.com
@@ -36,7 +46,12 @@ public class SessionQueryManager {
 
     private static Debug debug = Debug.getInstance("frRest");
 
+    private static final ScatterGather SERVER_QUERIES = new ScatterGather("SessionQueryManager",
+            SystemProperties.getAsInt(Constants.SESSION_PEER_QUERY_THREADS, 16), debug);
+
     private SessionQueryFactory queryFactory;
+    private final ScatterGather serverQueries;
+    private final long timeout;
 
     /**
      * Intialise the SessionQueryManager and provide the OpenAM server ids that it should apply to.
@@ -45,7 +60,20 @@ public class SessionQueryManager {
      *
      */
     public SessionQueryManager(SessionQueryFactory queryFactory) {
+        this(queryFactory, SERVER_QUERIES, SystemProperties.getAsInt(Constants.SESSION_PEER_QUERY_TIMEOUT, 5000));
+    }
+
+    /**
+     * Intialise the SessionQueryManager with the means of querying the servers concurrently.
+     *
+     * @param queryFactory Non null instance.
+     * @param serverQueries Non null instance used to query the servers.
+     * @param timeout Milliseconds to wait for the servers to answer.
+     */
+    public SessionQueryManager(SessionQueryFactory queryFactory, ScatterGather serverQueries, long timeout) {
         this.queryFactory = queryFactory;
+        this.serverQueries = serverQueries;
+        this.timeout = timeout;
     }
 
     /**
@@ -55,23 +83,37 @@ public class SessionQueryManager {
      *                  {@link com.iplanet.services.naming.WebtopNaming#getAllServerIDs()} which will provide all
      *                  server id's known to OpenAM.
      *
-     * @return Returns all sessions across all servers.
+     * @return Returns all sessions across all servers which answered in time.
      */
     public Collection<SessionInfo> getAllSessions(Collection<String> serverIds) {
         // impl note, this could be a Map of Server -> Sessions
 
-        List<SessionInfo> sessions = new LinkedList<SessionInfo>();
+        // The restricted token context is held by the calling thread
+        final Object context = RestrictedTokenContext.getCurrent();
 
-        for (String server : serverIds) {
-            SessionQueryType queryType = queryFactory.getSessionQueryType(server);
+        Map<String, Collection<SessionInfo>> answers = serverQueries.gather(serverIds,
+                new ScatterGather.Query<String, Collection<SessionInfo>>() {
+                    public Collection<SessionInfo> query(String server) throws Exception {
+                        final SessionQueryType queryType = queryFactory.getSessionQueryType(server);
+                        return (Collection<SessionInfo>) RestrictedTokenContext.doUsing(context,
+                                new RestrictedTokenAction() {
+                                    public Object run() {
+                                        return queryType.getAllSessions();
+                                    }
+                                });
+                    }
+                }, timeout, TimeUnit.MILLISECONDS);
+
+        List<SessionInfo> sessions = new LinkedList<SessionInfo>();
 
-            Collection<SessionInfo> queriedSessions = queryType.getAllSessions();
+        for (Map.Entry<String, Collection<SessionInfo>> answer : answers.entrySet()) {
+            Collection<SessionInfo> queriedSessions = answer.getValue();
 
             if (debug.messageEnabled()) {
                 debug.message(MessageFormat.format(
                         "SessionQueryManager#getAllSessions() :: Queried {0} from: {1}",
                         queriedSessions.size(),
-                        server));
+                        answer.getKey()));
             }
 
             sessions.addAll(queriedSessions);
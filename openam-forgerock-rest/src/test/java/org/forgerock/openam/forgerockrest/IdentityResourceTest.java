@@ -0,0 +1,168 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.forgerockrest;
+
+import org.forgerock.json.resource.QueryResult;
+import org.forgerock.json.resource.QueryResultHandler;
+import org.forgerock.json.resource.Resource;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.BDDMockito.mock;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class IdentityResourceTest {
+
+    private QueryResultHandler handler;
+
+    @BeforeMethod
+    public void setUp() {
+        handler = mock(QueryResultHandler.class);
+    }
+
+    @Test
+    public void shouldReturnFirstPageInCaseInsensitiveOrder() {
+        // Given
+        List<String> users = users("charlie", "Alice", "bob", "dave", "Eve");
+
+        // When
+        QueryResult result = IdentityResource.handlePage(users, null, 2, handler);
+
+        // Then
+        assertThat(handledUsers()).containsExactly("Alice", "bob");
+        assertThat(result.getPagedResultsCookie()).isEqualTo("bob");
+        assertThat(result.getRemainingPagedResults()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldReturnPageAfterCookie() {
+        // Given
+        List<String> users = users("charlie", "Alice", "bob", "dave", "Eve");
+
+        // When
+        QueryResult result = IdentityResource.handlePage(users, "bob", 2, handler);
+
+        // Then
+        assertThat(handledUsers()).containsExactly("charlie", "dave");
+        assertThat(result.getPagedResultsCookie()).isEqualTo("dave");
+        assertThat(result.getRemainingPagedResults()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotReturnCookieWithLastPage() {
+        // Given
+        List<String> users = users("charlie", "Alice", "bob", "dave", "Eve");
+
+        // When
+        QueryResult result = IdentityResource.handlePage(users, "dave", 2, handler);
+
+        // Then
+        assertThat(handledUsers()).containsExactly("Eve");
+        assertThat(result.getPagedResultsCookie()).isNull();
+        assertThat(result.getRemainingPagedResults()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotReturnCookieWhenLastPageIsFull() {
+        // Given
+        List<String> users = users("charlie", "Alice", "bob", "dave");
+
+        // When
+        QueryResult result = IdentityResource.handlePage(users, "bob", 2, handler);
+
+        // Then
+        assertThat(handledUsers()).containsExactly("charlie", "dave");
+        assertThat(result.getPagedResultsCookie()).isNull();
+        assertThat(result.getRemainingPagedResults()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldReturnNothingForCookiePastLastUser() {
+        // Given
+        List<String> users = users("Alice", "bob");
+
+        // When
+        QueryResult result = IdentityResource.handlePage(users, "zebra", 2, handler);
+
+        // Then
+        verify(handler, never()).handleResource(any(Resource.class));
+        assertThat(result.getPagedResultsCookie()).isNull();
+        assertThat(result.getRemainingPagedResults()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldReturnAllUsersWhenNotPaged() {
+        // Given
+        List<String> users = users("charlie", "Alice", "bob");
+
+        // When
+        QueryResult result = IdentityResource.handlePage(users, null, 0, handler);
+
+        // Then
+        assertThat(handledUsers()).containsExactly("Alice", "bob", "charlie");
+        assertThat(result.getPagedResultsCookie()).isNull();
+        assertThat(result.getRemainingPagedResults()).isEqualTo(-1);
+    }
+
+    @Test
+    public void shouldKeepPagePositionWhenEarlierUserIsAdded() {
+        // Given
+        List<String> users = users("charlie", "Alice", "bob", "dave", "Eve");
+        users.add("aaron");
+
+        // When
+        IdentityResource.handlePage(users, "bob", 2, handler);
+
+        // Then
+        assertThat(handledUsers()).containsExactly("charlie", "dave");
+    }
+
+    @Test
+    public void shouldOrderNamesDifferingOnlyInCase() {
+        // Given
+        List<String> users = users("bob", "Bob", "alice");
+
+        // When
+        QueryResult result = IdentityResource.handlePage(users, "Bob", 2, handler);
+
+        // Then
+        assertThat(handledUsers()).containsExactly("bob");
+        assertThat(result.getRemainingPagedResults()).isEqualTo(0);
+    }
+
+    private static List<String> users(String... names) {
+        return new ArrayList<String>(Arrays.asList(names));
+    }
+
+    private List<String> handledUsers() {
+        ArgumentCaptor<Resource> captor = ArgumentCaptor.forClass(Resource.class);
+        verify(handler, atLeast(1)).handleResource(captor.capture());
+        List<String> ids = new ArrayList<String>();
+        for (Resource resource : captor.getAllValues()) {
+            ids.add(resource.getId());
+        }
+        return ids;
+    }
+}
@@ -1,5 +1,5 @@
 /**
- * Copyright 2013 ForgeRock, Inc.
+ * Copyright 2013-2015 ForgeRock, Inc.
  *
  * The contents of this file are subject to the terms of the Common Development and
  * Distribution License (the License). You may not use this file except in compliance with the
@@ -16,6 +16,8 @@
 package org.forgerock.openam.forgerockrest.session.query;
 
 import com.iplanet.dpro.session.share.SessionInfo;
+import com.sun.identity.shared.debug.Debug;
+import org.forgerock.openam.shared.concurrency.ScatterGather;
 import org.mockito.ArgumentCaptor;
 import org.testng.annotations.Test;
 
@@ -23,6 +25,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Executors;
 
 import static org.mockito.BDDMockito.given;
 import static org.mockito.BDDMockito.mock;
@@ -106,4 +109,30 @@ public class SessionQueryManagerTest {
         assertTrue(sessions.contains(one));
         assertTrue(sessions.contains(two));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldLeaveOutServersWhichFail() {
+        // Given
+        SessionInfo one = mock(SessionInfo.class);
+
+        SessionQueryType typeOne = mock(SessionQueryType.class);
+        given(typeOne.getAllSessions()).willReturn(Arrays.asList(new SessionInfo[]{one}));
+        SessionQueryType typeTwo = mock(SessionQueryType.class);
+        given(typeTwo.getAllSessions()).willThrow(new IllegalStateException("unreachable"));
+
+        SessionQueryFactory mockFactory = mock(SessionQueryFactory.class);
+        given(mockFactory.getSessionQueryType("badger")).willReturn(typeOne);
+        given(mockFactory.getSessionQueryType("weasel")).willReturn(typeTwo);
+
+        ScatterGather serverQueries = new ScatterGather(Executors.newFixedThreadPool(2), mock(Debug.class));
+        SessionQueryManager manager = new SessionQueryManager(mockFactory, serverQueries, 5000);
+
+        // When
+        Collection<SessionInfo> sessions = manager.getAllSessions(Arrays.asList(new String[]{"badger", "weasel"}));
+
+        // Then
+        serverQueries.shutdown();
+        assertEquals(1, sessions.size());
+        assertTrue(sessions.contains(one));
+    }
+}
@@ -1,7 +1,7 @@
 /*
  * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
  *
- * Copyright (c) 2012-2013 ForgeRock AS All rights reserved.
+ * Copyright (c) 2012-2015 ForgeRock AS All rights reserved.
  *
  * The contents of this file are subject to the terms
  * of the Common Development and Distribution License
@@ -24,7 +24,6 @@
 
 package org.forgerock.openam.oauth2.model;
 
-import com.sun.identity.idm.AMIdentity;
 import com.sun.identity.shared.OAuth2Constants;
 import org.forgerock.json.fluent.JsonValue;
 import org.forgerock.json.jose.builders.JwtBuilderFactory;
@@ -36,7 +35,6 @@ import org.forgerock.json.jose.jws.JwsHeader;
 import org.forgerock.json.jose.jws.SignedJwt;
 import org.forgerock.json.jose.jwt.JwtClaimsSet;
 import org.forgerock.openam.oauth2.exceptions.OAuthProblemException;
-import org.forgerock.openam.oauth2.model.impl.ClientApplicationImpl;
 import org.forgerock.openam.oauth2.provider.OAuth2ProviderSettings;
 import org.forgerock.openam.oauth2.utils.OAuth2Utils;
 import org.restlet.Request;
@@ -56,6 +54,11 @@ public class JWTToken extends CoreToken implements Token {
     private JwtBuilderFactory jwtBuilderFactory = new JwtBuilderFactory();
     private static ResourceBundle rb = ResourceBundle.getBundle("OAuth2CoreToken");
 
+    // The token is signed once per signing key, and serialized once per signature
+    private PrivateKey signingKey;
+    private SignedJwt signedJwt;
+    private String serializedJwt;
+
     /**
      *  Constructs a JWT token
      * @param iss issuer of the response
@@ -85,10 +88,29 @@ public class JWTToken extends CoreToken implements Token {
         jwtClaimsSet = jwtBuilderFactory.claims().claims(asMap()).build();
     }
 
-    public SignedJwt sign(PrivateKey pk) throws SignatureException {
+    /**
+     * Signs the token. The token is only signed again if a different key is given.
+     *
+     * @param pk The key to sign the token with.
+     * @return The signed token.
+     * @throws SignatureException If the client's signing algorithm is unknown.
+     */
+    public synchronized SignedJwt sign(PrivateKey pk) throws SignatureException {
+        if (signedJwt == null || signingKey != pk) {
+            signedJwt = newSignedJwt(pk);
+            signingKey = pk;
+            serializedJwt = null;
+        }
+        return signedJwt;
+    }
+
+    private SignedJwt newSignedJwt(PrivateKey pk) throws SignatureException {
         String clientID = getClientID();
-        AMIdentity id = OAuth2Utils.getClientIdentity(clientID, getRealm());
-        ClientApplication clientApplication = new ClientApplicationImpl(id);
+        ClientApplication clientApplication = OAuth2Utils.getClientApplication(clientID, getRealm());
+        if (clientApplication == null) {
+            OAuth2Utils.DEBUG.error("JWTToken.sign()::Client is not active: " + clientID);
+            throw new SignatureException();
+        }
         String algorithm = clientApplication.getIDTokenSignedResponseAlgorithm();
         JwsAlgorithm jwsAlgorithm = JwsAlgorithm.getJwsAlgorithm(algorithm);
         if (jwsAlgorithm == null){
@@ -101,6 +123,21 @@ public class JWTToken extends CoreToken implements Token {
         return new SignedJwt(header, jwtClaimsSet, pk);
     }
 
+    /**
+     * Signs and serializes the token. The previous serialization is reused if the key is unchanged.
+     *
+     * @param pk The key to sign the token with.
+     * @return The serialized signed token.
+     * @throws SignatureException If the client's signing algorithm is unknown.
+     */
+    public synchronized String signAndBuild(PrivateKey pk) throws SignatureException {
+        SignedJwt jwt = sign(pk);
+        if (serializedJwt == null) {
+            serializedJwt = jwt.build();
+        }
+        return serializedJwt;
+    }
+
     public EncryptedJwt encrypt(PublicKey pk, JweAlgorithm alg, EncryptionMethod enc) throws SignatureException {
         return jwtBuilderFactory.jwe(pk)
                 .headers()
@@ -160,7 +197,7 @@ public class JWTToken extends CoreToken implements Token {
     public String getTokenID(){
         String s = null;
         try {
-            s = this.sign(OAuth2Utils.getServerKeyPair(Request.getCurrent()).getPrivate()).build();
+            s = signAndBuild(OAuth2Utils.getServerKeyPair(Request.getCurrent()).getPrivate());
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Cant get JWT id", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
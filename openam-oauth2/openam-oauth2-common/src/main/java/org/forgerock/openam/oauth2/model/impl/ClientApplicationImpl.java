@@ -2,7 +2,7 @@
 /*
  * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
  *
- * Copyright (c) 2012-2013 ForgeRock AS. All rights reserved.
+ * Copyright (c) 2012-2015 ForgeRock AS. All rights reserved.
  *
  * The contents of this file are subject to the terms
  * of the Common Development and Distribution License
@@ -25,7 +25,9 @@
 
 package org.forgerock.openam.oauth2.model.impl;
 
+import com.iplanet.sso.SSOException;
 import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.idm.IdRepoException;
 import com.sun.identity.shared.OAuth2Constants;
 import org.forgerock.openam.oauth2.exceptions.OAuthProblemException;
 import org.forgerock.openam.oauth2.model.ClientApplication;
@@ -34,6 +36,7 @@ import org.restlet.Request;
 
 import java.net.URI;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -45,9 +48,28 @@ public class ClientApplicationImpl implements ClientApplication{
     private static final String TOKEN_TYPE = "com.forgerock.openam.oauth2provider.tokenType";
 
     AMIdentity id = null;
+    private final Map<String, Set<String>> attributes;
 
     public ClientApplicationImpl(AMIdentity id) {
+        this(id, null);
+    }
+
+    /**
+     * Creates a client application whose attributes have already been read from the repository.
+     *
+     * @param id The identity of the client.
+     * @param attributes The attributes of the client, or null to read them from the repository as needed.
+     */
+    public ClientApplicationImpl(AMIdentity id, Map<String, Set<String>> attributes) {
         this.id = id;
+        this.attributes = attributes;
+    }
+
+    private Set<String> getAttribute(String name) throws IdRepoException, SSOException {
+        if (attributes != null) {
+            return attributes.get(name);
+        }
+        return id.getAttribute(name);
     }
 
     /**
@@ -63,7 +85,7 @@ public class ClientApplicationImpl implements ClientApplication{
     public ClientType getClientType(){
         ClientType clientType = null;
         try {
-            Set<String> clientTypeSet = id.getAttribute(OAuth2Constants.OAuth2Client.CLIENT_TYPE);
+            Set<String> clientTypeSet = getAttribute(OAuth2Constants.OAuth2Client.CLIENT_TYPE);
             if (clientTypeSet.iterator().next().equalsIgnoreCase("CONFIDENTIAL")){
                 clientType = ClientType.CONFIDENTIAL;
             } else {
@@ -83,7 +105,7 @@ public class ClientApplicationImpl implements ClientApplication{
     public Set<URI> getRedirectionURIs(){
         Set<URI> redirectionURIs = null;
         try {
-            Set<String> redirectionURIsSet = id.getAttribute(OAuth2Constants.OAuth2Client.REDIRECT_URI);
+            Set<String> redirectionURIsSet = getAttribute(OAuth2Constants.OAuth2Client.REDIRECT_URI);
             redirectionURIsSet = convertAttributeValues(redirectionURIsSet);
             redirectionURIs = new HashSet<URI>();
             for (String uri : redirectionURIsSet){
@@ -104,7 +126,7 @@ public class ClientApplicationImpl implements ClientApplication{
         /*
         Set<String> tokenTypesSet = null;
         try {
-            tokenTypesSet = id.getAttribute(TOKEN_TYPE);
+            tokenTypesSet = getAttribute(TOKEN_TYPE);
         } catch (Exception e){
             OAuth2Utils.debug.error("Unable to get access token type from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -128,7 +150,7 @@ public class ClientApplicationImpl implements ClientApplication{
     public Set<String> getAllowedGrantScopes(){
         Set<String> scopes = null;
         try {
-            scopes = id.getAttribute(OAuth2Constants.OAuth2Client.SCOPES);
+            scopes = getAttribute(OAuth2Constants.OAuth2Client.SCOPES);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.SCOPES +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -143,7 +165,7 @@ public class ClientApplicationImpl implements ClientApplication{
     public Set<String> getDefaultGrantScopes(){
         Set<String> scopes = null;
         try {
-            scopes = id.getAttribute(OAuth2Constants.OAuth2Client.DEFAULT_SCOPES);
+            scopes = getAttribute(OAuth2Constants.OAuth2Client.DEFAULT_SCOPES);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.DEFAULT_SCOPES +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -159,7 +181,7 @@ public class ClientApplicationImpl implements ClientApplication{
         Set<String> autoGrantSet = null;
         boolean grant = false;
         try {
-            autoGrantSet = id.getAttribute(AUTO_GRANT);
+            autoGrantSet = getAttribute(AUTO_GRANT);
             grant = Boolean.parseBoolean(autoGrantSet.iterator().next());
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ AUTO_GRANT +" from repository", e);
@@ -175,7 +197,7 @@ public class ClientApplicationImpl implements ClientApplication{
     public Set<String> getDisplayName(){
         Set<String> displayName = null;
         try {
-            displayName = id.getAttribute(OAuth2Constants.OAuth2Client.NAME);
+            displayName = getAttribute(OAuth2Constants.OAuth2Client.NAME);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.RESPONSE_TYPES +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -190,7 +212,7 @@ public class ClientApplicationImpl implements ClientApplication{
     public Set<String> getDisplayDescription(){
         Set<String> displayDescription = null;
         try {
-            displayDescription = id.getAttribute(OAuth2Constants.OAuth2Client.DESCRIPTION);
+            displayDescription = getAttribute(OAuth2Constants.OAuth2Client.DESCRIPTION);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.RESPONSE_TYPES +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -206,7 +228,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.RESPONSE_TYPES);
+            set = getAttribute(OAuth2Constants.OAuth2Client.RESPONSE_TYPES);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.RESPONSE_TYPES +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -223,7 +245,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.GRANT_TYPES);
+            set = getAttribute(OAuth2Constants.OAuth2Client.GRANT_TYPES);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.GRANT_TYPES +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -240,7 +262,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.CONTACTS);
+            set = getAttribute(OAuth2Constants.OAuth2Client.CONTACTS);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.CONTACTS +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -257,7 +279,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.NAME);
+            set = getAttribute(OAuth2Constants.OAuth2Client.NAME);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ TOKEN_TYPE +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -274,7 +296,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.LOGO_URI);
+            set = getAttribute(OAuth2Constants.OAuth2Client.LOGO_URI);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.LOGO_URI +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -291,7 +313,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.TOKEN_ENDPOINT_AUTH_METHOD);
+            set = getAttribute(OAuth2Constants.OAuth2Client.TOKEN_ENDPOINT_AUTH_METHOD);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.TOKEN_ENDPOINT_AUTH_METHOD +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -308,7 +330,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.POLICY_URI);
+            set = getAttribute(OAuth2Constants.OAuth2Client.POLICY_URI);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.POLICY_URI +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -325,7 +347,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.TOS_URI);
+            set = getAttribute(OAuth2Constants.OAuth2Client.TOS_URI);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.TOS_URI +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -342,7 +364,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.JKWS_URI);
+            set = getAttribute(OAuth2Constants.OAuth2Client.JKWS_URI);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.JKWS_URI +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -359,7 +381,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.SECTOR_IDENTIFIER_URI);
+            set = getAttribute(OAuth2Constants.OAuth2Client.SECTOR_IDENTIFIER_URI);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.SECTOR_IDENTIFIER_URI +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -375,7 +397,7 @@ public class ClientApplicationImpl implements ClientApplication{
     public SubjectType getSubjectType(){
         SubjectType subjectType = null;
         try {
-            Set<String> clientTypeSet = id.getAttribute(OAuth2Constants.OAuth2Client.SUBJECT_TYPE);
+            Set<String> clientTypeSet = getAttribute(OAuth2Constants.OAuth2Client.SUBJECT_TYPE);
             if (clientTypeSet.iterator().next().equalsIgnoreCase("PAIRWISE")){
                 subjectType = SubjectType.PAIRWISE;
             } else {
@@ -396,7 +418,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.REQUEST_OBJECT_SIGNING_ALG);
+            set = getAttribute(OAuth2Constants.OAuth2Client.REQUEST_OBJECT_SIGNING_ALG);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.REQUEST_OBJECT_SIGNING_ALG +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -413,7 +435,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.USERINFO_SIGNED_RESPONSE_ALG);
+            set = getAttribute(OAuth2Constants.OAuth2Client.USERINFO_SIGNED_RESPONSE_ALG);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.USERINFO_SIGNED_RESPONSE_ALG +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -430,7 +452,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.USERINFO_ENCRYPTED_RESPONSE_ALG);
+            set = getAttribute(OAuth2Constants.OAuth2Client.USERINFO_ENCRYPTED_RESPONSE_ALG);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.USERINFO_ENCRYPTED_RESPONSE_ALG +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -447,7 +469,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.USERINFO_SIGN_AND_ENC_RESPONSE_ALG);
+            set = getAttribute(OAuth2Constants.OAuth2Client.USERINFO_SIGN_AND_ENC_RESPONSE_ALG);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.USERINFO_SIGN_AND_ENC_RESPONSE_ALG +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -464,7 +486,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.IDTOKEN_SIGNED_RESPONSE_ALG);
+            set = getAttribute(OAuth2Constants.OAuth2Client.IDTOKEN_SIGNED_RESPONSE_ALG);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.IDTOKEN_SIGNED_RESPONSE_ALG +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -481,7 +503,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.IDTOKEN_ENCRYPTED_RESPONSE_ALG);
+            set = getAttribute(OAuth2Constants.OAuth2Client.IDTOKEN_ENCRYPTED_RESPONSE_ALG);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.IDTOKEN_ENCRYPTED_RESPONSE_ALG +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -498,7 +520,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.IDTOKEN_ENC_AND_SIGNED_RESPONSE_ALG);
+            set = getAttribute(OAuth2Constants.OAuth2Client.IDTOKEN_ENC_AND_SIGNED_RESPONSE_ALG);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.IDTOKEN_ENC_AND_SIGNED_RESPONSE_ALG +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -515,7 +537,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.DEFAULT_MAX_AGE);
+            set = getAttribute(OAuth2Constants.OAuth2Client.DEFAULT_MAX_AGE);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.DEFAULT_MAX_AGE +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -532,7 +554,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.REQUIRE_AUTH_TIME);
+            set = getAttribute(OAuth2Constants.OAuth2Client.REQUIRE_AUTH_TIME);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.REQUIRE_AUTH_TIME +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -549,7 +571,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.DEFAULT_ACR_VALS);
+            set = getAttribute(OAuth2Constants.OAuth2Client.DEFAULT_ACR_VALS);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.DEFAULT_ACR_VALS +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -566,7 +588,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.INIT_LOGIN_URL);
+            set = getAttribute(OAuth2Constants.OAuth2Client.INIT_LOGIN_URL);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.INIT_LOGIN_URL +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -583,7 +605,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.POST_LOGOUT_URI);
+            set = getAttribute(OAuth2Constants.OAuth2Client.POST_LOGOUT_URI);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.POST_LOGOUT_URI +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -600,7 +622,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.REQUEST_URLs);
+            set = getAttribute(OAuth2Constants.OAuth2Client.REQUEST_URLs);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.REQUEST_URLs +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -617,7 +639,7 @@ public class ClientApplicationImpl implements ClientApplication{
 
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.ACCESS_TOKEN);
+            set = getAttribute(OAuth2Constants.OAuth2Client.ACCESS_TOKEN);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.ACCESS_TOKEN +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
@@ -645,7 +667,7 @@ public class ClientApplicationImpl implements ClientApplication{
     public String getClientSessionURI(){
         Set<String> set = null;
         try {
-            set = id.getAttribute(OAuth2Constants.OAuth2Client.CLIENT_SESSION_URI);
+            set = getAttribute(OAuth2Constants.OAuth2Client.CLIENT_SESSION_URI);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("Unable to get "+ OAuth2Constants.OAuth2Client.CLIENT_SESSION_URI +" from repository", e);
             throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
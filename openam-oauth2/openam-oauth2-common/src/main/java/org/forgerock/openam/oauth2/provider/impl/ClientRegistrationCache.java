@@ -0,0 +1,375 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.oauth2.provider.impl;
+
+import com.iplanet.am.util.SystemProperties;
+import com.iplanet.sso.SSOException;
+import com.iplanet.sso.SSOToken;
+import com.sun.identity.common.CaseInsensitiveHashMap;
+import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.idm.AMIdentityRepository;
+import com.sun.identity.idm.IdEventListener;
+import com.sun.identity.idm.IdRepoException;
+import com.sun.identity.idm.IdSearchControl;
+import com.sun.identity.idm.IdSearchResults;
+import com.sun.identity.idm.IdType;
+import com.sun.identity.security.AdminTokenAction;
+import com.sun.identity.shared.Constants;
+import com.sun.identity.shared.OAuth2Constants;
+import org.forgerock.openam.oauth2.model.ClientApplication;
+import org.forgerock.openam.oauth2.model.impl.ClientApplicationImpl;
+import org.forgerock.openam.oauth2.utils.OAuth2Utils;
+import org.forgerock.openam.shared.cache.ConcurrentLRUCache;
+
+import java.security.AccessController;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the OAuth2 client registrations of each realm, so that authenticating a client and reading its settings
+ * does not search the agent store on every request.
+ * <p/>
+ * Clients which do not exist are remembered as well, for a shorter time, so that requests naming an unknown client
+ * do not reach the agent store either. The secret of a client is not remembered: clients still authenticate with the
+ * Application module on every request.
+ * <p/>
+ * The cache listens to identity repository change events for each realm it holds clients of, and forgets a client as
+ * soon as it is changed, renamed or deleted. A change to an agent group forgets the clients which belong to it, as
+ * they inherit its settings. Registrations also expire after a while, for repositories which do not report changes.
+ */
+public class ClientRegistrationCache {
+
+    private static final String AGENT_GROUP = "agentgroup";
+
+    private static final ClientRegistrationCache INSTANCE = new ClientRegistrationCache(
+            SystemProperties.getAsInt(Constants.OAUTH2_CLIENT_CACHE_TTL, 60000),
+            SystemProperties.getAsInt(Constants.OAUTH2_CLIENT_CACHE_NEGATIVE_TTL, 10000),
+            SystemProperties.getAsInt(Constants.OAUTH2_CLIENT_CACHE_SIZE, 10000),
+            new AdminAgentStore());
+
+    private final long ttl;
+    private final long negativeTtl;
+    private final int maxClients;
+    private final AgentStore agentStore;
+    private final ConcurrentMap<String, RealmClients> realms = new ConcurrentHashMap<String, RealmClients>();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param ttl Milliseconds a client registration is remembered for; 0 disables remembering registrations.
+     * @param negativeTtl Milliseconds the absence of a client is remembered for.
+     * @param maxClients The maximum number of clients remembered per realm.
+     * @param agentStore Reads the clients from the identity repositories.
+     */
+    ClientRegistrationCache(long ttl, long negativeTtl, int maxClients, AgentStore agentStore) {
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.maxClients = maxClients;
+        this.agentStore = agentStore;
+    }
+
+    /**
+     * @return The client registration cache shared by the OAuth2 provider.
+     */
+    public static ClientRegistrationCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the registration of a client.
+     *
+     * @param clientId The id of the client.
+     * @param realm The realm of the client.
+     * @return The registration, or null if no single agent of that name exists in the realm.
+     * @throws IdRepoException If the agent store could not be searched.
+     * @throws SSOException If the admin token is invalid.
+     */
+    public ClientRegistration getClient(String clientId, String realm) throws IdRepoException, SSOException {
+        if (ttl <= 0) {
+            return search(clientId, realm, 0).orNull();
+        }
+
+        RealmClients clients = getRealmClients(realm);
+        String key = clientId.toLowerCase(Locale.ENGLISH);
+        long now = System.currentTimeMillis();
+
+        ClientRegistration client = clients.get(key);
+        if (client == null || client.expiry <= now) {
+            long version = clients.version.get();
+            client = search(clientId, realm, now);
+            clients.put(key, client, version);
+        }
+        return client.orNull();
+    }
+
+    /**
+     * Forgets all client registrations.
+     */
+    public void clear() {
+        for (RealmClients clients : realms.values()) {
+            clients.clear();
+        }
+    }
+
+    private RealmClients getRealmClients(String realm) throws IdRepoException, SSOException {
+        RealmClients clients = realms.get(realm);
+        if (clients == null) {
+            clients = new RealmClients(realm);
+            RealmClients existing = realms.putIfAbsent(realm, clients);
+            if (existing != null) {
+                clients = existing;
+            } else {
+                agentStore.addListener(realm, clients);
+            }
+        }
+        return clients;
+    }
+
+    /*
+     * Searches the agent store of the realm for the client. A now of 0 gives a registration which has already expired.
+     */
+    private ClientRegistration search(String clientId, String realm, long now)
+            throws IdRepoException, SSOException {
+        Set<AMIdentity> results = agentStore.search(realm, IdType.AGENT, clientId);
+        if (results == null || results.size() != 1) {
+            return new ClientRegistration(null, null, false, null, now + negativeTtl);
+        }
+
+        AMIdentity identity = results.iterator().next();
+        Map<String, Set<String>> attributes = new CaseInsensitiveHashMap(agentStore.getAttributes(identity));
+        attributes.remove(OAuth2Constants.OAuth2Client.USERPASSWORD);
+        attributes = Collections.unmodifiableMap(attributes);
+
+        Set<String> groups = attributes.get(AGENT_GROUP);
+        String group = groups == null || groups.isEmpty() ? null
+                : groups.iterator().next().toLowerCase(Locale.ENGLISH);
+        return new ClientRegistration(identity, attributes, agentStore.isActive(identity), group, now + ttl);
+    }
+
+    /**
+     * The registration of a client, as read from the agent store.
+     */
+    public static final class ClientRegistration {
+
+        private final AMIdentity identity;
+        private final Map<String, Set<String>> attributes;
+        private final boolean active;
+        private final String group;
+        private final long expiry;
+
+        private ClientRegistration(AMIdentity identity, Map<String, Set<String>> attributes, boolean active,
+                String group, long expiry) {
+            this.identity = identity;
+            this.attributes = attributes;
+            this.active = active;
+            this.group = group;
+            this.expiry = expiry;
+        }
+
+        /**
+         * @return The identity of the client.
+         */
+        public AMIdentity getIdentity() {
+            return identity;
+        }
+
+        /**
+         * @return Whether the client is active.
+         */
+        public boolean isActive() {
+            return active;
+        }
+
+        /**
+         * @return The client application, whose settings are read from the registration.
+         */
+        public ClientApplication getClientApplication() {
+            return new ClientApplicationImpl(identity, attributes);
+        }
+
+        private ClientRegistration orNull() {
+            return identity == null ? null : this;
+        }
+    }
+
+    /**
+     * The remembered clients of a realm, which are forgotten as the identity repository reports changes.
+     */
+    private final class RealmClients implements IdEventListener {
+
+        private final String realm;
+        private final ConcurrentLRUCache<String, ClientRegistration> clients;
+        private final AtomicLong version = new AtomicLong();
+
+        private RealmClients(String realm) {
+            this.realm = realm;
+            this.clients = new ConcurrentLRUCache<String, ClientRegistration>("OAuth2ClientRegistration", maxClients);
+        }
+
+        private ClientRegistration get(String key) {
+            return clients.get(key);
+        }
+
+        /*
+         * Remembers the client unless a change has been reported since the version was taken, as the registration
+         * read may predate the change.
+         */
+        private void put(String key, ClientRegistration client, long searchVersion) {
+            if (version.get() == searchVersion) {
+                clients.put(key, client);
+                if (version.get() != searchVersion) {
+                    clients.remove(key, client);
+                }
+            }
+        }
+
+        private void clear() {
+            version.incrementAndGet();
+            clients.clear();
+        }
+
+        private void forget(String universalId) {
+            version.incrementAndGet();
+            try {
+                AMIdentity identity = new AMIdentity(null, universalId);
+                String name = identity.getName().toLowerCase(Locale.ENGLISH);
+                if (IdType.AGENTGROUP.equals(identity.getType())) {
+                    forgetMembers(name);
+                } else {
+                    clients.remove(name);
+                }
+            } catch (Exception e) {
+                if (OAuth2Utils.DEBUG.messageEnabled()) {
+                    OAuth2Utils.DEBUG.message("ClientRegistrationCache::Forgetting all clients of " + realm
+                            + " as " + universalId + " is not a universal id");
+                }
+                clients.clear();
+            }
+        }
+
+        private void forgetMembers(String group) {
+            Iterator<Map.Entry<String, ClientRegistration>> entries = clients.entrySet().iterator();
+            while (entries.hasNext()) {
+                if (group.equals(entries.next().getValue().group)) {
+                    entries.remove();
+                }
+            }
+        }
+
+        public void identityChanged(String universalId) {
+            forget(universalId);
+        }
+
+        public void identityDeleted(String universalId) {
+            forget(universalId);
+        }
+
+        public void identityRenamed(String universalId) {
+            clear();
+        }
+
+        public void allIdentitiesChanged() {
+            clear();
+        }
+    }
+
+    /**
+     * Reads clients from the identity repositories of the realms.
+     */
+    interface AgentStore {
+
+        /**
+         * Searches a realm for identities.
+         *
+         * @param realm The realm.
+         * @param type The type of the identities.
+         * @param pattern The name pattern of the identities.
+         * @return The identities found.
+         * @throws IdRepoException If the realm could not be searched.
+         * @throws SSOException If the admin token is invalid.
+         */
+        Set<AMIdentity> search(String realm, IdType type, String pattern) throws IdRepoException, SSOException;
+
+        /**
+         * Reads the attributes of an identity.
+         *
+         * @param identity The identity.
+         * @return The attributes.
+         * @throws IdRepoException If the identity could not be read.
+         * @throws SSOException If the admin token is invalid.
+         */
+        Map<String, Set<String>> getAttributes(AMIdentity identity) throws IdRepoException, SSOException;
+
+        /**
+         * Reads whether an identity is active.
+         *
+         * @param identity The identity.
+         * @return Whether the identity is active.
+         * @throws IdRepoException If the identity could not be read.
+         * @throws SSOException If the admin token is invalid.
+         */
+        boolean isActive(AMIdentity identity) throws IdRepoException, SSOException;
+
+        /**
+         * Registers a listener for changes to the identities of a realm.
+         *
+         * @param realm The realm.
+         * @param listener The listener.
+         * @throws IdRepoException If the listener could not be registered.
+         * @throws SSOException If the admin token is invalid.
+         */
+        void addListener(String realm, IdEventListener listener) throws IdRepoException, SSOException;
+    }
+
+    /**
+     * Reads clients from the identity repositories with the admin token.
+     */
+    private static final class AdminAgentStore implements AgentStore {
+
+        public Set<AMIdentity> search(String realm, IdType type, String pattern)
+                throws IdRepoException, SSOException {
+            IdSearchControl idsc = new IdSearchControl();
+            idsc.setRecursive(true);
+            idsc.setAllReturnAttributes(false);
+            idsc.setMaxResults(0);
+            IdSearchResults searchResults = getRepository(realm).searchIdentities(type, pattern, idsc);
+            return searchResults == null ? null : searchResults.getSearchResults();
+        }
+
+        public Map<String, Set<String>> getAttributes(AMIdentity identity) throws IdRepoException, SSOException {
+            return identity.getAttributes();
+        }
+
+        public boolean isActive(AMIdentity identity) throws IdRepoException, SSOException {
+            return identity.isActive();
+        }
+
+        public void addListener(String realm, IdEventListener listener) throws IdRepoException, SSOException {
+            getRepository(realm).addEventListener(listener);
+        }
+
+        private AMIdentityRepository getRepository(String realm) throws IdRepoException, SSOException {
+            SSOToken token = AccessController.doPrivileged(AdminTokenAction.getInstance());
+            return new AMIdentityRepository(token, realm);
+        }
+    }
+}
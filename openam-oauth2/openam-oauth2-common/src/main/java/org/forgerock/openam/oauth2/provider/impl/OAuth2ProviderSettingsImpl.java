@@ -1,7 +1,7 @@
 /*
  * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
  *
- * Copyright 2013-2014 ForgeRock AS.
+ * Copyright 2013-2015 ForgeRock AS.
  *
  * The contents of this file are subject to the terms
  * of the Common Development and Distribution License
@@ -75,6 +75,7 @@ public class OAuth2ProviderSettingsImpl implements OAuth2ProviderSettings {
                     OAuth2Utils.DEBUG.message("Updating OAuth service configuration state for realm " + realm);
                 }
                 initializeSettings(!PROPAGATE_EXCEPTIONS);
+                OAuth2Utils.clearServerKeyPairs();
             } else {
                 if (OAuth2Utils.DEBUG.messageEnabled()) {
                     OAuth2Utils.DEBUG.message("Got service update message, but update did not target OAuth2Provider in " +
@@ -0,0 +1,140 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.oauth2.utils;
+
+import java.io.File;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers the key pairs loaded from a keystore, so that signing a token does not read the password files and
+ * parse the keystore every time.
+ * <p/>
+ * A key pair is loaded again once any of the files it was loaded from is replaced or modified, or once the cache is
+ * cleared because the provider settings changed. The files are checked for changes at most once per check interval,
+ * so that signing does not stat them every time. Key pairs which could not be loaded are not remembered.
+ */
+class KeyPairCache {
+
+    private static final long DEFAULT_CHECK_INTERVAL = 5000L;
+
+    /**
+     * Loads a key pair from the keystore.
+     */
+    interface Loader {
+
+        /**
+         * Loads the key pair of the alias.
+         *
+         * @param alias The alias of the key pair.
+         * @return The key pair, whose private key is null if it could not be loaded.
+         */
+        KeyPair load(String alias);
+    }
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final long checkInterval;
+
+    /**
+     * Creates a cache which checks the files for changes at most every five seconds.
+     */
+    KeyPairCache() {
+        this(DEFAULT_CHECK_INTERVAL);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param checkInterval The time in milliseconds for which a key pair is used without checking its files.
+     */
+    KeyPairCache(long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * Gets the key pair of the alias, loading it if it has not been loaded yet or if any of the files has changed
+     * since it was. The files are not checked again until the check interval has passed.
+     *
+     * @param alias The alias of the key pair.
+     * @param loader Loads the key pair when necessary.
+     * @param files The keystore and password files the key pair is loaded from. Null files are ignored.
+     * @return The key pair.
+     */
+    KeyPair get(String alias, Loader loader, String... files) {
+        if (alias == null) {
+            return loader.load(alias);
+        }
+
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(alias);
+        if (entry != null && Arrays.equals(entry.files, files)) {
+            if (now - entry.checkedAt < checkInterval) {
+                return entry.keyPair;
+            }
+            if (entry.version.equals(version(files))) {
+                entry.checkedAt = now;
+                return entry.keyPair;
+            }
+        }
+
+        String version = version(files);
+        KeyPair keyPair = loader.load(alias);
+        if (keyPair.getPrivate() != null) {
+            entries.put(alias, new Entry(files, version, keyPair, now));
+        } else {
+            entries.remove(alias);
+        }
+        return keyPair;
+    }
+
+    /**
+     * Forgets all key pairs, so that they are loaded again when next used.
+     */
+    void clear() {
+        entries.clear();
+    }
+
+    /*
+     * Identifies the current content of the files by their names, sizes and modification times.
+     */
+    private static String version(String... files) {
+        StringBuilder version = new StringBuilder();
+        for (String name : files) {
+            if (name != null) {
+                File file = new File(name);
+                version.append(name).append(':').append(file.length()).append(':').append(file.lastModified())
+                        .append(';');
+            }
+        }
+        return version.toString();
+    }
+
+    private static final class Entry {
+        private final String[] files;
+        private final String version;
+        private final KeyPair keyPair;
+        private volatile long checkedAt;
+
+        private Entry(String[] files, String version, KeyPair keyPair, long checkedAt) {
+            this.files = files.clone();
+            this.version = version;
+            this.keyPair = keyPair;
+            this.checkedAt = checkedAt;
+        }
+    }
+}
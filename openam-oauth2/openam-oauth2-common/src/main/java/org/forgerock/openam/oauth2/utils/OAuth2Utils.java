@@ -1,7 +1,7 @@
 /*
  * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
  *
- * Copyright (c) 2012-2014 ForgeRock AS All rights reserved.
+ * Copyright (c) 2012-2015 ForgeRock AS All rights reserved.
  *
  * The contents of this file are subject to the terms
  * of the Common Development and Distribution License
@@ -56,12 +56,14 @@ import com.sun.identity.sm.ServiceConfigManager;
 import org.forgerock.common.util.KeystoreManager;
 import org.forgerock.json.jose.jws.JwsAlgorithm;
 import org.forgerock.json.jose.jws.SignedJwt;
+import org.forgerock.openam.oauth2.model.ClientApplication;
 import org.forgerock.openam.oauth2.model.CoreToken;
 import org.forgerock.openam.oauth2.model.JWTToken;
 import org.forgerock.openam.oauth2.provider.ClientVerifier;
 import org.forgerock.openam.oauth2.provider.OAuth2ProviderSettings;
 import org.forgerock.openam.oauth2.provider.OAuth2TokenStore;
 import org.forgerock.openam.oauth2.exceptions.OAuthProblemException;
+import org.forgerock.openam.oauth2.provider.impl.ClientRegistrationCache;
 import org.forgerock.openam.oauth2.provider.impl.OAuth2ProviderSettingsImpl;
 import org.restlet.Context;
 import org.restlet.Request;
@@ -92,6 +94,12 @@ public class OAuth2Utils {
     public static boolean logStatus = false;
     private static final Map<String, OAuth2ProviderSettings> settingsProviderMap =
             new HashMap<String, OAuth2ProviderSettings>();
+    private static final KeyPairCache keyPairCache = new KeyPairCache();
+    private static final KeyPairCache.Loader KEY_PAIR_LOADER = new KeyPairCache.Loader() {
+        public KeyPair load(String alias) {
+            return loadServerKeyPair(alias);
+        }
+    };
 
 
     private final static String DEFAULT_KEYSTORE_FILE_PROP =
@@ -786,40 +794,41 @@ public class OAuth2Utils {
     }
 
     public static AMIdentity getClientIdentity(String uName, String realm) throws OAuthProblemException {
-        SSOToken token = (SSOToken) AccessController.doPrivileged(AdminTokenAction.getInstance());
-        AMIdentity theID = null;
-
-        try {
-            AMIdentityRepository amIdRepo = new AMIdentityRepository(token, realm);
+        ClientRegistrationCache.ClientRegistration client = getClientRegistration(uName, realm);
 
-            IdSearchControl idsc = new IdSearchControl();
-            idsc.setRecursive(true);
-            idsc.setAllReturnAttributes(true);
-            // search for the identity
-            Set<AMIdentity> results = Collections.EMPTY_SET;
-            idsc.setMaxResults(0);
-            IdSearchResults searchResults =
-                    amIdRepo.searchIdentities(IdType.AGENTONLY, uName, idsc);
-                results = searchResults.getSearchResults();
-
-            if (results == null || results.size() != 1) {
-                OAuth2Utils.DEBUG.error("OAuth2Utils.getClientIdentity()::No client profile or more than one profile found.");
-                throw OAuthProblemException.OAuthError.UNAUTHORIZED_CLIENT.handle(null,
-                        "Not able to get client from OpenAM");
-            }
+        //if the client is deactivated return null
+        return client.isActive() ? client.getIdentity() : null;
+    }
 
-            theID = results.iterator().next();
+    /**
+     * Gets the client application of an active client, whose settings are read from the client registration cache.
+     *
+     * @param uName The id of the client.
+     * @param realm The realm of the client.
+     * @return The client application, or null if the client is deactivated.
+     * @throws OAuthProblemException If the client does not exist or could not be read.
+     */
+    public static ClientApplication getClientApplication(String uName, String realm) throws OAuthProblemException {
+        ClientRegistrationCache.ClientRegistration client = getClientRegistration(uName, realm);
+        return client.isActive() ? client.getClientApplication() : null;
+    }
 
-            //if the client is deactivated return null
-            if (theID.isActive()){
-                return theID;
-            } else {
-                return null;
-            }
+    private static ClientRegistrationCache.ClientRegistration getClientRegistration(String uName, String realm)
+            throws OAuthProblemException {
+        ClientRegistrationCache.ClientRegistration client;
+        try {
+            client = ClientRegistrationCache.getInstance().getClient(uName, realm);
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("OAuth2Utils::Unable to get client AMIdentity: ", e);
             throw OAuthProblemException.OAuthError.UNAUTHORIZED_CLIENT.handle(null, "Not able to get client from OpenAM");
         }
+
+        if (client == null) {
+            OAuth2Utils.DEBUG.error("OAuth2Utils.getClientIdentity()::No client profile or more than one profile found.");
+            throw OAuthProblemException.OAuthError.UNAUTHORIZED_CLIENT.handle(null,
+                    "Not able to get client from OpenAM");
+        }
+        return client;
     }
 
     public static AMIdentity getIdentity(String uName, String realm) throws OAuthProblemException {
@@ -915,11 +924,27 @@ public class OAuth2Utils {
     }
     
     /*
-     * Get the KeyPair from the OAuth2ProviderSettings provided.
+     * Get the KeyPair from the OAuth2ProviderSettings provided. The key pair is only loaded from the keystore again
+     * when the keystore or its password files change, or the provider settings change.
+     */
+    private static KeyPair getServerKeyPairFromSettings(OAuth2ProviderSettings settings) {
+        return keyPairCache.get(settings.getKeyStoreAlias(), KEY_PAIR_LOADER,
+                SystemPropertiesManager.get(DEFAULT_KEYSTORE_FILE_PROP),
+                SystemPropertiesManager.get(DEFAULT_KEYSTORE_PASS_FILE_PROP),
+                SystemPropertiesManager.get(DEFAULT_PRIVATE_KEY_PASS_FILE_PROP));
+    }
+
+    /**
+     * Forgets the key pairs loaded from the keystore, so that they are loaded again when next used.
+     */
+    public static void clearServerKeyPairs() {
+        keyPairCache.clear();
+    }
+
+    /*
+     * Load the KeyPair of the alias from the keystore.
      */
-	private static KeyPair getServerKeyPairFromSettings(
-			OAuth2ProviderSettings settings) {
-		String alias = settings.getKeyStoreAlias();
+	private static KeyPair loadServerKeyPair(String alias) {
 
         //get keystore password from file
         String kspfile = SystemPropertiesManager.get(DEFAULT_KEYSTORE_PASS_FILE_PROP);
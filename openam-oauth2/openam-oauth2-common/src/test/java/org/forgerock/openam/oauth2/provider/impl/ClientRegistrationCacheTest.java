@@ -0,0 +1,195 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.oauth2.provider.impl;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.idm.IdEventListener;
+import com.sun.identity.idm.IdRepoException;
+import com.sun.identity.idm.IdType;
+import com.sun.identity.shared.OAuth2Constants;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.forgerock.openam.utils.CollectionUtils;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ClientRegistrationCacheTest {
+
+    private static final String REALM = "/";
+    private static final String REALM_DN = "o=example,ou=services,dc=openam,dc=forgerock,dc=org";
+
+    private FakeAgentStore agentStore;
+    private ClientRegistrationCache cache;
+
+    @BeforeMethod
+    public void setUp() {
+        agentStore = new FakeAgentStore();
+        cache = new ClientRegistrationCache(60000, 60000, 100, agentStore);
+    }
+
+    @Test
+    public void shouldSearchAgentsForClient() throws Exception {
+        // Given
+        agentStore.addAgent("Client1", null);
+
+        // When
+        ClientRegistrationCache.ClientRegistration client = cache.getClient("Client1", REALM);
+
+        // Then
+        assertThat(client).isNotNull();
+        assertThat(client.getIdentity().getName()).isEqualTo("Client1");
+        assertThat(client.isActive()).isTrue();
+        assertThat(agentStore.searches).containsExactly("agent:/:Client1");
+    }
+
+    @Test
+    public void shouldRememberClient() throws Exception {
+        // Given
+        agentStore.addAgent("client1", null);
+        ClientRegistrationCache.ClientRegistration first = cache.getClient("client1", REALM);
+
+        // When
+        ClientRegistrationCache.ClientRegistration second = cache.getClient("CLIENT1", REALM);
+
+        // Then
+        assertThat(second).isSameAs(first);
+        assertThat(agentStore.searches).hasSize(1);
+        assertThat(agentStore.listeners).hasSize(1);
+    }
+
+    @Test
+    public void shouldRememberMissingClient() throws Exception {
+        // Given
+        cache.getClient("unknown", REALM);
+
+        // When
+        ClientRegistrationCache.ClientRegistration client = cache.getClient("unknown", REALM);
+
+        // Then
+        assertThat(client).isNull();
+        assertThat(agentStore.searches).hasSize(1);
+    }
+
+    @Test
+    public void shouldForgetChangedClient() throws Exception {
+        // Given
+        agentStore.addAgent("client1", null);
+        agentStore.addAgent("client2", null);
+        cache.getClient("client1", REALM);
+        cache.getClient("client2", REALM);
+
+        // When
+        agentStore.listeners.get(0).identityChanged("id=client1,ou=agent," + REALM_DN);
+        cache.getClient("client1", REALM);
+        cache.getClient("client2", REALM);
+
+        // Then
+        assertThat(agentStore.searches).containsExactly("agent:/:client1", "agent:/:client2", "agent:/:client1");
+    }
+
+    @Test
+    public void shouldForgetMembersOfChangedAgentGroup() throws Exception {
+        // Given
+        agentStore.addAgent("member", "Group1");
+        agentStore.addAgent("other", "group2");
+        agentStore.addAgent("single", null);
+        cache.getClient("member", REALM);
+        cache.getClient("other", REALM);
+        cache.getClient("single", REALM);
+
+        // When
+        agentStore.listeners.get(0).identityChanged("id=group1,ou=agentgroup," + REALM_DN);
+        cache.getClient("member", REALM);
+        cache.getClient("other", REALM);
+        cache.getClient("single", REALM);
+
+        // Then
+        assertThat(agentStore.searches).containsExactly("agent:/:member", "agent:/:other", "agent:/:single",
+                "agent:/:member");
+    }
+
+    @Test
+    public void shouldForgetAllClientsWhenAllIdentitiesChange() throws Exception {
+        // Given
+        agentStore.addAgent("client1", null);
+        cache.getClient("client1", REALM);
+
+        // When
+        agentStore.listeners.get(0).allIdentitiesChanged();
+        cache.getClient("client1", REALM);
+
+        // Then
+        assertThat(agentStore.searches).hasSize(2);
+    }
+
+    @Test
+    public void shouldNotRememberClientsWhenDisabled() throws Exception {
+        // Given
+        cache = new ClientRegistrationCache(0, 0, 100, agentStore);
+        agentStore.addAgent("client1", null);
+        cache.getClient("client1", REALM);
+
+        // When
+        cache.getClient("client1", REALM);
+
+        // Then
+        assertThat(agentStore.searches).hasSize(2);
+        assertThat(agentStore.listeners).isEmpty();
+    }
+
+    private static final class FakeAgentStore implements ClientRegistrationCache.AgentStore {
+
+        private final Map<String, AMIdentity> agents = new HashMap<String, AMIdentity>();
+        private final Map<String, Map<String, Set<String>>> attributes =
+                new HashMap<String, Map<String, Set<String>>>();
+        private final List<String> searches = new ArrayList<String>();
+        private final List<IdEventListener> listeners = new ArrayList<IdEventListener>();
+
+        void addAgent(String name, String group) throws IdRepoException {
+            agents.put(name, new AMIdentity(null, "id=" + name + ",ou=agent," + REALM_DN));
+            Map<String, Set<String>> values = new HashMap<String, Set<String>>();
+            values.put(OAuth2Constants.OAuth2Client.USERPASSWORD, CollectionUtils.asSet("secret"));
+            if (group != null) {
+                values.put("agentgroup", CollectionUtils.asSet(group));
+            }
+            attributes.put(name, values);
+        }
+
+        public Set<AMIdentity> search(String realm, IdType type, String pattern) {
+            searches.add(type.getName() + ":" + realm + ":" + pattern);
+            AMIdentity agent = agents.get(pattern);
+            return agent == null ? Collections.<AMIdentity>emptySet() : Collections.singleton(agent);
+        }
+
+        public Map<String, Set<String>> getAttributes(AMIdentity identity) {
+            return attributes.get(identity.getName());
+        }
+
+        public boolean isActive(AMIdentity identity) {
+            return true;
+        }
+
+        public void addListener(String realm, IdEventListener listener) {
+            listeners.add(listener);
+        }
+    }
+}
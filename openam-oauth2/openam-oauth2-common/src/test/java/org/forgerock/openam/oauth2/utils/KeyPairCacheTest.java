@@ -0,0 +1,161 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.oauth2.utils;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class KeyPairCacheTest {
+
+    private File keystore;
+    private CountingLoader loader;
+    private KeyPairCache cache;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        keystore = File.createTempFile("keystore", ".jks");
+        write(keystore, "first");
+        loader = new CountingLoader();
+        cache = new KeyPairCache(0);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        keystore.delete();
+    }
+
+    @Test
+    public void shouldLoadKeyPairOnce() {
+        // When
+        KeyPair first = cache.get("test", loader, keystore.getPath(), null);
+        KeyPair second = cache.get("test", loader, keystore.getPath(), null);
+
+        // Then
+        assertThat(second).isSameAs(first);
+        assertThat(loader.loads).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldLoadEachAliasSeparately() {
+        // When
+        KeyPair test = cache.get("test", loader, keystore.getPath());
+        KeyPair other = cache.get("other", loader, keystore.getPath());
+
+        // Then
+        assertThat(other).isNotSameAs(test);
+        assertThat(loader.loads).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldReloadKeyPairWhenKeystoreChanges() throws IOException {
+        // Given
+        KeyPair first = cache.get("test", loader, keystore.getPath());
+
+        // When
+        write(keystore, "second, longer");
+        KeyPair second = cache.get("test", loader, keystore.getPath());
+
+        // Then
+        assertThat(second).isNotSameAs(first);
+        assertThat(loader.loads).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotCheckFilesAgainWithinCheckInterval() throws IOException {
+        // Given
+        cache = new KeyPairCache(60000);
+        KeyPair first = cache.get("test", loader, keystore.getPath());
+
+        // When
+        write(keystore, "second, longer");
+        KeyPair second = cache.get("test", loader, keystore.getPath());
+
+        // Then
+        assertThat(second).isSameAs(first);
+        assertThat(loader.loads).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReloadKeyPairWhenLoadedFromOtherFiles() {
+        // Given
+        cache = new KeyPairCache(60000);
+        KeyPair first = cache.get("test", loader, keystore.getPath());
+
+        // When
+        KeyPair second = cache.get("test", loader, keystore.getPath(), keystore.getPath());
+
+        // Then
+        assertThat(second).isNotSameAs(first);
+        assertThat(loader.loads).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldReloadKeyPairWhenCleared() {
+        // Given
+        cache.get("test", loader, keystore.getPath());
+
+        // When
+        cache.clear();
+        cache.get("test", loader, keystore.getPath());
+
+        // Then
+        assertThat(loader.loads).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotRememberKeyPairWhichCouldNotBeLoaded() {
+        // Given
+        loader.missing = true;
+        cache.get("test", loader, keystore.getPath());
+
+        // When
+        loader.missing = false;
+        KeyPair keyPair = cache.get("test", loader, keystore.getPath());
+
+        // Then
+        assertThat(keyPair.getPrivate()).isNotNull();
+        assertThat(loader.loads).isEqualTo(2);
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static final class CountingLoader implements KeyPairCache.Loader {
+        private int loads;
+        private boolean missing;
+
+        public KeyPair load(String alias) {
+            loads++;
+            return new KeyPair(mock(PublicKey.class), missing ? null : mock(PrivateKey.class));
+        }
+    }
+}
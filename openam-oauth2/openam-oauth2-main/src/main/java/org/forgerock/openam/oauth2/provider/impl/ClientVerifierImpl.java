@@ -23,18 +23,14 @@
  */
 
 /*
- * Portions Copyrighted 2013 ForgeRock Inc 
+ * Portions Copyrighted 2013-2015 ForgeRock Inc 
  */
 
 package org.forgerock.openam.oauth2.provider.impl;
 
-import com.iplanet.sso.SSOToken;
 import com.sun.identity.authentication.AuthContext;
 import com.sun.identity.authentication.spi.AuthLoginException;
-import com.sun.identity.idm.*;
-import com.sun.identity.security.AdminTokenAction;
 import com.sun.identity.shared.OAuth2Constants;
-import org.forgerock.openam.oauth2.model.impl.ClientApplicationImpl;
 import org.forgerock.openam.oauth2.exceptions.OAuthProblemException;
 import org.forgerock.openam.oauth2.model.ClientApplication;
 import org.forgerock.openam.oauth2.provider.ClientVerifier;
@@ -44,11 +40,8 @@ import org.restlet.data.ChallengeScheme;
 import org.restlet.Request;
 import org.restlet.Response;
 
-import java.security.AccessController;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Set;
 
 import org.restlet.data.Status;
 import org.restlet.engine.header.Header;
@@ -128,15 +121,14 @@ public class ClientVerifierImpl implements ClientVerifier{
         return verify(clientId, clientSecret, realm);
     }
 
-    private ClientApplication verify(String clientId, String clientSecret, String realm)
+    ClientApplication verify(String clientId, String clientSecret, String realm)
             throws OAuthProblemException{
         ClientApplication user = null;
         if (clientSecret == null) {
             clientSecret = "";
         }
         try {
-            AMIdentity client = getIdentity(clientId, realm);
-            user = new ClientApplicationImpl(client);
+            user = getClientApplication(clientId, realm);
 
             //authenticate confidential clients
             if (user.getClientType() != null &&
@@ -153,7 +145,7 @@ public class ClientVerifierImpl implements ClientVerifier{
         return user;
     }
 
-    private boolean authenticate(String username, char[] password, String realm) {
+    boolean authenticate(String username, char[] password, String realm) {
         try {
             AuthContext lc = new AuthContext(realm);
             lc.login(AuthContext.IndexType.MODULE_INSTANCE, "Application");
@@ -211,46 +203,27 @@ public class ClientVerifierImpl implements ClientVerifier{
         String realm = OAuth2Utils.getRealm(request);
         ClientApplication user = null;
         try {
-            AMIdentity id = getIdentity(clientId, realm);
-            user = new ClientApplicationImpl(id);
+            user = getClientApplication(clientId, realm);
         } catch (Exception e){
             throw OAuthProblemException.OAuthError.INVALID_CLIENT.handle(null, "Client authentication failed");
         }
         return user;
     }
 
-    private AMIdentity getIdentity(String uName, String realm) throws OAuthProblemException {
-        SSOToken token = (SSOToken) AccessController.doPrivileged(AdminTokenAction.getInstance());
-        AMIdentity theID = null;
-
+    ClientApplication getClientApplication(String uName, String realm) throws OAuthProblemException {
         try {
-            AMIdentityRepository amIdRepo = new AMIdentityRepository(token, realm);
-
-            IdSearchControl idsc = new IdSearchControl();
-            idsc.setRecursive(true);
-            idsc.setAllReturnAttributes(true);
-            // search for the identity
-            Set<AMIdentity> results = Collections.EMPTY_SET;
-            idsc.setMaxResults(0);
-            IdSearchResults searchResults =
-                    amIdRepo.searchIdentities(IdType.AGENT, uName, idsc);
-            if (searchResults != null) {
-                results = searchResults.getSearchResults();
-            }
+            ClientRegistrationCache.ClientRegistration client =
+                    ClientRegistrationCache.getInstance().getClient(uName, realm);
 
-            if (results == null || results.size() != 1) {
+            if (client == null) {
                 throw OAuthProblemException.OAuthError.INVALID_CLIENT.handle(null, "Client authentication failed");
-
             }
 
-            theID = results.iterator().next();
-
-            //if the client is deactivated return null
-            if (theID.isActive()){
-                return theID;
-            } else {
-                return null;
+            //if the client is deactivated it cannot authenticate
+            if (!client.isActive()) {
+                throw OAuthProblemException.OAuthError.INVALID_CLIENT.handle(null, "Client authentication failed");
             }
+            return client.getClientApplication();
         } catch (Exception e){
             OAuth2Utils.DEBUG.error("ClientVerifierImpl::Unable to get client AMIdentity: ", e);
             throw OAuthProblemException.OAuthError.INVALID_CLIENT.handle(null, "Client authentication failed");
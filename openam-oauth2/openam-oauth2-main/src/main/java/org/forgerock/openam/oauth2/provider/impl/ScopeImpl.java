@@ -1,7 +1,7 @@
 /*
  * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
  *
- * Copyright (c) 2012-2013 ForgeRock AS All rights reserved.
+ * Copyright (c) 2012-2015 ForgeRock AS All rights reserved.
  *
  * The contents of this file are subject to the terms
  * of the Common Development and Distribution License
@@ -29,7 +29,6 @@ import com.iplanet.sso.SSOToken;
 import com.sun.identity.idm.*;
 import com.sun.identity.shared.OAuth2Constants;
 import org.forgerock.json.jose.jws.JwsAlgorithm;
-import org.forgerock.json.jose.jws.SignedJwt;
 import org.forgerock.json.jose.jwt.JwtClaimsSet;
 import org.forgerock.openam.ext.cts.repo.DefaultOAuthTokenStoreImpl;
 import org.forgerock.openam.oauth2.exceptions.OAuthProblemException;
@@ -192,15 +191,16 @@ public class ScopeImpl implements Scope {
                     token.getClientID(),
                     parameters.get(OAuth2Constants.Custom.NONCE),
                     parameters.get(OAuth2Constants.Custom.SSO_TOKEN_ID));
-            SignedJwt signedJwt = null;
+            String idToken = null;
             try {
-                signedJwt =((JWTToken) jwtToken).sign(OAuth2Utils.getServerKeyPair(Request.getCurrent()).getPrivate());
+                idToken = ((JWTToken) jwtToken).signAndBuild(
+                        OAuth2Utils.getServerKeyPair(Request.getCurrent()).getPrivate());
             } catch (SignatureException e){
                 OAuth2Utils.DEBUG.error("ScopeImpl.extraDataToReturnForTokenEndpoint()::Unable to sign JWT", e);
                 throw OAuthProblemException.OAuthError.SERVER_ERROR.handle(Request.getCurrent(),
                         "Cant sign JWT");
             }
-            map.put("id_token", signedJwt.build());
+            map.put("id_token", idToken);
         }
         //END OpenID Connect
         return map;
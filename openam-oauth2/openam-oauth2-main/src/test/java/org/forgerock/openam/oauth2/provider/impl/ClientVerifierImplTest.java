@@ -0,0 +1,84 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.oauth2.provider.impl;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.forgerock.openam.oauth2.exceptions.OAuthProblemException;
+import org.forgerock.openam.oauth2.model.ClientApplication;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ClientVerifierImplTest {
+
+    private static final String CLIENT_ID = "client";
+    private static final String REALM = "/";
+
+    private ClientVerifierImpl verifier;
+    private String storedSecret;
+
+    @BeforeMethod
+    public void setUp() {
+        ClientApplication client = mock(ClientApplication.class);
+        when(client.getClientType()).thenReturn(ClientApplication.ClientType.CONFIDENTIAL);
+
+        verifier = spy(new ClientVerifierImpl());
+        doReturn(client).when(verifier).getClientApplication(CLIENT_ID, REALM);
+        doAnswer(new Answer<Boolean>() {
+            public Boolean answer(InvocationOnMock invocation) {
+                String password = new String((char[]) invocation.getArguments()[1]);
+                if (!password.equals(storedSecret)) {
+                    throw new ResourceException(Status.CLIENT_ERROR_UNAUTHORIZED);
+                }
+                return true;
+            }
+        }).when(verifier).authenticate(anyString(), any(char[].class), eq(REALM));
+    }
+
+    @Test
+    public void shouldRejectOldSecretOnceTheSecretHasChanged() {
+        // Given
+        storedSecret = "old";
+        assertThat(verifier.verify(CLIENT_ID, "old", REALM)).isNotNull();
+
+        // When
+        storedSecret = "new";
+
+        // Then
+        try {
+            verifier.verify(CLIENT_ID, "old", REALM);
+            throw new AssertionError("The old secret was accepted");
+        } catch (OAuthProblemException e) {
+            // expected
+        }
+        assertThat(verifier.verify(CLIENT_ID, "new", REALM)).isNotNull();
+        verify(verifier, times(3)).authenticate(anyString(), any(char[].class), eq(REALM));
+    }
+}
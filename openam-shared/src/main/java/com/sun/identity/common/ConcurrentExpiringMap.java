@@ -0,0 +1,441 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package com.sun.identity.common;
+
+import org.forgerock.openam.shared.cache.MonitoredCache;
+import org.forgerock.util.time.TimeService;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A concurrent map whose entries expire a given time after they were put into the map. Unlike
+ * {@link PeriodicCleanUpMap}, no lock is taken to read, write or expire entries: each entry carries its own expiry
+ * time, an expired entry is dropped by the first read that finds it, and the entries nobody reads again are dropped by
+ * a sweep run every run period once the map is scheduled to a Timer or TimerPool.
+ * <p/>
+ * Until they have been dropped, expired entries still count towards {@link #size()}, but are never returned. Like the
+ * map of {@link PeriodicCleanUpMap}, this map accepts null keys and values.
+ * <p/>
+ * The size and the eviction count of the map are recorded with the other cache statistics once the map has been
+ * registered with {@link org.forgerock.openam.shared.cache.CacheFactory#register(MonitoredCache)}.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ */
+public class ConcurrentExpiringMap<K, V> extends GeneralTaskRunnable implements ConcurrentMap<K, V>,
+        MonitoredCache {
+
+    private static final Object NULL_KEY = new Object();
+
+    private final ConcurrentMap<Object, ExpiringValue<V>> map = new ConcurrentHashMap<Object, ExpiringValue<V>>();
+    private final AtomicLong evictions = new AtomicLong();
+    private final String name;
+    private final long runPeriod;
+    private final long timeout;
+    private final TimeService clock;
+
+    /**
+     * Constructor of ConcurrentExpiringMap.
+     *
+     * @param runPeriod Run period of the sweep in ms.
+     * @param timeout Default time to live of the entries in ms.
+     */
+    public ConcurrentExpiringMap(long runPeriod, long timeout) {
+        this(ConcurrentExpiringMap.class.getSimpleName(), runPeriod, timeout);
+    }
+
+    /**
+     * Constructor of ConcurrentExpiringMap.
+     *
+     * @param name The name of the map, used in statistics.
+     * @param runPeriod Run period of the sweep in ms.
+     * @param timeout Default time to live of the entries in ms.
+     */
+    public ConcurrentExpiringMap(String name, long runPeriod, long timeout) {
+        this(name, runPeriod, timeout, TimeService.SYSTEM);
+    }
+
+    /**
+     * Constructor of ConcurrentExpiringMap.
+     *
+     * @param runPeriod Run period of the sweep in ms.
+     * @param timeout Default time to live of the entries in ms.
+     * @param clock The clock the entries expire by.
+     */
+    public ConcurrentExpiringMap(long runPeriod, long timeout, TimeService clock) {
+        this(ConcurrentExpiringMap.class.getSimpleName(), runPeriod, timeout, clock);
+    }
+
+    /**
+     * Constructor of ConcurrentExpiringMap.
+     *
+     * @param name The name of the map, used in statistics.
+     * @param runPeriod Run period of the sweep in ms.
+     * @param timeout Default time to live of the entries in ms.
+     * @param clock The clock the entries expire by.
+     */
+    public ConcurrentExpiringMap(String name, long runPeriod, long timeout, TimeService clock) {
+        if (runPeriod < 0 || timeout < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.name = name;
+        this.runPeriod = runPeriod;
+        this.timeout = timeout;
+        this.clock = clock;
+    }
+
+    /**
+     * Puts the key and value to the map, expiring after the default time to live.
+     *
+     * @param key The key.
+     * @param value The value.
+     * @return The live value the key previously mapped to, or null.
+     */
+    public V put(K key, V value) {
+        return put(key, value, timeout);
+    }
+
+    /**
+     * Puts the key and value to the map, expiring after the given time to live.
+     *
+     * @param key The key.
+     * @param value The value.
+     * @param ttl Time to live of the entry in ms.
+     * @return The live value the key previously mapped to, or null.
+     */
+    public V put(K key, V value, long ttl) {
+        long now = clock.now();
+        return liveValue(map.put(maskNull(key), new ExpiringValue<V>(value, now + ttl)), now);
+    }
+
+    public V putIfAbsent(K key, V value) {
+        long now = clock.now();
+        Object maskedKey = maskNull(key);
+        ExpiringValue<V> entry = new ExpiringValue<V>(value, now + timeout);
+        while (true) {
+            ExpiringValue<V> current = map.putIfAbsent(maskedKey, entry);
+            if (current == null) {
+                return null;
+            }
+            if (!current.isExpired(now)) {
+                return current.value;
+            }
+            if (map.replace(maskedKey, current, entry)) {
+                evictions.incrementAndGet();
+                return null;
+            }
+        }
+    }
+
+    public V get(Object key) {
+        ExpiringValue<V> entry = getLive(maskNull(key));
+        return entry == null ? null : entry.value;
+    }
+
+    public boolean containsKey(Object key) {
+        return getLive(maskNull(key)) != null;
+    }
+
+    public boolean containsValue(Object value) {
+        return values().contains(value);
+    }
+
+    public V remove(Object key) {
+        return liveValue(map.remove(maskNull(key)), clock.now());
+    }
+
+    public boolean remove(Object key, Object value) {
+        Object maskedKey = maskNull(key);
+        ExpiringValue<V> entry = map.get(maskedKey);
+        return entry != null && !entry.isExpired(clock.now()) && eq(entry.value, value)
+                && map.remove(maskedKey, entry);
+    }
+
+    public boolean replace(K key, V oldValue, V newValue) {
+        long now = clock.now();
+        Object maskedKey = maskNull(key);
+        ExpiringValue<V> entry = map.get(maskedKey);
+        return entry != null && !entry.isExpired(now) && eq(entry.value, oldValue)
+                && map.replace(maskedKey, entry, new ExpiringValue<V>(newValue, now + timeout));
+    }
+
+    public V replace(K key, V value) {
+        long now = clock.now();
+        Object maskedKey = maskNull(key);
+        ExpiringValue<V> entry = new ExpiringValue<V>(value, now + timeout);
+        while (true) {
+            ExpiringValue<V> current = map.get(maskedKey);
+            if (current == null || current.isExpired(now)) {
+                return null;
+            }
+            if (map.replace(maskedKey, current, entry)) {
+                return current.value;
+            }
+        }
+    }
+
+    public void putAll(Map<? extends K, ? extends V> m) {
+        for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public void clear() {
+        map.clear();
+    }
+
+    /**
+     * Returns the number of entries in the map, including the expired entries which have not been dropped yet.
+     *
+     * @return The number of entries.
+     */
+    public int size() {
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    /**
+     * Returns the number of entries dropped from the map because they had expired.
+     *
+     * @return The number of expired entries dropped.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return A one line summary of the map statistics.
+     */
+    public String getStatistics() {
+        return name + ": size=" + size() + ", evictions=" + getEvictionCount();
+    }
+
+    public Set<K> keySet() {
+        return new AbstractSet<K>() {
+            public Iterator<K> iterator() {
+                final Iterator<Map.Entry<K, V>> entries = entrySet().iterator();
+                return new Iterator<K>() {
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    public K next() {
+                        return entries.next().getKey();
+                    }
+
+                    public void remove() {
+                        entries.remove();
+                    }
+                };
+            }
+
+            public int size() {
+                return liveSize();
+            }
+
+            public boolean contains(Object key) {
+                return containsKey(key);
+            }
+
+            public boolean remove(Object key) {
+                return map.remove(maskNull(key)) != null;
+            }
+        };
+    }
+
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            public Iterator<V> iterator() {
+                final Iterator<Map.Entry<K, V>> entries = entrySet().iterator();
+                return new Iterator<V>() {
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    public V next() {
+                        return entries.next().getValue();
+                    }
+
+                    public void remove() {
+                        entries.remove();
+                    }
+                };
+            }
+
+            public int size() {
+                return liveSize();
+            }
+        };
+    }
+
+    /**
+     * Returns a view of the live entries of the map. The entries cannot be changed through the view, and like the
+     * views of {@link ConcurrentHashMap}, it is weakly consistent. Counting the entries of the view, like those of the
+     * key and value views, takes a pass over the map.
+     *
+     * @return The entries of the map.
+     */
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new LiveEntryIterator();
+            }
+
+            public int size() {
+                return liveSize();
+            }
+        };
+    }
+
+    public boolean equals(Object o) {
+        return o == this || (o instanceof Map && new HashMap<K, V>(this).equals(o));
+    }
+
+    public int hashCode() {
+        return new HashMap<K, V>(this).hashCode();
+    }
+
+    /**
+     * Drops the expired entries from the map.
+     */
+    public void run() {
+        long now = clock.now();
+        for (Map.Entry<Object, ExpiringValue<V>> entry : map.entrySet()) {
+            if (entry.getValue().isExpired(now)) {
+                evict(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    public long getRunPeriod() {
+        return runPeriod;
+    }
+
+    public boolean addElement(Object key) {
+        return false;
+    }
+
+    public boolean removeElement(Object key) {
+        return false;
+    }
+
+    /*
+     * Unlike size(), the views only count the live entries, so that they are consistent with their iterators.
+     */
+    private int liveSize() {
+        int size = 0;
+        for (Iterator<Map.Entry<K, V>> i = new LiveEntryIterator(); i.hasNext(); i.next()) {
+            size++;
+        }
+        return size;
+    }
+
+    private ExpiringValue<V> getLive(Object maskedKey) {
+        ExpiringValue<V> entry = map.get(maskedKey);
+        if (entry != null && entry.isExpired(clock.now())) {
+            evict(maskedKey, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    private void evict(Object maskedKey, ExpiringValue<V> entry) {
+        if (map.remove(maskedKey, entry)) {
+            evictions.incrementAndGet();
+        }
+    }
+
+    private V liveValue(ExpiringValue<V> entry, long now) {
+        return entry == null || entry.isExpired(now) ? null : entry.value;
+    }
+
+    private static Object maskNull(Object key) {
+        return key == null ? NULL_KEY : key;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K> K unmaskNull(Object key) {
+        return key == NULL_KEY ? null : (K) key;
+    }
+
+    private static boolean eq(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private final class LiveEntryIterator implements Iterator<Map.Entry<K, V>> {
+        private final Iterator<Map.Entry<Object, ExpiringValue<V>>> entries = map.entrySet().iterator();
+        private final long now = clock.now();
+        private Map.Entry<K, V> next;
+        private Object lastKey;
+
+        public boolean hasNext() {
+            while (next == null && entries.hasNext()) {
+                Map.Entry<Object, ExpiringValue<V>> entry = entries.next();
+                if (!entry.getValue().isExpired(now)) {
+                    next = new AbstractMap.SimpleImmutableEntry<K, V>(ConcurrentExpiringMap.<K>unmaskNull(
+                            entry.getKey()), entry.getValue().value);
+                }
+            }
+            return next != null;
+        }
+
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<K, V> entry = next;
+            next = null;
+            lastKey = maskNull(entry.getKey());
+            return entry;
+        }
+
+        public void remove() {
+            if (lastKey == null) {
+                throw new IllegalStateException();
+            }
+            map.remove(lastKey);
+            lastKey = null;
+        }
+    }
+
+    private static final class ExpiringValue<V> {
+        private final V value;
+        private final long expiry;
+
+        private ExpiringValue(V value, long expiry) {
+            this.value = value;
+            this.expiry = expiry;
+        }
+
+        private boolean isExpired(long now) {
+            return expiry <= now;
+        }
+    }
+}
@@ -26,6 +26,10 @@
  *
  */
 
+/*
+ * Portions Copyrighted 2015 ForgeRock AS
+ */
+
 package com.sun.identity.common;
 
 import java.util.Date;
@@ -244,12 +248,13 @@ public class HeadTaskRunnable implements TaskRunnable {
     
     public void setNext(TaskRunnable task) {
         if (task == null) {
+            // cleared first so that the Triggerable can see the list is empty
+            nextTask = null;
             synchronized (this) {
                 if (parent != null) {
                     parent.trigger(time);
                 }
             }
-            nextTask = null;
         } else {
             nextTask = task;
         }
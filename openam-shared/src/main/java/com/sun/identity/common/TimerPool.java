@@ -27,38 +27,69 @@
  */
 
 /*
- * Portions Copyrighted 2012 ForgeRock Inc
+ * Portions Copyrighted 2012-2015 ForgeRock AS
  */
 
 package com.sun.identity.common;
 
 import com.sun.identity.shared.debug.Debug;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashSet;
-import java.util.NoSuchElementException;
-import java.util.Set;
-import java.util.SortedMap;
-import java.util.Timer;
-import java.util.TreeMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * TimerPool is a scheduleable version of ThreadPool.
+ *
+ * Scheduled tasks are held in a hashed timing wheel: an array of slots, each
+ * covering one tick of time, into which a task is placed according to the tick
+ * it is due in. Tasks scheduled for the same time share a HeadTaskRunnable,
+ * which is found by its time within the slot. Scheduling and cancelling a task
+ * are therefore constant time operations which do not take a pool-wide lock.
+ *
+ * Slots are only allocated once a task is first scheduled into them, so a pool
+ * with few tasks holds few slots whatever the size of its wheel.
+ *
+ * A scheduler thread advances the wheel once per tick and hands every task due
+ * in that tick to the worker threads in one batch. Tasks later than one turn of
+ * the wheel stay in their slot until the tick they are due in comes round.
+ * Tasks never run early, but may run up to one tick after their scheduled time.
  */
 
 public class TimerPool implements Triggerable {
-    
-    private int poolSize;
-    private String name;
-    private int busyThreadCount;
-    private int currentThreadCount;
+
+    /**
+     * Default length of one tick of the wheel in ms.
+     */
+    public static final long DEFAULT_TICK_DURATION = 100;
+
+    /**
+     * Default number of slots in the wheel.
+     */
+    public static final int DEFAULT_WHEEL_SIZE = 4096;
+
+    // Placed on the work queue to stop a worker thread.
+    private static final HeadTaskRunnable SHUTDOWN = new HeadTaskRunnable(null,
+        new InstantRunnable(false), new Date(0));
+
+    private final String name;
+    private final boolean daemon;
+    private final Debug debug;
+    private final long tickDuration;
+    private final AtomicReferenceArray<ConcurrentMap<Long, HeadTaskRunnable>>
+        wheel;
+    private final int mask;
+    private final BlockingQueue<HeadTaskRunnable> dueTasks;
+    private final List<WorkerThread> threads;
+    private final Scheduler scheduler;
+    private volatile long currentTick;
     private volatile boolean shutdownThePool;
-    private boolean daemon;
-    private WorkerThread[] threads;
-    private Scheduler scheduler;
-    private SortedMap taskList;
-    private Date nextRun;
-    private Debug debug;
 
     /**
      * Constructor of TimerPool.
@@ -69,382 +100,374 @@ public class TimerPool implements Triggerable {
      *        are daemon
      * @param debug Debug object to send debugging message to.
      */
-    
+
     public TimerPool(String name, int poolSize, boolean daemon, Debug debug) {
+        this(name, poolSize, daemon, debug, DEFAULT_TICK_DURATION,
+            DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Constructor of TimerPool with a specific wheel layout.
+     *
+     * @param name The name of the TimerPool
+     * @param poolSize The size of the TimerPool
+     * @param daemon The boolean to indicate whether the threads in TimerPool
+     *        are daemon
+     * @param debug Debug object to send debugging message to.
+     * @param tickDuration The length of one tick of the wheel in ms
+     * @param wheelSize The number of slots in the wheel, a power of two
+     */
+
+    TimerPool(String name, int poolSize, boolean daemon, Debug debug,
+        long tickDuration, int wheelSize) {
+        if ((tickDuration <= 0) || (wheelSize <= 0) ||
+            ((wheelSize & (wheelSize - 1)) != 0)) {
+            throw new IllegalArgumentException();
+        }
         this.name = name;
-	this.poolSize = poolSize;
-        this.busyThreadCount = 0;
-        this.currentThreadCount = 0;
         this.daemon = daemon;
         this.debug = debug;
+        this.tickDuration = tickDuration;
+        this.mask = wheelSize - 1;
+        this.wheel = new AtomicReferenceArray<ConcurrentMap<Long,
+            HeadTaskRunnable>>(wheelSize);
+        this.dueTasks = new LinkedBlockingQueue<HeadTaskRunnable>();
+        this.currentTick = System.currentTimeMillis() / tickDuration;
         this.shutdownThePool = false;
-        this.threads = new WorkerThread[poolSize];
-        this.scheduler = new Scheduler(this);
-        this.scheduler.start();
-        this.taskList = Collections.synchronizedSortedMap(new TreeMap());
-        synchronized (this) {
-            createThreads(poolSize);
+        this.threads = new CopyOnWriteArrayList<WorkerThread>();
+        for (int i = 0; i < poolSize; i++) {
+            startWorker();
         }
+        this.scheduler = new Scheduler();
+        this.scheduler.start();
     }
-    
+
     /**
-     * Creates threads to the TimerPool.
-     *
-     * @param timersToCreate Number of threads in the TimerPool after creation
+     * Starts a new worker thread in the pool.
      */
-    
-    private void createThreads(int timersToCreate) {
-        if (timersToCreate > poolSize) {
-            timersToCreate = poolSize;
-        }
-        for (int i = currentThreadCount; i < timersToCreate; i++) {
-            threads[i - busyThreadCount] = new WorkerThread(name, this);
-            threads[i - busyThreadCount].setDaemon(daemon);
-            threads[i - busyThreadCount].start();
+
+    private void startWorker() {
+        WorkerThread t = new WorkerThread();
+        t.setDaemon(daemon);
+        threads.add(t);
+        t.start();
+    }
+
+    /**
+     * Returns the first tick at the end of which the given time has passed, so
+     * that tasks are never run early.
+     */
+
+    private long tickOf(long time) {
+        return (Math.max(time, 0) + tickDuration - 1) / tickDuration;
+    }
+
+    /**
+     * Returns the slot of the wheel which holds tasks due in the given tick,
+     * or null if no task has been scheduled into it yet.
+     */
+
+    private ConcurrentMap<Long, HeadTaskRunnable> slotOf(long tick) {
+        return wheel.get((int) (tick & mask));
+    }
+
+    /**
+     * Returns the slot of the wheel which holds tasks due in the given tick,
+     * allocating it if necessary.
+     */
+
+    private ConcurrentMap<Long, HeadTaskRunnable> createSlotOf(long tick) {
+        int index = (int) (tick & mask);
+        ConcurrentMap<Long, HeadTaskRunnable> slot = wheel.get(index);
+        if (slot == null) {
+            wheel.compareAndSet(index, null,
+                new ConcurrentHashMap<Long, HeadTaskRunnable>());
+            slot = wheel.get(index);
         }
-        currentThreadCount = timersToCreate;
+        return slot;
     }
-    
+
     /**
-     * Returns thread which is free in the pool.
+     * Moves the wheel on to the given time, handing every task which is due to
+     * the worker threads.
      *
-     * @return A thread which is free from the TimerPool
+     * @param now The current time
      */
-    
-    private WorkerThread getAvailableThread() {
-        WorkerThread t = null;
-        synchronized (this) {
-            if (currentThreadCount == busyThreadCount) {
-                createThreads(poolSize);
+
+    private void advance(long now) {
+        long target = now / tickDuration;
+        long tick = currentTick;
+        if (target < tick) {
+            // The clock has moved backwards, wait for it to catch up.
+            currentTick = target;
+        } else if (target - tick > wheel.length()) {
+            // Far behind, so sweep the whole wheel once.
+            currentTick = target;
+            for (int i = 0; i < wheel.length(); i++) {
+                expire(wheel.get(i), target);
+            }
+        } else {
+            while (tick < target) {
+                tick++;
+                // Published before the slot is read, see schedule().
+                currentTick = tick;
+                expire(slotOf(tick), tick);
             }
-            t = threads[currentThreadCount - busyThreadCount - 1];
-            threads[currentThreadCount - busyThreadCount - 1] = null;
-            busyThreadCount++;
         }
-        return t;
     }
-    
+
     /**
-     * Runs the next timeout task in the sorted container.
+     * Removes every task in the slot which is due by the given tick and hands
+     * them to the worker threads as one batch.
      */
-    
-    private void runNext() {
-        WorkerThread t = null;
-        HeadTaskRunnable task = null;
-        synchronized (this) {
-            if (shutdownThePool) {
-                return;
-            } else {
-                while (busyThreadCount == poolSize) {
-                    try {
-                        wait();
-                        if (shutdownThePool) {
-                            return;
-                        }
-                    } catch(Exception ex) {
-                        if (debug != null) {
-                            debug.error("TimerPool:runNext() " + name, ex);
-                        }
-                    }
-                }
-                if (nextRun != null) {
-                    long now = System.currentTimeMillis();
-                    if (nextRun.getTime() <= now ) {
-                        if ((task = (HeadTaskRunnable) taskList.remove(nextRun)) 
-                            != null) {
-                            t = getAvailableThread();
-                        }
-                    }
-                    try {
-                        nextRun = (Date) taskList.firstKey();
-                        long delay = nextRun.getTime() - now;
-                        scheduler.setDelay((delay >= 0 ? delay : 0));
-                    } catch(NoSuchElementException ex) {
-                        nextRun = null;
-                        scheduler.setDelay(-1);
-                    }
+
+    private void expire(ConcurrentMap<Long, HeadTaskRunnable> slot, long tick) {
+        if (slot == null) {
+            return;
+        }
+        List<HeadTaskRunnable> due = null;
+        for (Map.Entry<Long, HeadTaskRunnable> entry : slot.entrySet()) {
+            if ((tickOf(entry.getKey().longValue()) <= tick) &&
+                slot.remove(entry.getKey(), entry.getValue())) {
+                if (due == null) {
+                    due = new ArrayList<HeadTaskRunnable>();
                 }
+                due.add(entry.getValue());
             }
         }
-        if ((t != null) && (task != null)) {
-            t.runTask(task);
+        if (due != null) {
+            dueTasks.addAll(due);
         }
     }
-    
-    /**
-     * Decreases the number of current threads in the TimerPool.
-     */
-    
-    private synchronized void deductCurrentThreadCount(){
-        currentThreadCount--;
-        busyThreadCount--;
-        notify();
-    }
-    
-    /**
-     * Replaces the scheduler thread in the TimerPool.
-     */
-    
-    private synchronized void replaceScheduler() {
-        scheduler.terminate();
-        scheduler = new Scheduler(this);
-        scheduler.start();
-    }
-    
+
     /**
-     * Returns the thread to the TimerPool.
+     * Runs all the tasks linked to a HeadTaskRunnable which is due.
      *
-     * @param t The thread to be returned to the TimerPool
+     * @param head The head of the tasks to be run
      */
-    
-    private void returnThread(WorkerThread t) {        
-        if (shutdownThePool) {
-            t.terminate();
-            synchronized (this) {
-                busyThreadCount--;
-                if(busyThreadCount == 0){
-                    notifyAll();
+
+    private void runTasks(HeadTaskRunnable head) {
+        if (!head.acquireValidLock()) {
+            return;
+        }
+        TaskRunnable localTask = null;
+        try {
+            // skip head task
+            head.timeout();
+            localTask = head.next();
+            while (localTask != null) {
+                TaskRunnable runTask = localTask;
+                localTask = localTask.next();
+                // cut the connection before run the task.
+                runTask.setNext(null);
+                boolean failed = false;
+                try {
+                    runTask.run();
+                } catch (RuntimeException ex) {
+                    failed = true;
+                    if (debug != null) {
+                        debug.error("TimerPool:runTasks() " + name, ex);
+                    }
+                } catch (Error e) {
+                    failed = true;
+                    // Leave the remaining tasks for another thread.
+                    if (localTask != null) {
+                        head.setNext(localTask);
+                        localTask.setPrevious(head);
+                        dueTasks.add(head);
+                    }
+                    throw e;
+                } finally {
+                    // A task which failed may have rescheduled itself already.
+                    if ((runTask.getRunPeriod() >= 0) && !shutdownThePool &&
+                        !(failed && (runTask.scheduledExecutionTime() !=
+                        head.scheduledExecutionTime()))) {
+                        schedule(runTask, new Date(
+                            head.scheduledExecutionTime() +
+                            runTask.getRunPeriod()));
+                    }
                 }
             }
-        } else {
-            
-            synchronized (this) {
-                busyThreadCount--;
-                // return timers from the end of array
-                threads[currentThreadCount - busyThreadCount - 1] = t;
-                notify();
-            }
+            head.expire();
+        } finally {
+            head.releaseLockAndNotify();
         }
     }
-    
+
     /**
      * Schedules a TaskRunnable to the TimerPool.
      *
      * @param task The TaskRunnable to be scheduled
      * @param time The time to run the TaskRunnable
      */
-    
+
     public void schedule(TaskRunnable task, Date time) throws
         IllegalArgumentException, IllegalStateException {
         if (shutdownThePool) {
             throw new IllegalStateException(
                 "The timers have been shuted down!");
-        } else {
-            if ((task != null) && (time != null)) {
-                HeadTaskRunnable head = null;
-                do {
-                    head = task.getHeadTask();
-                    if (head != null) {
-                        if (head.acquireValidLock()) {
-                            try {
-                                if (head == task.getHeadTask()) {
-                                    if (head.scheduledExecutionTime() ==
-                                        time.getTime()) {
-                                        return;
-                                    } else {
-                                        if (!head.isTimedOut()) {
-                                            throw new IllegalStateException(
-                                                "The task has been scheduled!");
-                                        }
-                                    }
+        }
+        if ((task == null) || (time == null)) {
+            throw new IllegalArgumentException();
+        }
+        HeadTaskRunnable head = null;
+        do {
+            head = task.getHeadTask();
+            if (head != null) {
+                if (head.acquireValidLock()) {
+                    try {
+                        if (head == task.getHeadTask()) {
+                            if (head.scheduledExecutionTime() ==
+                                time.getTime()) {
+                                return;
+                            } else {
+                                if (!head.isTimedOut()) {
+                                    throw new IllegalStateException(
+                                        "The task has been scheduled!");
                                 }
-                            } finally {
-                                head.releaseLockAndNotify();
                             }
                         }
-                    }
-                } while (head != task.getHeadTask());
-                synchronized (taskList) {
-                    if((head = (HeadTaskRunnable) taskList.get(time)) == null) {
-                        task.setNext(null);
-                        taskList.put(time, new HeadTaskRunnable(this, task,
-                            time));        
+                    } finally {
+                        head.releaseLockAndNotify();
                     }
                 }
-                if (head == null) {
-                    synchronized (this) {
-                        if ((nextRun == null) ||
-                            (time.getTime() < nextRun.getTime())) {
-                            nextRun = time;
-                            long delay = time.getTime() -
-                                System.currentTimeMillis();
-                            scheduler.setWait(((delay < 0) ? 0 : delay));
-                        }
-                    }
-                } else {
-                    if (head.acquireValidLock()) {
-                        try {
-                            task.setHeadTask(head);
-                            TaskRunnable tailTask = head.tail();
-                            task.setPrevious(tailTask);
-                            tailTask.setNext(task);
-                            task.setNext(null);
-                            head.setTail(task);
-                        } finally {
-                            head.releaseLockAndNotify();
-                        }
-                    } else {
-                        schedule(task, time);
-                    }
+            }
+        } while (head != task.getHeadTask());
+
+        Long key = Long.valueOf(time.getTime());
+        long tick = tickOf(time.getTime());
+        ConcurrentMap<Long, HeadTaskRunnable> slot = createSlotOf(tick);
+        head = slot.get(key);
+        if (head == null) {
+            task.setNext(null);
+            HeadTaskRunnable newHead = new HeadTaskRunnable(this, task, time);
+            head = slot.putIfAbsent(key, newHead);
+            if (head == null) {
+                // If the scheduler has already passed this tick it may not
+                // have seen the new task, so whichever removes it runs it.
+                if ((tick <= currentTick) && slot.remove(key, newHead)) {
+                    dueTasks.add(newHead);
                 }
-            } else {
-                throw new IllegalArgumentException();
+                return;
             }
         }
+        if (head.acquireValidLock()) {
+            try {
+                task.setHeadTask(head);
+                TaskRunnable tailTask = head.tail();
+                task.setPrevious(tailTask);
+                tailTask.setNext(task);
+                task.setNext(null);
+                head.setTail(task);
+            } finally {
+                head.releaseLockAndNotify();
+            }
+        } else {
+            schedule(task, time);
+        }
     }
-    
+
     /**
      * Schedules the TaskRunnable to the TimerPool.
      *
      * @param task The TaskRunnable to be scheduled
      * @param delay The time (in ms) to wait before running the task
      */
-    
+
     public void schedule(TaskRunnable task, long delay) throws
         IllegalArgumentException, IllegalStateException {
         schedule(task, new Date(System.currentTimeMillis() + delay));
     }
-    
+
     /**
      * Implements the trigger function for Triggerable interface.
      */
-    
+
     public void trigger(Date time) {
-        // no need to synchronize for single operation
-        taskList.remove(time);
+        Long key = Long.valueOf(time.getTime());
+        ConcurrentMap<Long, HeadTaskRunnable> slot =
+            slotOf(tickOf(time.getTime()));
+        HeadTaskRunnable head = (slot == null) ? null : slot.get(key);
+        // Only remove the head once it is empty, it may have been replaced by
+        // a new head for the same time.
+        if ((head != null) && (head.next() == null) && slot.remove(key, head)) {
+            // Stop tasks waiting to join the removed head, so that they are
+            // scheduled to a new one instead.
+            if (head.getCurrentOwner() == Thread.currentThread()) {
+                head.expire();
+            }
+        }
     }
-    
+
     /**
-     * Shuts down the TimerPool.
+     * Shuts down the TimerPool. Tasks which are running are allowed to finish,
+     * tasks which have not started will not be run.
      */
-    
+
     public synchronized void shutdown() {
-        if(!shutdownThePool) {
+        if (!shutdownThePool) {
             shutdownThePool = true;
-            scheduler.terminate();
-            for(int i = 0; i < currentThreadCount - busyThreadCount; i++) {
-                // terminate the thread from the beginning of the array
-                threads[i].terminate();
+            scheduler.interrupt();
+            dueTasks.clear();
+            for (int i = 0; i < threads.size(); i++) {
+                dueTasks.add(SHUTDOWN);
             }
-            while(busyThreadCount != 0){
-                try{
-                    // wait if there are threads running, it will be notified
-                    // when they all back.
-                    wait();
-                } catch (Exception ex) {
+            for (WorkerThread t : threads) {
+                if (t == Thread.currentThread()) {
+                    continue;
+                }
+                try {
+                    t.join();
+                } catch (InterruptedException ex) {
                     if (debug != null) {
                         debug.error("TimerPool:shutdown() " + name, ex);
                     }
+                    Thread.currentThread().interrupt();
+                    break;
                 }
             }
-            currentThreadCount = busyThreadCount = 0;
-            threads = null;
+            threads.clear();
+            for (int i = 0; i < wheel.length(); i++) {
+                wheel.set(i, null);
+            }
         }
     }
-    
+
     /**
      * WorkerThread is the threads which actually do the jobs. A WorkerThread
-     * will be assigned to the task when it is time.
+     * takes the next task which is due from the queue filled by the Scheduler.
      */
-    
-    private class WorkerThread extends Thread{
-        
-        private TimerPool pool;
-        private HeadTaskRunnable task;
-        private volatile boolean shouldTerminate;
-        private volatile boolean needReturn;
+
+    private class WorkerThread extends Thread {
 
         /**
          * Constructor of WorkerThread.
-         *
-         * @param name The name of the thread
-         * @param pool The TimerPool the thread belongs to
          */
-        
-        public WorkerThread(String name, TimerPool pool) {
+
+        public WorkerThread() {
             setName(name);
-            this.pool = pool;
-            this.shouldTerminate = false;
-            this.needReturn = true;
-            this.task = null;
-        }
-    
-        /**
-         * Runs the task.
-         *
-         * @param toRun The head of the tasks to be run
-         */
-        
-        public synchronized void runTask(HeadTaskRunnable toRun) {
-            this.task = toRun;
-            // Although the thread may not in wait state when this function
-            // is called (the taskList is not empty), it doesn't hurt to
-            // call it.  getState method can check whether the Thread is
-            // waiting, but it is available in jdk1.5 or newer.
-            this.notify();
-        }
-        
-        /**
-         * Terminates this WorkerThread.
-         */
-        
-        // terminate the thread pool when daemon is set to false
-        // it is better to have a way to terminate the thread pool
-        public synchronized void terminate() {
-            shouldTerminate = true;
-            needReturn = false;
-            this.notify();
         }
-        
+
         /**
          * Implements the run method with errors handling for Thread object.
          */
-        
+
         public void run() {
-            HeadTaskRunnable localHeadTask = null;
-            TaskRunnable localTask = null;
-            TaskRunnable runTask = null;
-            WorkerThread t = this;
             while (true) {
-                try{
-                    synchronized(this) {
-                        if ((!shouldTerminate) && (task == null)) {
-                            this.wait();
-                        }
-                        // need a local copy because they may be changed after
-                        // leaving synchronized block.
-                        localHeadTask = task;
-                        task = null;
-                    }
-                    if (shouldTerminate) {
-                        // we may need to log something here!
+                HeadTaskRunnable head;
+                try {
+                    head = dueTasks.take();
+                } catch (InterruptedException ex) {
+                    if (shutdownThePool) {
                         break;
                     }
-                    if(localHeadTask != null){
-                        if (localHeadTask.acquireValidLock()) {
-                            try {
-                                // skip head task
-                                localHeadTask.timeout();
-                                localTask = localHeadTask.next();
-                                while (localTask != null) {
-                                    runTask = localTask;
-                                    localTask = localTask.next();
-                                    // cut the connection before run the task.
-                                    runTask.setNext(null);
-                                    runTask.run();
-                                    if (runTask.getRunPeriod() >= 0) {
-                                        pool.schedule(runTask, new Date(
-                                            localHeadTask
-                                            .scheduledExecutionTime()
-                                            + runTask.getRunPeriod()));
-                                    }
-                                }
-                                localHeadTask.expire();
-                            } finally {
-                                localHeadTask.releaseLockAndNotify();
-                            }
-                        }
-                    }
+                    continue;
+                }
+                if (head == SHUTDOWN) {
+                    break;
+                }
+                try {
+                    runTasks(head);
                 } catch (IllegalStateException ex) {
                     if (debug != null) {
                         debug.message("TimerPool$WorkerThread:run() " + name,
@@ -452,212 +475,62 @@ public class TimerPool implements Triggerable {
                     }
                     // This exception will be thrown only if the Timer has been
                     // shutdown already.
-                    shouldTerminate = true;
-                } catch (RuntimeException ex) {
-                    if (debug != null) {
-                        debug.error("TimerPool$WorkerThread:run() " + name, ex);
-                    }
-                    if (localHeadTask != null) {
-                        if (localHeadTask.acquireValidLock()) {
-                            try {
-                                if ((runTask.getRunPeriod() >= 0) &&
-                                    (runTask.scheduledExecutionTime() ==
-                                    localHeadTask.scheduledExecutionTime())){
-                                    pool.schedule(runTask, new Date(
-                                        localHeadTask.scheduledExecutionTime()
-                                        + runTask.getRunPeriod()));
-                                }
-                                if (localTask != null) {
-                                    localHeadTask.setNext(localTask);
-                                    localTask.setPrevious(localHeadTask);
-                                }
-                            } catch (IllegalStateException iex) {
-                                if (debug != null) {
-                                    debug.message("TimerPool$WorkerThread:" + 
-                                        "run() " + name, iex);
-                                }
-                                // This exception will be thrown only if the
-                                // Timer has been shutdown already.
-                                shouldTerminate = true;
-                            } finally {
-                                localHeadTask.releaseLockAndNotify();
-                            }
-                        }
-                    }
-                    synchronized (pool) {
-                        pool.deductCurrentThreadCount();
-                        if (localTask != null) {
-                            WorkerThread thread = pool.getAvailableThread();
-                            thread.runTask(localHeadTask);
-                        }
+                    if (shutdownThePool) {
+                        break;
                     }
-                    shouldTerminate = true;
-                    needReturn = false;
-                } catch (Exception ex) {
+                } catch (RuntimeException ex) {
                     if (debug != null) {
                         debug.error("TimerPool$WorkerThread:run() " + name, ex);
                     }
-                    // don't need to rethrow
-	        } catch (Throwable e) {
+                } catch (Error e) {
                     if (debug != null) {
                         debug.error("TimerPool$WorkerThread:run() " + name, e);
                     }
-                    if (localHeadTask != null) {
-                        if (localHeadTask.acquireValidLock()) {
-                            try {                        
-                                if ((runTask.getRunPeriod() >= 0) &&
-                                    (runTask.scheduledExecutionTime() ==
-                                    localHeadTask.scheduledExecutionTime())){
-                                    pool.schedule(runTask, new Date(
-                                        localHeadTask.scheduledExecutionTime()
-                                        + runTask.getRunPeriod()));
-                                }
-                                if (localTask != null) {
-                                    localHeadTask.setNext(localTask);
-                                    localTask.setPrevious(localHeadTask);
-                                }
-                            } catch (IllegalStateException iex) {
-                                if (debug != null) {
-                                    debug.message("TimerPool$WorkerThread:" + 
-                                        "run() " + name, iex);
-                                }
-                                // This exception will be thrown only if the
-                                // Timer has been shutdown already.
-                                shouldTerminate = true;
-                            } finally {
-                                localHeadTask.releaseLockAndNotify();
-                            }
-                        }
-                    }
-                    synchronized (pool) {
-                        pool.deductCurrentThreadCount();
-                        if (localTask != null) {
-                            WorkerThread thread = pool.getAvailableThread();
-                            thread.runTask(localHeadTask);
-                        }
-                    }
-                    shouldTerminate = true;
-                    needReturn = false;
-                    // rethrow Error here
-                    throw new Error(e);
-	        } finally {
-                    localHeadTask = null;
-                    localTask = null;
-                    runTask = null;
-                    // the thread may has returned already if shutdown is
-                    // called.
-                    if (needReturn) {
-                        pool.returnThread(t);
+                    threads.remove(this);
+                    if (!shutdownThePool) {
+                        startWorker();
                     }
+                    throw e;
                 }
-                if (shouldTerminate) {
-                    // we may need to log something here!
-                    break;
-                }
-	    }
+            }
         }
     }
-    
+
     /**
-     * Scheduler is the one who handles the time to wait and assign a thread to
-     * the task when it is time. If there is no thread availabe when it is time
-     * to run a particular task, Scheduler will wait until thread available.
+     * Scheduler is the one who advances the wheel once every tick and hands the
+     * tasks which are due to the worker threads.
      */
-    
+
     private class Scheduler extends Thread {
-        
-        private volatile boolean shouldTerminate;
-        private boolean beingNotified;
-        private long delay;
-        private TimerPool pool;
-        
+
         /**
          * Constructor of Scheduler.
-         *
-         * @param pool The TimerPool the Scheduler belongs to
-         */
-        
-        public Scheduler(TimerPool pool) {
-            this.shouldTerminate = false;
-            this.beingNotified = false;
-            this.delay = -1;
-            this.pool = pool;
-            setName(pool.name + "-Scheduler");
-        }
-        
-        /**
-         * Sets the time (in ms) to wait.
-         *
-         * @param delay The time (in ms) to wait
-         */
-        
-        public synchronized void setWait(long delay) {
-            this.delay = delay;
-            this.beingNotified = true;
-            this.notify();
-        }
-        
-        /**
-         * Sets the time (in ms) to wait without notification.
-         *
-         * @param delay The time (in ms) to wait
-         */
-        
-        public synchronized void setDelay(long delay) {
-            this.delay = delay;
-        }
-        
-        /**
-         * Terminates this Scheduler.
          */
-        
-        public synchronized void terminate() {
-            this.shouldTerminate = true;
-            this.notify();
+
+        public Scheduler() {
+            setName(name + "-Scheduler");
+            setDaemon(daemon);
         }
-        
+
         /**
          * Implements run method with errors handling for Thread object.
          */
-        
+
         public void run() {
-            long localDelay = -1;
-            while (true) {
+            while (!shutdownThePool) {
                 try {
-                    synchronized (this) {
-                        if (!shouldTerminate) {
-                            if (delay > 0) {
-                                this.wait(delay);
-                                if (beingNotified) {
-                                    beingNotified = false;
-                                    continue;
-                                }
-                            } else {
-                                if (delay < 0) {
-                                    this.wait();
-                                    if (beingNotified) {
-                                        beingNotified = false;
-                                        continue;
-                                    }
-                                }
-                            }
-                        }
-                    }
-                    if (shouldTerminate) {
-                        break;
-                    }
-                    pool.runNext();
+                    advance(System.currentTimeMillis());
+                    long delay = (currentTick + 1) * tickDuration
+                        - System.currentTimeMillis();
+                    Thread.sleep((delay > 0) ? delay : 1);
+                } catch (InterruptedException ex) {
+                    // shutdown is checked by the loop
                 } catch (RuntimeException ex) {
-                    pool.replaceScheduler();
-                } catch (Exception ex) {
-                } catch (Throwable t) {
-                    pool.replaceScheduler();
-                    throw new Error(t);
-                }
-                if (shouldTerminate) {
-                    break;
+                    if (debug != null) {
+                        debug.error("TimerPool$Scheduler:run() " + name, ex);
+                    }
                 }
             }
         }
     }
-} 
+}
@@ -26,6 +26,10 @@
  *
  */
 
+/*
+ * Portions Copyrighted 2015 ForgeRock AS
+ */
+
 package com.sun.identity.common;
 
 import java.util.Date;
@@ -33,7 +37,7 @@ import java.util.Date;
 /**
  * Triggerable is the interface to be used when HeadTaskRunnable has no next
  * element. The function in Triggerable is responsible to remove the element
- * from the sorted container in TimerPool.
+ * from the timing wheel in TimerPool.
  */
 
 public interface Triggerable {
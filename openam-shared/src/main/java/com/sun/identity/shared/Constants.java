@@ -1355,4 +1355,153 @@ public interface Constants {
      * Property to define the default time limit for LDAP operations performed by the Netscape LDAP SDK.
      */
     public static final String DEFAULT_LDAP_TIME_LIMIT = "org.forgerock.openam.ldap.default.time.limit";
+
+    /**
+     * Property to enable/disable batched delivery of session notifications.
+     */
+    public static final String SESSION_NOTIFICATION_BATCH_ENABLED =
+            "org.forgerock.openam.session.notification.batch.enabled";
+
+    /**
+     * Milliseconds a session notification may wait to be batched with others to the same URL.
+     */
+    public static final String SESSION_NOTIFICATION_FLUSH_INTERVAL =
+            "org.forgerock.openam.session.notification.batch.flushInterval";
+
+    /**
+     * Maximum number of session notifications sent to a URL at once.
+     */
+    public static final String SESSION_NOTIFICATION_BATCH_SIZE =
+            "org.forgerock.openam.session.notification.batch.size";
+
+    /**
+     * Maximum number of session notifications queued for a URL.
+     */
+    public static final String SESSION_NOTIFICATION_QUEUE_SIZE =
+            "org.forgerock.openam.session.notification.batch.queueSize";
+
+    /**
+     * Number of times a batch of session notifications is retried before it is dropped.
+     */
+    public static final String SESSION_NOTIFICATION_MAX_RETRIES =
+            "org.forgerock.openam.session.notification.batch.maxRetries";
+
+    /**
+     * Milliseconds before a failed batch of session notifications is first retried.
+     */
+    public static final String SESSION_NOTIFICATION_RETRY_INTERVAL =
+            "org.forgerock.openam.session.notification.batch.retryInterval";
+
+    /**
+     * Maximum number of other servers queried at once for the sessions of a user.
+     */
+    public static final String SESSION_PEER_QUERY_THREADS =
+            "org.forgerock.openam.session.peerQuery.threads";
+
+    /**
+     * Milliseconds to wait for the other servers of a site to answer a session query.
+     */
+    public static final String SESSION_PEER_QUERY_TIMEOUT =
+            "org.forgerock.openam.session.peerQuery.timeout";
+
+    /**
+     * Milliseconds the sessions of a user on the other servers are remembered for; 0 disables remembering them.
+     */
+    public static final String SESSION_COUNT_PEER_CACHE_TTL =
+            "org.forgerock.openam.session.peerQuery.cache.ttl";
+
+    /**
+     * Maximum number of users whose sessions on the other servers are remembered.
+     */
+    public static final String SESSION_COUNT_PEER_CACHE_SIZE =
+            "org.forgerock.openam.session.peerQuery.cache.size";
+
+    /**
+     * Milliseconds an OAuth2 client registration is remembered for; 0 disables remembering registrations.
+     */
+    public static final String OAUTH2_CLIENT_CACHE_TTL =
+            "org.forgerock.openam.oauth2.client.cache.ttl";
+
+    /**
+     * Milliseconds the absence of an OAuth2 client registration is remembered for.
+     */
+    public static final String OAUTH2_CLIENT_CACHE_NEGATIVE_TTL =
+            "org.forgerock.openam.oauth2.client.cache.negativeTtl";
+
+    /**
+     * Maximum number of OAuth2 client registrations remembered per realm.
+     */
+    public static final String OAUTH2_CLIENT_CACHE_SIZE =
+            "org.forgerock.openam.oauth2.client.cache.size";
+
+    /**
+     * Maximum number of audit log records queued for the log writer thread.
+     */
+    public static final String LOG_WRITER_QUEUE_SIZE =
+            "org.forgerock.openam.log.writer.queueSize";
+
+    /**
+     * Maximum number of audit log records the log writer thread takes from its queue in one pass.
+     */
+    public static final String LOG_WRITER_BATCH_SIZE =
+            "org.forgerock.openam.log.writer.batchSize";
+
+    /**
+     * When audit log files are synced to disk: NONE, BATCH (after every group of records) or INTERVAL.
+     */
+    public static final String LOG_WRITER_FSYNC_POLICY =
+            "org.forgerock.openam.log.writer.fsyncPolicy";
+
+    /**
+     * Milliseconds between syncs of the audit log files when the fsync policy is INTERVAL.
+     */
+    public static final String LOG_WRITER_FSYNC_INTERVAL =
+            "org.forgerock.openam.log.writer.fsyncInterval";
+
+    /**
+     * The maximum number of audit log records inserted into a database table by one JDBC batch.
+     */
+    public static final String LOG_DB_BATCH_SIZE = "org.forgerock.openam.log.db.batchSize";
+
+    /**
+     * The number of rows fetched from the database at a time when reading audit logs from a database table.
+     */
+    public static final String LOG_DB_FETCH_SIZE = "org.forgerock.openam.log.db.fetchSize";
+
+    /**
+     * The maximum number of idle connections to an audit log database kept open for reuse.
+     */
+    public static final String LOG_DB_POOL_SIZE = "org.forgerock.openam.log.db.poolSize";
+
+    /**
+     * The maximum number of group and role membership resolutions remembered by each LDAPv3 data store, 0 disables
+     * the membership cache.
+     */
+    public static final String LDAP_MEMBERSHIP_CACHE_SIZE = "org.forgerock.openam.idrepo.ldapv3.membershipCache.size";
+
+    /**
+     * Milliseconds a group or role membership resolution is remembered by an LDAPv3 data store, 0 disables the
+     * membership cache.
+     */
+    public static final String LDAP_MEMBERSHIP_CACHE_TTL = "org.forgerock.openam.idrepo.ldapv3.membershipCache.ttl";
+
+    /**
+     * The number of nesting levels an LDAPv3 data store expands group members and group memberships by, 0 (the
+     * default) only returns the direct ones.
+     */
+    public static final String LDAP_NESTED_GROUP_DEPTH = "org.forgerock.openam.idrepo.ldapv3.nestedGroups.maxDepth";
+
+    /**
+     * Milliseconds between the background writes of the invalid login attempts of users to the data store; 0 writes
+     * every invalid attempt straight away.
+     */
+    public static final String ACCOUNT_LOCKOUT_WRITE_INTERVAL =
+            "org.forgerock.openam.authentication.accountLockout.writeInterval";
+
+    /**
+     * The number of users with invalid login attempts waiting to be written to the data store, above which invalid
+     * attempts are written straight away.
+     */
+    public static final String ACCOUNT_LOCKOUT_MAX_PENDING_WRITES =
+            "org.forgerock.openam.authentication.accountLockout.maxPendingWrites";
 }
@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2014 ForgeRock AS.
+ * Copyright 2014-2015 ForgeRock AS.
  */
 package com.sun.identity.shared.debug;
 
@@ -47,6 +47,31 @@ public final class DebugConstants {
 
     public static final String CONFIG_DEBUG_DIRECTORY = "com.iplanet.services.debug.directory";
 
+    /**
+     * Debug messages are written by a background thread when set to true.
+     */
+    public static final String CONFIG_DEBUG_ASYNC = "org.forgerock.openam.debug.async";
+
+    /**
+     * Number of debug messages waiting to be written by the background thread.
+     */
+    public static final String CONFIG_DEBUG_ASYNC_BUFFER_SIZE = "org.forgerock.openam.debug.async.bufferSize";
+
+    /**
+     * Number of debug messages written before the debug files are flushed.
+     */
+    public static final String CONFIG_DEBUG_ASYNC_FLUSH_SIZE = "org.forgerock.openam.debug.async.flushSize";
+
+    /**
+     * Milliseconds after which written debug messages are flushed.
+     */
+    public static final String CONFIG_DEBUG_ASYNC_FLUSH_INTERVAL = "org.forgerock.openam.debug.async.flushInterval";
+
+    /**
+     * BLOCK to make logging threads wait when the debug buffer is full, DROP to drop their messages.
+     */
+    public static final String CONFIG_DEBUG_ASYNC_FULL_POLICY = "org.forgerock.openam.debug.async.fullPolicy";
+
     /**
      * Constant string used as property key to look up the debug provider class
      * name.
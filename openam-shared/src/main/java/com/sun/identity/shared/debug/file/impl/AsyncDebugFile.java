@@ -0,0 +1,51 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package com.sun.identity.shared.debug.file.impl;
+
+import com.sun.identity.shared.debug.file.DebugFile;
+
+import java.io.IOException;
+
+/**
+ * Debug file whose messages are written by an {@link AsyncDebugWriter} rather than by the logging thread.
+ */
+public class AsyncDebugFile implements DebugFile {
+
+    private final DebugFileImpl debugFile;
+
+    private final AsyncDebugWriter writer;
+
+    /**
+     * Constructor
+     *
+     * @param debugFile the debug file the messages are written to, which should not flush every message
+     * @param writer    the writer which writes the messages
+     */
+    public AsyncDebugFile(DebugFileImpl debugFile, AsyncDebugWriter writer) {
+        this.debugFile = debugFile;
+        this.writer = writer;
+    }
+
+    @Override
+    public void writeIt(String prefix, String msg, Throwable th) throws IOException {
+        writer.write(debugFile, prefix, msg, th);
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncDebugFile{" + debugFile + '}';
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package com.sun.identity.shared.debug.file.impl;
+
+import com.sun.identity.common.ShutdownListener;
+import com.sun.identity.common.ShutdownManager;
+import com.sun.identity.common.ShutdownPriority;
+import com.sun.identity.shared.Constants;
+import org.forgerock.openam.shared.concurrency.RingBuffer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes debug messages to their debug files on a single background thread, so that the threads logging them
+ * neither wait for the disk nor for each other.
+ * <p/>
+ * Messages are handed over through a bounded lock free ring buffer. The writer thread drains the buffer in batches
+ * into buffered debug files, and flushes the files once a number of messages have been written or once the flush
+ * interval has passed, whichever comes first. When the buffer is full, the logging thread either waits for room or
+ * the message is dropped, as configured. The number of messages written, dropped and waited for are counted, and
+ * dropped messages are reported on the standard error.
+ */
+public class AsyncDebugWriter implements Runnable {
+
+    /**
+     * What to do with a message when the buffer is full.
+     */
+    public enum FullPolicy {
+        /** The logging thread waits for room in the buffer. */
+        BLOCK,
+        /** The message is dropped. */
+        DROP
+    }
+
+    private static final long BLOCK_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long DROP_REPORT_INTERVAL_IN_MS = 60 * 1000;
+    private static final long STOP_TIMEOUT_IN_MS = 5000;
+
+    private final RingBuffer<Message> buffer;
+    private final int flushSize;
+    private final long flushInterval;
+    private final FullPolicy fullPolicy;
+    private final int wakeUpSize;
+    private final Thread thread;
+
+    private volatile boolean running = true;
+    private volatile boolean waiting = false;
+
+    private final ShutdownListener shutdownListener = new ShutdownListener() {
+        public void shutdown() {
+            stop();
+        }
+    };
+    private final Thread shutdownHook = new Thread(new Runnable() {
+        public void run() {
+            stop();
+        }
+    }, "DebugWriterShutdown");
+    private volatile boolean shutdownHookAdded = false;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+
+    /**
+     * Creates a writer. The writer thread is started by {@link #start()}.
+     *
+     * @param bufferSize    the number of messages the buffer holds
+     * @param flushSize     the number of messages written before the debug files are flushed
+     * @param flushInterval the milliseconds after which written messages are flushed
+     * @param fullPolicy    what to do with a message when the buffer is full
+     */
+    public AsyncDebugWriter(int bufferSize, int flushSize, long flushInterval, FullPolicy fullPolicy) {
+        this.buffer = new RingBuffer<Message>(bufferSize);
+        this.flushSize = Math.max(1, flushSize);
+        this.flushInterval = Math.max(1, flushInterval);
+        this.fullPolicy = fullPolicy;
+        this.wakeUpSize = Math.max(1, Math.min(this.flushSize, buffer.capacity() / 2));
+        this.thread = new Thread(this, "DebugWriter");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts the writer thread, which is stopped by the {@link ShutdownManager} after the other components, so that
+     * what they log while shutting down is still written. Standalone tools do not usually shut the ShutdownManager
+     * down, so unless it has its own JVM shutdown hook the writer also drains the buffer from a JVM shutdown hook.
+     * <p/>
+     * This takes the ShutdownManager lock, so must not be called while holding a lock that is also taken by code
+     * which logs while the ShutdownManager lock is held.
+     */
+    public void start() {
+        thread.start();
+        ShutdownManager shutdownMan = ShutdownManager.getInstance();
+        if (shutdownMan.acquireValidLock()) {
+            try {
+                shutdownMan.addShutdownListener(shutdownListener, ShutdownPriority.LOWEST);
+            } finally {
+                shutdownMan.releaseLockAndNotify();
+            }
+        }
+        if (!Boolean.valueOf(System.getProperty(Constants.RUNTIME_SHUTDOWN_HOOK_ENABLED))) {
+            try {
+                Runtime.getRuntime().addShutdownHook(shutdownHook);
+                shutdownHookAdded = true;
+            } catch (IllegalStateException e) {
+                // The JVM is already shutting down, messages are written until the writer is stopped
+            }
+        }
+    }
+
+    /**
+     * Stops the writer thread once the messages already in the buffer have been written. Messages handed over after
+     * this are written by the logging thread.
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(STOP_TIMEOUT_IN_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // When stopped by the ShutdownManager the lock cannot be acquired, and the listener is removed by the manager
+        ShutdownManager shutdownMan = ShutdownManager.getInstance();
+        if (shutdownMan.acquireValidLock()) {
+            try {
+                shutdownMan.removeShutdownListener(shutdownListener);
+            } finally {
+                shutdownMan.releaseLockAndNotify();
+            }
+        }
+        if (shutdownHookAdded && Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // The JVM is shutting down and the hook is running or about to run, stopping again is harmless
+            }
+            shutdownHookAdded = false;
+        }
+    }
+
+    /**
+     * Hands a message over to the writer thread.
+     *
+     * @param file   the debug file to write the message to
+     * @param prefix message prefix
+     * @param msg    message to be recorded
+     * @param th     the optional <code>java.lang.Throwable</code> whose stack trace is recorded
+     * @return true if the message will be written, false if it was dropped
+     */
+    public boolean write(DebugFileImpl file, String prefix, String msg, Throwable th) {
+        Message message = new Message(file, prefix, msg, th);
+        if (!running) {
+            return writeNow(message);
+        }
+
+        if (!buffer.offer(message)) {
+            if (fullPolicy == FullPolicy.DROP || Thread.currentThread() == thread) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            blocked.incrementAndGet();
+            do {
+                if (!running) {
+                    return writeNow(message);
+                }
+                LockSupport.unpark(thread);
+                LockSupport.parkNanos(this, BLOCK_WAIT_NANOS);
+            } while (!buffer.offer(message));
+        }
+
+        if (waiting && buffer.size() >= wakeUpSize) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    /**
+     * Writes messages until stopped, then writes what remains in the buffer.
+     */
+    @Override
+    public void run() {
+        List<Message> batch = new ArrayList<Message>(flushSize);
+        Map<DebugFileImpl, Boolean> unflushedFiles = new IdentityHashMap<DebugFileImpl, Boolean>();
+        int unflushed = 0;
+        long lastFlush = System.currentTimeMillis();
+        long reportedDrops = 0;
+        long lastDropReport = 0;
+
+        while (true) {
+            batch.clear();
+            int count = buffer.drainTo(batch, flushSize);
+            for (Message message : batch) {
+                writeIt(message);
+                unflushedFiles.put(message.file, Boolean.TRUE);
+            }
+            written.addAndGet(count);
+            unflushed += count;
+
+            long now = System.currentTimeMillis();
+            boolean idle = count < flushSize;
+            if (unflushed >= flushSize || (unflushed > 0 && (now - lastFlush >= flushInterval || !running))) {
+                flush(unflushedFiles);
+                unflushed = 0;
+                lastFlush = now;
+            }
+
+            long drops = dropped.get();
+            if (drops != reportedDrops && now - lastDropReport >= DROP_REPORT_INTERVAL_IN_MS) {
+                StdDebugFile.printError(AsyncDebugWriter.class.getSimpleName(), (drops - reportedDrops)
+                        + " debug messages were dropped as the debug buffer was full. Total dropped: " + drops, null);
+                reportedDrops = drops;
+                lastDropReport = now;
+            }
+
+            if (idle) {
+                if (!running && buffer.size() == 0) {
+                    flush(unflushedFiles);
+                    return;
+                }
+                long wait = unflushed > 0 ? flushInterval - (now - lastFlush) : flushInterval;
+                waiting = true;
+                if (running && buffer.size() < wakeUpSize && wait > 0) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(wait));
+                }
+                waiting = false;
+            }
+        }
+    }
+
+    /*
+     * Once stopped, messages are written by the logging thread itself.
+     */
+    private boolean writeNow(Message message) {
+        writeIt(message);
+        message.file.flush();
+        written.incrementAndGet();
+        return true;
+    }
+
+    private void writeIt(Message message) {
+        try {
+            message.file.writeIt(message.prefix, message.msg, message.th);
+        } catch (IOException e) {
+            try {
+                StdDebugFile.getInstance().writeIt(message.prefix, message.msg, message.th);
+            } catch (IOException ioex) {
+                StdDebugFile.printError(AsyncDebugWriter.class.getSimpleName(), ioex.getMessage(), ioex);
+            }
+        } catch (RuntimeException e) {
+            StdDebugFile.printError(AsyncDebugWriter.class.getSimpleName(), e.getMessage(), e);
+        }
+    }
+
+    private void flush(Map<DebugFileImpl, Boolean> files) {
+        if (!files.isEmpty()) {
+            for (DebugFileImpl file : files.keySet()) {
+                file.flush();
+            }
+            files.clear();
+            flushes.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of messages written to the debug files
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return the number of messages dropped as the buffer was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of messages whose logging thread had to wait for room in the buffer
+     */
+    public long getBlockedCount() {
+        return blocked.get();
+    }
+
+    /**
+     * @return the number of times the debug files have been flushed
+     */
+    public long getFlushCount() {
+        return flushes.get();
+    }
+
+    /**
+     * @return the number of messages waiting to be written
+     */
+    public int getQueueDepth() {
+        return buffer.size();
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncDebugWriter{" +
+                "written=" + written +
+                ", dropped=" + dropped +
+                ", blocked=" + blocked +
+                ", flushes=" + flushes +
+                ", queueDepth=" + buffer.size() +
+                '}';
+    }
+
+    /**
+     * A message waiting to be written.
+     */
+    private static final class Message {
+        private final DebugFileImpl file;
+        private final String prefix;
+        private final String msg;
+        private final Throwable th;
+
+        private Message(DebugFileImpl file, String prefix, String msg, Throwable th) {
+            this.file = file;
+            this.prefix = prefix;
+            this.msg = msg;
+            this.th = th;
+        }
+    }
+}
@@ -38,6 +38,7 @@ import com.sun.identity.shared.debug.file.DebugFile;
 import com.sun.identity.shared.locale.Locale;
 import org.forgerock.util.time.TimeService;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -58,6 +59,8 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  */
 public class DebugFileImpl implements DebugFile {
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private final TimeService clock;
 
     private final String debugName;
@@ -74,6 +77,8 @@ public class DebugFileImpl implements DebugFile {
 
     private final DebugConfiguration configuration;
 
+    private final boolean autoFlush;
+
     /**
      * Constructor
      *
@@ -92,9 +97,22 @@ public class DebugFileImpl implements DebugFile {
      * @param clock         Clock used to generate date
      */
     public DebugFileImpl(DebugConfiguration configuration, String debugName, TimeService clock) {
+        this(configuration, debugName, clock, true);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param configuration debug configuration
+     * @param debugName     log file name
+     * @param clock         Clock used to generate date
+     * @param autoFlush     true to flush every message as it is written, false to leave it to {@link #flush()}
+     */
+    public DebugFileImpl(DebugConfiguration configuration, String debugName, TimeService clock, boolean autoFlush) {
         this.debugName = debugName;
         this.clock = clock;
         this.configuration = configuration;
+        this.autoFlush = autoFlush;
 
         //initialize SimpleDateFormat
         SimpleDateFormat tmpSuffixDateFormat = null;
@@ -143,6 +161,20 @@ public class DebugFileImpl implements DebugFile {
 
     }
 
+    /**
+     * Flush the messages written so far to the log file
+     */
+    public void flush() {
+        fileLock.readLock().lock();
+        try {
+            if (debugWriter != null) {
+                debugWriter.flush();
+            }
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
     /**
      * Close the log file
      */
@@ -216,7 +248,12 @@ public class DebugFileImpl implements DebugFile {
             String debugFilePath = debugDirectory + File.separator + wrapFilename(debugName);
 
             try {
-                this.debugWriter = new PrintWriter(new FileWriter(debugFilePath, true), true);
+                if (autoFlush) {
+                    this.debugWriter = new PrintWriter(new FileWriter(debugFilePath, true), true);
+                } else {
+                    this.debugWriter = new PrintWriter(new BufferedWriter(new FileWriter(debugFilePath, true),
+                            BUFFER_SIZE), false);
+                }
             } catch (IOException ioex) {
                 if (this.debugWriter != null) {
                     close();
@@ -16,11 +16,14 @@
 package com.sun.identity.shared.debug.file.impl;
 
 
+import com.sun.identity.shared.configuration.SystemPropertiesManager;
 import com.sun.identity.shared.debug.DebugConstants;
 import com.sun.identity.shared.debug.file.DebugConfiguration;
 import com.sun.identity.shared.debug.file.DebugFile;
 import com.sun.identity.shared.debug.file.DebugFileProvider;
 
+import org.forgerock.util.time.TimeService;
+
 import java.util.HashMap;
 import java.util.Map;
 
@@ -32,6 +35,8 @@ import java.util.Map;
  */
 public class DebugFileProviderImpl implements DebugFileProvider {
 
+    private static AsyncDebugWriter asyncWriter;
+
     private Map<String, DebugFile> debugMap = new HashMap<String, DebugFile>();
 
     private DebugConfiguration configuration;
@@ -57,13 +62,59 @@ public class DebugFileProviderImpl implements DebugFileProvider {
      * @param debugName name of the debug instance which will be returned.
      * @return debug file
      */
-    public synchronized DebugFile getInstance(String debugName) {
-        DebugFile debugFile = debugMap.get(debugName);
-        if (debugFile == null) {
-            debugFile = new DebugFileImpl(configuration, debugName);
-            debugMap.put(debugName, debugFile);
+    public DebugFile getInstance(String debugName) {
+        // Obtained before taking the monitor, as starting the writer takes the ShutdownManager lock
+        AsyncDebugWriter writer = getAsyncWriter();
+        synchronized (this) {
+            DebugFile debugFile = debugMap.get(debugName);
+            if (debugFile == null) {
+                if (writer != null) {
+                    debugFile = new AsyncDebugFile(
+                            new DebugFileImpl(configuration, debugName, TimeService.SYSTEM, false), writer);
+                } else {
+                    debugFile = new DebugFileImpl(configuration, debugName);
+                }
+                debugMap.put(debugName, debugFile);
+            }
+            return debugFile;
+        }
+    }
+
+    /**
+     * Get the writer shared by the debug files when asynchronous debug logging is enabled
+     *
+     * @return the writer, or null if debug messages are written by the logging threads
+     */
+    public static AsyncDebugWriter getAsyncWriter() {
+        AsyncDebugWriter created;
+        synchronized (DebugFileProviderImpl.class) {
+            if (asyncWriter != null || !Boolean.parseBoolean(
+                    SystemPropertiesManager.get(DebugConstants.CONFIG_DEBUG_ASYNC, "false"))) {
+                return asyncWriter;
+            }
+            created = createAsyncWriter();
+            asyncWriter = created;
+        }
+        // Started outside of the monitor, as starting the writer takes the ShutdownManager lock
+        created.start();
+        return created;
+    }
+
+    private static AsyncDebugWriter createAsyncWriter() {
+        String policy = SystemPropertiesManager.get(DebugConstants.CONFIG_DEBUG_ASYNC_FULL_POLICY, "BLOCK");
+        AsyncDebugWriter.FullPolicy fullPolicy;
+        try {
+            fullPolicy = AsyncDebugWriter.FullPolicy.valueOf(policy.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            StdDebugFile.printError(DebugFileProviderImpl.class.getSimpleName(), "'" +
+                    DebugConstants.CONFIG_DEBUG_ASYNC_FULL_POLICY + "' must be BLOCK or DROP, BLOCK is used.", e);
+            fullPolicy = AsyncDebugWriter.FullPolicy.BLOCK;
         }
-        return debugFile;
+        return new AsyncDebugWriter(
+                SystemPropertiesManager.getAsInt(DebugConstants.CONFIG_DEBUG_ASYNC_BUFFER_SIZE, 16384),
+                SystemPropertiesManager.getAsInt(DebugConstants.CONFIG_DEBUG_ASYNC_FLUSH_SIZE, 512),
+                SystemPropertiesManager.getAsInt(DebugConstants.CONFIG_DEBUG_ASYNC_FLUSH_INTERVAL, 250),
+                fullPolicy);
     }
 
     /**
@@ -0,0 +1,140 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.shared.cache;
+
+import com.iplanet.am.util.Cache;
+import com.sun.identity.shared.configuration.SystemPropertiesManager;
+import com.sun.identity.shared.stats.Stats;
+import com.sun.identity.shared.stats.StatsListener;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates the bounded LRU caches used across the server, choosing between {@link ConcurrentLRUCache} and the
+ * legacy synchronized {@link Cache} by configuration.
+ * <p/>
+ * The concurrent cache is used unless the system property {@value #CONCURRENT_PROPERTY} is set to false. A single
+ * cache can be switched independently with the property {@value #CONCURRENT_PROPERTY}.&lt;cache name&gt;.
+ * <p/>
+ * When the {@value #STATS_NAME} statistics are enabled, the statistics of every live concurrent cache, and of
+ * every other registered {@link MonitoredCache}, are recorded at each statistics interval.
+ */
+public final class CacheFactory {
+
+    /**
+     * System property choosing whether caches are concurrent, optionally suffixed by a cache name.
+     */
+    public static final String CONCURRENT_PROPERTY = "org.forgerock.openam.cache.concurrent";
+
+    /**
+     * Name of the statistics the caches are recorded to.
+     */
+    public static final String STATS_NAME = "amCache";
+
+    private static final List<WeakReference<MonitoredCache>> CACHES =
+            new LinkedList<WeakReference<MonitoredCache>>();
+    private static boolean listening = false;
+
+    private CacheFactory() {
+    }
+
+    /**
+     * Returns whether the named cache should use the concurrent implementation.
+     *
+     * @param name The name of the cache.
+     * @return True unless configured otherwise.
+     */
+    public static boolean isConcurrent(String name) {
+        String value = SystemPropertiesManager.get(CONCURRENT_PROPERTY + "." + name);
+        if (value == null) {
+            value = SystemPropertiesManager.get(CONCURRENT_PROPERTY, "true");
+        }
+        return Boolean.valueOf(value.trim());
+    }
+
+    /**
+     * Creates a cache bounded by its number of entries.
+     *
+     * @param name The name of the cache, used in configuration and statistics.
+     * @param maxSize The maximum number of entries.
+     * @param <K> The type of the cache keys.
+     * @param <V> The type of the cache values.
+     * @return A {@link ConcurrentLRUCache}, or a legacy {@link Cache} if so configured.
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> Map<K, V> newLRUCache(String name, int maxSize) {
+        if (isConcurrent(name)) {
+            return register(new ConcurrentLRUCache<K, V>(name, Math.max(1, maxSize)));
+        }
+        return new Cache(maxSize);
+    }
+
+    /**
+     * Includes a cache in the recorded cache statistics for as long as it is referenced.
+     *
+     * @param cache The cache.
+     * @param <T> The type of the cache.
+     * @return The cache.
+     */
+    public static <T extends MonitoredCache> T register(T cache) {
+        Stats stats = Stats.getInstance(STATS_NAME);
+        synchronized (CACHES) {
+            Iterator<WeakReference<MonitoredCache>> iterator = CACHES.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().get() == null) {
+                    iterator.remove();
+                }
+            }
+            CACHES.add(new WeakReference<MonitoredCache>(cache));
+            if (!listening && stats.isEnabled()) {
+                stats.addStatsListener(new CacheStats(stats));
+                listening = true;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Records the statistics of the registered caches.
+     */
+    private static final class CacheStats implements StatsListener {
+
+        private final Stats stats;
+
+        private CacheStats(Stats stats) {
+            this.stats = stats;
+        }
+
+        public void printStats() {
+            StringBuilder sb = new StringBuilder("Cache statistics:");
+            synchronized (CACHES) {
+                Iterator<WeakReference<MonitoredCache>> iterator = CACHES.iterator();
+                while (iterator.hasNext()) {
+                    MonitoredCache cache = iterator.next().get();
+                    if (cache == null) {
+                        iterator.remove();
+                    } else {
+                        sb.append("\n").append(cache.getStatistics());
+                    }
+                }
+            }
+            stats.record(sb.toString());
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.shared.cache;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import org.forgerock.openam.shared.concurrency.StripedCounter;
+
+/**
+ * A bounded, thread safe cache with approximately least recently used eviction.
+ * <p/>
+ * Entries are spread across a number of segments by the hash of their key. Each segment is an access ordered
+ * map guarded by its own lock and holds an equal share of the maximum weight, so threads working on different
+ * keys rarely contend with each other. When a segment is over its share, its least recently used entries are
+ * evicted. Eviction order is therefore exact within a segment and approximate across the whole cache.
+ * <p/>
+ * Every entry has a weight, calculated by a {@link Weigher} when it is added, which defaults to one so that the
+ * cache is bounded by its number of entries. Hits, misses and evictions are counted for each cache.
+ * <p/>
+ * Null keys and values are not supported. The collection views are snapshots taken when they are requested.
+ *
+ * @param <K> The type of the cache keys.
+ * @param <V> The type of the cache values.
+ */
+public class ConcurrentLRUCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>, MonitoredCache {
+
+    private static final int MIN_SEGMENT_WEIGHT = 16;
+    private static final int MAX_SEGMENTS = 1 << 12;
+
+    private static final Weigher<Object, Object> SINGLETON = new Weigher<Object, Object>() {
+        public int weigh(Object key, Object value) {
+            return 1;
+        }
+    };
+
+    private final String name;
+    private final long maxWeight;
+    private final Weigher<? super K, ? super V> weigher;
+    private final Segment<K, V>[] segments;
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final StripedCounter evictions = new StripedCounter();
+
+    /**
+     * Creates a cache bounded by its number of entries, with a segment for every four available processors.
+     *
+     * @param name The name of the cache, used in its statistics.
+     * @param maxSize The maximum number of entries.
+     */
+    public ConcurrentLRUCache(String name, long maxSize) {
+        this(name, maxSize, 4 * Runtime.getRuntime().availableProcessors(), SINGLETON);
+    }
+
+    /**
+     * Creates a cache bounded by the total weight of its entries.
+     *
+     * @param name The name of the cache, used in its statistics.
+     * @param maxWeight The maximum total weight of the entries.
+     * @param concurrencyLevel The expected number of threads using the cache at once.
+     * @param weigher Calculates the weight of each entry.
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentLRUCache(String name, long maxWeight, int concurrencyLevel,
+            Weigher<? super K, ? super V> weigher) {
+        if (maxWeight <= 0 || concurrencyLevel <= 0 || weigher == null) {
+            throw new IllegalArgumentException();
+        }
+        this.name = name;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+
+        int count = 1;
+        while (count < concurrencyLevel && count < MAX_SEGMENTS) {
+            count <<= 1;
+        }
+        // Small caches use fewer segments, so that an uneven spread of keys does not evict too early.
+        while (count > 1 && maxWeight / count < MIN_SEGMENT_WEIGHT) {
+            count >>= 1;
+        }
+        segments = new Segment[count];
+        long share = maxWeight / count;
+        long remainder = maxWeight % count;
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<K, V>(share + (i < remainder ? 1 : 0), evictions);
+        }
+    }
+
+    /**
+     * @return The name of the cache.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The maximum total weight of the entries.
+     */
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * @return The current total weight of the entries.
+     */
+    public long getWeightedSize() {
+        long total = 0;
+        for (Segment<K, V> segment : segments) {
+            segment.lock();
+            try {
+                total += segment.weight;
+            } finally {
+                segment.unlock();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return The number of lookups which found an entry.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of lookups which found no entry.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of entries evicted to keep the cache within its maximum weight.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return A one line summary of the cache statistics.
+     */
+    public String getStatistics() {
+        long hitCount = getHitCount();
+        long lookups = hitCount + getMissCount();
+        return name + ": size=" + size() + ", weight=" + getWeightedSize() + "/" + maxWeight
+                + ", hits=" + hitCount + ", misses=" + (lookups - hitCount)
+                + ", hitRatio=" + (lookups == 0 ? 0.0d : (double) hitCount / lookups)
+                + ", evictions=" + getEvictionCount();
+    }
+
+    @Override
+    public V get(Object key) {
+        Segment<K, V> segment = segmentFor(key);
+        V value;
+        segment.lock();
+        try {
+            Node<V> node = segment.map.get(key);
+            value = node == null ? null : node.value;
+        } finally {
+            segment.unlock();
+        }
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        Segment<K, V> segment = segmentFor(key);
+        segment.lock();
+        try {
+            return segment.map.containsKey(key);
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return put(key, value, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public V putIfAbsent(K key, V value) {
+        return put(key, value, true);
+    }
+
+    private V put(K key, V value, boolean onlyIfAbsent) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        int weight = weigher.weigh(key, value);
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weight must be at least one");
+        }
+        Segment<K, V> segment = segmentFor(key);
+        segment.lock();
+        try {
+            Node<V> previous = segment.map.get(key);
+            if (previous != null && onlyIfAbsent) {
+                return previous.value;
+            }
+            segment.map.put(key, new Node<V>(value, weight));
+            segment.weight += weight - (previous == null ? 0 : previous.weight);
+            segment.evict();
+            return previous == null ? null : previous.value;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public V remove(Object key) {
+        Segment<K, V> segment = segmentFor(key);
+        segment.lock();
+        try {
+            Node<V> previous = segment.map.remove(key);
+            if (previous == null) {
+                return null;
+            }
+            segment.weight -= previous.weight;
+            return previous.value;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean remove(Object key, Object value) {
+        if (value == null) {
+            return false;
+        }
+        Segment<K, V> segment = segmentFor(key);
+        segment.lock();
+        try {
+            Node<V> current = segment.map.get(key);
+            if (current == null || !current.value.equals(value)) {
+                return false;
+            }
+            segment.map.remove(key);
+            segment.weight -= current.weight;
+            return true;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean replace(K key, V oldValue, V newValue) {
+        if (oldValue == null || newValue == null) {
+            throw new NullPointerException();
+        }
+        Segment<K, V> segment = segmentFor(key);
+        segment.lock();
+        try {
+            Node<V> current = segment.map.get(key);
+            if (current == null || !current.value.equals(oldValue)) {
+                return false;
+            }
+            put(key, newValue, false);
+            return true;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public V replace(K key, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        Segment<K, V> segment = segmentFor(key);
+        segment.lock();
+        try {
+            return segment.map.containsKey(key) ? put(key, value, false) : null;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            segment.lock();
+            try {
+                segment.map.clear();
+                segment.weight = 0;
+            } finally {
+                segment.unlock();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            segment.lock();
+            try {
+                size += segment.map.size();
+            } finally {
+                segment.unlock();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        final List<Entry<K, V>> snapshot = new ArrayList<Entry<K, V>>();
+        for (Segment<K, V> segment : segments) {
+            segment.lock();
+            try {
+                for (Entry<K, Node<V>> entry : segment.map.entrySet()) {
+                    snapshot.add(new SimpleImmutableEntry<K, V>(entry.getKey(), entry.getValue().value));
+                }
+            } finally {
+                segment.unlock();
+            }
+        }
+        return new AbstractSet<Entry<K, V>>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                final Iterator<Entry<K, V>> iterator = snapshot.iterator();
+                return new Iterator<Entry<K, V>>() {
+                    private Entry<K, V> current;
+
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    public Entry<K, V> next() {
+                        current = iterator.next();
+                        return current;
+                    }
+
+                    public void remove() {
+                        if (current == null) {
+                            throw new IllegalStateException();
+                        }
+                        iterator.remove();
+                        ConcurrentLRUCache.this.remove(current.getKey(), current.getValue());
+                        current = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return snapshot.size();
+            }
+        };
+    }
+
+    private Segment<K, V> segmentFor(Object key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        hash *= 0x85EBCA6B;
+        hash ^= (hash >>> 13);
+        return segments[hash & (segments.length - 1)];
+    }
+
+    /**
+     * A cached value and its weight.
+     */
+    private static final class Node<V> {
+        private final V value;
+        private final int weight;
+
+        private Node(V value, int weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * An access ordered map of part of the cache, locked by the segment itself.
+     */
+    private static final class Segment<K, V> extends ReentrantLock {
+        private final LinkedHashMap<K, Node<V>> map = new LinkedHashMap<K, Node<V>>(16, 0.75f, true);
+        private final long maxWeight;
+        private final StripedCounter evictions;
+        private long weight;
+
+        private Segment(long maxWeight, StripedCounter evictions) {
+            this.maxWeight = maxWeight;
+            this.evictions = evictions;
+        }
+
+        /**
+         * Removes the least recently used entries until the segment is within its share of the maximum weight.
+         * The lock must be held.
+         */
+        private void evict() {
+            Iterator<Node<V>> iterator = map.values().iterator();
+            while (weight > maxWeight && iterator.hasNext()) {
+                Node<V> eldest = iterator.next();
+                iterator.remove();
+                weight -= eldest.weight;
+                evictions.increment();
+            }
+        }
+    }
+}
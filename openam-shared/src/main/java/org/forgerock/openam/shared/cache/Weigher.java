@@ -0,0 +1,35 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.shared.cache;
+
+/**
+ * Calculates the weight of a cache entry, used to bound a {@link ConcurrentLRUCache} by the
+ * cost of what it holds rather than by the number of entries.
+ *
+ * @param <K> The type of the cache keys.
+ * @param <V> The type of the cache values.
+ */
+public interface Weigher<K, V> {
+
+    /**
+     * Returns the weight of an entry. The weight is calculated once, when the entry is added.
+     *
+     * @param key The non null key.
+     * @param value The non null value.
+     * @return A weight of at least one.
+     */
+    int weigh(K key, V value);
+}
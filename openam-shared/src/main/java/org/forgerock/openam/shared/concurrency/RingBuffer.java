@@ -0,0 +1,133 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.shared.concurrency;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock free queue for many producer threads and a single consumer thread.
+ * <p/>
+ * Producers claim a slot by advancing the tail with a compare and set, then publish their element into it. The
+ * consumer takes elements in the order their slots were claimed. An element whose slot has been claimed but not yet
+ * published holds back the elements behind it until it is published, so the consumer may briefly see the buffer as
+ * empty while a producer is between the two steps.
+ * <p/>
+ * Only one thread may call {@link #poll()} and {@link #drainTo(Collection, int)}.
+ *
+ * @param <E> The type of the elements.
+ */
+public class RingBuffer<E> {
+
+    private final AtomicReferenceArray<E> slots;
+    private final int capacity;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Creates a ring buffer.
+     *
+     * @param capacity The minimum number of elements the buffer holds; rounded up to a power of two.
+     */
+    public RingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<E>(size);
+    }
+
+    /**
+     * Adds an element, unless the buffer is full.
+     *
+     * @param element The non null element.
+     * @return true if the element was added, false if the buffer is full.
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        long claimed;
+        do {
+            claimed = tail.get();
+            if (claimed - head.get() >= capacity) {
+                return false;
+            }
+        } while (!tail.compareAndSet(claimed, claimed + 1));
+
+        slots.set(index(claimed), element);
+        return true;
+    }
+
+    /**
+     * Takes the oldest element. Must only be called by the consumer thread.
+     *
+     * @return The element, or null if there is no published element to take.
+     */
+    public E poll() {
+        long next = head.get();
+        int index = index(next);
+        E element = slots.get(index);
+        if (element == null) {
+            return null;
+        }
+        slots.lazySet(index, null);
+        head.lazySet(next + 1);
+        return element;
+    }
+
+    /**
+     * Takes the published elements, oldest first. Must only be called by the consumer thread.
+     *
+     * @param target The collection the elements are added to.
+     * @param max The maximum number of elements to take.
+     * @return The number of elements taken.
+     */
+    public int drainTo(Collection<? super E> target, int max) {
+        int drained = 0;
+        E element;
+        while (drained < max && (element = poll()) != null) {
+            target.add(element);
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     * @return The number of elements added and not yet taken, including those still being published.
+     */
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    /**
+     * @return The number of elements the buffer holds.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    private int index(long sequence) {
+        return (int) sequence & mask;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.shared.concurrency;
+
+import com.sun.identity.shared.debug.Debug;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queries a number of targets, typically the other servers of a site, concurrently and gathers whatever answers
+ * arrive before a deadline. The time taken is therefore bounded by the slowest target, or by the deadline, rather
+ * than by the sum of the time taken by every target.
+ * <p/>
+ * Targets which fail or do not answer in time are left out of the results, so callers receive a partial answer
+ * rather than an error. Queries still running at the deadline are interrupted.
+ */
+public class ScatterGather {
+
+    private final ExecutorService executor;
+    private final Debug debug;
+
+    /**
+     * Creates a scatter gather backed by its own pool of daemon threads, which are only kept while in use.
+     *
+     * @param name The name of the threads.
+     * @param maxThreads The maximum number of queries run at once; further queries wait for a thread.
+     * @param debug The debug instance failures are logged to.
+     */
+    public ScatterGather(String name, int maxThreads, Debug debug) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(Math.max(1, maxThreads), Math.max(1, maxThreads),
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name));
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+        this.debug = debug;
+    }
+
+    /**
+     * Creates a scatter gather which runs its queries with the given executor.
+     *
+     * @param executor The executor.
+     * @param debug The debug instance failures are logged to.
+     */
+    public ScatterGather(ExecutorService executor, Debug debug) {
+        this.executor = executor;
+        this.debug = debug;
+    }
+
+    /**
+     * A query of a single target.
+     *
+     * @param <T> The type of the targets.
+     * @param <R> The type of the answers.
+     */
+    public interface Query<T, R> {
+
+        /**
+         * Queries the target.
+         *
+         * @param target The target.
+         * @return The answer, or null if the target has nothing to contribute.
+         * @throws Exception If the target could not be queried.
+         */
+        R query(T target) throws Exception;
+    }
+
+    /**
+     * Queries all targets concurrently, waiting no longer than the timeout for their answers. A single target is
+     * queried on the calling thread.
+     *
+     * @param targets The targets.
+     * @param query The query to run against each target.
+     * @param timeout The time to wait for answers.
+     * @param unit The unit of the timeout.
+     * @param <T> The type of the targets.
+     * @param <R> The type of the answers.
+     * @return The non null answers of the targets which answered in time, in the order of the targets.
+     */
+    public <T, R> Map<T, R> gather(Collection<T> targets, final Query<T, R> query, long timeout, TimeUnit unit) {
+        Map<T, R> answers = new LinkedHashMap<T, R>();
+
+        if (targets.size() == 1) {
+            T target = targets.iterator().next();
+            try {
+                put(answers, target, query.query(target));
+            } catch (Exception e) {
+                failed(target, e);
+            }
+            return answers;
+        }
+
+        List<Callable<R>> tasks = new ArrayList<Callable<R>>(targets.size());
+        for (final T target : targets) {
+            tasks.add(new Callable<R>() {
+                public R call() throws Exception {
+                    return query.query(target);
+                }
+            });
+        }
+
+        List<Future<R>> futures;
+        try {
+            futures = executor.invokeAll(tasks, timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return answers;
+        }
+
+        Iterator<Future<R>> results = futures.iterator();
+        for (T target : targets) {
+            Future<R> result = results.next();
+            try {
+                put(answers, target, result.get());
+            } catch (CancellationException e) {
+                if (debug.warningEnabled()) {
+                    debug.warning("ScatterGather: no answer from " + target + " within " + timeout + " " + unit);
+                }
+            } catch (ExecutionException e) {
+                failed(target, e.getCause());
+            } catch (InterruptedException e) {
+                // Not reached, as invokeAll has completed or cancelled every task.
+                Thread.currentThread().interrupt();
+            }
+        }
+        return answers;
+    }
+
+    /**
+     * Stops the threads of this scatter gather.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static <T, R> void put(Map<T, R> answers, T target, R answer) {
+        if (answer != null) {
+            answers.put(target, answer);
+        }
+    }
+
+    private void failed(Object target, Throwable cause) {
+        if (debug.messageEnabled()) {
+            debug.message("ScatterGather: query of " + target + " failed", cause);
+        }
+    }
+
+    /**
+     * Names and daemonises the query threads.
+     */
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private NamedThreadFactory(String name) {
+            this.name = name + "-";
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.shared.concurrency;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter for statistics which are updated far more often than they are read.
+ *
+ * Updates are spread over a number of stripes selected by the calling thread, each on its own
+ * cache line, so that threads on different cores rarely update the same memory. Reading the
+ * value sums the stripes and so is not an atomic snapshot while updates are in progress.
+ */
+public class StripedCounter {
+
+    // Longs per stripe, spacing each stripe a 64 byte cache line apart.
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    /**
+     * Creates a counter with a stripe for each available processor.
+     */
+    public StripedCounter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a counter with at least the given number of stripes.
+     *
+     * @param stripes The minimum number of stripes, rounded up to a power of two.
+     */
+    public StripedCounter(int stripes) {
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        cells = new AtomicLongArray(size * PADDING);
+    }
+
+    /**
+     * Adds one to the counter.
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Adds the given amount to the counter.
+     *
+     * @param delta The amount to add, which may be negative.
+     */
+    public void add(long delta) {
+        cells.addAndGet(index(), delta);
+    }
+
+    /**
+     * @return The sum of all stripes.
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Resets every stripe to zero. Updates made concurrently may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            cells.set(i, 0);
+        }
+    }
+
+    private int index() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32));
+        hash ^= (hash >>> 16);
+        hash *= 0x85EBCA6B;
+        hash ^= (hash >>> 13);
+        return (hash & mask) * PADDING;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package com.sun.identity.common;
+
+import org.forgerock.util.time.TimeService;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ConcurrentExpiringMapTest {
+
+    private static final long TIMEOUT = 1000;
+
+    private TimeService clock;
+    private ConcurrentExpiringMap<String, String> map;
+
+    @BeforeMethod
+    public void setUp() {
+        clock = mock(TimeService.class);
+        when(clock.now()).thenReturn(0L);
+        map = new ConcurrentExpiringMap<String, String>("test", TIMEOUT, TIMEOUT, clock);
+    }
+
+    @Test
+    public void shouldReturnEntryUntilItExpires() {
+        // Given
+        map.put("key", "value");
+
+        // When
+        when(clock.now()).thenReturn(TIMEOUT - 1);
+        String live = map.get("key");
+        when(clock.now()).thenReturn(TIMEOUT);
+        String expired = map.get("key");
+
+        // Then
+        assertThat(live).isEqualTo("value");
+        assertThat(expired).isNull();
+        assertThat(map.size()).isZero();
+        assertThat(map.getEvictionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldExpireEntryAfterItsOwnTimeToLive() {
+        // Given
+        map.put("short", "value", 10);
+        map.put("long", "value");
+
+        // When
+        when(clock.now()).thenReturn(10L);
+
+        // Then
+        assertThat(map.containsKey("short")).isFalse();
+        assertThat(map.containsKey("long")).isTrue();
+    }
+
+    @Test
+    public void shouldDropExpiredEntriesWhenRun() {
+        // Given
+        map.put("old", "value");
+        when(clock.now()).thenReturn(TIMEOUT / 2);
+        map.put("new", "value");
+
+        // When
+        when(clock.now()).thenReturn(TIMEOUT);
+        map.run();
+
+        // Then
+        assertThat(map.size()).isEqualTo(1);
+        assertThat(map.keySet()).containsOnly("new");
+        assertThat(map.getEvictionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotReturnExpiredEntriesBeforeTheyAreDropped() {
+        // Given
+        map.put("old", "value");
+        when(clock.now()).thenReturn(TIMEOUT / 2);
+        map.put("new", "value");
+
+        // When
+        when(clock.now()).thenReturn(TIMEOUT);
+
+        // Then
+        assertThat(map.size()).isEqualTo(2);
+        assertThat(map.keySet()).containsOnly("new");
+        assertThat(map.values()).containsOnly("value");
+        assertThat(map.remove("old")).isNull();
+    }
+
+    @Test
+    public void shouldReplaceExpiredEntryIfAbsent() {
+        // Given
+        map.put("key", "old");
+        when(clock.now()).thenReturn(TIMEOUT);
+
+        // When
+        String previous = map.putIfAbsent("key", "new");
+
+        // Then
+        assertThat(previous).isNull();
+        assertThat(map.get("key")).isEqualTo("new");
+        assertThat(map.putIfAbsent("key", "newer")).isEqualTo("new");
+    }
+
+    @Test
+    public void shouldReportSizeAndEvictionsInStatistics() {
+        // Given
+        map.put("old", "value");
+        when(clock.now()).thenReturn(TIMEOUT / 2);
+        map.put("new", "value");
+
+        // When
+        when(clock.now()).thenReturn(TIMEOUT);
+        map.run();
+
+        // Then
+        assertThat(map.getStatistics()).isEqualTo("test: size=1, evictions=1");
+    }
+
+    @Test
+    public void shouldAcceptNullKeysAndValues() {
+        // When
+        map.put(null, "value");
+        map.put("key", null);
+
+        // Then
+        assertThat(map.get(null)).isEqualTo("value");
+        assertThat(map.containsKey("key")).isTrue();
+        assertThat(map.keySet()).containsOnly(null, "key");
+        assertThat(map.remove(null)).isEqualTo("value");
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package com.sun.identity.common;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class TimerPoolTest {
+
+    private static final long TICK = 10;
+
+    private TimerPool pool;
+
+    @BeforeMethod
+    public void setUp() {
+        pool = new TimerPool("TimerPoolTest", 2, true, null, TICK, 16);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void shouldRunTaskNoEarlierThanScheduled() throws InterruptedException {
+        // Given
+        CountingTask task = new CountingTask(1, -1);
+        long scheduled = System.currentTimeMillis() + 50;
+
+        // When
+        pool.schedule(task, new Date(scheduled));
+
+        // Then
+        assertThat(task.await()).isTrue();
+        assertThat(task.lastRun.get()).isGreaterThanOrEqualTo(scheduled);
+    }
+
+    @Test
+    public void shouldRunAllTasksScheduledForTheSameTime() throws InterruptedException {
+        // Given
+        Date time = new Date(System.currentTimeMillis() + 30);
+        CountingTask first = new CountingTask(1, -1);
+        CountingTask second = new CountingTask(1, -1);
+
+        // When
+        pool.schedule(first, time);
+        pool.schedule(second, time);
+
+        // Then
+        assertThat(first.await()).isTrue();
+        assertThat(second.await()).isTrue();
+    }
+
+    @Test
+    public void shouldRunTaskBeyondOneTurnOfTheWheel() throws InterruptedException {
+        // Given
+        CountingTask task = new CountingTask(1, -1);
+
+        // When
+        pool.schedule(task, TICK * 16 * 3);
+
+        // Then
+        assertThat(task.await()).isTrue();
+    }
+
+    @Test
+    public void shouldRunOverdueTaskImmediately() throws InterruptedException {
+        // Given
+        CountingTask task = new CountingTask(1, -1);
+
+        // When
+        pool.schedule(task, new Date(System.currentTimeMillis() - 1000));
+
+        // Then
+        assertThat(task.await()).isTrue();
+    }
+
+    @Test
+    public void shouldNotRunCancelledTask() throws InterruptedException {
+        // Given
+        CountingTask cancelled = new CountingTask(1, -1);
+        CountingTask marker = new CountingTask(1, -1);
+        Date time = new Date(System.currentTimeMillis() + 50);
+        pool.schedule(cancelled, time);
+
+        // When
+        cancelled.cancel();
+        pool.schedule(marker, time);
+
+        // Then
+        assertThat(marker.await()).isTrue();
+        assertThat(cancelled.runs.get()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldRescheduleCancelledTask() throws InterruptedException {
+        // Given
+        CountingTask task = new CountingTask(1, -1);
+        pool.schedule(task, 10000);
+        task.cancel();
+
+        // When
+        pool.schedule(task, 20);
+
+        // Then
+        assertThat(task.await()).isTrue();
+    }
+
+    @Test
+    public void shouldRepeatPeriodicTask() throws InterruptedException {
+        // Given
+        CountingTask task = new CountingTask(3, 20);
+
+        // When
+        pool.schedule(task, 0);
+
+        // Then
+        assertThat(task.await()).isTrue();
+        task.cancel();
+    }
+
+    @Test
+    public void shouldRepeatPeriodicTaskWhichThrowsError() throws InterruptedException {
+        // Given
+        CountingTask task = new CountingTask(3, 20) {
+            @Override
+            public void run() {
+                super.run();
+                throw new Error("Failing task");
+            }
+        };
+
+        // When
+        pool.schedule(task, 0);
+
+        // Then
+        assertThat(task.await()).isTrue();
+        task.cancel();
+    }
+
+    @Test (expectedExceptions = IllegalStateException.class)
+    public void shouldRejectTasksAfterShutdown() {
+        pool.shutdown();
+        pool.schedule(new CountingTask(1, -1), 0);
+    }
+
+    private static class CountingTask extends GeneralTaskRunnable {
+
+        private final CountDownLatch latch;
+        private final long runPeriod;
+        private final AtomicLong runs = new AtomicLong();
+        private final AtomicLong lastRun = new AtomicLong();
+
+        CountingTask(int expectedRuns, long runPeriod) {
+            this.latch = new CountDownLatch(expectedRuns);
+            this.runPeriod = runPeriod;
+        }
+
+        boolean await() throws InterruptedException {
+            return latch.await(5, TimeUnit.SECONDS);
+        }
+
+        public void run() {
+            lastRun.set(System.currentTimeMillis());
+            runs.incrementAndGet();
+            latch.countDown();
+        }
+
+        public long getRunPeriod() {
+            return runPeriod;
+        }
+
+        public boolean addElement(Object key) {
+            return false;
+        }
+
+        public boolean removeElement(Object key) {
+            return false;
+        }
+
+        public boolean isEmpty() {
+            return true;
+        }
+    }
+}
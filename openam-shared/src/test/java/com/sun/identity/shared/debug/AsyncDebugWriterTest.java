@@ -0,0 +1,109 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package com.sun.identity.shared.debug;
+
+import com.sun.identity.shared.debug.file.impl.AsyncDebugWriter;
+import com.sun.identity.shared.debug.file.impl.DebugConfigurationFromProperties;
+import com.sun.identity.shared.debug.file.impl.DebugFileImpl;
+import org.forgerock.util.time.TimeService;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Unit test for AsyncDebugWriter.
+ */
+public class AsyncDebugWriterTest extends DebugTestTemplate {
+
+    @Test
+    public void writesAllMessagesBeforeStopping() throws Exception {
+        DebugFileImpl debugFile = newDebugFile();
+        AsyncDebugWriter writer = new AsyncDebugWriter(16, 4, 50, AsyncDebugWriter.FullPolicy.BLOCK);
+        writer.start();
+
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(writer.write(debugFile, "prefix", "message " + i, null));
+        }
+        writer.stop();
+
+        Assert.assertEquals(countLines("message "), 100, "Messages written");
+        Assert.assertEquals(writer.getWrittenCount(), 100);
+        Assert.assertEquals(writer.getDroppedCount(), 0);
+    }
+
+    @Test
+    public void flushesAfterFlushInterval() throws Exception {
+        DebugFileImpl debugFile = newDebugFile();
+        AsyncDebugWriter writer = new AsyncDebugWriter(16, 1000, 50, AsyncDebugWriter.FullPolicy.BLOCK);
+        writer.start();
+
+        writer.write(debugFile, "prefix", "message", null);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (countLines("message") == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(countLines("message"), 1, "Message flushed");
+        writer.stop();
+    }
+
+    @Test
+    public void dropsMessagesWhenFullAndPolicyIsDrop() throws Exception {
+        DebugFileImpl debugFile = newDebugFile();
+        // Not started, so nothing drains the buffer
+        AsyncDebugWriter writer = new AsyncDebugWriter(4, 4, 50, AsyncDebugWriter.FullPolicy.DROP);
+
+        int accepted = 0;
+        for (int i = 0; i < 10; i++) {
+            if (writer.write(debugFile, "prefix", "message " + i, null)) {
+                accepted++;
+            }
+        }
+
+        Assert.assertEquals(accepted, 4);
+        Assert.assertEquals(writer.getDroppedCount(), 6);
+        Assert.assertEquals(writer.getQueueDepth(), 4);
+    }
+
+    private DebugFileImpl newDebugFile() throws Exception {
+        return new DebugFileImpl(new DebugConfigurationFromProperties(DEBUG_CONFIG_FOR_TEST), logName,
+                TimeService.SYSTEM, false);
+    }
+
+    private int countLines(String text) throws IOException {
+        File file = new File(debugDirectory + File.separator + logName);
+        if (!file.exists()) {
+            return 0;
+        }
+        int count = 0;
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(text)) {
+                    count++;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return count;
+    }
+}
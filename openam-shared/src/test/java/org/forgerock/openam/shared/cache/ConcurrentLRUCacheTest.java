@@ -0,0 +1,145 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.shared.cache;
+
+import java.util.Iterator;
+import java.util.Map;
+import org.testng.annotations.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Test exercises the functionality of {@link ConcurrentLRUCache}.
+ */
+public class ConcurrentLRUCacheTest {
+
+    @Test
+    public void shouldStoreAndRetrieveValues() {
+        ConcurrentLRUCache<String, String> cache = new ConcurrentLRUCache<String, String>("test", 100);
+
+        cache.put("a", "1");
+
+        assertThat(cache.get("a")).isEqualTo("1");
+        assertThat(cache.get("b")).isNull();
+        assertThat(cache.size()).isEqualTo(1);
+        assertThat(cache.getHitCount()).isEqualTo(1);
+        assertThat(cache.getMissCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedEntry() {
+        ConcurrentLRUCache<String, String> cache =
+                new ConcurrentLRUCache<String, String>("test", 3, 1, new EntryWeigher());
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        cache.get("a");
+
+        cache.put("d", "4");
+
+        assertThat(cache.containsKey("a")).isTrue();
+        assertThat(cache.containsKey("b")).isFalse();
+        assertThat(cache.size()).isEqualTo(3);
+        assertThat(cache.getEvictionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldBoundByWeight() {
+        ConcurrentLRUCache<String, String> cache = new ConcurrentLRUCache<String, String>("test", 10, 1,
+                new Weigher<String, String>() {
+                    public int weigh(String key, String value) {
+                        return value.length();
+                    }
+                });
+        cache.put("a", "12345");
+        cache.put("b", "1234");
+
+        cache.put("c", "123");
+
+        assertThat(cache.containsKey("a")).isFalse();
+        assertThat(cache.getWeightedSize()).isEqualTo(7);
+    }
+
+    @Test
+    public void shouldNotReplaceExistingValueWhenPuttingIfAbsent() {
+        ConcurrentLRUCache<String, String> cache = new ConcurrentLRUCache<String, String>("test", 100);
+        cache.put("a", "1");
+
+        String previous = cache.putIfAbsent("a", "2");
+
+        assertThat(previous).isEqualTo("1");
+        assertThat(cache.get("a")).isEqualTo("1");
+    }
+
+    @Test
+    public void shouldTrackWeightOnReplaceAndRemove() {
+        ConcurrentLRUCache<String, String> cache = new ConcurrentLRUCache<String, String>("test", 100);
+        cache.put("a", "1");
+        cache.put("a", "2");
+        cache.put("b", "3");
+
+        cache.remove("b");
+
+        assertThat(cache.getWeightedSize()).isEqualTo(1);
+        assertThat(cache.remove("a", "1")).isFalse();
+        assertThat(cache.remove("a", "2")).isTrue();
+        assertThat(cache.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void shouldRemoveThroughEntrySetIterator() {
+        ConcurrentLRUCache<String, String> cache = new ConcurrentLRUCache<String, String>("test", 100);
+        cache.put("a", "1");
+
+        Iterator<Map.Entry<String, String>> iterator = cache.entrySet().iterator();
+        iterator.next();
+        iterator.remove();
+
+        assertThat(cache.containsKey("a")).isFalse();
+    }
+
+    @Test
+    public void shouldSpreadLargeCacheOverSegments() throws InterruptedException {
+        final ConcurrentLRUCache<Integer, Integer> cache =
+                new ConcurrentLRUCache<Integer, Integer>("test", 1000, 16, new EntryWeigher());
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t * 10000;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 5000; i++) {
+                        cache.put(offset + i, i);
+                        cache.get(offset + i / 2);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(cache.size()).isLessThanOrEqualTo(1000);
+        assertThat(cache.getWeightedSize()).isEqualTo(cache.size());
+        assertThat(cache.getEvictionCount()).isEqualTo(20000 - cache.size());
+    }
+
+    private static final class EntryWeigher implements Weigher<Object, Object> {
+        public int weigh(Object key, Object value) {
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.shared.concurrency;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import org.testng.annotations.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Test exercises the functionality of {@link RingBuffer}.
+ */
+public class RingBufferTest {
+
+    @Test
+    public void shouldRoundCapacityUpToPowerOfTwo() {
+        assertThat(new RingBuffer<String>(5).capacity()).isEqualTo(8);
+        assertThat(new RingBuffer<String>(8).capacity()).isEqualTo(8);
+    }
+
+    @Test
+    public void shouldTakeElementsInOrderAdded() {
+        RingBuffer<String> buffer = new RingBuffer<String>(4);
+        buffer.offer("a");
+        buffer.offer("b");
+
+        assertThat(buffer.poll()).isEqualTo("a");
+        assertThat(buffer.poll()).isEqualTo("b");
+        assertThat(buffer.poll()).isNull();
+    }
+
+    @Test
+    public void shouldRejectElementsWhenFull() {
+        RingBuffer<String> buffer = new RingBuffer<String>(2);
+
+        assertThat(buffer.offer("a")).isTrue();
+        assertThat(buffer.offer("b")).isTrue();
+        assertThat(buffer.offer("c")).isFalse();
+        assertThat(buffer.size()).isEqualTo(2);
+
+        buffer.poll();
+        assertThat(buffer.offer("c")).isTrue();
+    }
+
+    @Test
+    public void shouldDrainUpToMaximum() {
+        RingBuffer<Integer> buffer = new RingBuffer<Integer>(8);
+        for (int i = 0; i < 5; i++) {
+            buffer.offer(i);
+        }
+        List<Integer> drained = new ArrayList<Integer>();
+
+        assertThat(buffer.drainTo(drained, 3)).isEqualTo(3);
+        assertThat(drained).containsExactly(0, 1, 2);
+        assertThat(buffer.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldDeliverEveryElementFromConcurrentProducers() throws Exception {
+        final RingBuffer<Integer> buffer = new RingBuffer<Integer>(64);
+        final int producers = 4;
+        final int perProducer = 10000;
+        final CountDownLatch start = new CountDownLatch(1);
+
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        while (!buffer.offer(base + i)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+
+        Set<Integer> received = new HashSet<Integer>();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (received.size() < producers * perProducer && System.currentTimeMillis() < deadline) {
+            Integer element = buffer.poll();
+            if (element != null) {
+                assertThat(received.add(element)).isTrue();
+            }
+        }
+
+        assertThat(received).hasSize(producers * perProducer);
+    }
+}
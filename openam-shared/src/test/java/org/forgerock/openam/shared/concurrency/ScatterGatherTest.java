@@ -0,0 +1,124 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.shared.concurrency;
+
+import com.sun.identity.shared.debug.Debug;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Test exercises the functionality of {@link ScatterGather}.
+ */
+public class ScatterGatherTest {
+
+    private ScatterGather scatterGather;
+
+    @BeforeMethod
+    public void setUp() {
+        scatterGather = new ScatterGather("ScatterGatherTest", 4, mock(Debug.class));
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        scatterGather.shutdown();
+    }
+
+    @Test
+    public void shouldGatherAnswersOfAllTargetsInOrder() {
+        // When
+        Map<String, String> answers = scatterGather.gather(Arrays.asList("a", "b", "c"), new Echo(), 5,
+                TimeUnit.SECONDS);
+
+        // Then
+        assertThat(new ArrayList<String>(answers.keySet())).containsExactly("a", "b", "c");
+        assertThat(new ArrayList<String>(answers.values())).containsExactly("A", "B", "C");
+    }
+
+    @Test
+    public void shouldLeaveOutFailedAndEmptyAnswers() {
+        // Given
+        ScatterGather.Query<String, String> query = new ScatterGather.Query<String, String>() {
+            public String query(String target) throws Exception {
+                if ("fail".equals(target)) {
+                    throw new Exception("unreachable");
+                }
+                return "empty".equals(target) ? null : target;
+            }
+        };
+
+        // When
+        Map<String, String> answers = scatterGather.gather(Arrays.asList("ok", "fail", "empty"), query, 5,
+                TimeUnit.SECONDS);
+
+        // Then
+        assertThat(answers.keySet()).containsOnly("ok");
+    }
+
+    @Test
+    public void shouldNotWaitForSlowTargetsBeyondTheTimeout() {
+        // Given
+        ScatterGather.Query<String, String> query = new ScatterGather.Query<String, String>() {
+            public String query(String target) throws Exception {
+                if ("slow".equals(target)) {
+                    Thread.sleep(10000);
+                }
+                return target;
+            }
+        };
+        long start = System.currentTimeMillis();
+
+        // When
+        Map<String, String> answers = scatterGather.gather(Arrays.asList("fast", "slow"), query, 200,
+                TimeUnit.MILLISECONDS);
+
+        // Then
+        assertThat(System.currentTimeMillis() - start).isLessThan(5000);
+        assertThat(answers.keySet()).containsOnly("fast");
+    }
+
+    @Test
+    public void shouldQuerySingleTargetOnCallingThread() {
+        // Given
+        final Thread caller = Thread.currentThread();
+        ScatterGather.Query<String, Boolean> query = new ScatterGather.Query<String, Boolean>() {
+            public Boolean query(String target) {
+                return Thread.currentThread() == caller;
+            }
+        };
+
+        // When
+        Map<String, Boolean> answers = scatterGather.gather(Collections.singleton("only"), query, 5,
+                TimeUnit.SECONDS);
+
+        // Then
+        assertThat(answers.get("only")).isTrue();
+    }
+
+    private static final class Echo implements ScatterGather.Query<String, String> {
+        public String query(String target) {
+            return target.toUpperCase();
+        }
+    }
+}
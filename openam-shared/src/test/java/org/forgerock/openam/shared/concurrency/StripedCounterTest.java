@@ -0,0 +1,79 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2015 ForgeRock AS.
+ */
+package org.forgerock.openam.shared.concurrency;
+
+import java.util.concurrent.CountDownLatch;
+import org.testng.annotations.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Test exercises the functionality of {@link StripedCounter}.
+ */
+public class StripedCounterTest {
+
+    @Test
+    public void shouldSumAdditions() {
+        StripedCounter counter = new StripedCounter(4);
+
+        counter.increment();
+        counter.add(5);
+        counter.add(-2);
+
+        assertThat(counter.sum()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldResetToZero() {
+        StripedCounter counter = new StripedCounter();
+        counter.add(10);
+
+        counter.reset();
+
+        assertThat(counter.sum()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotLoseConcurrentIncrements() throws InterruptedException {
+        final StripedCounter counter = new StripedCounter(2);
+        final int threads = 8;
+        final int increments = 10000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < increments; j++) {
+                        counter.increment();
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertThat(counter.sum()).isEqualTo((long) threads * increments);
+    }
+}